@@ -16,25 +16,57 @@ package dk.statsbiblioteket.util;
 
 import dk.statsbiblioteket.util.qa.QAInfo;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An extension of CompletionService that supports non-blocking result polling as well as non-terminating wait for
  * all jobs to finish.
+ *
+ * Besides the standard fixed thread pool, the controller can be backed by any Executor, such as a work stealing
+ * {@link ForkJoinPool} for CPU bound jobs, see {@link #createForkJoinExecutor(int)}, or virtual threads for I/O bound
+ * jobs, see {@link #createVirtualThreadExecutor()}. The number of pending jobs (queued or running) can be bounded with
+ * {@link #JobController(Executor, int, boolean, boolean)}, in which case submit either blocks or rejects when the
+ * limit is reached.
+ *
+ * Results can be retrieved in completion order with the pop, poll and take methods or in submit order with
+ * {@link #iterateOrdered(Iterator, int)}. The time each job waits in the queue and the time it runs are recorded
+ * for the latest {@link #STATS_WINDOW} jobs, see {@link #getSnapshot()}.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class JobController<R> extends ExecutorCompletionService<R> {
+    private static final Log log = LogFactory.getLog(JobController.class);
+
     private final Executor executor;
+    /** Null if the number of pending jobs is not bounded. */
+    private final BoundedExecutor bounded;
     private final AtomicLong issued = new AtomicLong(0); // Issued tasks
     private final AtomicInteger tasks = new AtomicInteger(0);  // Active task count
     private boolean autoEmpty = false;
 
+    /** The number of jobs to keep queue wait and run time statistics for. */
+    public static final int STATS_WINDOW = 1000;
+    /** Queue wait times in microseconds. Guarded by itself. */
+    private final SlidingPercentiles queueWait = SlidingPercentiles.createHistogram(STATS_WINDOW);
+    /** Run times in microseconds. Guarded by itself. */
+    private final SlidingPercentiles runTime = SlidingPercentiles.createHistogram(STATS_WINDOW);
+
     /**
      * Shortcut for {@code JobController(maxConcurrentThreads, false, false, null)}.
      * @param maxConcurrentThreads the maximum number of active threads.
@@ -87,6 +119,113 @@ public class JobController<R> extends ExecutorCompletionService<R> {
     public JobController(Executor executor) {
         super(executor);
         this.executor = executor;
+        this.bounded = null;
+    }
+
+    /**
+     * Constructs a JobController where the number of pending jobs, either queued or running, is limited.
+     * When the limit is reached, {@link #submit} either blocks until a job has finished or throws a
+     * {@link RejectedExecutionException}. This guards against producers running out of memory by issuing jobs
+     * faster than they are processed.
+     *
+     * Note that finished jobs are not counted as pending, even if their results have not been retrieved.
+     * @param executor      the executor for the jobs, e.g. a {@link ThreadPoolExecutor},
+     *                      {@link #createForkJoinExecutor(int)} or {@link #createVirtualThreadExecutor()}.
+     * @param maxPending    the maximum number of queued or running jobs.
+     * @param blockWhenFull if true, submit blocks when the limit is reached. If false, submit throws a
+     *                      RejectedExecutionException.
+     * @param autoEmpty     if true, finished jobs are automatically removed.
+     */
+    public JobController(Executor executor, int maxPending, boolean blockWhenFull, boolean autoEmpty) {
+        this(new BoundedExecutor(executor, maxPending, blockWhenFull));
+        bounded.setCallback(this);
+        this.autoEmpty = autoEmpty;
+    }
+
+    private JobController(BoundedExecutor bounded) {
+        super(bounded);
+        this.executor = bounded.inner;
+        this.bounded = bounded;
+    }
+
+    /**
+     * Creates a JobController backed by a work stealing {@link ForkJoinPool}, intended for CPU bound jobs.
+     * @param parallelism   the number of threads, normally the number of processors.
+     * @param maxPending    the maximum number of queued or running jobs.
+     * @param blockWhenFull if true, submit blocks when the limit is reached. If false, submit throws a
+     *                      RejectedExecutionException.
+     * @return a JobController using a ForkJoinPool.
+     */
+    public static <R> JobController<R> forkJoin(int parallelism, int maxPending, boolean blockWhenFull) {
+        return new JobController<R>(createForkJoinExecutor(parallelism), maxPending, blockWhenFull, false);
+    }
+
+    /**
+     * Creates a JobController intended for a large number of concurrent I/O bound jobs. Each job gets its own
+     * virtual thread if the JVM supports it (Java 21+), else its own platform thread, see
+     * {@link #createVirtualThreadExecutor()}.
+     * @param maxPending    the maximum number of queued or running jobs, which is also the maximum number of threads.
+     * @param blockWhenFull if true, submit blocks when the limit is reached. If false, submit throws a
+     *                      RejectedExecutionException.
+     * @return a JobController with a thread per job.
+     */
+    public static <R> JobController<R> threadPerJob(int maxPending, boolean blockWhenFull) {
+        return new JobController<R>(createVirtualThreadExecutor(), maxPending, blockWhenFull, false);
+    }
+
+    /**
+     * @param parallelism the number of threads, normally the number of processors.
+     * @return a work stealing executor with daemon threads.
+     */
+    public static ExecutorService createForkJoinExecutor(int parallelism) {
+        return new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each job if the JVM supports virtual threads (Java 21+).
+     * If not, an executor that starts or reuses a daemon platform thread for each job is returned. In the latter case
+     * the number of concurrent jobs should be bounded, e.g. with
+     * {@link #JobController(Executor, int, boolean, boolean)}, to avoid creating too many threads.
+     * @return an executor with a thread per job.
+     */
+    public static ExecutorService createVirtualThreadExecutor() {
+        if (VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (Exception e) {
+                log.warn("Unable to create virtual thread executor. Falling back to platform threads", e);
+            }
+        }
+        return new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "jobController_job-" + threadCreateCount.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads, which will be used by
+     *         {@link #createVirtualThreadExecutor()}.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor, resolved at runtime as it is only available from Java 21. */
+    private static final Method VIRTUAL_THREAD_EXECUTOR;
+    static {
+        Method method = null;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            // Java < 21, which is expected
+        }
+        VIRTUAL_THREAD_EXECUTOR = method;
     }
 
     /**
@@ -177,22 +316,131 @@ public class JobController<R> extends ExecutorCompletionService<R> {
         return finished;
     }
 
+    /**
+     * Submits jobs from the given source and returns their Futures in the order of the source. At most
+     * {@code window} jobs are submitted ahead of the Future returned last, so that memory usage is bounded while
+     * the jobs are processed in parallel. Jobs are only pulled from the source when the iterator is used.
+     *
+     * The Futures are retrieved with {@link #take()}, so {@link #afterExecute(Future)} is called as usual. The
+     * controller should not be used for other jobs during the iteration, as their Futures would be taken and
+     * discarded by the iterator.
+     * @param jobs   the jobs to submit.
+     * @param window the maximum number of submitted jobs that has not been returned by the iterator.
+     * @return an iterator over finished Futures for the jobs, in the order of the source. If a job was interrupted
+     *         while waiting, a RuntimeException is thrown from {@link Iterator#next()}.
+     * @throws IllegalStateException if the controller empties automatically, as the Futures would be lost.
+     */
+    public Iterator<Future<R>> iterateOrdered(final Iterator<? extends Callable<R>> jobs, final int window) {
+        if (autoEmpty) {
+            throw new IllegalStateException("Ordered iteration is not possible when autoEmpty is true");
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("The window must be at least 1 but was " + window);
+        }
+        return new Iterator<Future<R>>() {
+            private final ArrayDeque<Future<R>> submitted = new ArrayDeque<Future<R>>(window);
+            /** Finished Futures that has not yet been returned. */
+            private final Set<Future<R>> finished =
+                    Collections.newSetFromMap(new IdentityHashMap<Future<R>, Boolean>());
+
+            @Override
+            public boolean hasNext() {
+                fill();
+                return !submitted.isEmpty();
+            }
+
+            @Override
+            public Future<R> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Future<R> head = submitted.removeFirst();
+                try {
+                    while (!finished.remove(head)) {
+                        finished.add(take());
+                    }
+                } catch (InterruptedException e) {
+                    submitted.addFirst(head);
+                    throw new RuntimeException("Interrupted while waiting for job to finish", e);
+                }
+                fill();
+                return head;
+            }
+
+            private void fill() {
+                while (submitted.size() < window && jobs.hasNext()) {
+                    submitted.addLast(submit(jobs.next()));
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Remove not supported");
+            }
+        };
+    }
+
     @Override
-    public Future<R> submit(Callable<R> task) {
-        Future<R> future = super.submit(task);
+    public Future<R> submit(final Callable<R> task) {
+        final long queued = System.nanoTime();
+        Future<R> future = super.submit(new Callable<R>() {
+            @Override
+            public R call() throws Exception {
+                long started = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    finished(queued, started);
+                }
+            }
+        });
         tasks.incrementAndGet();
         issued.incrementAndGet();
         return future;
     }
 
     @Override
-    public Future<R> submit(Runnable task, R result) {
-        Future<R> future = super.submit(task, result);
+    public Future<R> submit(final Runnable task, R result) {
+        final long queued = System.nanoTime();
+        Future<R> future = super.submit(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    finished(queued, started);
+                }
+            }
+        }, result);
         tasks.incrementAndGet();
         issued.incrementAndGet();
         return future;
     }
 
+    /**
+     * Called by the job wrappers when a job has finished, before the Future for the job is completed.
+     */
+    private void finished(long queued, long started) {
+        record(queued, started, System.nanoTime());
+        if (bounded != null) {
+            bounded.releaseCurrent();
+        }
+    }
+
+    private void record(long queued, long started, long finished) {
+        synchronized (queueWait) {
+            queueWait.add(toMicros(started - queued));
+        }
+        synchronized (runTime) {
+            runTime.add(toMicros(finished - started));
+        }
+    }
+
+    private static int toMicros(long ns) {
+        return (int) Math.min(Integer.MAX_VALUE, ns / 1000);
+    }
+
     // We only synchronize takers and not submitters as we only need to guard against the queue being emptied
     // during popAll.
     @Override
@@ -244,10 +492,17 @@ public class JobController<R> extends ExecutorCompletionService<R> {
     }
 
     /**
-     * @return the number of running jobs if the executor is a ThreadPoolExecutor.
-     * @throws java.lang.IllegalStateException if the executor is not a ThreadPoolExecutor.
+     * @return the number of running jobs if the number of pending jobs is bounded or the executor is a
+     *         ThreadPoolExecutor or ForkJoinPool.
+     * @throws java.lang.IllegalStateException if the number of running jobs cannot be determined.
      */
     public int getActiveCount() throws IllegalStateException {
+        if (bounded != null) {
+            return bounded.running.get();
+        }
+        if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool)executor).getActiveThreadCount();
+        }
         if (!(executor instanceof ThreadPoolExecutor)) {
             throw new IllegalStateException("The executor was a " + executor.getClass().getCanonicalName()
                                             + " but must be a ThreadPoolExecutor for this call to succeed");
@@ -255,6 +510,13 @@ public class JobController<R> extends ExecutorCompletionService<R> {
         return ((ThreadPoolExecutor)executor).getActiveCount();
     }
 
+    /**
+     * @return the number of queued or running jobs or -1 if the number of pending jobs is not bounded.
+     */
+    public int getPendingCount() {
+        return bounded == null ? -1 : bounded.maxPending - bounded.permits.availablePermits();
+    }
+
     /**
      * @return the total number of issued tasks.
      */
@@ -262,10 +524,185 @@ public class JobController<R> extends ExecutorCompletionService<R> {
         return issued.get();
     }
 
+    /**
+     * @return counters and queue wait and run time distributions for the latest jobs.
+     */
+    public Snapshot getSnapshot() {
+        LogLinearHistogram waits;
+        synchronized (queueWait) {
+            waits = queueWait.getSnapshot();
+        }
+        LogLinearHistogram runs;
+        synchronized (runTime) {
+            runs = runTime.getSnapshot();
+        }
+        return new Snapshot(getIssued(), getTaskCount(), waits, runs);
+    }
+
     @Override
     public String toString() {
-        return "JobController(tasks=" + getTaskCount() + ", active=" + getActiveCount()
-               + ", issued=" + getIssued() + ", executor=" + executor + ")";
+        String active;
+        try {
+            active = Integer.toString(getActiveCount());
+        } catch (IllegalStateException e) {
+            active = "N/A";
+        }
+        return "JobController(tasks=" + getTaskCount() + ", active=" + active
+               + (bounded == null ? "" : ", pending=" + getPendingCount() + "/" + bounded.maxPending)
+               + ", issued=" + getIssued() + ", " + getSnapshot().getTimings() + ", executor=" + executor + ")";
+    }
+
+    /**
+     * Statistics for a JobController at a given point in time. Times are in microseconds and are recorded for the
+     * latest {@link #STATS_WINDOW} finished jobs.
+     */
+    public static class Snapshot {
+        private final long issued;
+        private final int tasks;
+        private final LogLinearHistogram queueWait;
+        private final LogLinearHistogram runTime;
+
+        public Snapshot(long issued, int tasks, LogLinearHistogram queueWait, LogLinearHistogram runTime) {
+            this.issued = issued;
+            this.tasks = tasks;
+            this.queueWait = queueWait;
+            this.runTime = runTime;
+        }
+
+        /**
+         * @return the total number of issued jobs.
+         */
+        public long getIssued() {
+            return issued;
+        }
+
+        /**
+         * @return the number of jobs where the status had not been retrieved.
+         */
+        public int getTasks() {
+            return tasks;
+        }
+
+        /**
+         * @return microseconds from submit until the job was started.
+         */
+        public LogLinearHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * @return microseconds from the job was started until it finished.
+         */
+        public LogLinearHistogram getRunTime() {
+            return runTime;
+        }
+
+        private String getTimings() {
+            return String.format("queueWait(median=%.0fus, 99%%=%.0fus), runTime(median=%.0fus, 99%%=%.0fus)",
+                                 queueWait.getMedian(), queueWait.getPercentile(0.99),
+                                 runTime.getMedian(), runTime.getPercentile(0.99));
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot(issued=" + issued + ", tasks=" + tasks + ", " + getTimings() + ")";
+        }
+    }
+
+    /**
+     * Limits the number of queued or running jobs for any Executor. When autoEmpty is true for the controller,
+     * finished jobs are polled, which triggers
+     * {@link dk.statsbiblioteket.util.JobController#afterExecute(java.util.concurrent.Future)}.
+     *
+     * The permit for a job is released by the job wrapper from {@link #submit}, before the Future for the job is
+     * completed, so that a caller that has retrieved the Future can submit a new job without being blocked or
+     * rejected. If the job never runs, e.g. due to cancellation, the permit is released after the execution attempt.
+     */
+    private static class BoundedExecutor implements Executor {
+        private final Executor inner;
+        private final int maxPending;
+        private final boolean blockWhenFull;
+        private final Semaphore permits;
+        private final AtomicInteger running = new AtomicInteger(0);
+        /** The permit state for the job currently executed by the thread, null if none. */
+        private final ThreadLocal<AtomicBoolean> released = new ThreadLocal<AtomicBoolean>();
+        private JobController<?> callback;
+
+        public BoundedExecutor(Executor inner, int maxPending, boolean blockWhenFull) {
+            if (maxPending < 1) {
+                throw new IllegalArgumentException("maxPending must be at least 1 but was " + maxPending);
+            }
+            this.inner = inner;
+            this.maxPending = maxPending;
+            this.blockWhenFull = blockWhenFull;
+            permits = new Semaphore(maxPending);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            acquire();
+            try {
+                inner.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        AtomicBoolean permit = new AtomicBoolean(false);
+                        released.set(permit);
+                        running.incrementAndGet();
+                        try {
+                            command.run();
+                        } finally {
+                            released.remove();
+                            release(permit);
+                        }
+                        if (callback != null && callback.autoEmpty) {
+                            // Only poll, not take, as another thread might have already removed the result
+                            callback.poll();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private void acquire() {
+            if (!blockWhenFull) {
+                if (!permits.tryAcquire()) {
+                    throw new RejectedExecutionException(
+                            "The maximum number of pending jobs (" + maxPending + ") has been reached");
+                }
+                return;
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a pending job to finish", e);
+            }
+        }
+
+        /**
+         * Releases the permit for the job currently executed by the calling thread. Called by the job wrapper,
+         * before the Future for the job is completed. Calling this outside of a bounded job has no effect.
+         */
+        public void releaseCurrent() {
+            AtomicBoolean permit = released.get();
+            if (permit != null) {
+                release(permit);
+            }
+        }
+
+        private void release(AtomicBoolean permit) {
+            if (permit.compareAndSet(false, true)) {
+                running.decrementAndGet();
+                permits.release();
+            }
+        }
+
+        public void setCallback(JobController<?> callback) {
+            this.callback = callback;
+        }
     }
 
     /**
@@ -273,7 +710,7 @@ public class JobController<R> extends ExecutorCompletionService<R> {
      * when a task finishes.
      */
     private static class CallbackThreadPoolExecutor extends ThreadPoolExecutor {
-        private JobController callback;
+        private JobController<?> callback;
 
         public CallbackThreadPoolExecutor( int maxConcurrentThreads, final boolean daemonThreads, final String prefix) {
             super(maxConcurrentThreads, maxConcurrentThreads,
@@ -301,7 +738,7 @@ public class JobController<R> extends ExecutorCompletionService<R> {
             }
         }
 
-        public void setCallback(JobController callback) {
+        public void setCallback(JobController<?> callback) {
             this.callback = callback;
         }
     }
@@ -0,0 +1,307 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util;
+
+import java.util.Arrays;
+
+/**
+ * Histogram with buckets of logarithmically increasing width, in the style of HdrHistogram. Values below
+ * {@code 2^precisionBits} are counted exactly. Larger values share buckets with neighbours, with a bucket width that
+ * is at most {@code 1/2^precisionBits} of the values in the bucket. Percentiles are thus calculated with bounded
+ * relative error, independent of the number of values.
+ *
+ * Adding and removing values is O(1) and percentile calculation is O(buckets). The bucket arrays grow on demand to
+ * the largest value seen, so a histogram for small values is small. Histograms with the same precision can be
+ * merged with {@link #add(LogLinearHistogram)}.
+ *
+ * Negative values are supported and counted in a separate set of buckets, allocated on first use.
+ *
+ * This implementation is not thread safe.
+ */
+public class LogLinearHistogram {
+    /** 7 bits gives a maximum relative error of 1/128 for percentiles, using about 3,700 buckets for all longs. */
+    public static final int DEFAULT_PRECISION_BITS = 7;
+    /**
+     * The bucket count for all longs is {@code 2^(precisionBits-1) * (65-precisionBits)}, so 16 bits gives a worst
+     * case of 1,605,632 buckets or about 13MB for each of the positive and negative bucket arrays.
+     */
+    public static final int MAX_PRECISION_BITS = 16;
+
+    private final int precisionBits;
+    /** The number of exact buckets, 2^precisionBits. */
+    private final int subCount;
+    /** Number of buckets per doubling above the exact buckets. */
+    private final int half;
+    /** The number of buckets needed to hold all non-negative longs. */
+    private final int maxBuckets;
+
+    private long[] counts = new long[0];
+    /** Buckets for negative values v, indexed by {@code ~v}. */
+    private long[] negativeCounts = new long[0];
+    private long count = 0;
+    private long sum = 0;
+
+    /**
+     * Creates a histogram with {@link #DEFAULT_PRECISION_BITS}.
+     */
+    public LogLinearHistogram() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * @param precisionBits the number of significant bits for the buckets: Values below {@code 2^precisionBits} are
+     *                      counted exactly and percentiles have a maximum relative error of
+     *                      {@code 1/2^precisionBits}. Valid range is 1-{@link #MAX_PRECISION_BITS}.
+     */
+    public LogLinearHistogram(int precisionBits) {
+        if (precisionBits < 1 || precisionBits > MAX_PRECISION_BITS) {
+            throw new IllegalArgumentException(
+                    "precisionBits must be 1-" + MAX_PRECISION_BITS + " but was " + precisionBits);
+        }
+        this.precisionBits = precisionBits;
+        subCount = 1 << precisionBits;
+        half = subCount >> 1;
+        maxBuckets = index(Long.MAX_VALUE) + 1;
+    }
+
+    /**
+     * @param value will be added to the histogram in O(1) amortized.
+     */
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    /**
+     * @param value       will be added to the histogram in O(1) amortized.
+     * @param occurrences the number of times to add the value.
+     */
+    public void add(long value, long occurrences) {
+        if (value >= 0) {
+            int index = index(value);
+            if (index >= counts.length) {
+                counts = grow(counts, index);
+            }
+            counts[index] += occurrences;
+        } else {
+            int index = index(~value);
+            if (index >= negativeCounts.length) {
+                negativeCounts = grow(negativeCounts, index);
+            }
+            negativeCounts[index] += occurrences;
+        }
+        count += occurrences;
+        sum += value * occurrences;
+    }
+
+    /**
+     * Removes a previously added value. Used for sliding windows.
+     * @param value a value that has previously been added.
+     * @throws IllegalStateException if the value has not been added.
+     */
+    public void remove(long value) {
+        long[] buckets = value >= 0 ? counts : negativeCounts;
+        int index = index(value >= 0 ? value : ~value);
+        if (index >= buckets.length || buckets[index] == 0) {
+            throw new IllegalStateException("The value " + value + " has not been added to the histogram");
+        }
+        buckets[index]--;
+        count--;
+        sum -= value;
+    }
+
+    /**
+     * Merges the counts from the given histogram into this histogram.
+     * @param other a histogram with the same precision as this one.
+     */
+    public void add(LogLinearHistogram other) {
+        if (other.precisionBits != precisionBits) {
+            throw new IllegalArgumentException("Unable to merge a histogram with precisionBits "
+                                               + other.precisionBits + " into one with " + precisionBits);
+        }
+        counts = merge(counts, other.counts);
+        negativeCounts = merge(negativeCounts, other.negativeCounts);
+        count += other.count;
+        sum += other.sum;
+    }
+
+    private static long[] merge(long[] destination, long[] source) {
+        if (source.length > destination.length) {
+            destination = Arrays.copyOf(destination, source.length);
+        }
+        for (int i = 0; i < source.length; i++) {
+            destination[i] += source[i];
+        }
+        return destination;
+    }
+
+    private long[] grow(long[] buckets, int index) {
+        return Arrays.copyOf(buckets, Math.max(index + 1, Math.min(maxBuckets, buckets.length * 3 / 2)));
+    }
+
+    /**
+     * @return an independent copy of this histogram.
+     */
+    public LogLinearHistogram copy() {
+        LogLinearHistogram copy = new LogLinearHistogram(precisionBits);
+        copy.add(this);
+        return copy;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(negativeCounts, 0);
+        count = 0;
+        sum = 0;
+    }
+
+    /* Bucket calculations for non-negative values */
+
+    int index(long value) {
+        if (value < subCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (precisionBits - 1);
+        return subCount + (shift - 1) * half + (int) ((value >>> shift) - half);
+    }
+
+    long lowest(int index) {
+        if (index < subCount) {
+            return index;
+        }
+        int offset = index - subCount;
+        int shift = offset / half + 1;
+        return ((long) (offset % half + half)) << shift;
+    }
+
+    long highest(int index) {
+        if (index < subCount) {
+            return index;
+        }
+        return lowest(index) + (1L << ((index - subCount) / half + 1)) - 1;
+    }
+
+    /**
+     * @param index a bucket index.
+     * @param negative if true, the bucket is for negative values.
+     * @return the value in the middle of the bucket.
+     */
+    private double representative(int index, boolean negative) {
+        double middle = lowest(index) / 2.0 + highest(index) / 2.0; // Avoid overflow
+        return negative ? -middle - 1 : middle;
+    }
+
+    /* Statistics */
+
+    public int getPrecisionBits() {
+        return precisionBits;
+    }
+
+    /**
+     * @return the number of values in the histogram.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the exact sum of the values in the histogram.
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the exact arithmetic mean of the values or 0 if there are no values.
+     */
+    public double getAverage() {
+        return count == 0 ? 0 : ((double) sum) / count;
+    }
+
+    /**
+     * @return the smallest value in the histogram, within the bucket precision, or 0 if there are no values.
+     */
+    public double getMin() {
+        return valueAtRank(0);
+    }
+
+    /**
+     * @return the largest value in the histogram, within the bucket precision, or 0 if there are no values.
+     */
+    public double getMax() {
+        return valueAtRank(count - 1);
+    }
+
+    /**
+     * Shorthand for {@code getPercentile(SlidingPercentiles.MEDIAN)};
+     * @return the median for the values, within the bucket precision.
+     */
+    public double getMedian() {
+        return getPercentile(SlidingPercentiles.MEDIAN);
+    }
+
+    /**
+     * Returns the given percentile, interpolated between two values if the percentile is not a perfect split.
+     * The semantics are the same as for {@link SlidingPercentiles#getPercentile(double)}, with values represented by
+     * the middle of their buckets.
+     * @param percent the wanted percentile as a number from 0 to 1, both inclusive.
+     * @return the calculated percentile in O(buckets) time or 0 if there are no values.
+     */
+    public double getPercentile(double percent) {
+        if (count == 0) {
+            return 0;
+        }
+        double pos = count * percent - 1;
+        if (pos < 0) {
+            return valueAtRank(0);
+        }
+        if (pos >= count - 1) {
+            return valueAtRank(count - 1);
+        }
+        long rank = (long) pos;
+        double valLeft = valueAtRank(rank);
+        double valRight = valueAtRank(rank + 1);
+        return valLeft + (valRight - valLeft) * (pos - rank);
+    }
+
+    /**
+     * @param rank 0-based position in the sorted values.
+     * @return the representative value for the bucket containing the rank or 0 if the rank is not in the histogram.
+     */
+    private double valueAtRank(long rank) {
+        if (rank < 0 || rank >= count) {
+            return 0;
+        }
+        long seen = 0;
+        for (int i = negativeCounts.length - 1; i >= 0; i--) {
+            seen += negativeCounts[i];
+            if (seen > rank) {
+                return representative(i, true);
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return representative(i, false);
+            }
+        }
+        throw new IllegalStateException("Logic error: Rank " + rank + " not found with count " + count);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LogLinearHistogram(precisionBits=%d, count=%d, average=%.2f, median=%.2f, max=%.2f)",
+                             precisionBits, count, getAverage(), getMedian(), getMax());
+    }
+}
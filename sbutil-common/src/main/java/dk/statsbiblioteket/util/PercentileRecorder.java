@@ -0,0 +1,299 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe recorder of values such as latencies, providing the same statistics as {@link SlidingPercentiles}
+ * over either the last N values or the last T seconds.
+ *
+ * Each recording thread has its own single-producer buffer, so {@link #record(int)} takes no locks and performs no
+ * compare-and-swap: Recording is an array store and an ordered write of a counter. The buffers are drained into the
+ * shared statistics when these are requested, when {@link #drain()} is called and when a thread fills its buffer.
+ *
+ * As values are drained in batches, the ordering of values from different threads is approximate and values are
+ * assigned to time slots when they are drained, not when they are recorded. Use
+ * {@link #scheduleDrain(ScheduledExecutorService, long)} for time windows with low traffic, to keep the assignment
+ * precise.
+ */
+public class PercentileRecorder {
+    /** The number of values that can be recorded by a thread before draining is needed. */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+    /** The number of time slots for time based windows. */
+    public static final int TIME_SLOTS = 10;
+
+    private final List<Cell> cells = new CopyOnWriteArrayList<Cell>();
+    private final ThreadLocal<Cell> threadCell = new ThreadLocal<Cell>() {
+        @Override
+        protected Cell initialValue() {
+            Cell cell = new Cell(bufferSize);
+            cells.add(cell);
+            return cell;
+        }
+    };
+    private final int bufferSize;
+
+    /** Used for windows defined by number of values. Null for time based windows. */
+    private final SlidingPercentiles slider;
+
+    /* Time based windows */
+    private final int precisionBits;
+    private final long slotMS;
+    private final LogLinearHistogram[] slots;
+    private final long[] slotIDs;
+
+    /**
+     * @param windowSize the number of values to calculate statistics from.
+     * @return a recorder over the latest values, with the precision given by
+     *         {@link LogLinearHistogram#DEFAULT_PRECISION_BITS}.
+     */
+    public static PercentileRecorder lastValues(int windowSize) {
+        return new PercentileRecorder(SlidingPercentiles.createHistogram(windowSize), 0, 0, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param slider the structure to calculate statistics from. This can be an exact or a histogram based slider.
+     *               The slider should not be accessed directly after construction of the recorder.
+     * @return a recorder over the latest values.
+     */
+    public static PercentileRecorder lastValues(SlidingPercentiles slider) {
+        return new PercentileRecorder(slider, 0, 0, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param seconds the timespan to calculate statistics from.
+     * @return a recorder over the values from the last {@code seconds}, with the precision given by
+     *         {@link LogLinearHistogram#DEFAULT_PRECISION_BITS}. The timespan is tracked with a granularity of
+     *         {@code seconds/}{@link #TIME_SLOTS}.
+     */
+    public static PercentileRecorder lastSeconds(int seconds) {
+        return lastMS(seconds * 1000L, LogLinearHistogram.DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * @param ms            the timespan to calculate statistics from.
+     * @param precisionBits the precision of the histograms, see {@link LogLinearHistogram#LogLinearHistogram(int)}.
+     * @return a recorder over the values from the last {@code ms} milliseconds. The timespan is tracked with a
+     *         granularity of {@code ms/}{@link #TIME_SLOTS}.
+     */
+    public static PercentileRecorder lastMS(long ms, int precisionBits) {
+        return new PercentileRecorder(null, precisionBits, ms, DEFAULT_BUFFER_SIZE);
+    }
+
+    PercentileRecorder(SlidingPercentiles slider, int precisionBits, long windowMS, int bufferSize) {
+        if (Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("The buffer size must be a power of 2, but was " + bufferSize);
+        }
+        this.slider = slider;
+        this.precisionBits = precisionBits;
+        this.bufferSize = bufferSize;
+        if (slider == null) {
+            if (windowMS < TIME_SLOTS) {
+                throw new IllegalArgumentException("The window must be at least " + TIME_SLOTS + "ms");
+            }
+            slotMS = windowMS / TIME_SLOTS;
+            // The current slot is only partially filled, so the effective window is between 9/10 and 10/10 of windowMS
+            slots = new LogLinearHistogram[TIME_SLOTS];
+            slotIDs = new long[TIME_SLOTS];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new LogLinearHistogram(precisionBits);
+                slotIDs[i] = -1;
+            }
+        } else {
+            slotMS = 0;
+            slots = null;
+            slotIDs = null;
+        }
+    }
+
+    /**
+     * Records the value without locking. If the buffer for the current thread is full, all buffers are drained.
+     * @param value the value to record.
+     */
+    public void record(int value) {
+        Cell cell = threadCell.get();
+        long written = cell.written.get();
+        if (written - cell.read == cell.ring.length) {
+            drain();
+        }
+        cell.ring[(int) written & cell.mask] = value;
+        cell.written.lazySet(written + 1);
+    }
+
+    /**
+     * Moves all recorded values from the thread buffers to the shared statistics.
+     */
+    public synchronized void drain() {
+        LogLinearHistogram slot = slider == null ? currentSlot() : null;
+        for (Cell cell: cells) {
+            long written = cell.written.get();
+            long read = cell.read;
+            for (; read < written; read++) {
+                int value = cell.ring[(int) read & cell.mask];
+                if (slot == null) {
+                    slider.add(value);
+                } else {
+                    slot.add(value);
+                }
+            }
+            cell.read = read;
+            if (cell.owner.get() == null && cell.written.get() == read) { // Thread is gone
+                cells.remove(cell);
+            }
+        }
+    }
+
+    /**
+     * Drains the thread buffers periodically. The task stops if the executor is shut down.
+     * @param executor   used for running the drain.
+     * @param periodMS   the number of milliseconds between each drain.
+     * @return the scheduled task, which can be cancelled.
+     */
+    public ScheduledFuture<?> scheduleDrain(ScheduledExecutorService executor, long periodMS) {
+        return executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, periodMS, periodMS, TimeUnit.MILLISECONDS);
+    }
+
+    private LogLinearHistogram currentSlot() {
+        long id = getTimeMS() / slotMS;
+        int index = (int) (id % slots.length);
+        if (slotIDs[index] != id) {
+            slots[index].clear();
+            slotIDs[index] = id;
+        }
+        return slots[index];
+    }
+
+    /**
+     * @return the current time in milliseconds. Overridable for testing.
+     */
+    long getTimeMS() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Drains the thread buffers and merges the statistics.
+     * @return a snapshot of the values in the window.
+     */
+    public synchronized LogLinearHistogram getSnapshot() {
+        drain();
+        if (slider != null) {
+            return slider.getSnapshot();
+        }
+        long current = getTimeMS() / slotMS;
+        LogLinearHistogram merged = new LogLinearHistogram(precisionBits);
+        for (int i = 0; i < slots.length; i++) {
+            if (slotIDs[i] > current - slots.length) {
+                merged.add(slots[i]);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Shorthand for {@code getPercentile(SlidingPercentiles.MEDIAN)};
+     * @return the median for the values in the window.
+     */
+    public double getMedian() {
+        return getPercentile(SlidingPercentiles.MEDIAN);
+    }
+
+    /**
+     * @param percent the wanted percentile as a number from 0 to 1, both inclusive.
+     * @return the percentile for the values in the window, see {@link SlidingPercentiles#getPercentile(double)}.
+     */
+    public synchronized double getPercentile(double percent) {
+        if (slider != null) {
+            drain();
+            return slider.getPercentile(percent);
+        }
+        return getSnapshot().getPercentile(percent);
+    }
+
+    /**
+     * @return the arithmetic mean of the values in the window or 0 if there are no values.
+     */
+    public synchronized double getAverage() {
+        if (slider != null) {
+            drain();
+            return slider.getAverage();
+        }
+        return getSnapshot().getAverage();
+    }
+
+    /**
+     * @return the number of values in the window.
+     */
+    public synchronized long getCount() {
+        if (slider != null) {
+            drain();
+            return slider.size();
+        }
+        return getSnapshot().getCount();
+    }
+
+    /**
+     * Drains and discards all values.
+     */
+    public synchronized void clear() {
+        drain();
+        if (slider != null) {
+            slider.clear();
+        } else {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i].clear();
+                slotIDs[i] = -1;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        LogLinearHistogram snapshot = getSnapshot();
+        return String.format("PercentileRecorder(%s, threads=%d, count=%d, average=%.2f, median=%.2f, 99%%=%.2f)",
+                             slider == null ? "window=" + slotMS * TIME_SLOTS + "ms" : "window=" + slider.size(),
+                             cells.size(), snapshot.getCount(), snapshot.getAverage(), snapshot.getMedian(),
+                             snapshot.getPercentile(0.99));
+    }
+
+    /**
+     * Single producer, single consumer buffer for a thread.
+     */
+    private static final class Cell {
+        private final int[] ring;
+        private final int mask;
+        /** Only incremented by the owning thread. */
+        private final AtomicLong written = new AtomicLong(0);
+        /** Only updated by the draining thread, while holding the recorder lock. */
+        private volatile long read = 0;
+        private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+
+        private Cell(int size) {
+            ring = new int[size];
+            mask = size - 1;
+        }
+    }
+}
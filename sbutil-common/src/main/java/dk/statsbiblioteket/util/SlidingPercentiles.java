@@ -11,7 +11,10 @@ import java.util.Arrays;
  * Care has been taken to optimize performance by using int[], binary search and array copy to maintain the internal
  * structure. The intended use case is for windows that are well within level 2/3-cache.
  *
- * This implementation is not thread safe.
+ * For large windows, use {@link #createHistogram(int)}: Values are counted in a {@link LogLinearHistogram}, making
+ * updates O(1) at the cost of a bounded relative error for percentiles. The average is exact in all modes.
+ *
+ * This implementation is not thread safe. Use {@link PercentileRecorder} for recording from multiple threads.
  */
 // TODO: Running calculation of average and deviation
 public class SlidingPercentiles {
@@ -36,6 +39,11 @@ public class SlidingPercentiles {
     private final boolean continuousSort;
     private static final boolean DEFAULT_CONTINUOUS_SORT = true;
 
+    /**
+     * If not null, percentiles are calculated from this histogram and {@link #sortedValues} is not used.
+     */
+    private final LogLinearHistogram histogram;
+
 
     /**
      * The collected values, ordered as delivered.
@@ -60,18 +68,44 @@ public class SlidingPercentiles {
      *                       If false, calculation of percentiles is more costly but updates are cheaper.
      */
     public SlidingPercentiles(int windowSize, boolean continuousSort) {
+        this(windowSize, continuousSort, null);
+    }
+
+    private SlidingPercentiles(int windowSize, boolean continuousSort, LogLinearHistogram histogram) {
         this.maxWindow = windowSize;
-        sortedValues = new int[windowSize];
+        sortedValues = histogram == null ? new int[windowSize] : null;
         values = new CircularIntBuffer(windowSize, windowSize);
         this.continuousSort = continuousSort;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Shorthand for {@code createHistogram(windowSize, LogLinearHistogram.DEFAULT_PRECISION_BITS)}.
+     * @param windowSize the maximum amount of values that are remembered.
+     * @return a histogram based slider.
+     */
+    public static SlidingPercentiles createHistogram(int windowSize) {
+        return createHistogram(windowSize, LogLinearHistogram.DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * Creates a slider where insertions are O(1) and percentiles are O(buckets), independent of window size.
+     * Percentiles are calculated with a maximum relative error of {@code 1/2^precisionBits}; values below
+     * {@code 2^precisionBits} are exact.
+     * @param windowSize    the maximum amount of values that are remembered.
+     * @param precisionBits the precision of the histogram, see {@link LogLinearHistogram#LogLinearHistogram(int)}.
+     * @return a histogram based slider.
+     */
+    public static SlidingPercentiles createHistogram(int windowSize, int precisionBits) {
+        return new SlidingPercentiles(windowSize, false, new LogLinearHistogram(precisionBits));
     }
 
     /**
      * Add the given value to the window, maintaining internal invariants. If the maximum size for the window has been
      * reached, this involves an eviction of the oldest value.
      *
-     * If {@link #continuousSort} is true, insertion time is O(n); if false, insertion time is O(1).
-     * {@code System#arraycopy} is used for shifting values when continuousSort is true.
+     * If {@link #continuousSort} is true, insertion time is O(n); if false or for histogram sliders, insertion time
+     * is O(1). {@code System#arraycopy} is used for shifting values when continuousSort is true.
      * @param value will be added to the sliding window.
      */
     public void add(int value) {
@@ -79,7 +113,9 @@ public class SlidingPercentiles {
         if (size() >= maxWindow) {
             sum -= pop();
         }
-        if (continuousSort) {
+        if (histogram != null) {
+            histogram.add(value);
+        } else if (continuousSort) {
             int insertionPoint = Arrays.binarySearch(sortedValues, 0, windowSize, value);
             insertionPoint = insertionPoint >= 0 ? insertionPoint : -1 * (insertionPoint +1);
             System.arraycopy(sortedValues, insertionPoint, sortedValues, insertionPoint+1, windowSize-insertionPoint);
@@ -100,14 +136,16 @@ public class SlidingPercentiles {
      */
     private int pop() {
         final int value = values.take();
-        if (continuousSort) {
+        if (histogram != null) {
+            histogram.remove(value);
+        } else if (continuousSort) {
             int removalPoint = Arrays.binarySearch(sortedValues, 0, windowSize, value);
             if (removalPoint < 0) {
                 throw new IllegalStateException("The value " + value + " did not exist in the window");
             }
             if (removalPoint != size()-1) {
                 System.arraycopy(
-                        sortedValues, removalPoint+1, sortedValues, removalPoint, sortedValues.length-removalPoint);
+                        sortedValues, removalPoint+1, sortedValues, removalPoint, windowSize-removalPoint-1);
             }
         } else {
             sortedDirty = true;
@@ -122,8 +160,37 @@ public class SlidingPercentiles {
 
     public void clear() {
         windowSize = 0;
+        sum = 0;
         values.clear();
         sortedDirty = false;
+        if (histogram != null) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * @return true if this slider calculates percentiles from a histogram.
+     * @see #createHistogram(int, int)
+     */
+    public boolean isHistogram() {
+        return histogram != null;
+    }
+
+    /**
+     * Snapshots can be merged with {@link LogLinearHistogram#add(LogLinearHistogram)}, e.g. for combining the
+     * sliders from multiple threads.
+     * @return a histogram of the values in the window. For histogram sliders this is a copy of the internal
+     *         histogram, else it is created with {@link LogLinearHistogram#DEFAULT_PRECISION_BITS}.
+     */
+    public LogLinearHistogram getSnapshot() {
+        if (histogram != null) {
+            return histogram.copy();
+        }
+        LogLinearHistogram snapshot = new LogLinearHistogram();
+        for (int i = 0; i < values.size(); i++) {
+            snapshot.add(values.peek(i));
+        }
+        return snapshot;
     }
 
     /**
@@ -133,6 +200,12 @@ public class SlidingPercentiles {
      *         Response time is O(n) if {@link #continuousSort} is true, else O(n*log(n))
      */
     public int[] getSortedValues(int[] reuse) {
+        if (histogram != null) { // The exact values are still available in the buffer
+            final int[] result = reuse != null && reuse.length == windowSize ? reuse : new int[windowSize];
+            values.copy(result);
+            Arrays.sort(result, 0, windowSize);
+            return result;
+        }
         if (!continuousSort && sortedDirty) {
             updateSortedValues();
         }
@@ -151,12 +224,16 @@ public class SlidingPercentiles {
     /**
      * Returns the given percentile, interpolated between two values if the percentile is not a perfect split.
      * @param percent the wanted percentile as a number from 0 to 1, both inclusive.
-     * @return the calculated percentile in O(1) time if {@link #continuousSort} is true, else O(n*log(n)).
+     * @return the calculated percentile in O(1) time if {@link #continuousSort} is true, O(buckets) for histogram
+     *         sliders, else O(n*log(n)).
      */
     public double getPercentile(double percent) {
         if (values.length() == 0) {
             return 0;
         }
+        if (histogram != null) {
+            return histogram.getPercentile(percent);
+        }
         if (!continuousSort && sortedDirty) {
             updateSortedValues();
         }
@@ -14,14 +14,29 @@
  */
 package dk.statsbiblioteket.util;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Structure for timing-instrumentation of other code. Intended for always-enabled use as all methods are
  * sought to be light weight.
  *
- * Usage: Create a root instance and optionally add children with {@link #getChild}.
+ * Usage: Create a root instance and optionally add children with {@link #getChild}. Measure with
+ * <pre>
+ * try (Timing.Scope scope = timing.getChild("parse").scope()) {
+ *     parse(record);
+ * }
+ * </pre>
+ * or with {@link #record(long, long)}, which can be used from any number of threads concurrently.
+ *
+ * Each thread records to its own cell, so recording does not involve contended locks or CAS loops. Total time and
+ * updates are kept in striped counters, so running totals are cheap. The cells are merged when min, max or
+ * percentiles are requested. Besides count, sum, min and max, the distribution of the time for each
+ * update is kept in a {@link LogLinearHistogram}, which enables percentiles, see {@link #getPercentileNS(double)}.
  *
  * Mixed thread safety: Methods are thread safe, unless the JavaDoc says otherwise.
  */
@@ -29,7 +44,7 @@ import java.util.concurrent.atomic.AtomicLong;
 public class Timing {
     public enum STATS {
         name, subject, ms, ns, updates, ms_updates, ns_updates, updates_s, min_ms, min_ns, max_ms, max_ns,
-        last_ms, last_ns, utilization,
+        last_ms, last_ns, utilization, median_ms, median_ns, p99_ms, p99_ns
     }
     public static final STATS[] MS_STATS = new STATS[]{
             STATS.name, STATS.subject, STATS.ms, STATS.updates, STATS.ms_updates, STATS.updates_s,
@@ -39,6 +54,14 @@ public class Timing {
             STATS.name, STATS.subject, STATS.ns, STATS.updates, STATS.ns_updates, STATS.updates_s,
             STATS.min_ns, STATS.max_ns, STATS.utilization
     };
+    public static final STATS[] MS_PERCENTILE_STATS = new STATS[]{
+            STATS.name, STATS.subject, STATS.ms, STATS.updates, STATS.ms_updates, STATS.updates_s,
+            STATS.min_ms, STATS.median_ms, STATS.p99_ms, STATS.max_ms, STATS.utilization
+    };
+    public static final STATS[] NS_PERCENTILE_STATS = new STATS[]{
+            STATS.name, STATS.subject, STATS.ns, STATS.updates, STATS.ns_updates, STATS.updates_s,
+            STATS.min_ns, STATS.median_ns, STATS.p99_ns, STATS.max_ns, STATS.utilization
+    };
 
     private final String name;
     private final String subject;
@@ -46,13 +69,34 @@ public class Timing {
     private STATS[] showStats = MS_STATS;
     private final long objectCreation = System.nanoTime();
 
+    /** The number of counter stripes. Must be a power of 2. */
+    private static final int STRIPES = Math.min(
+            64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())) * 2);
+    /** Distance between stripes in the counter arrays, so that the stripes are on separate cache lines. */
+    private static final int PADDING = 8;
+    private static final AtomicInteger nextStripe = new AtomicInteger(0);
+
     private long lastStart = System.nanoTime();
     private final AtomicLong lastNS = new AtomicLong(0);
-    private final AtomicLong minNS = new AtomicLong(Long.MAX_VALUE);
-    private final AtomicLong maxNS = new AtomicLong(Long.MIN_VALUE);
-    private final AtomicLong spendNS = new AtomicLong(0);
-    private AtomicLong updateCount = new AtomicLong(0);
-    private Map<String, Timing> children = null;
+    /** Total time, striped by thread. Use {@link #sum(AtomicLongArray)} for the value. */
+    private final AtomicLongArray stripedNS = new AtomicLongArray(STRIPES * PADDING);
+    /** Total updates, striped by thread. Use {@link #sum(AtomicLongArray)} for the value. */
+    private final AtomicLongArray stripedUpdates = new AtomicLongArray(STRIPES * PADDING);
+
+    /** Cells for all threads that has recorded to this Timing. */
+    private final List<Cell> cells = new CopyOnWriteArrayList<Cell>();
+    /** Values from threads that has terminated. Also used as lock for merging. */
+    private final Cell retired = new Cell();
+    private final ThreadLocal<Cell> threadCell = new ThreadLocal<Cell>() {
+        @Override
+        protected Cell initialValue() {
+            Cell cell = new Cell();
+            cells.add(cell);
+            return cell;
+        }
+    };
+    /** Copy on write, so that lookups do not need locking. */
+    private volatile Map<String, Timing> children = null;
 
     /**
      * Create a root timer with the given name.
@@ -97,17 +141,17 @@ public class Timing {
 
     public Timing(String name, long spendNS) {
         this(name);
-        this.spendNS.set(spendNS);
+        stripedNS.set(0, spendNS);
     }
 
     public Timing(String name, String subject, long spendNS) {
         this(name, subject);
-        this.spendNS.set(spendNS);
+        stripedNS.set(0, spendNS);
     }
 
     public Timing(String name, String subject, String unit, long spendNS) {
         this(name, subject, unit);
-        this.spendNS.set(spendNS);
+        stripedNS.set(0, spendNS);
     }
 
     public STATS[] getShowStats() {
@@ -161,17 +205,24 @@ public class Timing {
      * @return the re-used or newly created child.
      */
     @SuppressWarnings("SameParameterValue")
-    public synchronized Timing getChild(String name, String subject, String unit, STATS[] showStats) {
-        if (children == null) {
-            children = new LinkedHashMap<String, Timing>();
+    public Timing getChild(String name, String subject, String unit, STATS[] showStats) {
+        Map<String, Timing> current = children;
+        Timing child = current == null ? null : current.get(name);
+        if (child != null) {
+            return child;
         }
-        Timing child = children.get(name);
-        if (child == null) {
-            child = new Timing(name, subject, unit, showStats);
-            children.put(name, child);
+        synchronized (this) {
+            current = children;
+            child = current == null ? null : current.get(name);
+            if (child == null) {
+                child = new Timing(name, subject, unit, showStats);
+                Map<String, Timing> updated = current == null ?
+                        new LinkedHashMap<String, Timing>() : new LinkedHashMap<String, Timing>(current);
+                updated.put(name, child);
+                children = updated;
+            }
+            return child;
         }
-        return child;
-
     }
 
     /**
@@ -180,6 +231,7 @@ public class Timing {
      * @return A list of all children. If there are no children, the empty list will be returned.
      */
     public List<Timing> getAllChildren() {
+        Map<String, Timing> children = this.children;
         if (children == null || children.isEmpty()) {
             return Collections.emptyList();
         }
@@ -194,9 +246,19 @@ public class Timing {
      * @return the number of children.
      */
     public int getChildCount() {
+        Map<String, Timing> children = this.children;
         return children == null ? 0 : children.size();
     }
 
+    /**
+     * Starts a measurement that is recorded when the scope is closed. This is thread safe and intended for use with
+     * try-with-resources.
+     * @return a scope that records the time from now until it is closed as a single update.
+     */
+    public Scope scope() {
+        return new Scope(this);
+    }
+
     /**
      * Resets start time to current nanoTime.
      *
@@ -215,7 +277,11 @@ public class Timing {
      * @return now-lastStart.
      */
     public long stop() {
-        return stop(updateCount.get()+1);
+        long now = System.nanoTime();
+        long spend = now-lastStart;
+        record(spend, 1);
+        lastStart = now;
+        return spend;
     }
 
     /**
@@ -230,30 +296,26 @@ public class Timing {
     public long stop(long updates) {
         long now = System.nanoTime();
         long spend = now-lastStart;
-        updateMinMax(spend);
-        lastNS.set(spend);
-        spendNS.addAndGet(spend);
-        updateCount.set(updates);
+        record(spend, 0);
+        setUpdates(updates);
         lastStart = now;
         return spend;
     }
 
-    private void updateMinMax(long spend) {
-        long min = minNS.get();
-        while (min > spend) {
-            if (minNS.compareAndSet(min, spend)) {
-                break;
-            }
-            min = minNS.get();
-        }
-
-        long max = maxNS.get();
-        while (max < spend) {
-            if (maxNS.compareAndSet(max, spend)) {
-                break;
-            }
-            max = maxNS.get();
-        }
+    /**
+     * Adds ns to spendNS and updates to updateCount. Min, max and percentiles will be updated with ns/updates for
+     * approximation. If updates is 0, only the time is added and ns is used for min, max and percentiles.
+     *
+     * This is the fastest way of recording a measurement, as it only touches the data for the calling thread.
+     * @param ns nano seconds to add.
+     * @param updates the number of updates that the ns represents.
+     */
+    public void record(long ns, long updates) {
+        Cell cell = threadCell.get();
+        cell.record(ns, updates);
+        stripedNS.addAndGet(cell.stripe, ns);
+        stripedUpdates.addAndGet(cell.stripe, updates);
+        lastNS.lazySet(ns);
     }
 
     /**
@@ -262,11 +324,7 @@ public class Timing {
      * @return spendNS.
      */
     public long addNS(long ns) {
-        updateMinMax(ns);
-        lastNS.set(ns);
-        spendNS.addAndGet(ns);
-        updateCount.incrementAndGet();
-        return getNS();
+        return addNS(ns, 1);
     }
 
     /**
@@ -277,14 +335,7 @@ public class Timing {
      * @return total spend NS.
      */
     public long addNS(long ns, long updates) {
-        if (updates == 1) {
-            updateMinMax(ns);
-        } else if (updates > 1) {
-            updateMinMax(ns/updates);
-        }
-        lastNS.set(ns);
-        spendNS.addAndGet(ns);
-        updateCount.addAndGet(updates);
+        record(ns, updates);
         return getNS();
     }
 
@@ -314,7 +365,8 @@ public class Timing {
      * @return update count after incrementing.
      */
     public long update() {
-        return updateCount.incrementAndGet();
+        stripedUpdates.incrementAndGet(threadCell.get().stripe);
+        return getUpdates();
     }
 
     /**
@@ -323,7 +375,8 @@ public class Timing {
      * @return the new total number of updates.
      */
     public long addUpdates(int count) {
-        return updateCount.addAndGet(count);
+        stripedUpdates.addAndGet(threadCell.get().stripe, count);
+        return getUpdates();
     }
 
     /**
@@ -332,32 +385,36 @@ public class Timing {
      * @param updateCount the number of updated for the timing.
      */
     public void setUpdates(int updateCount) {
-        this.updateCount.set(updateCount);
+        setUpdates((long) updateCount);
+    }
+
+    private void setUpdates(long updateCount) {
+        stripedUpdates.addAndGet(threadCell.get().stripe, updateCount - getUpdates());
     }
 
     /**
      * @return spendNS if updateCount &gt; 0 else now-lastStart.
      */
     public long getNS() {
-        return updateCount.get() > 0 ? spendNS.get() : System.nanoTime()-lastStart;
+        return getUpdates() > 0 ? sum(stripedNS) : System.nanoTime()-lastStart;
     }
 
     /**
      * @return spendNS if updateCount &gt; 0 else now-lastStart, divided by 1000000.
      */
     public long getMS() {
-        return (updateCount.get() > 0 ? spendNS.get() : System.nanoTime()-lastStart)/1000000;
+        return getNS()/1000000;
     }
 
     public long getUpdates() {
-        return updateCount.get();
+        return sum(stripedUpdates);
     }
 
     /**
      * @return average based on {@link #getNS()} and updateCount.
      */
     public long getAverageNS() {
-        final long count = updateCount.get();
+        final long count = getUpdates();
         return count == 0 ? 0 : getNS()/count;
     }
 
@@ -365,17 +422,72 @@ public class Timing {
      * @return average based on {@link #getMS()} and updateCount.
      */
     public long getAverageMS() {
-        final long count = updateCount.get();
-        return count == 0 ? 0 : getNS()/count/1000000;
+        return getAverageNS()/1000000;
+    }
+
+    /**
+     * @param percent the wanted percentile as a number from 0 to 1, both inclusive.
+     * @return the percentile for the time spend on each update, within the precision of {@link LogLinearHistogram},
+     *         or 0 if nothing has been recorded.
+     */
+    public double getPercentileNS(double percent) {
+        return merge().histogram.getPercentile(percent);
+    }
+
+    /**
+     * @return the distribution of the time spend on each update, merged from all threads.
+     */
+    public LogLinearHistogram getHistogram() {
+        return merge().histogram;
     }
 
     public void clear() {
-        updateCount.set(0);
+        synchronized (retired) {
+            retired.clear();
+            for (Cell cell: cells) {
+                cell.clear();
+            }
+        }
+        for (int i = 0 ; i < stripedNS.length() ; i += PADDING) {
+            stripedNS.set(i, 0);
+            stripedUpdates.set(i, 0);
+        }
         lastNS.set(0);
-        spendNS.set(0);
         start();
     }
 
+    /**
+     * @return the sum of the stripes in the given counter.
+     */
+    private static long sum(AtomicLongArray striped) {
+        long sum = 0;
+        for (int i = 0 ; i < striped.length() ; i += PADDING) {
+            sum += striped.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Merges the cells from all threads. Cells for terminated threads are merged into {@link #retired} and removed.
+     * @return the combined values for all threads.
+     */
+    private Cell merge() {
+        Cell total = new Cell();
+        synchronized (retired) {
+            total.add(retired);
+            for (Cell cell: cells) {
+                synchronized (cell) {
+                    total.add(cell);
+                    if (cell.owner.get() == null) { // Thread is gone
+                        retired.add(cell);
+                        cells.remove(cell);
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
     /**
      * @return recursive timing information using the existing {@link #showStats} setup.
      */
@@ -430,6 +542,7 @@ public class Timing {
     }
 
     private void toString(StringBuilder sb, STATS[] showStats, boolean indent, String spaces) {
+        Cell total = merge();
         sb.append(spaces);
         for (STATS stat: showStats) {
             if (stat == STATS.name) {
@@ -453,16 +566,16 @@ public class Timing {
                     sb.append("subj='").append(subject).append("'");
                     break;
                 case ms:
-                    sb.append(getMS()).append("ms");
+                    sb.append(getNS()/1000000).append("ms");
                     break;
                 case ns:
-                    sb.append(getMS()).append("ns");
+                    sb.append(getNS()).append("ns");
                     break;
                 case updates:
-                    sb.append(updateCount).append(unit);
+                    sb.append(getUpdates()).append(unit);
                     break;
                 case ms_updates:
-                    sb.append(getAverageMS()).append("ms/").append(unit);
+                    sb.append(getAverageNS()/1000000).append("ms/").append(unit);
                     break;
                 case ns_updates:
                     sb.append(getAverageNS()).append("ns/").append(unit);
@@ -471,16 +584,16 @@ public class Timing {
                     sb.append(getAverageUpdatesPerSecond()).append(unit).append("/s");
                     break;
                 case min_ms:
-                    sb.append("min=").append(getMinMS()).append("ms");
+                    sb.append("min=").append(total.getMin()/1000000).append("ms");
                     break;
                 case min_ns:
-                    sb.append("min=").append(getMinNS()).append("ns");
+                    sb.append("min=").append(total.getMin()).append("ns");
                     break;
                 case max_ms:
-                    sb.append("max=").append(getMaxMS()).append("ms");
+                    sb.append("max=").append(total.getMax()/1000000).append("ms");
                     break;
                 case max_ns:
-                    sb.append("max=").append(getMaxNS()).append("ns");
+                    sb.append("max=").append(total.getMax()).append("ns");
                     break;
                 case last_ms:
                     sb.append("last").append(lastNS.get()/1000000).append("ms");
@@ -491,9 +604,22 @@ public class Timing {
                 case utilization:
                     sb.append(String.format("util=%.1f%%", 100.0*getNS()/(System.nanoTime()-objectCreation)));
                     break;
+                case median_ms:
+                    sb.append(String.format("median=%.0fms", total.histogram.getMedian()/1000000));
+                    break;
+                case median_ns:
+                    sb.append(String.format("median=%.0fns", total.histogram.getMedian()));
+                    break;
+                case p99_ms:
+                    sb.append(String.format("99%%=%.0fms", total.histogram.getPercentile(0.99)/1000000));
+                    break;
+                case p99_ns:
+                    sb.append(String.format("99%%=%.0fns", total.histogram.getPercentile(0.99)));
+                    break;
                 default: throw new UnsupportedOperationException("The stat '" + stat + "' is not supported yet");
             }
         }
+        Map<String, Timing> children = this.children;
         if (children != null && !children.isEmpty()) {
             sb.append(indent ? ", [\n" : ", [");
             boolean first = true;
@@ -512,28 +638,113 @@ public class Timing {
     }
 
     public long getMinNS() {
-        final long min = minNS.get();
-        return min == Long.MAX_VALUE ? 0 : min;
+        return merge().getMin();
     }
 
     public long getMaxNS() {
-        final long max = maxNS.get();
-        return max == Long.MIN_VALUE ? 0 : max;
+        return merge().getMax();
     }
 
     public long getMinMS() {
-        final long min = minNS.get();
-        return min == Long.MAX_VALUE ? 0 : min/1000000;
+        return getMinNS()/1000000;
     }
 
     public long getMaxMS() {
-        final long max = maxNS.get();
-        return max == Long.MIN_VALUE ? 0 : max/1000000;
+        return getMaxNS()/1000000;
     }
 
     public long getAverageUpdatesPerSecond() {
-        final long count = updateCount.get();
-        return count == 0 ? 0 : count*1000000*1000/spendNS.get();
+        final long count = getUpdates();
+        final long ns = sum(stripedNS);
+        return count == 0 || ns == 0 ? 0 : count*1000000*1000/ns;
     }
 
+    /**
+     * Measures the time from creation to {@link #close()}. Not thread safe: A scope must be closed by the thread
+     * that created it, but any number of threads can use scopes on the same Timing concurrently.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final Timing timing;
+        private final long start = System.nanoTime();
+        private long updates = 1;
+        private boolean closed = false;
+
+        private Scope(Timing timing) {
+            this.timing = timing;
+        }
+
+        /**
+         * @param updates the number of updates that the scope represents. Default is 1.
+         * @return the scope, for chaining.
+         */
+        public Scope setUpdates(long updates) {
+            this.updates = updates;
+            return this;
+        }
+
+        /**
+         * @return the number of nano seconds since the scope was created.
+         */
+        public long getElapsedNS() {
+            return System.nanoTime() - start;
+        }
+
+        /**
+         * Records the elapsed time. Subsequent calls have no effect.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                timing.record(System.nanoTime() - start, updates);
+            }
+        }
+    }
+
+    /**
+     * Distribution, min and max for a thread. Updated only by the owning thread and read when merging. The lock is
+     * practically uncontended as merges are rare.
+     */
+    private static final class Cell {
+        private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+        /** The index for the thread in the striped counters. */
+        private final int stripe = (nextStripe.getAndIncrement() & (STRIPES - 1)) * PADDING;
+        private final LogLinearHistogram histogram = new LogLinearHistogram();
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        private synchronized void record(long ns, long updates) {
+            final long single = updates > 1 ? ns/updates : ns;
+            histogram.add(single, Math.max(1, updates));
+            if (single < min) {
+                min = single;
+            }
+            if (single > max) {
+                max = single;
+            }
+        }
+
+        /**
+         * Adds the values from other. The caller must hold the lock for both cells.
+         */
+        private void add(Cell other) {
+            histogram.add(other.histogram);
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        private synchronized void clear() {
+            histogram.clear();
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+        }
+
+        private long getMin() {
+            return min == Long.MAX_VALUE ? 0 : min;
+        }
+
+        private long getMax() {
+            return max == Long.MIN_VALUE ? 0 : max;
+        }
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.console;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Connects the processes from a list of {@link ProcessRunner}s, so that
+ * stdout from process N is fed to stdin of process N+1, like a pipe in a
+ * shell. Data are moved between the processes through fixed size buffers
+ * as they are produced, so memory usage does not depend on the amount of
+ * data.
+ *
+ * The output from the last process is either collected as usual, see
+ * {@link #run()}, or streamed to the caller, see {@link #start()} and
+ * {@link #run(Consumer)}. Streaming makes it possible to process large
+ * outputs with parsers while the processes are running:
+ * <pre>
+ * new ProcessPipeline(new ProcessRunner("gunzip", "-c", "records.xml.gz"),
+ *                     new ProcessRunner("xmllint", "--format", "-")).run(
+ *     new ProcessPipeline.Consumer() {
+ *         public void consume(InputStream in) throws Exception {
+ *             XMLStepper.iterateTags(
+ *                 XMLInputFactory.newInstance().createXMLStreamReader(in), callback);
+ *         }
+ *     });
+ * </pre>
+ *
+ * Error output from all processes is collected as usual. If a process stops
+ * reading its input, the upstream processes are terminated by broken pipes.
+ * Timeouts are handled individually by the runners.
+ *
+ * A pipeline can only be run once.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public class ProcessPipeline {
+    private final List<ProcessRunner> stages;
+    private final List<Future<ProcessRunner>> futures;
+
+    /**
+     * @param stages the runners to connect, in order. Input for the first
+     *               runner can be set with
+     *               {@link ProcessRunner#setInputStream(InputStream)}.
+     */
+    public ProcessPipeline(ProcessRunner... stages) {
+        this(Arrays.asList(stages));
+    }
+
+    /**
+     * @param stages the runners to connect, in order. Input for the first
+     *               runner can be set with
+     *               {@link ProcessRunner#setInputStream(InputStream)}.
+     */
+    public ProcessPipeline(List<ProcessRunner> stages) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("At least one ProcessRunner must be given");
+        }
+        this.stages = new ArrayList<ProcessRunner>(stages);
+        futures = new ArrayList<Future<ProcessRunner>>(stages.size());
+    }
+
+    /**
+     * Runs the processes and waits for them to finish. The output from the
+     * last process is collected as specified for its runner and is
+     * available from {@link #getLast()}.
+     *
+     * @throws RuntimeException if one of the runners failed or could not be
+     *                          started.
+     */
+    public void run() {
+        start(false);
+        waitFor();
+    }
+
+    /**
+     * Runs the processes and streams the output from the last process to the
+     * consumer. The output stream is closed after consumption, so that the
+     * processes are terminated if the consumer stopped reading early.
+     *
+     * @param consumer receives stdout from the last process.
+     * @throws RuntimeException if the consumer or one of the runners failed,
+     *                          or if a runner could not be started.
+     */
+    public void run(Consumer consumer) {
+        InputStream out = start();
+        try {
+            try {
+                consumer.consume(out);
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            waitFor();
+            throw new RuntimeException("Exception while consuming the output of the pipeline", e);
+        }
+        waitFor();
+    }
+
+    /**
+     * Starts the processes and returns the output from the last process. The
+     * caller must read the output, or close the stream to terminate the
+     * processes, and then call {@link #waitFor()}.
+     *
+     * @return stdout from the last process.
+     * @throws RuntimeException if a runner could not be started, e.g. if it
+     *                          has already been run. Already started processes
+     *                          are terminated with a broken pipe.
+     */
+    public InputStream start() {
+        return start(true);
+    }
+
+    private InputStream start(boolean streamLast) {
+        if (!futures.isEmpty()) {
+            throw new IllegalStateException("The pipeline has already been started");
+        }
+        InputStream upstream = null;
+        for (int i = 0 ; i < stages.size() ; i++) {
+            ProcessRunner stage = stages.get(i);
+            if (upstream != null) {
+                stage.setPipedInput(upstream);
+            }
+            boolean last = i == stages.size() - 1;
+            try {
+                futures.add(last && !streamLast ? stage.runAsync() : stage.runStreaming());
+            } catch (RuntimeException e) {
+                // Terminate the already started processes with a broken pipe
+                close(upstream);
+                throw e;
+            }
+            upstream = stage.getProcessOutput();
+        }
+        return upstream;
+    }
+
+    private void close(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Waits for all processes to finish.
+     *
+     * @throws RuntimeException if one of the runners failed. The first
+     *                          failure is thrown after all runners have
+     *                          finished.
+     */
+    public void waitFor() {
+        if (futures.isEmpty()) {
+            throw new IllegalStateException("The pipeline has not been started");
+        }
+        Throwable failure = null;
+        for (Future<ProcessRunner> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    //just go on.
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * @return the runners in the pipeline, in order.
+     */
+    public List<ProcessRunner> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return the last runner in the pipeline, which holds the final output
+     *         after {@link #run()}.
+     */
+    public ProcessRunner getLast() {
+        return stages.get(stages.size() - 1);
+    }
+
+    /**
+     * Receives the output from the last process in a pipeline.
+     */
+    public abstract static class Consumer {
+        /**
+         * Called once with the output from the last process. The stream must
+         * not be retained after the call.
+         *
+         * @param in stdout from the last process.
+         * @throws Exception if the output could not be processed.
+         */
+        public abstract void consume(InputStream in) throws Exception;
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.console;
+
+import dk.statsbiblioteket.util.PercentileRecorder;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs external commands with a global limit on the number of concurrent
+ * processes and optionally on their combined estimated memory usage.
+ *
+ * Commands are given as {@link Template}s, where {@code ${key}} in the
+ * arguments are replaced with values given on submit. Submitted commands are
+ * started in submit order when there are free slots. If a maximum number of
+ * queued commands is given, submit blocks when the queue is full.
+ *
+ * The processes are executed by {@link ProcessRunner}s, which share threads
+ * for draining output. The output can be streamed to a {@link Callback} as it
+ * is produced. Latency, timeouts and exit codes are recorded for each
+ * template, see {@link #getStatistics(String)}.
+ *
+ * The pool is thread safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public class ProcessPool {
+    private static final Log log = LogFactory.getLog(ProcessPool.class);
+    private static final AtomicInteger poolCount = new AtomicInteger(0);
+
+    private final int maxProcesses;
+    private final int maxMemoryMB;
+    private final ExecutorService executor;
+    /** Null if there is no memory limit. */
+    private final Semaphore memory;
+    /** Null if there is no limit on queued commands. */
+    private final Semaphore queued;
+    private final ConcurrentMap<String, Statistics> statistics =
+            new ConcurrentHashMap<String, Statistics>();
+
+    /**
+     * Creates a pool without memory limit and with an unbounded queue.
+     *
+     * @param maxProcesses the maximum number of concurrent processes.
+     */
+    public ProcessPool(int maxProcesses) {
+        this(maxProcesses, 0, -1);
+    }
+
+    /**
+     * @param maxProcesses the maximum number of concurrent processes.
+     * @param maxMemoryMB  the maximum combined memory estimate for the
+     *                     running processes, see
+     *                     {@link Template#setMemoryEstimateMB(int)}.
+     *                     0 means no limit.
+     * @param maxQueued    the maximum number of commands waiting for a free
+     *                     slot. If exceeded, submit blocks. -1 means no limit.
+     */
+    public ProcessPool(int maxProcesses, int maxMemoryMB, int maxQueued) {
+        if (maxProcesses < 1) {
+            throw new IllegalArgumentException(
+                    "maxProcesses must be at least 1 but was " + maxProcesses);
+        }
+        this.maxProcesses = maxProcesses;
+        this.maxMemoryMB = maxMemoryMB;
+        memory = maxMemoryMB > 0 ? new Semaphore(maxMemoryMB, true) : null;
+        queued = maxQueued >= 0 ? new Semaphore(maxProcesses + maxQueued, true) : null;
+        final int poolID = poolCount.getAndIncrement();
+        executor = new ThreadPoolExecutor(
+                maxProcesses, maxProcesses, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger(0);
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ProcessPool_" + poolID + "_"
+                                                 + threadCount.getAndIncrement());
+                        t.setDaemon(true); // Allow the JVM to exit
+                        return t;
+                    }
+                });
+        log.debug("Created " + this);
+    }
+
+    /**
+     * Shorthand for {@code submit(template, values, null)}.
+     */
+    public Future<ProcessRunner> submit(Template template, Map<String, String> values)
+            throws InterruptedException {
+        return submit(template, values, null);
+    }
+
+    /**
+     * Queues the command from the template for execution.
+     *
+     * @param template the command to run.
+     * @param values   replacements for {@code ${key}} in the template. Can be
+     *                 null if the template has no keys.
+     * @param callback receives the output of the process as it is produced
+     *                 and is notified when the process has finished. Can be null.
+     * @return the runner for the process, available when the process has
+     *         finished. Exceptions from {@link ProcessRunner#run()} are wrapped
+     *         in the ExecutionException from the Future.
+     * @throws InterruptedException if interrupted while waiting for space in
+     *                              the queue.
+     * @throws IllegalArgumentException if a key in the template has no value.
+     */
+    public Future<ProcessRunner> submit(final Template template, Map<String, String> values,
+                                        final Callback callback) throws InterruptedException {
+        final ProcessRunner runner = template.createRunner(values);
+        if (callback != null) {
+            runner.setCustomProcessOutput(new CallbackStream(callback, false));
+            runner.setCustomProcessError(new CallbackStream(callback, true));
+        }
+        final Statistics stats = getOrCreateStatistics(template.getName());
+        final int memoryPermits = memory == null ? 0 :
+                                  Math.min(maxMemoryMB, Math.max(0, template.getMemoryEstimateMB()));
+        if (queued != null) {
+            queued.acquire();
+        }
+        try {
+            return executor.submit(new Callable<ProcessRunner>() {
+                @Override
+                public ProcessRunner call() throws Exception {
+                    try {
+                        if (memoryPermits > 0) {
+                            memory.acquire(memoryPermits);
+                        }
+                        try {
+                            return execute(runner, stats, callback);
+                        } finally {
+                            if (memoryPermits > 0) {
+                                memory.release(memoryPermits);
+                            }
+                        }
+                    } finally {
+                        if (queued != null) {
+                            queued.release();
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (queued != null) {
+                queued.release();
+            }
+            throw e;
+        }
+    }
+
+    private ProcessRunner execute(ProcessRunner runner, Statistics stats, Callback callback) {
+        long startTime = System.nanoTime();
+        try {
+            runner.run();
+        } catch (RuntimeException e) {
+            stats.failed.incrementAndGet();
+            throw e;
+        } finally {
+            stats.latency.record((int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - startTime) / 1000000));
+        }
+        if (runner.isTimedOut()) {
+            stats.timeouts.incrementAndGet();
+        } else {
+            AtomicLong count = stats.exitCodes.get(runner.getReturnCode());
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong(0);
+                count = stats.exitCodes.putIfAbsent(runner.getReturnCode(), newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+        if (callback != null) {
+            callback.finished(runner);
+        }
+        return runner;
+    }
+
+    private Statistics getOrCreateStatistics(String name) {
+        Statistics stats = statistics.get(name);
+        if (stats == null) {
+            Statistics newStats = new Statistics(name);
+            stats = statistics.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param templateName the name of a template.
+     * @return statistics for the commands from templates with the given name
+     *         or null if no commands have been submitted for the name.
+     */
+    public Statistics getStatistics(String templateName) {
+        return statistics.get(templateName);
+    }
+
+    /**
+     * @return statistics for all templates, sorted by template name.
+     */
+    public Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<String, Statistics>(statistics));
+    }
+
+    /**
+     * Stops accepting new commands. Queued commands are still executed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit for timeout.
+     * @return true if all commands finished within the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ProcessPool(maxProcesses=").append(maxProcesses);
+        if (memory != null) {
+            sb.append(", maxMemoryMB=").append(maxMemoryMB);
+        }
+        if (!statistics.isEmpty()) {
+            sb.append(", ").append(getStatistics().values());
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * A command with {@code ${key}} placeholders in its arguments, plus
+     * settings for the processes created from it.
+     */
+    public static class Template {
+        private final String name;
+        private final List<String> command;
+        private int memoryEstimateMB = 0;
+        private long timeout = Long.MAX_VALUE;
+        private int maxOutput = -2;
+        private int maxError = -2;
+
+        /**
+         * @param name    used for statistics. Templates with the same name
+         *                share statistics.
+         * @param command the command and its arguments.
+         */
+        public Template(String name, String... command) {
+            this(name, Arrays.asList(command));
+        }
+
+        /**
+         * @param name    used for statistics. Templates with the same name
+         *                share statistics.
+         * @param command the command and its arguments.
+         */
+        public Template(String name, List<String> command) {
+            if (command.isEmpty()) {
+                throw new IllegalArgumentException("A command must be given for template '" + name + "'");
+            }
+            this.name = name;
+            this.command = new ArrayList<String>(command);
+        }
+
+        /**
+         * @param memoryEstimateMB the expected memory usage of a process,
+         *                         used for limiting the number of concurrent
+         *                         processes. Estimates above the pool limit
+         *                         are reduced to the limit.
+         * @return the template, for chaining.
+         */
+        public Template setMemoryEstimateMB(int memoryEstimateMB) {
+            this.memoryEstimateMB = memoryEstimateMB;
+            return this;
+        }
+
+        /**
+         * @param timeout the timeout in milliseconds for a process, see
+         *                {@link ProcessRunner#setTimeout(long)}.
+         * @return the template, for chaining.
+         */
+        public Template setTimeout(long timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param maxOutput see {@link ProcessRunner#setOutputCollectionByteSize(int)}.
+         * @param maxError  see {@link ProcessRunner#setErrorCollectionByteSize(int)}.
+         * @return the template, for chaining.
+         */
+        public Template setCollectionByteSizes(int maxOutput, int maxError) {
+            this.maxOutput = maxOutput;
+            this.maxError = maxError;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMemoryEstimateMB() {
+            return memoryEstimateMB;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /**
+         * @param values replacements for {@code ${key}} in the arguments.
+         * @return the command with all keys replaced.
+         * @throws IllegalArgumentException if a key has no value.
+         */
+        public List<String> expand(Map<String, String> values) {
+            List<String> expanded = new ArrayList<String>(command.size());
+            for (String argument : command) {
+                expanded.add(expand(argument, values));
+            }
+            return expanded;
+        }
+
+        private String expand(String argument, Map<String, String> values) {
+            int start = argument.indexOf("${");
+            if (start == -1) {
+                return argument;
+            }
+            StringBuilder sb = new StringBuilder(argument.length() + 32);
+            int pos = 0;
+            while (start != -1) {
+                int end = argument.indexOf('}', start);
+                if (end == -1) {
+                    break;
+                }
+                String key = argument.substring(start + 2, end);
+                String value = values == null ? null : values.get(key);
+                if (value == null) {
+                    throw new IllegalArgumentException(
+                            "No value for key '" + key + "' in template '" + name + "'");
+                }
+                sb.append(argument, pos, start).append(value);
+                pos = end + 1;
+                start = argument.indexOf("${", pos);
+            }
+            return sb.append(argument, pos, argument.length()).toString();
+        }
+
+        /**
+         * @param values replacements for {@code ${key}} in the arguments.
+         * @return a runner for the expanded command with the template settings.
+         */
+        protected ProcessRunner createRunner(Map<String, String> values) {
+            ProcessRunner runner = new ProcessRunner(expand(values));
+            runner.setTimeout(timeout);
+            if (maxOutput != -2) {
+                runner.setOutputCollectionByteSize(maxOutput);
+            }
+            if (maxError != -2) {
+                runner.setErrorCollectionByteSize(maxError);
+            }
+            return runner;
+        }
+
+        @Override
+        public String toString() {
+            return "Template(" + name + ", " + command + ")";
+        }
+    }
+
+    /**
+     * Receives output from processes as it is produced. The methods are
+     * called from the threads that drain the process output: stdout and
+     * stderr are delivered from different threads.
+     */
+    public abstract static class Callback {
+        /**
+         * Called with output from stdout. The buffer is reused after the call.
+         */
+        public abstract void output(byte[] buffer, int offset, int length);
+
+        /**
+         * Called with output from stderr. The buffer is reused after the call.
+         * The default implementation does nothing.
+         */
+        public void error(byte[] buffer, int offset, int length) { }
+
+        /**
+         * Called when the process has finished successfully or timed out.
+         * The default implementation does nothing.
+         *
+         * @param runner the runner for the process.
+         */
+        public void finished(ProcessRunner runner) { }
+    }
+
+    private static final class CallbackStream extends OutputStream {
+        private final Callback callback;
+        private final boolean error;
+
+        private CallbackStream(Callback callback, boolean error) {
+            this.callback = callback;
+            this.error = error;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (error) {
+                callback.error(b, off, len);
+            } else {
+                callback.output(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Statistics for the processes from templates with the same name.
+     * Latencies are in milliseconds and include the time for draining output,
+     * but not the time spent waiting in the queue.
+     */
+    public static class Statistics {
+        private final String name;
+        private final PercentileRecorder latency = PercentileRecorder.lastValues(1000);
+        private final AtomicLong timeouts = new AtomicLong(0);
+        private final AtomicLong failed = new AtomicLong(0);
+        private final ConcurrentMap<Integer, AtomicLong> exitCodes =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+
+        private Statistics(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return latencies in milliseconds for the last 1000 processes.
+         */
+        public PercentileRecorder getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the number of processes that were killed due to timeout.
+         */
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        /**
+         * @return the number of processes where the ProcessRunner threw an
+         *         exception, e.g. because the command could not be started.
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return the number of processes that finished, by exit code, sorted
+         *         by exit code. Timed out processes are not included.
+         */
+        public Map<Integer, Long> getExitCodes() {
+            Map<Integer, Long> codes = new TreeMap<Integer, Long>();
+            for (Map.Entry<Integer, AtomicLong> entry : exitCodes.entrySet()) {
+                codes.put(entry.getKey(), entry.getValue().get());
+            }
+            return codes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s(count=%d, median=%.0fms, 95%%=%.0fms, 99%%=%.0fms, timeouts=%d, failed=%d, "
+                                 + "exitCodes=%s)",
+                                 name, latency.getCount(), latency.getMedian(), latency.getPercentile(0.95),
+                                 latency.getPercentile(0.99), getTimeouts(), getFailed(), getExitCodes());
+        }
+    }
+}
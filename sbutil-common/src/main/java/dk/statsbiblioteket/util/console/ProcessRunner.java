@@ -11,6 +11,19 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -20,10 +33,18 @@ import java.util.concurrent.Callable;
  * <li> Handle automatic collection of bytes from the output and
  * error streams, to ensure that they dont block.
  * <li> Handles automatic feeding of input to the process.
- * <li> Blocking while executing
+ * <li> Blocking while executing or asynchronous with {@link #runAsync()}.
+ * <li> Streaming of the output while the process runs with
+ * {@link #runStreaming()} and piping between processes with
+ * {@link ProcessPipeline}.
  * <li> Implements Runnable, to be wrapped in a Thread.
  * </ul>
  *
+ * The output and error streams are drained and the input is fed by a shared
+ * pool of daemon threads, which are reused between runs, using bulk reads.
+ * Completion is detected with {@link Process#waitFor()} and timeouts are
+ * handled by a shared timer, so no polling is involved.
+ *
  *
  * Use the Assessor methods to configure the Enviroment, input, collecting
  * behavoiur, timeout and startingDir.
@@ -42,15 +63,51 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
     protected InputStream processError = null;
 
     /**
-     * The threads that polls the output from the commands. When a thread is
-     * finished, it removes itself from this list.
+     * The tasks that drain the output from the commands.
      */
-    protected final List<Thread> threads =
-            Collections.synchronizedList(new LinkedList<Thread>());
+    protected final List<Future<?>> drainers =
+            Collections.synchronizedList(new ArrayList<Future<?>>(2));
 
     protected final int MAXINITIALBUFFER = 1000000;
-    protected final int THREADTIMEOUT = 1000; // Milliseconds
-    protected final int POLLING_INTERVAL = 100;//milli
+    /**
+     * Milliseconds to wait for the output to be drained after the process
+     * has finished. Child processes of the process might keep the output
+     * open.
+     */
+    protected final int THREADTIMEOUT = 1000;
+    /** The size of the buffers used for draining and feeding. */
+    protected static final int BUFFER_SIZE = 8192;
+
+    private static final AtomicInteger workerCount = new AtomicInteger(0);
+    /**
+     * Shared threads for draining, feeding and waiting. Threads are created
+     * on demand and terminated after being idle for a minute.
+     */
+    private static final ExecutorService workers = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(
+                            r, "ProcessRunner_" + workerCount.getAndIncrement());
+                    t.setDaemon(true); // Allow the JVM to exit
+                    return t;
+                }
+            });
+    /** Destroys processes that exceed their timeout. */
+    private static final ScheduledThreadPoolExecutor timeouts;
+    static {
+        timeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProcessRunner_timeouts");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
 
     protected final ProcessBuilder pb;
 
@@ -62,22 +119,30 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
     protected int maxOutput = 31000;
     protected int maxError = 31000;
     protected int return_code = -2;
-    protected boolean timedOut;
+    protected volatile boolean timedOut;
 
     private OutputStream customOut;
     private OutputStream customError;
+    /** Collectors for the output, when collect is true. */
+    private ByteArrayOutputStream pOut;
+    private ByteArrayOutputStream pError;
 
     private boolean started = false;
+    /** If true, stdout is not collected but read directly by the caller. */
+    private boolean streamOutput = false;
+    /** If true, the input is stdout from another process. */
+    private boolean pipedInput = false;
 
-    /**
-     * The thread used for blocking on exitcode. This thread is interrupted when the process fails
-     */
-    private Thread executePollingThread;
+    /** The running process, used for destroying it on failure. */
+    private volatile Process process = null;
 
     /**
-     * The exception that caused the executePollingThread to be interrupted.
+     * The first exception from draining or feeding. When this is set, the
+     * process is destroyed and the runner fails with {@link #failureCode}.
      */
-    private Throwable interruptedException;
+    private final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+    private volatile int failureCode = 0;
 
     /**
      * Create a new ProcessRunner. Cannot run, until you specify something with
@@ -343,25 +408,33 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
 
 
     /**
-     * Wait for the polling threads to finish.
+     * Wait for the draining of output to finish, but at most
+     * {@link #THREADTIMEOUT} ms.
      */
     protected void waitForThreads() {
         long endTime = System.currentTimeMillis() + THREADTIMEOUT;
-        while (System.currentTimeMillis() < endTime && threads.size() > 0) {
+        List<Future<?>> pending;
+        synchronized (drainers) {
+            pending = new ArrayList<Future<?>>(drainers);
+        }
+        for (Future<?> drainer : pending) {
             try {
-                Thread.sleep(POLLING_INTERVAL);
+                drainer.get(Math.max(0, endTime - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
-                //do not just go on.
-                if (interruptedException != null) {
-                    throw new RuntimeException(interruptedException);
-                }
                 //just go on now
+            } catch (ExecutionException e) {
+                // Failures are registered by the drainer
+            } catch (TimeoutException e) {
+                // The output is still open, probably by a child process
+                return;
             }
         }
     }
 
     /**
-     * Utility Method for reading a stream into a string, for returning
+     * Utility Method for reading a stream into a string, for returning.
+     * Each byte is converted to a char (ISO-8859-1).
      *
      * @param stream the string to read
      * @return A string with the contents of the stream.
@@ -370,18 +443,26 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
         if (stream == null) {
             return null;
         }
-        BufferedInputStream in = new BufferedInputStream(stream, 1000);
-        StringWriter sw = new StringWriter(1000);
-        int c;
+        ByteArrayOutputStream content = new ByteArrayOutputStream(
+                Math.max(1000, available(stream)));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
         try {
-            while ((c = in.read()) != -1) {
-                sw.append((char) c);
+            while ((read = stream.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
             }
-            return sw.toString();
+            return content.toString("ISO-8859-1");
         } catch (IOException e) {
             return "Could not transform content of stream to String";
         }
+    }
 
+    private static int available(InputStream stream) {
+        try {
+            return stream.available();
+        } catch (IOException e) {
+            return 0;
+        }
     }
 
 
@@ -391,87 +472,184 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
      */
     @Override
     public synchronized void run() {
+        finish(startProcess());
+    }
+
+    @Override
+    public synchronized ProcessRunner call() throws Exception {
+        run();
+        return this;
+    }
+
+    /**
+     * Starts the process and returns immediately. Draining of output,
+     * feeding of input and waiting for the process to finish is done by
+     * shared threads.
+     *
+     * Exceptions from waiting for the process and collecting the output are
+     * wrapped in the {@link ExecutionException} from the Future.
+     *
+     * @return a future that is done when the process has finished and the
+     *         output has been collected. The result is this ProcessRunner.
+     * @throws RuntimeException if the process could not be started or has
+     *                          already been started. This is thrown directly,
+     *                          as the process is started by the caller.
+     */
+    public Future<ProcessRunner> runAsync() {
+        final Process p = startProcess();
+        FutureTask<ProcessRunner> task = new FutureTask<ProcessRunner>(
+                new Callable<ProcessRunner>() {
+                    @Override
+                    public ProcessRunner call() throws Exception {
+                        finish(p);
+                        return ProcessRunner.this;
+                    }
+                });
+        workers.execute(task);
+        return task;
+    }
+
+    /**
+     * Starts the process and returns immediately, with the output of the
+     * process available from {@link #getProcessOutput()} while the process
+     * runs. The output is not collected, so the caller must read it to
+     * prevent the process from blocking. Memory usage is independent of the
+     * amount of output. Error output is collected as normal.
+     *
+     * @return a future that is done when the process has finished, which
+     *         requires the output to be read.
+     * @throws RuntimeException if the process could not be started or has
+     *                          already been started.
+     */
+    public Future<ProcessRunner> runStreaming() {
+        streamOutput = true;
+        return runAsync();
+    }
+
+    /**
+     * Feed the process with output from another process. A failure to write
+     * to this process is not an error: It means that this process stopped
+     * reading its input, which closes the input so that the upstream process
+     * is terminated, as with pipes in a shell.
+     *
+     * @param upstreamOutput stdout from the upstream process.
+     */
+    void setPipedInput(InputStream upstreamOutput) {
+        this.processInput = upstreamOutput;
+        this.pipedInput = true;
+    }
+
+    /**
+     * Starts the process and the draining of its output. A runner can only
+     * be started once.
+     */
+    private synchronized Process startProcess() {
+        if (started){
+            throw new RuntimeException("Process already started");
+        }
+        started = true;
+        // Reset the failure before the drainers are started, as they might fail right away
+        failure.set(null);
         try {
-            if (started){
-                throw new RuntimeException("Process already started");
-            }
             Process p = pb.start();
-
+            process = p;
             if (collect) {
-                ByteArrayOutputStream pOut = collectProcessOutput(p.getInputStream(), this.maxOutput, customOut);
-                ByteArrayOutputStream pError = collectProcessOutput(p.getErrorStream(), this.maxError, customError);
-                return_code = execute(p);
-                waitForThreads();
-                processOutput = new ByteArrayInputStream(pOut.toByteArray());
-                processError = new ByteArrayInputStream(pError.toByteArray());
-
+                if (streamOutput) {
+                    processOutput = p.getInputStream();
+                } else {
+                    pOut = collectProcessOutput(p.getInputStream(), this.maxOutput, customOut);
+                }
+                pError = collectProcessOutput(p.getErrorStream(), this.maxError, customError);
             } else {
                 processOutput = p.getInputStream();
                 processError = p.getErrorStream();
-                return_code = execute(p);
             }
+            return p;
         } catch (IOException e) {
             throw new RuntimeException("An io error occurred when running the command", e);
         }
     }
 
-    @Override
-    public synchronized ProcessRunner call() throws Exception {
-        run();
-        return this;
+    /**
+     * Waits for the process and the draining to finish and collects the
+     * result.
+     */
+    private void finish(Process p) {
+        return_code = execute(p);
+        if (collect) {
+            waitForThreads();
+            if (!streamOutput) {
+                processOutput = new ByteArrayInputStream(pOut.toByteArray());
+            }
+            processError = new ByteArrayInputStream(pError.toByteArray());
+        }
     }
 
-    protected int execute(Process p) {
-        //Reset the interruptedException
-        interruptedException = null;
-        //Set the executePollingThread so other threads can interrupt it.
-        executePollingThread = Thread.currentThread();
+    protected int execute(final Process p) {
+        process = p;
 
-        long startTime = System.currentTimeMillis();
         feedProcess(p, processInput);
+        ScheduledFuture<?> killer = null;
+        if (timeout < Long.MAX_VALUE) {
+            killer = timeouts.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        p.exitValue();
+                        return; // The process finished just before the timeout
+                    } catch (IllegalThreadStateException e) {
+                        // Still running
+                    }
+                    timedOut = true;
+                    p.destroy();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
         int return_value;
-
         while (true) {
-            if (interruptedException != null){
-                p.destroy();
-                throw new RuntimeException(interruptedException);
-            }
-            //is the thread finished?
             try {
-                //then return
-                return_value = p.exitValue();
-                break;
-            } catch (IllegalThreadStateException e) {
-                //not finished
-            }
-            //is the runtime exceeded?
-            if (System.currentTimeMillis() - startTime > timeout) {
-                //then return
-                p.destroy();
-                return_value = -1;
-                timedOut = true;
+                return_value = p.waitFor();
                 break;
-            }
-            //else sleep again
-            try {
-                //relinquesh locks so the other threads can set interruptedException if they meet errors
-                wait(POLLING_INTERVAL);
             } catch (InterruptedException e) {
                 //just go on.
             }
-
         }
-        if (interruptedException != null) {
-            p.destroy();
-            throw new RuntimeException(interruptedException);
-        } else {
-            return return_value;
+        if (killer != null && !killer.cancel(false)) {
+            // The killer has started, so wait for it to decide whether the process timed out
+            while (true) {
+                try {
+                    killer.get();
+                    break;
+                } catch (InterruptedException e) {
+                    //just go on.
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
         }
-
+        Throwable e = failure.get();
+        if (e != null) {
+            return_code = failureCode;
+            throw new RuntimeException(e);
+        }
+        return timedOut ? -1 : return_value;
     }
 
+    /**
+     * Registers the first failure and destroys the process.
+     */
+    private void fail(Throwable e, int code) {
+        if (failure.compareAndSet(null, e)) {
+            failureCode = code;
+            return_code = code;
+            Process p = process;
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
 
-    protected synchronized ByteArrayOutputStream collectProcessOutput(
+    protected ByteArrayOutputStream collectProcessOutput(
             final InputStream inputStream, final int maxCollect, final OutputStream customOut) {
         final ByteArrayOutputStream stream;
         if (maxCollect < 0) {
@@ -479,64 +657,45 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
         } else {
             stream = new ByteArrayOutputStream(Math.min(MAXINITIALBUFFER, maxCollect));
         }
-        final ProcessRunner processRunner = this;
-
-        Thread t = new Thread(new Runnable() {
+        drainers.add(workers.submit(new Runnable() {
             @Override
             public void run() {
                 try {
-                    InputStream reader = null;
-                    OutputStream writer = null;
                     try {
-                        reader = new BufferedInputStream(inputStream);
-                        writer = new BufferedOutputStream(stream);
-                        int c;
-                        int counter = 0;
-                        try {
-                            while ((c = reader.read()) != -1) {
-                                counter++;
-                                if (customOut != null) {
-                                    try {
-                                        customOut.write(c);
-                                    } catch (IOException e) {
-                                        throw new RuntimeException("Could not write output to custom OutputStream", e);
-                                    }
-                                }
-                                if (maxCollect < 0 || counter < maxCollect) {
-                                    try {
-                                        writer.write(c);
-                                    } catch (IOException e) {
-                                        throw new RuntimeException("Could not write output to internal collecting OutputStream", e);
-                                    }
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        // At most maxCollect-1 bytes are collected
+                        long remaining = maxCollect < 0 ? Long.MAX_VALUE : Math.max(0, maxCollect - 1);
+                        int read;
+                        while (true) {
+                            try {
+                                read = inputStream.read(buffer);
+                            } catch (IOException e) {
+                                throw new RuntimeException("Couldn't read output from process.", e);
+                            }
+                            if (read == -1) {
+                                break;
+                            }
+                            if (customOut != null) {
+                                try {
+                                    customOut.write(buffer, 0, read);
+                                } catch (IOException e) {
+                                    throw new RuntimeException("Could not write output to custom OutputStream", e);
                                 }
                             }
-                        } catch (IOException e) {
-                            throw new RuntimeException("Couldn't read output from process.", e);
+                            if (remaining > 0) {
+                                int collected = (int) Math.min(read, remaining);
+                                stream.write(buffer, 0, collected);
+                                remaining -= collected;
+                            }
                         }
                     } finally {
-                        if (reader != null) {
-                            reader.close();
-                        }
-                        if (writer != null) {
-                            writer.close();
-                        }
+                        inputStream.close();
                     }
                 } catch (Throwable e){
-                    synchronized (processRunner) {
-                        if (executePollingThread != null) {
-                            interruptedException = e;
-                            return_code = -3;
-                            executePollingThread.interrupt();
-                        }
-                    }
+                    fail(e, -3);
                 }
-                threads.remove(Thread.currentThread());
             }
-        }
-        );
-        t.setDaemon(true); // Allow the JVM to exit even if t is alive
-        threads.add(t);
-        t.start();
+        }));
         return stream;
     }
 
@@ -546,37 +705,50 @@ public class ProcessRunner implements Runnable, Callable<ProcessRunner> {
             return;
         }
 
-        final ProcessRunner processRunner = this;
         final OutputStream pIn = process.getOutputStream();
-        Thread t = new Thread() {
+        workers.execute(new Runnable() {
+            @Override
             public void run() {
                 try {
-                    OutputStream writer = null;
                     try {
-                        writer = new BufferedOutputStream(pIn);
-                        int c;
-                        while ((c = processInput.read()) != -1) {
-                            writer.write(c);
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int read;
+                        while ((read = processInput.read(buffer)) != -1) {
+                            if (!write(pIn, buffer, read)) {
+                                break;
+                            }
                         }
                     } finally {
-                        if (writer != null) {
-                            writer.close();
+                        if (pipedInput) {
+                            processInput.close();
                         }
-                        pIn.close();
-                    }
-                } catch (Throwable e) {
-                    synchronized (processRunner) {
-                        if (executePollingThread != null) {
-                            interruptedException = e;
-                            return_code = -4;
-                            executePollingThread.interrupt();
+                        try {
+                            pIn.close();
+                        } catch (IOException e) {
+                            if (!pipedInput) {
+                                throw e;
+                            }
                         }
                     }
+                } catch (Throwable e) {
+                    fail(e, -4);
                 }
             }
-        };
+        });
+    }
 
-        t.setDaemon(true); // Allow the JVM to exit even if t lives
-        t.start();
+    /**
+     * @return false if the input is piped and the process stopped reading.
+     */
+    private boolean write(OutputStream pIn, byte[] buffer, int length) throws IOException {
+        try {
+            pIn.write(buffer, 0, length);
+            return true;
+        } catch (IOException e) {
+            if (pipedInput) {
+                return false;
+            }
+            throw e;
+        }
     }
 }
@@ -0,0 +1,557 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.Strings;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reader that replaces Strings on the fly, using an Aho–Corasick automaton
+ * for locating the targets. The input is processed in a single pass,
+ * independent of the number of rules and the length of the targets, which
+ * makes this replacer well suited for large rule sets such as entity tables
+ * or transliteration maps.
+ *
+ * The replacement semantics are the same as for {@link StringReplacer}:
+ * At any position the longest matching target is replaced. Targets starting
+ * earlier in the input takes precedence over targets starting later, even
+ * if the later targets are longer.
+ *
+ * The automaton is immutable and shared between clones and the transform
+ * methods are thread safe. Streaming is not synchronized: Use a clone per
+ * thread or wrap the replacer in a {@link SynchronizedReplaceReader}.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public class AhoCorasickReplacer extends ReplaceReader {
+    /** The number of chars to read from the source in each bulk read. */
+    private static final int BLOCK_SIZE = 8192;
+    /** The maximum number of entries in the full transition table of the automaton. */
+    private static final int MAX_DELTA = 1024 * 1024;
+
+    private final Automaton automaton;
+    private final String rulesSample;
+
+    private char[] pending;
+    private int pendingLength = 0;
+    private final Output destination = new Output(BLOCK_SIZE);
+    private int destinationPos = 0;
+    private boolean eof = false;
+    private long replacementsFromCurrentSource = 0;
+
+    /**
+     * Create a new replacer replacing substrings in the {@code in} stream
+     * based on the rules defined by the {@code replacements} argument.
+     *
+     * @param in           the character stream in which to replace substrings
+     * @param replacements the Strings to replace, from target to destination.
+     */
+    public AhoCorasickReplacer(Reader in, Map<String, String> replacements) {
+        this(in, new Automaton(replacements), Strings.join(replacements.entrySet(), 10));
+    }
+
+    /**
+     * Create a new replacer, with an empty input stream, replacing substrings
+     * based on the rules defined by the {@code replacements} argument.
+     *
+     * Before calling any other methods on this reader you should set its input
+     * stream by calling {@link #setSource(java.io.Reader)}.
+     *
+     * @param replacements the Strings to replace, from target to destination.
+     */
+    public AhoCorasickReplacer(Map<String, String> replacements) {
+        this(new StringReader(""), replacements);
+    }
+
+    private AhoCorasickReplacer(Reader in, Automaton automaton, String rulesSample) {
+        super(in);
+        this.automaton = automaton;
+        this.rulesSample = rulesSample;
+        pending = new char[Math.max(BLOCK_SIZE, automaton.maxTargetLength * 2)];
+    }
+
+    /**
+     * A clone of the AhoCorasickReplacer will share the rules of the replacer,
+     * but will otherwise be independent. A clone will not have a source
+     * defined. Creating a clone is cheap with regard to processing time.
+     *
+     * @return a clone of this ReplaceReader.
+     */
+    @SuppressWarnings({"CloneDoesntCallSuperClone",
+                       "CloneDoesntDeclareCloneNotSupportedException"})
+    @Override
+    public Object clone() {
+        return new AhoCorasickReplacer(null, automaton, rulesSample);
+    }
+
+    @Override
+    public char[] transformToChars(char c) {
+        return transformToChars(new char[]{c});
+    }
+
+    @Override
+    public char[] transformToChars(char[] chars) {
+        Output out = new Output(chars.length);
+        automaton.replace(chars, 0, chars.length, true, out);
+        return out.toArray();
+    }
+
+    @Override
+    public char[] transformToCharsAllowInplace(char[] chars) {
+        return transformToChars(chars);
+    }
+
+    @Override
+    public String transform(String s) {
+        char[] chars = s.toCharArray();
+        Output out = new Output(chars.length);
+        int replacements = automaton.replace(chars, 0, chars.length, true, out);
+        return replacements == 0 ? s : new String(out.chars, 0, out.length);
+    }
+
+    /* Stream based */
+    @Override
+    public int read(CircularCharBuffer cbuf, int length) throws IOException {
+        ensureBuffers(length);
+        int available = Math.min(length, destination.length - destinationPos);
+        if (available == 0) {
+            return length == 0 ? 0 : -1;
+        }
+        cbuf.put(destination.chars, destinationPos, available);
+        destinationPos += available;
+        return available;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureBuffers(1);
+        return destinationPos < destination.length ? destination.chars[destinationPos++] : -1;
+    }
+
+    @Override
+    public int read(char cbuf[], int off, int len) throws IOException {
+        ensureBuffers(len);
+        int available = Math.min(len, destination.length - destinationPos);
+        if (available == 0) {
+            return len == 0 ? 0 : -1;
+        }
+        System.arraycopy(destination.chars, destinationPos, cbuf, off, available);
+        destinationPos += available;
+        return available;
+    }
+
+    /**
+     * Ensures that the destination contains at least minSize characters or
+     * that the source has reached EOF and that all characters from source has
+     * been processed.
+     *
+     * @param minSize the minimum number of chars wanted in destination.
+     * @throws IOException if an I/O error happened in source.
+     */
+    private void ensureBuffers(int minSize) throws IOException {
+        while (destination.length - destinationPos < minSize && !(eof && pendingLength == 0)) {
+            if (destinationPos == destination.length) {
+                destinationPos = 0;
+                destination.length = 0;
+            }
+            fillPending();
+            replacementsFromCurrentSource += automaton.replace(pending, 0, pendingLength, eof, destination);
+            int processed = destination.processed;
+            System.arraycopy(pending, processed, pending, 0, pendingLength - processed);
+            pendingLength -= processed;
+        }
+    }
+
+    /**
+     * Reads chars from the source in bulk until the pending buffer is full or
+     * the source is depleted.
+     *
+     * @throws IOException if an I/O error happened in source.
+     */
+    private void fillPending() throws IOException {
+        if (pendingLength == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        while (!eof && pendingLength < pending.length) {
+            int read;
+            if (sourceBuffer != null) {
+                read = sourceBuffer.read(pending, pendingLength, pending.length - pendingLength);
+            } else if (in != null) {
+                read = in.read(pending, pendingLength, pending.length - pendingLength);
+            } else {
+                throw new IllegalStateException(NO_SOURCE);
+            }
+            if (read == -1) {
+                eof = true;
+            } else if (read == 0) {
+                break;
+            } else {
+                pendingLength += read;
+                // Don't block on the source if there is enough to work on
+                if (pendingLength >= automaton.maxTargetLength * 2 && sourceBuffer == null && !in.ready()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ReplaceReader setSource(Reader source) {
+        super.setSource(source);
+        resetBuffers();
+        return this;
+    }
+
+    @Override
+    public ReplaceReader setSource(CircularCharBuffer charBuffer) {
+        super.setSource(charBuffer);
+        resetBuffers();
+        return this;
+    }
+
+    private void resetBuffers() {
+        pendingLength = 0;
+        destination.length = 0;
+        destinationPos = 0;
+        replacementsFromCurrentSource = 0;
+        eof = false;
+    }
+
+    /**
+     * @return the number of replacements that has been performed on the
+     *         current source.
+     */
+    public long getReplacementCount() {
+        return replacementsFromCurrentSource;
+    }
+
+    @Override
+    public String toString() {
+        return "AhoCorasickReplacer(#rules=" + automaton.replacements.length
+               + ", rules=" + rulesSample + ")";
+    }
+
+    /**
+     * Growable output buffer. Also keeps track of the number of input chars
+     * that were processed for the output.
+     */
+    private static final class Output {
+        private char[] chars;
+        private int length = 0;
+        /** The number of input chars that were processed by the last replace. */
+        private int processed = 0;
+
+        private Output(int initialSize) {
+            chars = new char[Math.max(16, initialSize)];
+        }
+
+        private void append(char[] source, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            if (this.length + length > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, this.length + length));
+            }
+            System.arraycopy(source, offset, chars, this.length, length);
+            this.length += length;
+        }
+
+        private char[] toArray() {
+            return Arrays.copyOf(chars, length);
+        }
+    }
+
+    /**
+     * The immutable automaton. States are integers with 0 being the root.
+     * The children of state s are stored in {@link #labels} and
+     * {@link #targets} from {@code childStart[s]} (inclusive) to
+     * {@code childStart[s+1]} (exclusive), sorted by label.
+     */
+    private static final class Automaton {
+        private final char[] labels;
+        private final int[] targets;
+        private final int[] childStart;
+        /** Direct lookup of the children of root, indexed by char. 0 means no child. */
+        private final int[] rootChildren;
+        private final int[] failure;
+        private final int[] depth;
+        /** The index of the longest rule that ends at the state or -1 if none. */
+        private final int[] output;
+        private final int[] targetLengths;
+        private final char[][] replacements;
+        private final int maxTargetLength;
+        /** Maps chars to classes. Class 0 is for all chars that are not part of any target. */
+        private final char[] charClasses;
+        private final int classCount;
+        /**
+         * Full transition table indexed by {@code state*classCount+class}, with
+         * failure links resolved. Only present if the table is small enough.
+         */
+        private final int[] delta;
+
+        private Automaton(Map<String, String> rules) {
+            // Build a plain trie
+            List<Map<Character, Integer>> children = new ArrayList<Map<Character, Integer>>();
+            List<Integer> depths = new ArrayList<Integer>();
+            List<Integer> ruleAt = new ArrayList<Integer>();
+            children.add(new HashMap<Character, Integer>());
+            depths.add(0);
+            ruleAt.add(-1);
+            List<Integer> lengths = new ArrayList<Integer>(rules.size());
+            List<char[]> tos = new ArrayList<char[]>(rules.size());
+            int maxLength = 0;
+            for (Map.Entry<String, String> rule : rules.entrySet()) {
+                String from = rule.getKey();
+                if (from.length() == 0) {
+                    continue; // Empty targets are ignored, as with StringReplacer
+                }
+                maxLength = Math.max(maxLength, from.length());
+                int state = 0;
+                for (int i = 0; i < from.length(); i++) {
+                    Integer child = children.get(state).get(from.charAt(i));
+                    if (child == null) {
+                        child = children.size();
+                        children.get(state).put(from.charAt(i), child);
+                        children.add(new HashMap<Character, Integer>());
+                        depths.add(i + 1);
+                        ruleAt.add(-1);
+                    }
+                    state = child;
+                }
+                ruleAt.set(state, tos.size());
+                lengths.add(from.length());
+                tos.add(rule.getValue().toCharArray());
+            }
+            maxTargetLength = maxLength;
+            replacements = tos.toArray(new char[tos.size()][]);
+            targetLengths = new int[lengths.size()];
+            for (int i = 0; i < targetLengths.length; i++) {
+                targetLengths[i] = lengths.get(i);
+            }
+
+            // Compact the trie to arrays
+            int states = children.size();
+            childStart = new int[states + 1];
+            labels = new char[states - 1];
+            targets = new int[states - 1];
+            depth = new int[states];
+            int pos = 0;
+            for (int s = 0; s < states; s++) {
+                depth[s] = depths.get(s);
+                childStart[s] = pos;
+                Character[] keys = children.get(s).keySet().toArray(new Character[children.get(s).size()]);
+                Arrays.sort(keys);
+                for (Character key : keys) {
+                    labels[pos] = key;
+                    targets[pos++] = children.get(s).get(key);
+                }
+            }
+            childStart[states] = pos;
+            int maxRootChar = -1;
+            for (int i = childStart[0]; i < childStart[1]; i++) {
+                maxRootChar = Math.max(maxRootChar, labels[i]);
+            }
+            rootChildren = new int[maxRootChar + 1];
+            for (int i = childStart[0]; i < childStart[1]; i++) {
+                rootChildren[labels[i]] = targets[i];
+            }
+
+            // Breadth first calculation of failure links and outputs
+            failure = new int[states];
+            output = new int[states];
+            output[0] = -1;
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            for (int i = childStart[0]; i < childStart[1]; i++) {
+                int child = targets[i];
+                failure[child] = 0;
+                output[child] = ruleAt.get(child);
+                queue[tail++] = child;
+            }
+            while (head < tail) {
+                int s = queue[head++];
+                for (int i = childStart[s]; i < childStart[s + 1]; i++) {
+                    int child = targets[i];
+                    int f = failure[s];
+                    int next;
+                    while ((next = child(f, labels[i])) == 0 && f != 0) {
+                        f = failure[f];
+                    }
+                    failure[child] = next;
+                    int rule = ruleAt.get(child);
+                    output[child] = rule != -1 ? rule : output[next];
+                    queue[tail++] = child;
+                }
+            }
+
+            // Alphabet compression and resolving of failure links, if feasible
+            int maxChar = -1;
+            for (char label : labels) {
+                maxChar = Math.max(maxChar, label);
+            }
+            charClasses = new char[maxChar + 1];
+            List<Character> classChars = new ArrayList<Character>();
+            classChars.add((char) 0); // Placeholder for the "not in any target" class
+            for (char label : labels) {
+                if (charClasses[label] == 0) {
+                    charClasses[label] = (char) classChars.size();
+                    classChars.add(label);
+                }
+            }
+            classCount = classChars.size();
+            if (classCount > Character.MAX_VALUE || (long) states * classCount > MAX_DELTA) {
+                delta = null;
+                return;
+            }
+            delta = new int[states * classCount];
+            for (int c = 1; c < classCount; c++) {
+                delta[c] = child(0, classChars.get(c));
+            }
+            for (int q = 0; q < tail; q++) { // Breadth first so that failure states are resolved first
+                int st = queue[q];
+                int base = st * classCount;
+                int failureBase = failure[st] * classCount;
+                for (int c = 1; c < classCount; c++) {
+                    int child = child(st, classChars.get(c));
+                    delta[base + c] = child != 0 ? child : delta[failureBase + c];
+                }
+            }
+        }
+
+        /**
+         * @return the child of the state for the given char or 0 if there is
+         *         no such child.
+         */
+        private int child(int state, char c) {
+            if (state == 0) {
+                return c < rootChildren.length ? rootChildren[c] : 0;
+            }
+            int low = childStart[state];
+            int high = childStart[state + 1] - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char label = labels[mid];
+                if (label < c) {
+                    low = mid + 1;
+                } else if (label > c) {
+                    high = mid - 1;
+                } else {
+                    return targets[mid];
+                }
+            }
+            return 0;
+        }
+
+        private int next(int state, char c) {
+            if (delta != null) {
+                return c < charClasses.length ? delta[state * classCount + charClasses[c]] : 0;
+            }
+            while (true) {
+                int child = child(state, c);
+                if (child != 0 || state == 0) {
+                    return child;
+                }
+                state = failure[state];
+            }
+        }
+
+        /**
+         * Performs replacements on the given chars. If {@code eof} is false,
+         * the chars at the end that might be part of a target are not
+         * processed. The number of processed chars is stored in
+         * {@code out.processed}.
+         *
+         * @param chars  the input.
+         * @param offset the start of the input.
+         * @param end    the end of the input (exclusive).
+         * @param eof    if true, all chars are processed.
+         * @param out    destination for the result.
+         * @return the number of replacements.
+         */
+        private int replace(char[] chars, int offset, int end, boolean eof, Output out) {
+            int count = 0;
+            int emitted = offset; // Everything before this has been processed
+            int state = 0;
+            int candidateStart = -1;
+            int candidateEnd = -1;
+            int candidateRule = -1;
+            int i = offset;
+            while (true) {
+                if (i == end) {
+                    if (!eof || candidateStart == -1) {
+                        break;
+                    }
+                    // Force the candidate at EOF and continue after it
+                    out.append(chars, emitted, candidateStart - emitted);
+                    out.append(replacements[candidateRule], 0, replacements[candidateRule].length);
+                    count++;
+                    emitted = i = candidateEnd;
+                    state = 0;
+                    candidateStart = -1;
+                    continue;
+                }
+                state = next(state, chars[i]);
+                int rule = output[state];
+                if (rule != -1) {
+                    int start = i + 1 - targetLengths[rule];
+                    if (candidateStart == -1 || start < candidateStart
+                        || (start == candidateStart && i + 1 > candidateEnd)) {
+                        candidateStart = start;
+                        candidateEnd = i + 1;
+                        candidateRule = rule;
+                    }
+                }
+                i++;
+                int matchStart = i - depth[state]; // No future match can start before this
+                if (candidateStart != -1 && candidateStart < matchStart) {
+                    out.append(chars, emitted, candidateStart - emitted);
+                    out.append(replacements[candidateRule], 0, replacements[candidateRule].length);
+                    count++;
+                    // Restart the automaton after the replaced target
+                    emitted = i = candidateEnd;
+                    state = 0;
+                    candidateStart = -1;
+                } else if (candidateStart == -1 && matchStart - emitted >= BLOCK_SIZE) {
+                    out.append(chars, emitted, matchStart - emitted);
+                    emitted = matchStart;
+                }
+            }
+            int processed = eof ? end : end - depth[state];
+            out.append(chars, emitted, processed - emitted);
+            out.processed = processed - offset;
+            return count;
+        }
+
+    }
+}
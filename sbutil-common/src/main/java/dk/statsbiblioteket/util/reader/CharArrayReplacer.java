@@ -36,9 +36,10 @@ import java.util.NoSuchElementException;
  * The implementation maintains an array of all possible char values (65536)
  * mapped to their replacements, thereby making lookup of a single char O(1).
  *
- * This implementation is semi-thread safe. All methods except
- * {@link #setSource(java.io.Reader)} and {@link #setSource(CircularCharBuffer)}
- * can be called safely from different threads.
+ * The transform methods can be called safely from different threads. The
+ * stream methods are not synchronized, as a stream is normally processed by a
+ * single thread: Wrap the replacer in a {@link SynchronizedReplaceReader} if
+ * the stream must be shared.
  *
  * @see CharReplacer
  */
@@ -64,6 +65,10 @@ public class CharArrayReplacer extends ReplaceReader {
      */
     private CircularCharBuffer outBuffer =
             new CircularCharBuffer(10, Integer.MAX_VALUE);
+    /**
+     * Used for bulk reads from the source.
+     */
+    private final char[] chunk = new char[1024];
 
     /**
      * Create a new replacer based on a map with rules, consisting of target
@@ -114,11 +119,25 @@ public class CharArrayReplacer extends ReplaceReader {
         this(new StringReader(""), rules);
     }
 
-    private CharArrayReplacer(char[][] rules) {
+    /**
+     * Creates a replacer directly from a lookup table, indexed by char.
+     * The table is not copied.
+     *
+     * @param rules the lookup table.
+     */
+    CharArrayReplacer(char[][] rules) {
         super(null);
         this.rules = rules;
     }
 
+    /**
+     * @return the lookup table for the replacer, indexed by char. This is
+     *         not a copy and must not be modified.
+     */
+    char[][] getRules() {
+        return rules;
+    }
+
     /**
      * A clone of the CharReplacer will share the rules of the replacer, but
      * will otherwise be independent. A clone will not have a source defined.
@@ -193,16 +212,15 @@ public class CharArrayReplacer extends ReplaceReader {
     }
 
     /**
-     * Reads the next processed char. Note that this is synchronized and that
-     * threads competing for access share the output stream with
-     * {@link #read(CircularCharBuffer, int)} and
-     * {@link #read(char[], int, int)}.
+     * Reads the next processed char. Note that this is not synchronized: Use
+     * {@link SynchronizedReplaceReader} if the stream is shared between
+     * threads.
      *
      * @return the next char or -1 if there are no more chars available.
      * @throws java.io.IOException if an I/O error occured.
      */
     @Override
-    public synchronized int read() throws IOException {
+    public int read() throws IOException {
         fillOutBuffer(1);
         try {
             return outBuffer.take();
@@ -212,31 +230,34 @@ public class CharArrayReplacer extends ReplaceReader {
     }
 
     private void fillOutBuffer(int min) throws IOException {
-        try {
-            if (in != null) {
-                int codePoint;
-                while (outBuffer.size() < min && (codePoint = in.read()) != -1) {
-                    outBuffer.put(rules[codePoint]);
-                }
+        if (in == null && sourceBuffer == null) {
+            throw new IllegalStateException(NO_SOURCE);
+        }
+        while (outBuffer.size() < min) {
+            int read = in != null ?
+                       in.read(chunk, 0, Math.min(chunk.length, min - outBuffer.size())) :
+                       sourceBuffer.read(chunk, 0, Math.min(chunk.length, min - outBuffer.size()));
+            if (read <= 0) {
+                // The in or buffer is empty. As the number of resulting chars
+                // can be determined from the outBuffer, we do not need to do
+                // more about this.
                 return;
-            } else if (sourceBuffer != null) {
-                while (outBuffer.size() < min) {
-                    outBuffer.put(rules[sourceBuffer.take()]);
+            }
+            for (int i = 0; i < read; i++) {
+                char[] destination = rules[chunk[i]];
+                if (destination.length == 1) {
+                    outBuffer.put(destination[0]);
+                } else {
+                    outBuffer.put(destination, 0, destination.length);
                 }
-                return;
             }
-            throw new IllegalStateException(NO_SOURCE);
-        } catch (NoSuchElementException e) {
-            // This means the in or buffer is empty. As the number of
-            // resulting chars can be determined from the outBuffer, we do
-            // not need to do more about this.
         }
     }
 
     /**
-     * Fills transformed chars in the buffer. Note that this is synchronized and
-     * that threads competing for access share the output stream with
-     * {@link #read()} and {@link #read(char[], int, int)}.
+     * Fills transformed chars in the buffer. Note that this is not
+     * synchronized: Use {@link SynchronizedReplaceReader} if the stream is
+     * shared between threads.
      *
      * @param cbuf   the buffer to assign shars to.
      * @param length the maximum number of chars to put in the buffer.
@@ -35,9 +35,9 @@ import java.util.NoSuchElementException;
  * The implementation maintains an array of all possible char values (65536)
  * mapped to their replacements, thereby making lookup of a single char O(1).
  *
- * This implementation is semi-thread safe. All methods except
- * {@link #setSource(java.io.Reader)} and {@link #setSource(CircularCharBuffer)}
- * can be called safely from different threads.
+ * The transform methods can be called safely from different threads. Reading
+ * from the stream is not synchronized: Use {@link SynchronizedReplaceReader}
+ * if that is needed.
  *
  * @see CharArrayReplacer
  */
@@ -45,7 +45,12 @@ import java.util.NoSuchElementException;
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class CharReplacer extends ReplaceReader {
+    /** The maximum number of chars to read from the source in one go. */
+    private static final int CHUNK_SIZE = 4096;
+
     private char[] rules;
+    /** Used for bulk reads into CircularCharBuffers. Created on first use. */
+    private char[] chunk = null;
 
     /**
      * Create a new CharReplacer based on a map with rules, consisting of
@@ -96,11 +101,25 @@ public class CharReplacer extends ReplaceReader {
         this(new StringReader(""), rules);
     }
 
-    private CharReplacer(char[] rules) {
+    /**
+     * Creates a replacer directly from a lookup table, indexed by char.
+     * The table is not copied.
+     *
+     * @param rules the lookup table.
+     */
+    CharReplacer(char[] rules) {
         super(null);
         this.rules = rules;
     }
 
+    /**
+     * @return the lookup table for the replacer, indexed by char. This is
+     *         not a copy and must not be modified.
+     */
+    char[] getRules() {
+        return rules;
+    }
+
     /**
      * A clone of the CharReplacer will share the rules of the replacer, but
      * will otherwise be independent. A clone will not have a source defined.
@@ -171,50 +190,36 @@ public class CharReplacer extends ReplaceReader {
 
     @Override
     public int read(CircularCharBuffer cbuf, int length) throws IOException {
-        int read = 0;
-        try {
-            if (in != null) {
-                while (read < length) {
-                    cbuf.put(rules[in.read()]);
-                    read++;
-                }
-            } else if (sourceBuffer != null) {
-                while (read < length) {
-                    cbuf.put(rules[sourceBuffer.take()]);
-                    read++;
-                }
-            } else {
-                throw new IllegalStateException(NO_SOURCE);
-            }
-        } catch (NoSuchElementException e) {
-            if (length == 0) {
-                return 0;
+        if (length == 0) {
+            return 0;
+        }
+        if (chunk == null) {
+            chunk = new char[CHUNK_SIZE];
+        }
+        int total = 0;
+        while (total < length) {
+            int read = read(chunk, 0, Math.min(chunk.length, length - total));
+            if (read <= 0) {
+                break;
             }
-            return read == 0 ? -1 : read;
+            cbuf.put(chunk, 0, read);
+            total += read;
         }
-        return read;
+        return total == 0 ? -1 : total;
     }
 
     @Override
     public int read(char[] cbuf, int off, int length) throws IOException {
-        int read = 0;
-        try {
-            if (in != null) {
-                read = in.read(cbuf, off, length);
-                transformToCharsInplace(cbuf, off, read);
-            } else if (sourceBuffer != null) {
-                while (read < length) {
-                    cbuf[off + read] = rules[sourceBuffer.take()];
-                    read++;
-                }
-            } else {
-                throw new IllegalStateException(NO_SOURCE);
-            }
-        } catch (NoSuchElementException e) {
-            if (length == 0) {
-                return 0;
-            }
-            return read == 0 ? -1 : read;
+        int read;
+        if (in != null) {
+            read = in.read(cbuf, off, length);
+        } else if (sourceBuffer != null) {
+            read = sourceBuffer.read(cbuf, off, length);
+        } else {
+            throw new IllegalStateException(NO_SOURCE);
+        }
+        if (read > 0) {
+            transformToCharsInplace(cbuf, off, read);
         }
         return read;
     }
@@ -25,7 +25,7 @@ package dk.statsbiblioteket.util.reader;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.Reader;
 import java.nio.CharBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -35,6 +35,10 @@ import java.util.NoSuchElementException;
  * It avoids memory reallocations by traversing its internal character buffer
  * in a circular manner, hence the name of the class.
  *
+ * The internal buffer always has a size that is a power of two, so that
+ * positions can be calculated by masking instead of modulo. Bulk operations
+ * copy at most two segments with {@link System#arraycopy}.
+ *
  * The buffer is not thread-safe. It is method-compatible with Reader.
  *
  * Note: the Queue-calls involves conversion between char and Character and
@@ -43,23 +47,17 @@ import java.util.NoSuchElementException;
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te, mke",
-        comment = "Lots of room for performance-improvements (basically for all "
-                  + "iterative usages as arrayCopy is much more efficient). "
-                  + "The Reader-compatible and Query-compatible methods are "
+        comment = "The Reader-compatible and Query-compatible methods are "
                   + "largely untested")
 public class CircularCharBuffer implements CharSequence, Iterable<Character> {
-    private static final int GROWTH_FACTOR = 2;
+    /** The largest power of two that can be used as array length. */
+    private static final int MAX_ARRAY = 1 << 30;
 
-    /**
-     * The maximum capacity of the buffer + 1. If the maximum capacity is
-     * Integer.MAX_VALUE, max is also Integer.MAX_VALUE.
-     *
-     * The +1 hack is due to performance optimization.
-     */
-    private int max; // Maximum size
+    private final int max; // Maximum size
     private int first = 0;
-    private int next = 0; // if first = next, the buffer is empty
+    private int size = 0;
     private char[] array;
+    private int mask;
 
     /**
      * Create a new buffer with an initial capacity of {@code initialSize}
@@ -73,24 +71,29 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @param maxSize     maximum number of characters that can be stored in this buffer
      */
     public CircularCharBuffer(int initialSize, int maxSize) {
-        array = new char[initialSize];
         this.max = maxSize;
-        if (max != Integer.MAX_VALUE) {
-            this.max++; // To make room for the first != next invariant
-        }
+        allocate(Math.min(initialSize, maxSize));
     }
 
     /**
      * Create a new buffer with an initial capacity equal to the length of the given String s and a max size of
-     * the same length + 1. Then fills the buffer with the characters from the given String.
+     * the same length. Then fills the buffer with the characters from the given String.
      * @param s the initial content.
      */
     public CircularCharBuffer(String s) {
-        array = new char[s.length()];
-        max = s.length()+1;
+        this(s.length(), s.length());
         add(s);
     }
 
+    private void allocate(int minCapacity) {
+        int length = 1;
+        while (length < minCapacity && length < MAX_ARRAY) {
+            length <<= 1;
+        }
+        array = new char[length];
+        mask = length - 1;
+    }
+
     /**
      * Put the char in the buffer, expanding it if necessary.
      *
@@ -98,14 +101,10 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @throws ArrayIndexOutOfBoundsException if the buffer needs to be expanded, but has reached the maximum size.
      */
     public void put(char c) {
-        if (size() == array.length - 1) {
-            extendCapacity();
+        if (size == array.length || size == max) {
+            ensureCapacity(size + 1);
         }
-        array[next++] = c;
-        next %= array.length;
-/*        if (next == array.length) {
-            next = 0;
-        }*/
+        array[(first + size++) & mask] = c;
     }
 
     /**
@@ -115,10 +114,24 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @throws ArrayIndexOutOfBoundsException if the buffer needs to be expanded, but has reached the maximum size.
      */
     public void put(char[] chars) {
-        // TODO: Consider optimizing this with arraycopy
-        for (char c : chars) {
-            put(c);
-        }
+        put(chars, 0, chars.length);
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param chars  the chars to add.
+     * @param offset the offset in chars of the first char to add.
+     * @param length the number of chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer needs to be expanded, but has reached the maximum size.
+     */
+    public void put(char[] chars, int offset, int length) {
+        ensureCapacity(size + length);
+        int tail = (first + size) & mask;
+        int direct = Math.min(length, array.length - tail);
+        System.arraycopy(chars, offset, array, tail, direct);
+        System.arraycopy(chars, offset + direct, array, 0, length - direct);
+        size += length;
     }
 
     /**
@@ -128,11 +141,79 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @throws ArrayIndexOutOfBoundsException if the buffer needs to be expanded, but has reached the maximum size.
      */
     public void put(CharSequence s) {
-        for (int i = 0; i < s.length(); i++) {
-            put(s.charAt(i));
+        int length = s.length();
+        ensureCapacity(size + length);
+        if (s instanceof String) {
+            int tail = (first + size) & mask;
+            int direct = Math.min(length, array.length - tail);
+            ((String) s).getChars(0, direct, array, tail);
+            ((String) s).getChars(direct, length, array, 0);
+            size += length;
+            return;
+        }
+        if (s instanceof CircularCharBuffer) {
+            CircularCharBuffer other = (CircularCharBuffer) s;
+            // Fetch the state before copying, as other might be this buffer
+            char[] otherArray = other.array;
+            int otherFirst = other.first;
+            int otherSize = other.size;
+            int direct = Math.min(otherSize, otherArray.length - otherFirst);
+            put(otherArray, otherFirst, direct);
+            put(otherArray, 0, otherSize - direct);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            array[(first + size++) & mask] = s.charAt(i);
         }
     }
 
+    /**
+     * Moves the remaining chars from the given buffer into this buffer,
+     * expanding it if necessary. The position of the source will be advanced
+     * to its limit.
+     *
+     * @param source the chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer needs to be expanded, but has reached the maximum size.
+     */
+    public void put(CharBuffer source) {
+        int length = source.remaining();
+        ensureCapacity(size + length);
+        int tail = (first + size) & mask;
+        int direct = Math.min(length, array.length - tail);
+        source.get(array, tail, direct);
+        source.get(array, 0, length - direct);
+        size += length;
+    }
+
+    /**
+     * Reads chars from the given reader directly into the buffer, expanding it
+     * if necessary. At most one {@code read} is issued to the reader, so fewer
+     * than {@code maxChars} might be read even if the reader is not depleted.
+     *
+     * @param reader   the source of the chars.
+     * @param maxChars the maximum number of chars to read. This is further
+     *                 limited by the maximum capacity of the buffer.
+     * @return the number of chars read, 0 if the buffer is full or -1 if the
+     *         reader is depleted.
+     * @throws IOException if the read failed.
+     */
+    public int fill(Reader reader, int maxChars) throws IOException {
+        maxChars = Math.min(maxChars, getMaximumCapacity() - size);
+        if (maxChars <= 0) {
+            return 0;
+        }
+        if (size == array.length) {
+            ensureCapacity(size + maxChars);
+        }
+        int tail = (first + size) & mask;
+        int contiguous = tail >= first ? array.length - tail : first - tail;
+        int read = reader.read(array, tail, Math.min(maxChars, contiguous));
+        if (read > 0) {
+            size += read;
+        }
+        return read;
+    }
+
     /**
      * {@link java.io.Reader}-compatible read.
      *
@@ -140,7 +221,7 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      *         (0x00-0xffff), or -1 if the end of the stream has been reached.
      */
     public int read() {
-        if (isEmpty()) {
+        if (size == 0) {
             return -1;
         }
         return take();
@@ -154,14 +235,13 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @throws NoSuchElementException if the buffer is empty.
      */
     public char take() {
-        if (first == next) {
+        if (size == 0) {
             throw new NoSuchElementException(
                     "take() called on empty buffer");
         }
-        char result = array[first++];
-        if (first == array.length) {
-            first = 0;
-        }
+        char result = array[first];
+        first = (first + 1) & mask;
+        size--;
         return result;
     }
 
@@ -170,7 +250,7 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @see #size()
      */
     public int getMaximumCapacity() {
-        return max == Integer.MAX_VALUE ? max : max - 1;
+        return max;
     }
 
     /**
@@ -186,28 +266,12 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
         if (len == 0) {
             return 0;
         }
-        if (size() == 0) {
+        if (size == 0) {
             return -1;
         }
-        if (first < next) {
-            int moved = Math.min(len, next - first);
-            System.arraycopy(array, first, cbuf, off, moved);
-            first += moved;
-            return moved;
-        }
-        int moved = Math.min(len, array.length - first);
-        System.arraycopy(array, first, cbuf, off, moved);
-        first += moved;
-        if (first == array.length) {
-            first = 0;
-        }
-        if (moved == len || size() == 0) {
-            return moved;
-        }
-        int movedExtra = Math.min(len - moved, next - first);
-        System.arraycopy(array, first, cbuf, off + moved, movedExtra);
-        first += movedExtra;
-        return moved + movedExtra;
+        int moved = copy(cbuf, off, len);
+        skipChars(moved);
+        return moved;
     }
 
     /**
@@ -218,17 +282,19 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @param len   the maximum number of chars to move.
      * @return the number of moved chars or -1 if no chars were buffered.
      */
-    // TODO: Consider optimizing this with arraycopy
     public int read(CircularCharBuffer other, int len) {
-        int counter = 0;
-        while (size() > 0 && counter < len) {
-            other.put(take());
-            counter++;
-        }
         if (len == 0) {
             return 0;
         }
-        return counter == 0 ? -1 : counter;
+        if (size == 0) {
+            return -1;
+        }
+        int moved = Math.min(len, size);
+        int direct = Math.min(moved, array.length - first);
+        other.put(array, first, direct);
+        other.put(array, 0, moved - direct);
+        skipChars(moved);
+        return moved;
     }
 
     /**
@@ -238,11 +304,9 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @return a char array with the full content of the buffer.
      */
     public char[] takeAll() {
-        int size = size();
         char[] result = new char[size];
-        for (int i = 0; i < size; i++) {
-            result[i] = take();
-        }
+        copy(result, 0, size);
+        clear();
         return result;
     }
 
@@ -253,12 +317,9 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @return a String with the full content of the buffer;
      */
     public String takeString() {
-        int size = size();
-        StringWriter sw = new StringWriter(size);
-        for (int i = 0; i < size; i++) {
-            sw.append(take());
-        }
-        return sw.toString();
+        String result = toString();
+        clear();
+        return result;
     }
 
     /**
@@ -269,13 +330,12 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      */
     @Override
     public String toString() {
-        StringBuilder b = new StringBuilder();
-        int size = size();
-        for (int i = 0; i < size; i++) {
-            b.append(peek(i));
+        if (first + size <= array.length) {
+            return new String(array, first, size);
         }
-
-        return b.toString();
+        char[] content = new char[size];
+        copy(content, 0, size);
+        return new String(content);
     }
 
     /**
@@ -286,16 +346,24 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @return a string representation of part of the buffer.
      */
     public String subset(int offset, int length) {
-        StringBuilder b = new StringBuilder();
-        for (int i = offset; i < length; i++) {
-            b.append(peek(i));
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "subset(%d, %d) called on buffer with size %d", offset, length, size));
+        }
+        int start = (first + offset) & mask;
+        if (start + length <= array.length) {
+            return new String(array, start, length);
         }
-        return b.toString();
+        int direct = array.length - start;
+        char[] content = new char[length];
+        System.arraycopy(array, start, content, 0, direct);
+        System.arraycopy(array, 0, content, direct, length - direct);
+        return new String(content);
     }
 
     /**
      * Get the character {@code ahead} steps from the current position in the
-     * buffer. Calling this method will affect the state of the buffer.
+     * buffer. Calling this method will not affect the state of the buffer.
      *
      * @param ahead the number of characters to peek ahead.
      * @return the character at the offset ahead.
@@ -303,11 +371,11 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      *                                        method on an empty buffer will always throw this exception
      */
     public char peek(int ahead) {
-        if (ahead >= size()) {
+        if (ahead >= size) {
             throw new ArrayIndexOutOfBoundsException(
-                    "Requesting a peek(" + ahead + ") when the size is only " + size());
+                    "Requesting a peek(" + ahead + ") when the size is only " + size);
         }
-        return array[(first + ahead) % array.length];
+        return array[(first + ahead) & mask];
     }
 
     /**
@@ -315,7 +383,7 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      */
     public void clear() {
         first = 0;
-        next = 0;
+        size = 0;
     }
 
     /**
@@ -325,33 +393,40 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @see #getMaximumCapacity()
      */
     public int size() {
-        if (first <= next) {
-            return next - first;
-        }
-        return array.length - first + next;
+        return size;
     }
 
-    private void extendCapacity() {
-        if (array.length == max) {
+    /**
+     * Ensures that the buffer can hold at least minCapacity chars.
+     *
+     * @param minCapacity the wanted capacity.
+     * @throws ArrayIndexOutOfBoundsException if minCapacity is larger than the maximum size.
+     */
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > max || minCapacity > MAX_ARRAY || minCapacity < 0) {
             throw new ArrayIndexOutOfBoundsException("The buffer if full and cannot be expanded further");
         }
-
-        int newSize = Math.min(max, Math.max(array.length + 1, array.length * GROWTH_FACTOR));
-        char[] newArray = new char[newSize];
-        if (next == first) { // Empty
-            array = newArray;
+        if (minCapacity <= array.length) {
             return;
         }
-        if (next < first) {
-            System.arraycopy(array, first, newArray, 0, array.length - first);
-            System.arraycopy(array, 0, newArray, array.length - first, next);
-        } else {
-            System.arraycopy(array, 0, newArray, first, next - first);
-        }
-        int oldSize = size();
-        array = newArray;
+        char[] old = array;
+        int oldFirst = first;
+        allocate(Math.min(Math.max(minCapacity, old.length * 2), max));
+        int direct = Math.min(size, old.length - oldFirst);
+        System.arraycopy(old, oldFirst, array, 0, direct);
+        System.arraycopy(old, 0, array, direct, size - direct);
         first = 0;
-        next = oldSize;
+    }
+
+    /**
+     * Discards the first chars in the buffer.
+     */
+    private void skipChars(int chars) {
+        first = (first + chars) & mask;
+        size -= chars;
+        if (size == 0) {
+            first = 0; // Maximize the size of the contiguous free segment
+        }
     }
 
     /**
@@ -361,7 +436,7 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      */
     @Override
     public int length() {
-        return size();
+        return size;
     }
 
     /**
@@ -400,10 +475,21 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @see String#indexOf(String, int)
      */
     public int indexOf(final String str, final int fromIndex) {
+        // Negative indexes would be masked into the ring, so they are clamped as in String.indexOf
+        final int start = Math.max(0, fromIndex);
+        final int length = str.length();
+        if (length == 0) {
+            return start <= size ? start : -1;
+        }
+        final char head = str.charAt(0);
+        final int last = size - length;
         begin:
-        for (int pos = fromIndex; pos < size() - str.length() + 1; pos++) {
-            for (int i = 0; i < str.length(); i++) {
-                if (str.charAt(i) != charAt(pos + i)) {
+        for (int pos = start; pos <= last; pos++) {
+            if (array[(first + pos) & mask] != head) {
+                continue;
+            }
+            for (int i = 1; i < length; i++) {
+                if (str.charAt(i) != array[(first + pos + i) & mask]) {
                     continue begin;
                 }
             }
@@ -443,17 +529,16 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
         }
 
         CircularCharBuffer child = new CircularCharBuffer(length(), getMaximumCapacity());
-        for (int i = start; i < end; i++) {
-            child.put(charAt(i));
-        }
-
+        int from = (first + start) & mask;
+        int length = end - start;
+        int direct = Math.min(length, array.length - from);
+        child.put(array, from, direct);
+        child.put(array, 0, length - direct);
         return child;
     }
 
     public boolean add(CharSequence chars) {
-        for (int i = 0 ; i < chars.length() ; i++) {
-            put(chars.charAt(i));
-        }
+        put(chars);
         return chars.length() > 0;
     }
 
@@ -502,16 +587,16 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
     /* Collection<Character> interface */
 
     public boolean isEmpty() {
-        return first == next;
+        return size == 0;
     }
 
     public boolean contains(Object o) {
         if (o == null || !(o instanceof Character)) {
             return false;
         }
-        Character c = (Character) o;
-        for (int i = 0; i < size(); i++) {
-            if (c.equals(Character.valueOf(charAt(i)))) {
+        char c = (Character) o;
+        for (int i = 0; i < size; i++) {
+            if (array[(first + i) & mask] == c) {
                 return true;
             }
         }
@@ -622,18 +707,22 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
     }
 
     /**
-     * Reader-compatible method. Empries the buffer into the target.
+     * Reader-compatible method. Moves as much of the content of the buffer as
+     * there is room for into the target.
      *
      * @param target where to put the content of the buffer.
      * @return the number of moved characters or -1 if empty.
      */
     public int read(CharBuffer target) {
-        int count = 0;
-        while (!isEmpty()) {
-            target.put(take());
-            count++;
+        if (size == 0) {
+            return -1;
         }
-        return count == 0 ? -1 : count;
+        int moved = Math.min(size, target.remaining());
+        int direct = Math.min(moved, array.length - first);
+        target.put(array, first, direct);
+        target.put(array, 0, moved - direct);
+        skipChars(moved);
+        return moved;
     }
 
     /**
@@ -662,15 +751,13 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
         if (n < 0) {
             throw new IllegalArgumentException("skip(" + n + ") failed: Only positive skips allowed");
         }
-        int oldSize = size();
+        int oldSize = size;
         if (n > oldSize) {
             clear();
             throw new IOException("skip(" + n + ") called with only " + oldSize
                                   + " available chars. Buffer is cleared");
         }
-        for (int i = 0; i < n; i++) {
-            take();
-        }
+        skipChars((int) n);
     }
 
     /**
@@ -703,23 +790,10 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      * @throws ArrayIndexOutOfBoundsException if the destination array was not large enough.
      */
     public int copy(char[] dest, int offset, int length) throws ArrayIndexOutOfBoundsException {
-        final int realLength = length > size() ? size() : length;
-
-        if (realLength == 0) {
-            return 0;
-        }
-
-        // Simple direct copy case
-        int end = first + length;
-        if (end < array.length) {
-            System.arraycopy(array, first, dest, offset, realLength);
-            return length;
-        }
-
-        // Wrap-around case
-        int copied = array.length - first;
-        System.arraycopy(array, first, dest, offset, copied);
-        System.arraycopy(array, 0, dest, offset + copied, realLength-copied);
+        final int realLength = length > size ? size : length;
+        final int direct = Math.min(realLength, array.length - first);
+        System.arraycopy(array, first, dest, offset, direct);
+        System.arraycopy(array, 0, dest, offset + direct, realLength - direct);
         return realLength;
     }
 }
@@ -86,10 +86,9 @@ public class CircularIntBuffer implements Iterable<Integer> {
             extendCapacity();
         }
         array[next++] = value;
-        next %= array.length;
-/*        if (next == array.length) {
+        if (next == array.length) {
             next = 0;
-        }*/
+        }
     }
 
     /**
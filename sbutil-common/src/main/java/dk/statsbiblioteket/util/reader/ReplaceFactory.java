@@ -36,17 +36,31 @@ import java.util.Map;
  * It is highly recommended to use this factory instead of directly creating
  * replacers, as it selects the optimal replacer based on the rules.
  *
+ * A factory instance holds the compiled form of a rule set. It is immutable
+ * and can be shared freely between threads, each thread creating its own
+ * replacer with {@link #getReplacer()} without parsing the rules again.
+ * The replacers themselves are not synchronized; if a single replacer must be
+ * shared between threads, use {@link #getSynchronizedReplacer()}.
+ *
  * @see CharArrayReplacer
  * @see CharReplacer
  * @see StringReplacer
+ * @see AhoCorasickReplacer
+ * @see SynchronizedReplaceReader
  * @see ReplaceReader
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class ReplaceFactory {
+    /**
+     * Rule sets with multi char targets of this size or larger are handled by
+     * {@link AhoCorasickReplacer}, smaller sets by {@link StringReplacer}.
+     */
+    public static final int AHO_CORASICK_THRESHOLD = 50;
 
-    private ReplaceReader replacer;
+    /** Prototype for the replacers. Only used for cloning. */
+    private final ReplaceReader replacer;
 
     /**
      * Creates a factory that generates a replacer for the given rules.
@@ -63,6 +77,18 @@ public class ReplaceFactory {
         replacer = getReplacer(rules);
     }
 
+    /**
+     * Creates a factory that generates a replacer for the given rules, where
+     * {@code rules[i]} maps to {@code rules[++i]}.
+     *
+     * @param rules what to replace in the form of target-replacement pairs.
+     * @throws IllegalArgumentException if passed an uneven number of arguments
+     * @see #ReplaceFactory(java.util.Map)
+     */
+    public ReplaceFactory(String... rules) {
+        this(toRuleMap(rules));
+    }
+
     /**
      * Creates a new replacer which uses the rules given in the constructor.
      * This is fast and with little memory-overhead. This is a recommended
@@ -88,6 +114,19 @@ public class ReplaceFactory {
         return reader;
     }
 
+    /**
+     * Creates a new replacer which uses the rules given in the constructor and
+     * which is safe to share between threads. The synchronization has a cost
+     * for each read, so prefer {@link #getReplacer()} with a replacer per
+     * thread when possible.
+     *
+     * @return a synchronized replacer based on the rules given in the
+     *         constructor.
+     */
+    public ReplaceReader getSynchronizedReplacer() {
+        return new SynchronizedReplaceReader(getReplacer());
+    }
+
     /**
      * Creates a replacer from the given rules reading character data from
      * {@code in}.
@@ -97,8 +136,8 @@ public class ReplaceFactory {
      *
      * The factory will detect
      * the optimal strategy for character replacement based on {@code rules}
-     * and return a {@link CharArrayReplacer}, {@link CharReplacer}, or
-     * {@link StringReplacer} accordingly.
+     * and return a {@link CharArrayReplacer}, {@link CharReplacer},
+     * {@link StringReplacer} or {@link AhoCorasickReplacer} accordingly.
      *
      * @param in    the input character stream in which to replace substrings
      * @param rules what to replace in the form of target-replacement pairs.
@@ -118,6 +157,9 @@ public class ReplaceFactory {
         if (allTargetsSingleChars) {
             return new CharArrayReplacer(in, rules);
         }
+        if (rules.size() >= AHO_CORASICK_THRESHOLD) {
+            return new AhoCorasickReplacer(in, rules);
+        }
         return new StringReplacer(in, rules);
     }
 
@@ -131,8 +173,8 @@ public class ReplaceFactory {
      *
      * The factory will detect
      * the optimal strategy for character replacement based on {@code rules}
-     * and return a {@link CharArrayReplacer}, {@link CharReplacer}, or
-     * {@link StringReplacer} accordingly.
+     * and return a {@link CharArrayReplacer}, {@link CharReplacer},
+     * {@link StringReplacer} or {@link AhoCorasickReplacer} accordingly.
      *
      * @param rules what to replace in the form of target-replacement pairs.
      * @return a replacer made from the rules.
@@ -154,6 +196,10 @@ public class ReplaceFactory {
      * @throws IllegalArgumentException if passed an uneven number of arguments
      */
     public static ReplaceReader getReplacer(Reader in, String... rules) {
+        return getReplacer(in, toRuleMap(rules));
+    }
+
+    private static Map<String, String> toRuleMap(String... rules) {
         if (rules.length % 2 != 0) {
             throw new IllegalArgumentException("Uneven number of arguments");
         }
@@ -164,8 +210,7 @@ public class ReplaceFactory {
         for (int i = 0; i < rules.length - 1; i++) {
             ruleMap.put(rules[i], rules[++i]);
         }
-
-        return getReplacer(in, ruleMap);
+        return ruleMap;
     }
 
     /**
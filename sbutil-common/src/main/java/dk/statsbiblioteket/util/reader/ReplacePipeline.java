@@ -0,0 +1,334 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chains an ordered list of {@link TextTransformer}s into a single Reader.
+ * Consecutive single char rule sets ({@link CharReplacer} and
+ * {@link CharArrayReplacer}) are fused into a single lookup table, so that
+ * e.g. three CharReplacers in a row costs the same as one.
+ *
+ * The remaining stages are connected so that each stage reads blocks of chars
+ * from the previous stage, rather than single chars.
+ *
+ * The given transformers are used directly by the pipeline and should not be
+ * used elsewhere while the pipeline is active. The pipeline is not
+ * thread-safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public class ReplacePipeline extends ReplaceReader {
+    private final List<TextTransformer> stages;
+    private final TextTransformer last;
+
+    /**
+     * Creates a pipeline with the given stages, reading from {@code in}.
+     *
+     * @param in     the character stream to transform.
+     * @param stages the transformers to apply, in order.
+     */
+    public ReplacePipeline(Reader in, TextTransformer... stages) {
+        this(in, Arrays.asList(stages));
+    }
+
+    /**
+     * Creates a pipeline with the given stages, reading from {@code in}.
+     *
+     * @param in     the character stream to transform.
+     * @param stages the transformers to apply, in order.
+     */
+    public ReplacePipeline(Reader in, List<? extends TextTransformer> stages) {
+        this(in, fuse(stages), true);
+    }
+
+    /**
+     * Creates a pipeline with the given stages and an empty input stream.
+     * Before reading from the pipeline, the source must be set with
+     * {@link #setSource(java.io.Reader)}.
+     *
+     * @param stages the transformers to apply, in order.
+     */
+    public ReplacePipeline(List<? extends TextTransformer> stages) {
+        this(new StringReader(""), stages);
+    }
+
+    private ReplacePipeline(Reader in, List<TextTransformer> fused, boolean connect) {
+        super(in);
+        if (fused.isEmpty()) {
+            throw new IllegalArgumentException("At least one stage must be given");
+        }
+        stages = Collections.unmodifiableList(fused);
+        last = fused.get(fused.size() - 1);
+        if (connect) {
+            setSource(in);
+        }
+    }
+
+    /**
+     * @return the stages in the pipeline after fusing.
+     */
+    public List<TextTransformer> getStages() {
+        return stages;
+    }
+
+    /**
+     * Fuses consecutive single char replacers into one.
+     *
+     * @param stages the stages to fuse.
+     * @return the fused stages.
+     */
+    static List<TextTransformer> fuse(List<? extends TextTransformer> stages) {
+        List<TextTransformer> fused = new ArrayList<TextTransformer>(stages.size());
+        int runStart = -1;
+        for (int i = 0; i <= stages.size(); i++) {
+            TextTransformer stage = i < stages.size() ? stages.get(i) : null;
+            boolean singleChar = stage instanceof CharReplacer || stage instanceof CharArrayReplacer;
+            if (singleChar && runStart == -1) {
+                runStart = i;
+            }
+            if (!singleChar) {
+                if (runStart != -1) {
+                    fused.add(i - runStart == 1 ? stages.get(runStart) : fuseTables(stages.subList(runStart, i)));
+                    runStart = -1;
+                }
+                if (stage != null) {
+                    fused.add(stage);
+                }
+            }
+        }
+        return fused;
+    }
+
+    /**
+     * Composes the lookup tables of the given single char replacers.
+     *
+     * @param run CharReplacers and CharArrayReplacers.
+     * @return a CharReplacer if all chars map to exactly one char, else a
+     *         CharArrayReplacer.
+     */
+    private static ReplaceReader fuseTables(List<? extends TextTransformer> run) {
+        char[][] table = new char[Character.MAX_VALUE][];
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            table[c] = new char[]{c};
+        }
+        for (TextTransformer stage : run) {
+            if (stage instanceof CharReplacer) {
+                char[] rules = ((CharReplacer) stage).getRules();
+                for (int c = 0; c < table.length; c++) {
+                    char[] output = new char[table[c].length]; // The old output might be shared
+                    for (int i = 0; i < output.length; i++) {
+                        char o = table[c][i];
+                        output[i] = o < rules.length ? rules[o] : o;
+                    }
+                    table[c] = output;
+                }
+            } else {
+                char[][] rules = ((CharArrayReplacer) stage).getRules();
+                for (int c = 0; c < table.length; c++) {
+                    table[c] = expand(table[c], rules);
+                }
+            }
+        }
+        boolean allSingle = true;
+        for (char[] output : table) {
+            allSingle &= output.length == 1;
+        }
+        if (!allSingle) {
+            return new CharArrayReplacer(table);
+        }
+        char[] direct = new char[table.length];
+        for (int c = 0; c < table.length; c++) {
+            direct[c] = table[c][0];
+        }
+        return new CharReplacer(direct);
+    }
+
+    private static char[] expand(char[] input, char[][] rules) {
+        if (input.length == 1) {
+            return input[0] < rules.length ? rules[input[0]] : input;
+        }
+        int length = 0;
+        for (char c : input) {
+            length += c < rules.length ? rules[c].length : 1;
+        }
+        char[] output = new char[length];
+        int pos = 0;
+        for (char c : input) {
+            if (c < rules.length) {
+                System.arraycopy(rules[c], 0, output, pos, rules[c].length);
+                pos += rules[c].length;
+            } else {
+                output[pos++] = c;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * The clone has its own copies of the stages, which share rules with the
+     * stages of this pipeline. A clone will not have a source defined.
+     *
+     * @return a clone of this pipeline.
+     * @throws UnsupportedOperationException if a stage is not a
+     *                                       {@link ReplaceReader}.
+     */
+    @SuppressWarnings({"CloneDoesntCallSuperClone",
+                       "CloneDoesntDeclareCloneNotSupportedException"})
+    @Override
+    public Object clone() {
+        List<TextTransformer> clones = new ArrayList<TextTransformer>(stages.size());
+        for (TextTransformer stage : stages) {
+            if (!(stage instanceof ReplaceReader)) {
+                throw new UnsupportedOperationException(
+                        "Unable to clone the pipeline as the stage " + stage + " is not a ReplaceReader");
+            }
+            clones.add((TextTransformer) ((ReplaceReader) stage).clone());
+        }
+        return new ReplacePipeline(null, clones, false);
+    }
+
+    /* TextTransformer interface implementations */
+
+    @Override
+    public String transform(String s) {
+        for (TextTransformer stage : stages) {
+            s = stage.transform(s);
+        }
+        return s;
+    }
+
+    @Override
+    public char[] transformToChars(char c) {
+        char[] chars = stages.get(0).transformToChars(c);
+        for (int i = 1; i < stages.size(); i++) {
+            chars = stages.get(i).transformToChars(chars);
+        }
+        return chars;
+    }
+
+    @Override
+    public char[] transformToChars(char[] chars) {
+        for (TextTransformer stage : stages) {
+            chars = stage.transformToChars(chars);
+        }
+        return chars;
+    }
+
+    @Override
+    public char[] transformToCharsAllowInplace(char[] chars) {
+        for (TextTransformer stage : stages) {
+            chars = stage.transformToCharsAllowInplace(chars);
+        }
+        return chars;
+    }
+
+    /* Stream oriented implementations */
+
+    @Override
+    public ReplaceReader setSource(Reader source) {
+        super.setSource(source);
+        stages.get(0).setSource(source);
+        connectStages();
+        return this;
+    }
+
+    @Override
+    public ReplaceReader setSource(CircularCharBuffer charBuffer) {
+        super.setSource(charBuffer);
+        stages.get(0).setSource(charBuffer);
+        connectStages();
+        return this;
+    }
+
+    /**
+     * Connects each stage to the previous one, which also resets the state
+     * of the stages.
+     */
+    private void connectStages() {
+        for (int i = 1; i < stages.size(); i++) {
+            stages.get(i).setSource(asReader(stages.get(i - 1)));
+        }
+    }
+
+    private static Reader asReader(final TextTransformer stage) {
+        if (stage instanceof Reader) {
+            return (Reader) stage;
+        }
+        return new Reader() {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return stage.read(cbuf, off, len);
+            }
+
+            @Override
+            public int read() throws IOException {
+                return stage.read();
+            }
+
+            @Override
+            public void close() {
+                // The stage is not closable
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        return last.read();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        return last.read(cbuf, off, len);
+    }
+
+    @Override
+    public int read(CircularCharBuffer cbuf, int length) throws IOException {
+        return last.read(cbuf, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (last instanceof Reader) {
+            ((Reader) last).close();
+        } else {
+            super.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplacePipeline(" + stages + ")";
+    }
+}
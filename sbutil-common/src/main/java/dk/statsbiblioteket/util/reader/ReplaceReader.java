@@ -28,6 +28,7 @@ import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.CharBuffer;
 
 /**
  * Abstract class providing basic methods for making a TextTransformer that is
@@ -75,6 +76,26 @@ public abstract class ReplaceReader extends FilterReader implements TextTransfor
         return this;
     }
 
+    /**
+     * Reads directly into the backing array of the target if possible, to
+     * avoid the temporary array allocated by {@link Reader#read(CharBuffer)}.
+     *
+     * @param target the buffer to read into.
+     * @return the number of chars read or -1 if the source is depleted.
+     * @throws IOException if an I/O error occurred.
+     */
+    @Override
+    public int read(CharBuffer target) throws IOException {
+        if (!target.hasArray()) {
+            return super.read(target);
+        }
+        int read = read(target.array(), target.arrayOffset() + target.position(), target.remaining());
+        if (read > 0) {
+            target.position(target.position() + read);
+        }
+        return read;
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
@@ -0,0 +1,287 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connects an OutputStream with an InputStream through a circular byte buffer, as a replacement for
+ * {@link java.io.PipedOutputStream} and {@link java.io.PipedInputStream}.
+ *
+ * The pipe is lock free and intended for exactly one writing thread and one reading thread. Bulk reads and writes
+ * are done with {@link System#arraycopy}. A thread only blocks when the buffer is full (writer) or empty (reader),
+ * in which case it is parked until the other thread signals progress, so there is no polling. Interrupting a
+ * blocked thread makes the read or write fail with an {@link InterruptedIOException}.
+ *
+ * Closing the OutputStream signals end of stream to the reader after the buffered bytes has been read. Closing the
+ * InputStream makes further writes fail with an IOException. The reader must close the InputStream if it stops
+ * reading before end of stream, to release a blocked writer.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public class RingBufferPipe {
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    /** The largest power of two that can be used as array length. */
+    private static final int MAX_ARRAY = 1 << 30;
+
+    private final byte[] buffer;
+    private final int mask;
+
+    /** Total number of bytes written. Only updated by the writer. */
+    private final AtomicLong written = new AtomicLong(0);
+    /** Total number of bytes read. Only updated by the reader. */
+    private final AtomicLong read = new AtomicLong(0);
+
+    private volatile boolean writerClosed = false;
+    private volatile boolean readerClosed = false;
+    private volatile IOException failure = null;
+    /** Set while the writer waits for space in the buffer. */
+    private volatile Thread waitingWriter = null;
+    /** Set while the reader waits for data in the buffer. */
+    private volatile Thread waitingReader = null;
+
+    private final Source out = new Source();
+    private final Sink in = new Sink();
+
+    /**
+     * Creates a pipe with a buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+     */
+    public RingBufferPipe() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the number of bytes that can be buffered. This will be rounded up to the nearest power of 2.
+     */
+    public RingBufferPipe(int bufferSize) {
+        if (bufferSize < 1 || bufferSize > MAX_ARRAY) {
+            throw new IllegalArgumentException(
+                    "The buffer size must be between 1 and " + MAX_ARRAY + " but was " + bufferSize);
+        }
+        int size = Integer.highestOneBit(bufferSize);
+        if (size < bufferSize) {
+            size <<= 1;
+        }
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return the stream to write to. Must only be used by one thread at a time.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return the stream to read from. Must only be used by one thread at a time.
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Assigns an exception to the pipe. When the already written bytes has been read, the next read from the
+     * InputStream throws an IOException with the given exception as cause. The OutputStream is closed.
+     * @param exception the reason for the writer to fail.
+     */
+    public void fail(IOException exception) {
+        failure = exception;
+        writerClosed = true;
+        LockSupport.unpark(waitingReader);
+    }
+
+    /**
+     * @return the number of bytes in the buffer.
+     */
+    public int getBuffered() {
+        return (int) (written.get() - read.get());
+    }
+
+    /**
+     * @return the capacity of the buffer in bytes.
+     */
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    /**
+     * Parking returns immediately for an interrupted thread, so the interrupt must be checked to avoid spinning.
+     * The interrupt status is kept for the caller.
+     * @param action the blocked action, used for the exception message.
+     * @throws InterruptedIOException if the current thread has been interrupted.
+     */
+    private static void checkInterrupted(String action) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for " + action);
+        }
+    }
+
+    private final class Source extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException(
+                        "Illegal offset " + off + " and length " + len + " for array of length " + b.length);
+            }
+            if (writerClosed) {
+                throw new IOException("The pipe has been closed for writing");
+            }
+            while (len > 0) {
+                if (readerClosed) {
+                    throw new IOException("The pipe has been closed by the reader");
+                }
+                long w = written.get();
+                int free = buffer.length - (int) (w - read.get());
+                if (free == 0) {
+                    awaitSpace(w);
+                    continue;
+                }
+                int pos = (int) w & mask;
+                int length = Math.min(len, Math.min(free, buffer.length - pos));
+                System.arraycopy(b, off, buffer, pos, length);
+                written.set(w + length);
+                LockSupport.unpark(waitingReader);
+                off += length;
+                len -= length;
+            }
+        }
+
+        private void awaitSpace(long w) throws InterruptedIOException {
+            waitingWriter = Thread.currentThread();
+            try {
+                // Check after announcing to avoid missing a signal from the reader
+                while (w - read.get() == buffer.length && !readerClosed) {
+                    checkInterrupted("writing");
+                    LockSupport.park(this);
+                }
+            } finally {
+                waitingWriter = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            writerClosed = true;
+            LockSupport.unpark(waitingReader);
+        }
+    }
+
+    private final class Sink extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException(
+                        "Illegal offset " + off + " and length " + len + " for array of length " + b.length);
+            }
+            if (readerClosed) {
+                throw new IOException("The pipe has been closed for reading");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                long r = read.get();
+                int available = (int) (written.get() - r);
+                if (available > 0) {
+                    int pos = (int) r & mask;
+                    int length = Math.min(len, Math.min(available, buffer.length - pos));
+                    System.arraycopy(buffer, pos, b, off, length);
+                    read.set(r + length);
+                    LockSupport.unpark(waitingWriter);
+                    return length;
+                }
+                if (writerClosed) {
+                    // The writer publishes bytes before closing, so a re-check is needed
+                    if (written.get() != r) {
+                        continue;
+                    }
+                    if (failure != null) {
+                        throw new IOException("Exception from connected OutputStream", failure);
+                    }
+                    return -1;
+                }
+                awaitData(r);
+            }
+        }
+
+        private void awaitData(long r) throws InterruptedIOException {
+            waitingReader = Thread.currentThread();
+            try {
+                // Check after announcing to avoid missing a signal from the writer
+                while (written.get() == r && !writerClosed) {
+                    checkInterrupted("reading");
+                    LockSupport.park(this);
+                }
+            } finally {
+                waitingReader = null;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = 0;
+            byte[] skipBuffer = new byte[(int) Math.min(n, 8192)];
+            while (skipped < n) {
+                int length = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+                if (length == -1) {
+                    break;
+                }
+                skipped += length;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (readerClosed) {
+                throw new IOException("The pipe has been closed for reading");
+            }
+            return getBuffered();
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            LockSupport.unpark(waitingWriter);
+        }
+    }
+}
@@ -36,6 +36,11 @@ import java.util.Map;
  * number of replacements, as long as there is a non-trivial amount of diversity
  * among the replacements (e.g. "aaa1" ⇒ "foo", "aaa2" ⇒ "bar" etc.) will give
  * poor performance when the number of cases is in the hundreds or thousands.
+ *
+ * The replacer is not thread safe, neither for streaming nor for the transform
+ * methods. Use one replacer per thread, created cheaply with {@link #clone()}
+ * or {@link ReplaceFactory#getReplacer()}, or wrap it in a
+ * {@link SynchronizedReplaceReader}.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
@@ -110,7 +115,7 @@ public class StringReplacer extends ReplaceReader {
     }
 
     @Override
-    public synchronized char[] transformToChars(char c) {
+    public char[] transformToChars(char c) {
         tempInBuffer.clear();
         tempInBuffer.put(c);
         return returnReplacement(tempInBuffer);
@@ -153,13 +158,13 @@ public class StringReplacer extends ReplaceReader {
 
     /* Stream based */
     @Override
-    public synchronized int read(CircularCharBuffer cbuf, int length) throws IOException {
+    public int read(CircularCharBuffer cbuf, int length) throws IOException {
         ensureBuffers(length);
         return destinationBuffer.read(cbuf, length);
     }
 
     @Override
-    public synchronized int read() throws IOException {
+    public int read() throws IOException {
         ensureBuffers(1);
         if (destinationBuffer.size() > 0) {
             return destinationBuffer.take();
@@ -168,7 +173,7 @@ public class StringReplacer extends ReplaceReader {
     }
 
     @Override
-    public synchronized int read(char cbuf[], int off, int len) throws IOException {
+    public int read(char cbuf[], int off, int len) throws IOException {
         ensureBuffers(len); // Dangerous as we risk large buffer
         return destinationBuffer.read(cbuf, off, len);
     }
@@ -209,18 +214,16 @@ public class StringReplacer extends ReplaceReader {
             throw new IllegalStateException(NO_SOURCE);
         }
         // We're using a reader, so read up to minBufferSize is we can
-        int next = 0;
-        while (readerBuffer.size() < minBufferSize && !eof && (next = in.read()) != -1) {
-            readerBuffer.put((char) next);
-        }
-        if (next == -1) {
-            eof = true;
+        while (readerBuffer.size() < minBufferSize && !eof) {
+            if (readerBuffer.fill(in, minBufferSize - readerBuffer.size()) == -1) {
+                eof = true;
+            }
         }
         return readerBuffer;
     }
 
     @Override
-    public synchronized ReplaceReader setSource(Reader source) {
+    public ReplaceReader setSource(Reader source) {
         super.setSource(source);
         readerBuffer.clear();
         destinationBuffer.clear();
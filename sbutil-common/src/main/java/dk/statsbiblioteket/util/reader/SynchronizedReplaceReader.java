@@ -0,0 +1,144 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Wraps a {@link ReplaceReader} and synchronizes all calls on the wrapper.
+ * The replacers in this package are not synchronized as a stream is normally
+ * processed by a single thread. Use this wrapper in the rare cases where
+ * several threads must share the same replacer.
+ *
+ * The wrapped replacer should not be accessed directly after wrapping.
+ *
+ * @see ReplaceFactory#getSynchronizedReplacer()
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public class SynchronizedReplaceReader extends ReplaceReader {
+    private final ReplaceReader replacer;
+
+    /**
+     * @param replacer the replacer to synchronize access to.
+     */
+    public SynchronizedReplaceReader(ReplaceReader replacer) {
+        super(replacer);
+        if (replacer == null) {
+            throw new IllegalArgumentException("A replacer must be given");
+        }
+        this.replacer = replacer;
+    }
+
+    /**
+     * @return the wrapped replacer.
+     */
+    public ReplaceReader getReplacer() {
+        return replacer;
+    }
+
+    /**
+     * @return a synchronized wrapper around a clone of the wrapped replacer.
+     */
+    @SuppressWarnings({"CloneDoesntCallSuperClone",
+                       "CloneDoesntDeclareCloneNotSupportedException"})
+    @Override
+    public synchronized Object clone() {
+        return new SynchronizedReplaceReader((ReplaceReader) replacer.clone());
+    }
+
+    /* TextTransformer interface implementations */
+
+    @Override
+    public synchronized String transform(String s) {
+        return replacer.transform(s);
+    }
+
+    @Override
+    public synchronized char[] transformToChars(char c) {
+        return replacer.transformToChars(c);
+    }
+
+    @Override
+    public synchronized char[] transformToChars(char[] chars) {
+        return replacer.transformToChars(chars);
+    }
+
+    @Override
+    public synchronized char[] transformToCharsAllowInplace(char[] chars) {
+        return replacer.transformToCharsAllowInplace(chars);
+    }
+
+    /* Stream oriented implementations */
+
+    @Override
+    public synchronized ReplaceReader setSource(Reader source) {
+        replacer.setSource(source);
+        return this;
+    }
+
+    @Override
+    public synchronized ReplaceReader setSource(CircularCharBuffer charBuffer) {
+        replacer.setSource(charBuffer);
+        return this;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        return replacer.read();
+    }
+
+    @Override
+    public synchronized int read(char[] cbuf, int off, int len) throws IOException {
+        return replacer.read(cbuf, off, len);
+    }
+
+    @Override
+    public synchronized int read(CircularCharBuffer cbuf, int length) throws IOException {
+        return replacer.read(cbuf, length);
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        return replacer.skip(n);
+    }
+
+    @Override
+    public synchronized boolean ready() throws IOException {
+        return replacer.ready();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        replacer.close();
+    }
+
+    @Override
+    public String toString() {
+        return "SynchronizedReplaceReader(" + replacer + ")";
+    }
+}
@@ -17,7 +17,7 @@ package dk.statsbiblioteket.util.reader;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
 import java.io.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -26,48 +26,76 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Helper for converting an {@link OutputStream}-using job to a background task which exposes
  * a buffered {@link InputStream} containing the output.
+ *
+ * The job and the InputStream are connected through a {@link RingBufferPipe}. Jobs are executed by at most
+ * {@link #MAX_THREADS} shared threads. Further jobs are queued until a thread is free, so they are never rejected.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class ThreadedPiper {
 
+    /** The maximum number of concurrently running producers. */
+    public static final int MAX_THREADS = 50;
+
     private static AtomicLong threads = new AtomicLong(0);
-    private static ThreadPoolExecutor executor = new ThreadPoolExecutor(
-            2, 50, 1000, TimeUnit.DAYS,
-            new ArrayBlockingQueue<Runnable>(100),
-            new ThreadFactory() {
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread t = new Thread(r, "ThreadedPiper_" + threads.getAndIncrement());
-                    t.setDaemon(true);
-                    return t;
+    private static ThreadPoolExecutor executor;
+    static {
+        // A fixed size pool with an unbounded queue grows to MAX_THREADS before queueing
+        executor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ThreadedPiper_" + threads.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
                 }
-            }
-    );
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
 
     /**
+     * Shorthand for {@code getDeferredStream(producer, RingBufferPipe.DEFAULT_BUFFER_SIZE)}.
      * @param producer adds content to the returned InputStream.
      * @return a stream coupled to the producer.
      * @throws IOException if the producer failed to deliver.
      */
     public static InputStream getDeferredStream(final Producer producer) throws IOException {
-        final PipedOutputStream source = new PipedOutputStream();
-        final PipedInputStream sink = new PipedInputStream(source);
-        final SignallingInputStream signal = new SignallingInputStream(sink);
+        return getDeferredStream(producer, RingBufferPipe.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param producer   adds content to the returned InputStream.
+     * @param bufferSize the maximum number of bytes that the producer can get ahead of the reader.
+     * @return a stream coupled to the producer. If the producer throws an IOException, it is thrown from the stream
+     *         after the content delivered before the exception has been read. If the reader stops before the end of
+     *         the stream, it must close the stream to release the producer.
+     * @throws IOException if the producer failed to deliver.
+     */
+    public static InputStream getDeferredStream(final Producer producer, int bufferSize) throws IOException {
+        final RingBufferPipe pipe = new RingBufferPipe(bufferSize);
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                OutputStream source = pipe.getOutputStream();
                 try {
                     producer.process(source);
-                    source.flush();
                     source.close();
                 } catch (IOException e) {
-                    signal.raiseException(e);
+                    pipe.fail(e);
+                } catch (RuntimeException e) {
+                    pipe.fail(new IOException("Unexpected exception from producer", e));
+                } catch (Error e) {
+                    // The reader must be released before the Error propagates, or it will wait forever
+                    pipe.fail(new IOException("Unexpected error from producer", e));
+                    throw e;
                 }
             }
         });
-        return signal;
+        return pipe.getInputStream();
     }
 
     public interface Producer {
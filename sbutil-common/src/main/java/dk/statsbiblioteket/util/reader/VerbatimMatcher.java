@@ -8,7 +8,11 @@
   */
 package dk.statsbiblioteket.util.reader;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -16,9 +20,26 @@ import java.util.regex.Pattern;
 /**
  * For bulk matching of many static verbatim keys against many String sources.
  * Counts matches and performs a callback for each match.
+ * </p><p>
+ * Besides Strings, character streams can be searched with {@link #findMatches(Reader)}, which processes the stream
+ * in a single pass using a sliding window only as large as the longest possible match.
+ * Override {@link #callback(CharSequence, long, Object)} to get the position of the matches and to avoid the
+ * creation of a String for each match.
+ * </p><p>
+ * Matching is performed on a compact, immutable {@link VerbatimTrie}, which is created from the rules on first
+ * search or explicitly with {@link #freeze()}. A matcher holds the state of the searches and is not thread safe,
+ * but the trie is: For multi-threaded matching, build the rules in one matcher, call {@link #freeze()} and
+ * create a matcher per thread with {@link #VerbatimMatcher(VerbatimTrie)}. Such matchers share the trie and
+ * cannot have rules added.
  */
 public abstract class VerbatimMatcher<P> {
-    private Node tree = new Node();
+    /** The number of chars to read from a stream in each bulk read. */
+    private static final int BLOCK_SIZE = 8192;
+
+    /** The mutable rules. Null if the matcher was created from a {@link VerbatimTrie}. */
+    private final Node tree;
+    /** The frozen rules. Cleared when the rules are changed. */
+    private VerbatimTrie<P> trie = null;
     private long matchCount = 0;
     private int lastMatchLength = -1;
 
@@ -40,17 +61,114 @@ public abstract class VerbatimMatcher<P> {
      */
     private char following = 0;
 
+    /**
+     * Creates an empty matcher. Add verbatims with {@link #addRule(String)} and similar methods.
+     */
+    public VerbatimMatcher() {
+        tree = new Node();
+    }
+
+    /**
+     * Creates a matcher sharing the given trie. Matchers based on a trie cannot have rules added, but are cheap to
+     * create. The intended use is one matcher per thread, all sharing the same trie.
+     * @param trie frozen verbatims, as produced by {@link #freeze()}.
+     */
+    public VerbatimMatcher(VerbatimTrie<P> trie) {
+        if (trie == null) {
+            throw new IllegalArgumentException("A trie must be given");
+        }
+        tree = null;
+        this.trie = trie;
+    }
+
+    /**
+     * Creates an immutable and compact representation of the current rules, suitable for sharing between threads.
+     * The trie is cached and reused until the rules are changed. Changes to the rules after freezing are not
+     * reflected in the returned trie.
+     * @return the current rules as an immutable trie.
+     */
+    public VerbatimTrie<P> freeze() {
+        if (trie == null) {
+            trie = buildTrie(tree);
+        }
+        return trie;
+    }
+
+    /**
+     * Breadth first traversal of the tree, assigning consecutive indexes to the children of each node.
+     */
+    private VerbatimTrie<P> buildTrie(Node root) {
+        Comparator<Node> charOrder = new Comparator<Node>() {
+            @Override
+            public int compare(Node o1, Node o2) {
+                return o1.c < o2.c ? -1 : o1.c > o2.c ? 1 : 0;
+            }
+        };
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(root);
+        int endpoints = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.endpoint) {
+                endpoints++;
+            }
+            if (node.children.size() > 1) {
+                List<Node> sorted = new ArrayList<Node>(node.children);
+                Collections.sort(sorted, charOrder);
+                nodes.addAll(sorted);
+            } else {
+                nodes.addAll(node.children);
+            }
+        }
+
+        char[] labels = new char[nodes.size()];
+        int[] childStart = new int[nodes.size() + 1];
+        int[] payloadIndex = new int[nodes.size()];
+        Object[] payloads = new Object[endpoints];
+        int payloadPos = 0;
+        int nextChild = 1;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            labels[i] = node.c;
+            childStart[i] = nextChild;
+            nextChild += node.children.size();
+            if (node.endpoint) {
+                payloads[payloadPos] = node.payload;
+                payloadIndex[i] = payloadPos++;
+            } else {
+                payloadIndex[i] = -1;
+            }
+        }
+        childStart[nodes.size()] = nodes.size();
+        return new VerbatimTrie<P>(labels, childStart, payloadIndex, payloads);
+    }
+
     /**
      * This will be called for each match.
      * @param match the matching verbatim.
      * @param payload optional payload for the matching Node. Might be null.
      */
     public abstract void callback(String match, P payload);
-    private void indirectCallback(String match, P payload) {
+
+    /**
+     * This will be called for each match. The default implementation calls {@link #callback(String, Object)} with
+     * {@code match.toString()}. Override this method to avoid the creation of a String for each match.
+     * @param match   a view of the matching verbatim. The view is only valid during the call and must be copied
+     *                (e.g. with {@code toString()}) if the content is needed later.
+     * @param offset  the position of the first char of the match in the source.
+     * @param payload optional payload for the matching Node. Might be null.
+     */
+    public void callback(CharSequence match, long offset, P payload) {
+        callback(match.toString(), payload);
+    }
+
+    private final MatchView view = new MatchView();
+    private void indirectCallback(CharSequence buffer, int start, int end, long base, P payload) {
         matchCount++;
-        lastMatchLength = match.length();
-        callback(match, payload);
-    };
+        lastMatchLength = end - start;
+        view.set(buffer, start, end);
+        callback(view, base + start, payload);
+    }
 
     /**
      * Find matches in the given source and call {@link #callback(String, Object)} for each match.
@@ -90,6 +208,7 @@ public abstract class VerbatimMatcher<P> {
      * @return the number of matches.
      */
     public int findMatches(String source, MATCH_MODE mode, boolean skipMatching, final char leading, char following) {
+        VerbatimTrie<P> trie = freeze();
         int matches = 0;
         int lastMatches = matches;
         int i = 0;
@@ -99,39 +218,225 @@ public abstract class VerbatimMatcher<P> {
                 i++;
                 continue;
             }
-            matches += tree.findMatches(source, i, mode, following);
-            i += (skipMatching && matches != lastMatches) ? lastMatchLength : 1;
+            matches += matchAt(trie, source, i, mode, following);
+            i += (skipMatching && matches != lastMatches) ? Math.max(1, lastMatchLength) : 1;
             lastMatches = matches;
         }
         return matches;
     }
 
+    private int matchAt(VerbatimTrie<P> trie, CharSequence source, int start, MATCH_MODE mode, char following) {
+        try {
+            return matchAt(trie, source, start, null, 0, mode, following);
+        } catch (IOException e) {
+            throw new IllegalStateException("Logic error: IOException without a stream", e);
+        }
+    }
+
+    /**
+     * Iterative walk down the trie from the given position, performing callbacks for matches.
+     * @param trie      the rules.
+     * @param buffer    the chars to match against.
+     * @param start     the position in the buffer to match from.
+     * @param window    if not null, buffer is the buffer of the window, which is extended on demand.
+     * @param base      the offset of the buffer in the full source.
+     * @param mode      how to handle multiple matches.
+     * @param following if not 0, this character must be present immediately after matches.
+     * @return the number of matches.
+     * @throws IOException if the window could not be extended.
+     */
+    private int matchAt(VerbatimTrie<P> trie, CharSequence buffer, final int start, SourceWindow window,
+                        long base, MATCH_MODE mode, char following) throws IOException {
+        int node = VerbatimTrie.ROOT;
+        int index = start;
+        int matches = 0;
+        int longestNode = VerbatimTrie.NO_NODE;
+        int longestEnd = -1;
+        while (true) {
+            boolean hasNext = index < buffer.length() || (window != null && window.ensure(index + 1));
+            if (trie.isEndpoint(node) && (following == 0 || !hasNext || buffer.charAt(index) == following)) {
+                if (mode == MATCH_MODE.longest) {
+                    longestNode = node;
+                    longestEnd = index;
+                } else {
+                    indirectCallback(buffer, start, index, base, trie.getPayload(node));
+                    if (mode == MATCH_MODE.shortest) {
+                        return 1;
+                    }
+                    matches++;
+                }
+            }
+            if (!hasNext || (node = trie.getChild(node, buffer.charAt(index))) == VerbatimTrie.NO_NODE) {
+                break;
+            }
+            index++;
+        }
+        if (longestNode != VerbatimTrie.NO_NODE) {
+            indirectCallback(buffer, start, longestEnd, base, trie.getPayload(longestNode));
+            return 1;
+        }
+        return matches;
+    }
+
+    /**
+     * Find matches in the given stream and call {@link #callback(CharSequence, long, Object)} for each match.
+     * The stream is processed in a single pass and is not closed.
+     * @param source a character stream which will be searched for verbatims.
+     * @return the number of matches.
+     * @throws IOException if the source could not be read.
+     */
+    public long findMatches(Reader source) throws IOException {
+        return findMatches(source, matchMode, skipMatching, leading, following);
+    }
+
+    /**
+     * Find matches in the given stream, using the given mode to handle multiple matches. The semantics are the same
+     * as for {@link #findMatches(String, MATCH_MODE, boolean, char, char)} and the offsets given to
+     * {@link #callback(CharSequence, long, Object)} are relative to the start of the stream.
+     * The stream is processed in a single pass and is not closed.
+     * @param source a character stream which will be searched for verbatims.
+     * @param mode   how to handle multiple matches.
+     * @param skipMatching if true, the sliding window matcher is moved to the position immediately after the last
+     *                     match, when a match is made. If false, it is moved a single character after each match
+     *                     attempt.
+     * @param leading If not 0, this character must be present just before matches,
+     *                or the match must be at position 0 of the input.
+     * @param following If not 0, this character must be present immediately after matches,
+     *                  or the match must be at the very end of the input.
+     * @return the number of matches.
+     * @throws IOException if the source could not be read.
+     */
+    public long findMatches(Reader source, MATCH_MODE mode, boolean skipMatching, char leading, char following)
+            throws IOException {
+        VerbatimTrie<P> trie = freeze();
+        SourceWindow window = new SourceWindow(source);
+        long matches = 0;
+        char previous = 0;
+        while (window.ensure(1)) {
+            // char before current pos must be == leading
+            if (window.position != 0 && leading != 0 && previous != leading) {
+                previous = window.advance(1);
+                continue;
+            }
+            int found = matchAt(trie, window.buffer, 0, window, window.position, mode, following);
+            matches += found;
+            previous = window.advance(skipMatching && found > 0 ? Math.max(1, lastMatchLength) : 1);
+        }
+        return matches;
+    }
+
+    /**
+     * Sliding window on a character stream. The window is extended on demand.
+     */
+    private static class SourceWindow {
+        private final Reader source;
+        private final CircularCharBuffer buffer = new CircularCharBuffer(BLOCK_SIZE, Integer.MAX_VALUE);
+        /** The position of the first char in the buffer, relative to the start of the source. */
+        private long position = 0;
+        private boolean eof = false;
+
+        private SourceWindow(Reader source) {
+            this.source = source;
+        }
+
+        /**
+         * @param chars the wanted number of chars in the window.
+         * @return true if the window holds at least the given number of chars.
+         * @throws IOException if the source could not be read.
+         */
+        private boolean ensure(int chars) throws IOException {
+            while (buffer.size() < chars && !eof) {
+                if (buffer.fill(source, BLOCK_SIZE) == -1) {
+                    eof = true;
+                }
+            }
+            return buffer.size() >= chars;
+        }
+
+        /**
+         * @param chars the number of chars to move the window. Must be available in the window.
+         * @return the last char that was moved past.
+         * @throws IOException if the source could not be read.
+         */
+        private char advance(int chars) throws IOException {
+            char last = buffer.charAt(chars - 1);
+            buffer.skip(chars);
+            position += chars;
+            return last;
+        }
+    }
+
+    /**
+     * Reusable view of a part of a CharSequence, used for callbacks.
+     */
+    private static class MatchView implements CharSequence {
+        private CharSequence source;
+        private int start;
+        private int length;
+
+        private void set(CharSequence source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.length = end - start;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index " + index + " is outside of [0, " + length + ")");
+            }
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return source.subSequence(this.start + start, this.start + end);
+        }
+
+        @Override
+        public String toString() {
+            return source.subSequence(start, start + length).toString();
+        }
+    }
+
     public int findMatches(String source, Pattern delimiter) {
         int matches = 0;
         Matcher delimitMatcher = delimiter.matcher(source);
         boolean first = true;
         while (delimitMatcher.find()) {
             if (first && !(delimitMatcher.start() == 0)) {
-                matches += tree.findMatches(source, 0, matchMode);
+                matches += matchAt(freeze(), source, 0, matchMode, following);
             }
             first = false;
-            matches += tree.findMatches(source, delimitMatcher.end(), matchMode);
+            matches += matchAt(freeze(), source, delimitMatcher.end(), matchMode, following);
         }
         return matches;
     }
 
     public void addRule(String verbatim) {
-        tree.addRule(verbatim);
+        getTree().addRule(verbatim);
     }
 
     public void addRule(String verbatim, P payload) {
-        tree.addRule(verbatim, payload);
+        getTree().addRule(verbatim, payload);
     }
 
     public void addRules(String... verbatims) {
         for (String verbatim: verbatims) {
-            tree.addRule(verbatim);
+            getTree().addRule(verbatim);
+        }
+    }
+
+    private Node getTree() {
+        if (tree == null) {
+            throw new IllegalStateException("The matcher is based on a frozen VerbatimTrie and cannot be modified");
         }
+        return tree;
     }
 
     public void setMatchMode(MATCH_MODE matchMode) {
@@ -146,12 +451,12 @@ public abstract class VerbatimMatcher<P> {
         return getNode(verbatim, false);
     }
     public Node getNode(String verbatim, boolean autoCreate) {
-        Node node = tree.getNode(verbatim, -1);
+        Node node = getTree().getNode(verbatim, -1);
         if (node != null || !autoCreate) {
             return node;
         }
         addRule(verbatim);
-        node = tree.getNode(verbatim);
+        node = getTree().getNode(verbatim);
         if (node == null) {
             throw new IllegalStateException(
                     "Logic error: Just added node for '" + verbatim + "' but could not extract it");
@@ -212,6 +517,7 @@ public abstract class VerbatimMatcher<P> {
             addChild(key, -1, payload);
         }
         private void addChild(String s, final int index, P payload) {
+            trie = null;
             // End reached, mark as end point
             if (index+1 == s.length()) {
                 endpoint = true;
@@ -252,37 +558,33 @@ public abstract class VerbatimMatcher<P> {
             return findMatches(buffer, start, matchMode, following);
         }
         public int findMatches(CharSequence buffer, final int start, MATCH_MODE matchMode, char following) {
-            MatchCallback mc;
-            switch (matchMode) {
-                case all:
-                    mc = new MatchCallback();
-                    break;
-                case shortest:
-                case longest:
-                    mc = new MatchCallbackSorted(matchMode == MATCH_MODE.shortest);
+            MatchCallback mc = createCallback(matchMode);
+            mc.reset(buffer, 0);
+            // Iterative walk down the tree from start
+            Node node = this;
+            int index = start;
+            while (true) {
+                boolean hasNext = index < buffer.length();
+                if (node.endpoint && (following == 0 || !hasNext || buffer.charAt(index) == following)) {
+                    mc.callback(buffer, start, index, node.payload);
+                }
+                if (!hasNext || (node = node.getChild(buffer.charAt(index))) == null) {
                     break;
-                default: throw new UnsupportedOperationException("The MATCH_MODE " + matchMode + " is unsupported");
+                }
+                index++;
             }
-            findAll(buffer, start, start-1, mc, following);
             mc.close();
             return mc.matchCount;
         }
 
-        private void findAll(
-                CharSequence buffer, final int start, final int index, MatchCallback matchCallback, char following) {
-            if (endpoint) {
-                if (following == 0 || index == buffer.length()-1 || buffer.charAt(index+1) == following) {
-                    matchCallback.callback(buffer.subSequence(start, index + 1).toString(), payload);
-                }
-            }
-
-            if (index+1 >= buffer.length()) {
-                return;
-            }
-
-            Node child = getChild(buffer.charAt(index+1));
-            if (child != null) {
-                child.findAll(buffer, start, index + 1, matchCallback, following);
+        private MatchCallback createCallback(MATCH_MODE matchMode) {
+            switch (matchMode) {
+                case all:
+                    return new MatchCallback();
+                case shortest:
+                case longest:
+                    return new MatchCallbackSorted(matchMode == MATCH_MODE.shortest);
+                default: throw new UnsupportedOperationException("The MATCH_MODE " + matchMode + " is unsupported");
             }
         }
 
@@ -299,6 +601,7 @@ public abstract class VerbatimMatcher<P> {
         }
 
         public void setPayload(P payload) {
+            trie = null;
             this.payload = payload;
         }
 
@@ -313,8 +616,20 @@ public abstract class VerbatimMatcher<P> {
 
         public class MatchCallback {
             public int matchCount = 0;
-            public void callback(String match, P payload) {
-                VerbatimMatcher.this.indirectCallback(match, payload);
+            /** The offset of the buffer in the full source. */
+            protected long base = 0;
+
+            /**
+             * Prepare the callback for a new match attempt.
+             * @param buffer the buffer for the match attempt.
+             * @param base   the offset of the buffer in the full source.
+             */
+            public void reset(CharSequence buffer, long base) {
+                matchCount = 0;
+                this.base = base;
+            }
+            public void callback(CharSequence buffer, int start, int end, P payload) {
+                VerbatimMatcher.this.indirectCallback(buffer, start, end, base, payload);
                 matchCount++;
             }
             public void close() {
@@ -324,7 +639,9 @@ public abstract class VerbatimMatcher<P> {
 
         public class MatchCallbackSorted extends MatchCallback {
             private final boolean shortest;
-            public String lastMatch = null;
+            private CharSequence lastBuffer = null;
+            private int lastStart = -1;
+            private int lastEnd = -1;
             public P lastPayload = null;
 
             public MatchCallbackSorted(boolean shortest) {
@@ -332,19 +649,28 @@ public abstract class VerbatimMatcher<P> {
             }
 
             @Override
-            public void callback(String match, P payload) {
-                if (lastMatch == null ||
-                    (shortest && match.length() < lastMatch.length()) ||
-                    (!shortest && match.length() > lastMatch.length())) {
-                    lastMatch = match;
+            public void reset(CharSequence buffer, long base) {
+                super.reset(buffer, base);
+                lastBuffer = null;
+                lastPayload = null;
+            }
+
+            @Override
+            public void callback(CharSequence buffer, int start, int end, P payload) {
+                if (lastBuffer == null ||
+                    (shortest && end - start < lastEnd - lastStart) ||
+                    (!shortest && end - start > lastEnd - lastStart)) {
+                    lastBuffer = buffer;
+                    lastStart = start;
+                    lastEnd = end;
                     lastPayload = payload;
                     matchCount = 1;
                 }
             }
             @Override
             public void close() {
-                if (lastMatch != null) {
-                    VerbatimMatcher.this.indirectCallback(lastMatch, lastPayload);
+                if (lastBuffer != null) {
+                    VerbatimMatcher.this.indirectCallback(lastBuffer, lastStart, lastEnd, base, lastPayload);
                 }
             }
         }
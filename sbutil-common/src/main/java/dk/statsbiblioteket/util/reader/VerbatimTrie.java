@@ -0,0 +1,176 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Arrays;
+
+/**
+ * Immutable and compact representation of the verbatims and payloads of a
+ * {@link VerbatimMatcher}, created with {@link VerbatimMatcher#freeze()}.
+ *
+ * The nodes of the trie are numbered in breadth first order, so that the
+ * children of any node are stored next to each other, sorted by char. A node
+ * is represented by its entries in three arrays: The char leading to the
+ * node, the index of its first child and the index of its payload. Lookup of
+ * a child is a binary search among the children, except for the root which
+ * uses a direct table if it has many children.
+ *
+ * As the trie is immutable, it can be shared between threads. Each thread
+ * should create its own {@link VerbatimMatcher} with
+ * {@link VerbatimMatcher#VerbatimMatcher(VerbatimTrie)} to hold the state
+ * of the searches.
+ *
+ * @param <P> the type of the payloads.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "agent")
+public final class VerbatimTrie<P> {
+    /** The root is always node 0. */
+    public static final int ROOT = 0;
+    /** Returned by {@link #getChild(int, char)} if there is no child. */
+    public static final int NO_NODE = -1;
+    /** The root uses a direct lookup table if it has at least this number of children. */
+    private static final int ROOT_TABLE_LIMIT = 64;
+
+    /** The char leading to each node. */
+    private final char[] labels;
+    /** The index of the first child of each node. Has an extra entry at the end. */
+    private final int[] childStart;
+    /** The index into payloads for endpoints, -1 for other nodes. */
+    private final int[] payloadIndex;
+    private final Object[] payloads;
+    /** Direct child lookup for the root, null if the root has few children. */
+    private final int[] rootTable;
+
+    /**
+     * The arrays are used directly and must not be modified afterwards.
+     *
+     * @param labels       the char leading to each node, in breadth first order.
+     * @param childStart   the index of the first child of each node, plus an
+     *                     extra entry with the number of nodes.
+     * @param payloadIndex the index into payloads for endpoints, else -1.
+     * @param payloads     the payloads for the endpoints.
+     */
+    VerbatimTrie(char[] labels, int[] childStart, int[] payloadIndex, Object[] payloads) {
+        this.labels = labels;
+        this.childStart = childStart;
+        this.payloadIndex = payloadIndex;
+        this.payloads = payloads;
+        int rootChildren = childStart[1] - childStart[0];
+        if (rootChildren >= ROOT_TABLE_LIMIT) {
+            rootTable = new int[Character.MAX_VALUE + 1];
+            Arrays.fill(rootTable, NO_NODE);
+            for (int child = childStart[0]; child < childStart[1]; child++) {
+                rootTable[labels[child]] = child;
+            }
+        } else {
+            rootTable = null;
+        }
+    }
+
+    /**
+     * @param node the node to get the child from.
+     * @param c    the char leading to the child.
+     * @return the child or {@link #NO_NODE} if there is no child for c.
+     */
+    public int getChild(int node, char c) {
+        if (node == ROOT && rootTable != null) {
+            return rootTable[c];
+        }
+        int low = childStart[node];
+        int high = childStart[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = labels[mid];
+            if (label < c) {
+                low = mid + 1;
+            } else if (label > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NO_NODE;
+    }
+
+    /**
+     * @param node a node in the trie.
+     * @return true if the path to the node is a verbatim.
+     */
+    public boolean isEndpoint(int node) {
+        return payloadIndex[node] != -1;
+    }
+
+    /**
+     * @param node a node in the trie.
+     * @return the payload for the node. Might be null.
+     */
+    @SuppressWarnings("unchecked")
+    public P getPayload(int node) {
+        int index = payloadIndex[node];
+        return index == -1 ? null : (P) payloads[index];
+    }
+
+    /**
+     * @param verbatim a verbatim to look up.
+     * @return the node for the verbatim or {@link #NO_NODE} if the verbatim
+     *         is not in the trie.
+     */
+    public int getNode(String verbatim) {
+        int node = ROOT;
+        for (int i = 0; i < verbatim.length() && node != NO_NODE; i++) {
+            node = getChild(node, verbatim.charAt(i));
+        }
+        return node != NO_NODE && isEndpoint(node) ? node : NO_NODE;
+    }
+
+    /**
+     * @param verbatim a verbatim to look up.
+     * @return true if the verbatim is in the trie.
+     */
+    public boolean contains(String verbatim) {
+        return getNode(verbatim) != NO_NODE;
+    }
+
+    /**
+     * @return the number of verbatims in the trie.
+     */
+    public int size() {
+        return payloads.length;
+    }
+
+    /**
+     * @return the number of nodes in the trie, including the root.
+     */
+    public int getNodeCount() {
+        return labels.length;
+    }
+
+    @Override
+    public String toString() {
+        return "VerbatimTrie(verbatims=" + size() + ", nodes=" + getNodeCount() + ")";
+    }
+}
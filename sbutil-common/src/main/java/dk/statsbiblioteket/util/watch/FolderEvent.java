@@ -48,10 +48,14 @@ public class FolderEvent {
      * null.
      * watchedCreated: The watched folder was created. The changelist will
      * contain the contents of the folder.
+     * modified:       The size or modification time of the files in the
+     * changelist has changed. Only sent if enabled with
+     * {@link FolderWatcher#setReportModified(boolean)}.
      */
     public enum EventType {
         added, removed,
-        watchedRemoved, watchedCreated
+        watchedRemoved, watchedCreated,
+        modified
     }
 
     private File watchedFolder;
@@ -81,6 +85,7 @@ public class FolderEvent {
         switch (eventType) {
             case added:
             case removed:
+            case modified:
                 return eventType + " " + Logs.expand(changeList, 10);
             case watchedRemoved:
                 return "removed '" + watchedFolder + "'";
@@ -33,15 +33,48 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Watches folders for content changes, the notifies listeners about these
  * changes. A grace-period can be set: If one or more files are added, the
  * watcher waits a little bit, then checks the file sizes for the added files.
  * If the files have grown, the watcher waits again and so on.
+ *
+ * If supported by the file system, changes are detected with a
+ * {@link WatchService}, which delivers events within milliseconds and has
+ * practically no cost when nothing happens. The full content of the folder is
+ * only listed when the watcher is created, when the watched folder is created
+ * and when the WatchService reports an overflow. If the WatchService is not
+ * available, the watcher falls back to listing the content every pollInterval
+ * seconds.
+ *
+ * Events are delivered asynchronously, with a queue and a thread for each
+ * listener, so that a slow listener does not delay detection of changes or
+ * delivery to other listeners. If a listener falls behind, consecutive queued
+ * events of the same type are merged into one. If the queue for a listener is
+ * full anyway, the watcher waits for the listener.
  */
 // TODO: Wait until all files have been copied into the changing folder, before notifying
 @QAInfo(state = QAInfo.State.QA_NEEDED,
@@ -52,12 +85,35 @@ public class FolderWatcher extends Observable<FolderListener> implements
     protected static Log log = LogFactory.getLog(FolderWatcher.class);
 
     protected File watchedFolder;
+    /**
+     * The content at the last listing. When changes are detected with a
+     * WatchService, this is only updated on full listings.
+     */
     protected List<File> oldContent;
     private int pollInterval;
-    private boolean watch = true;
+    private volatile boolean watch = true;
+
+    /** Null if changes are detected by polling. */
+    private WatchService watchService = null;
+    /** Null if the watched folder does not exist. */
+    private WatchKey watchKey = null;
+    /** The current content of the watched folder. */
+    private Set<File> known = null;
+
+    /** The maximum number of queued events for a listener. */
+    public static final int LISTENER_QUEUE_SIZE = 100;
+    private final Map<FolderListener, Delivery> deliveries =
+            new IdentityHashMap<FolderListener, Delivery>();
+
+    private volatile boolean reportModified = false;
+    /**
+     * The size and modification time of the known files. Null if modified
+     * files are not reported.
+     */
+    private Map<File, long[]> attributes = null;
 
     // Waits 200 ms before notifying of additions
-    private static final int DEFAULT_GRACE = 200;
+    protected static final int DEFAULT_GRACE = 200;
     private int grace;
 
     /**
@@ -91,13 +147,57 @@ public class FolderWatcher extends Observable<FolderListener> implements
      */
     public FolderWatcher(File watchedFolder, int pollInterval, int grace) throws
                                                                           IOException {
+        this(watchedFolder, pollInterval, grace, true);
+        start();
+    }
+
+    /**
+     * Create a watcher for the given watchedFolder, as described in
+     * {@link #FolderWatcher(File, int, int)}.
+     *
+     * @param watchedFolder   the folder to watch for changes.
+     * @param pollInterval    how often, in seconds, to check for changes.
+     *                        If a WatchService is used, this is only used for
+     *                        checking whether a non-existing watched folder
+     *                        has been created.
+     * @param grace           the grace period for addition notifications.
+     * @param useWatchService if true, a WatchService is used if possible.
+     *                        If false, changes are always detected by polling.
+     *                        Watching does not begin until {@link #start()}
+     *                        is called.
+     * @throws IOException if the content of the watched folder could not be
+     *                     determined.
+     */
+    protected FolderWatcher(File watchedFolder, int pollInterval, int grace,
+                            boolean useWatchService) throws IOException {
         log.debug("Creating watcher for folder '" + watchedFolder
                   + "' with an interval of " + pollInterval + " seconds and a "
                   + "grace period of " + grace + "ms");
         this.watchedFolder = watchedFolder;
         this.pollInterval = pollInterval;
         this.grace = grace;
+        if (useWatchService) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                log.warn("Unable to create WatchService for folder '"
+                         + watchedFolder + "'. Falling back to polling", e);
+            } catch (UnsupportedOperationException e) {
+                log.warn("WatchService not supported for folder '"
+                         + watchedFolder + "'. Falling back to polling", e);
+            }
+        }
+        // Register before listing to avoid missing changes in between
+        register();
         oldContent = getContent();
+        known = oldContent == null ? null : new HashSet<File>(oldContent);
+    }
+
+    /**
+     * Starts the watcher thread. Subclasses must call this at the end of their
+     * constructors when using the protected constructor.
+     */
+    protected void start() {
         Thread thread = new Thread(this);
         thread.setDaemon(true); // Allow the JVm to exit
         thread.start();
@@ -120,27 +220,318 @@ public class FolderWatcher extends Observable<FolderListener> implements
         return Arrays.asList(content);
     }
 
+    /**
+     * Starts watching the watched folder for changes, if it exists.
+     */
+    private void register() throws IOException {
+        if (watchService == null || !watchedFolder.isDirectory()) {
+            return;
+        }
+        watchKey = watchedFolder.toPath().register(
+                watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Enables or disables {@link FolderEvent.EventType#modified} events for
+     * files where the size or the modification time changes. Default is
+     * disabled. When polling, enabling this means that the size and
+     * modification time of all files are checked on every poll.
+     *
+     * @param reportModified if true, modified events are sent.
+     */
+    public void setReportModified(boolean reportModified) {
+        this.reportModified = reportModified;
+    }
+
+    public boolean isReportModified() {
+        return reportModified;
+    }
+
+    /**
+     * Creates or discards the attributes for the known files, depending on
+     * {@link #reportModified}. Called from the watcher thread.
+     */
+    private void syncAttributes() {
+        if (reportModified && attributes == null) {
+            attributes = new HashMap<File, long[]>();
+            if (known != null) {
+                for (File file : known) {
+                    updateAttributes(file);
+                }
+            }
+        } else if (!reportModified) {
+            attributes = null;
+        }
+    }
+
+    /**
+     * Records the current size and modification time of the file.
+     *
+     * @param file a file in the watched folder.
+     * @return true if the size or modification time was previously recorded
+     *         and has changed.
+     */
+    private boolean updateAttributes(File file) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        long[] previous = attributes.put(file, new long[]{length, lastModified});
+        return previous != null
+               && (previous[0] != length || previous[1] != lastModified);
+    }
+
+    /**
+     * @return true if changes are detected with a WatchService, false if
+     *         changes are detected by polling.
+     */
+    public boolean isEventBased() {
+        return watchService != null;
+    }
+
     public synchronized void run() {
+        if (watchService != null) {
+            listen();
+        } else {
+            poll();
+        }
+    }
+
+    private void listen() {
+        try {
+            while (watch) {
+                try {
+                    syncAttributes();
+                    if (watchKey == null) {
+                        waitForWatchedFolder();
+                    } else {
+                        processEvents(watchService.take());
+                    }
+                } catch (IOException e) {
+                    log.error("An I/O exception occured when processing "
+                              + "changes for folder '" + watchedFolder
+                              + "'. Watching continues", e);
+                } catch (InterruptedException e) {
+                    log.warn("Waiting for changes to folder '" + watchedFolder
+                             + "' was interrupted", e);
+                }
+            }
+            log.debug("Stopping watching '" + watchedFolder + "'");
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Stopping watching '" + watchedFolder
+                      + "' as the WatchService was closed");
+        } catch (Exception e) {
+            log.error("an unexpected exception occured while watching folder '"
+                      + watchedFolder + "'. Watcher is closing down", e);
+        }
+    }
+
+    /**
+     * Waits pollInterval seconds, then checks if the watched folder has been
+     * created.
+     */
+    private void waitForWatchedFolder()
+            throws InterruptedException, IOException {
+        wait(pollInterval * 1000);
+        if (!watchedFolder.isDirectory()) {
+            return;
+        }
+        register();
+        List<File> content = getContent();
+        if (content == null) { // Removed again
+            return;
+        }
+        oldContent = content;
+        known = new HashSet<File>(content);
+        if (attributes != null) {
+            attributes.clear();
+            syncAttributes();
+        }
+        alert(content, FolderEvent.EventType.watchedCreated);
+    }
+
+    /**
+     * Updates the known content from the events for the key and alerts the
+     * listeners. If the events overflowed, the full content is listed instead.
+     */
+    private void processEvents(WatchKey key)
+            throws IOException, InterruptedException {
+        Set<File> added = new LinkedHashSet<File>();
+        Set<File> removed = new LinkedHashSet<File>();
+        Set<File> changed = new LinkedHashSet<File>();
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            File file = watchedFolder.toPath().resolve(
+                    (Path) event.context()).toFile();
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                if (known.add(file) && !removed.remove(file)) {
+                    added.add(file);
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                if (known.remove(file) && !added.remove(file)) {
+                    removed.add(file);
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                changed.add(file);
+            }
+        }
+        if (!key.reset()) { // The watched folder is no longer accessible
+            watchKey = null;
+            if (!removed.isEmpty()) {
+                alert(sorted(removed), FolderEvent.EventType.removed);
+            }
+            known = null;
+            oldContent = null;
+            if (attributes != null) {
+                attributes.clear();
+            }
+            alert(null, FolderEvent.EventType.watchedRemoved);
+            return;
+        }
+        if (overflow) {
+            log.debug("Events overflowed for folder '" + watchedFolder
+                      + "'. Listing the full content");
+            List<File> content = getContent();
+            if (content == null) { // The key will be invalid on next event
+                return;
+            }
+            Set<File> current = new HashSet<File>(content);
+            added.clear();
+            added.addAll(subtract(content, known));
+            removed.clear();
+            removed.addAll(subtract(known, current));
+            changed.clear();
+            if (attributes != null) {
+                changed.addAll(content);
+            }
+            known = current;
+            oldContent = content;
+        }
+        if (!added.isEmpty()) {
+            List<File> addedList = sorted(added);
+            waitForStableSizes(addedList);
+            alert(addedList, FolderEvent.EventType.added);
+        }
+        alertModifiedAndRemoved(added, changed, removed);
+    }
+
+    /**
+     * Alerts listeners of files that are modified since their attributes
+     * were last recorded and of removed files. Attributes for the added files
+     * are recorded.
+     *
+     * @param added    files that have been reported as added.
+     * @param changed  candidates for modified files.
+     * @param removed  removed files.
+     */
+    private void alertModifiedAndRemoved(
+            Collection<File> added, Collection<File> changed,
+            Collection<File> removed) {
+        if (attributes != null) {
+            for (File file : removed) {
+                attributes.remove(file);
+            }
+            for (File file : added) {
+                updateAttributes(file);
+            }
+            List<File> modified = new ArrayList<File>();
+            for (File file : changed) {
+                if (!added.contains(file) && known.contains(file)
+                    && updateAttributes(file)) {
+                    modified.add(file);
+                }
+            }
+            if (!modified.isEmpty()) {
+                alert(sorted(modified), FolderEvent.EventType.modified);
+            }
+        }
+        if (!removed.isEmpty()) {
+            alert(sorted(removed), FolderEvent.EventType.removed);
+        }
+    }
+
+    /**
+     * @return the files in all that are not in exclude, in the order of all.
+     */
+    private static List<File> subtract(Collection<File> all,
+                                       Set<File> exclude) {
+        List<File> result = new ArrayList<File>();
+        for (File file : all) {
+            if (!exclude.contains(file)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits until the sizes of the given files are the same for two
+     * consecutive checks, grace ms apart.
+     */
+    private void waitForStableSizes(List<File> files) {
+        if (grace == 0) {
+            return;
+        }
+        long lastSize = -1;
+        long currentSize = addSizes(files);
+        while (lastSize != currentSize) {
+            try {
+                Thread.sleep(grace);
+            } catch (InterruptedException e) {
+                log.warn("Sleeping grace " + grace + "ms was interrupted", e);
+            }
+            lastSize = currentSize;
+            currentSize = addSizes(files);
+        }
+    }
+
+    private List<File> sorted(Collection<File> files) {
+        List<File> list = new ArrayList<File>(files);
+        Collections.sort(list);
+        return list;
+    }
+
+    private void poll() {
         try {
             while (watch) {
                 try {
+                    syncAttributes();
                     List<File> newContent = getContent();
                     if (oldContent == null && newContent != null) {
+                        known = new HashSet<File>(newContent);
+                        if (attributes != null) {
+                            attributes.clear();
+                            syncAttributes();
+                        }
                         alert(newContent, FolderEvent.EventType.watchedCreated);
                     } else if (oldContent != null && newContent == null) {
+                        known = null;
+                        if (attributes != null) {
+                            attributes.clear();
+                        }
                         alert(newContent, FolderEvent.EventType.watchedRemoved);
                     } else if (oldContent != null & newContent != null) {
-                        List<File> added = new ArrayList<File>(newContent);
-                        added.removeAll(oldContent);
+                        List<File> added = subtract(newContent, known);
                         if (added.size() > 0) {
-                            alert(getStableContent(oldContent),
-                                  FolderEvent.EventType.added);
-                        }
-                        List<File> removed = new ArrayList<File>(oldContent);
-                        removed.removeAll(newContent);
-                        if (removed.size() > 0) {
-                            alert(removed, FolderEvent.EventType.removed);
+                            newContent = getStableContent(newContent);
+                            added = subtract(newContent, known);
+                            if (added.size() > 0) {
+                                alert(added, FolderEvent.EventType.added);
+                            }
                         }
+                        Set<File> current = new HashSet<File>(newContent);
+                        List<File> removed = subtract(known, current);
+                        known = current;
+                        alertModifiedAndRemoved(
+                                new HashSet<File>(added),
+                                attributes == null ?
+                                Collections.<File>emptyList() : newContent,
+                                removed);
                     }
                     oldContent = newContent;
                 } catch (IOException e) {
@@ -165,31 +556,33 @@ public class FolderWatcher extends Observable<FolderListener> implements
     /**
      * Wait until the added files has stabilized.
      *
-     * @param oldContent the old content of the folder.
-     * @return the added files when the list is deemed stable.
+     * @param content the current content of the folder.
+     * @return the content of the folder when the added files are deemed
+     *         stable.
      * @throws java.io.IOException if the content could not be determined.
      */
-    private List<File> getStableContent(List<File> oldContent) throws
-                                                               IOException {
-        List<File> added = new ArrayList<File>(getContent());
-        added.removeAll(oldContent);
+    private List<File> getStableContent(List<File> content) throws
+                                                            IOException {
         if (grace == 0) {
-            return added;
+            return content;
         }
         long lastSize = -1;
-        long currentSize = addSizes(added);
+        long currentSize = addSizes(subtract(content, known));
         while (lastSize != currentSize) {
             try {
                 Thread.sleep(grace);
             } catch (InterruptedException e) {
                 log.warn("Sleeping grace " + grace + "ms was interrupted", e);
             }
-            added = new ArrayList<File>(getContent());
-            added.removeAll(oldContent);
+            List<File> newContent = getContent();
+            if (newContent == null) { // Handled on next poll
+                return content;
+            }
+            content = newContent;
             lastSize = currentSize;
-            currentSize = addSizes(added);
+            currentSize = addSizes(subtract(content, known));
         }
-        return added;
+        return content;
     }
 
     private long addSizes(List<File> files) {
@@ -208,12 +601,47 @@ public class FolderWatcher extends Observable<FolderListener> implements
     }
 
 
-    private void alert(List<File> content, FolderEvent.EventType eventType) {
+    /**
+     * Queues the event for delivery to all listeners.
+     */
+    protected void alert(List<File> content, FolderEvent.EventType eventType) {
         log.trace("Alerting " + getListeners().size() + " listeners of event "
                   + eventType + " for folder '" + watchedFolder + "'");
         FolderEvent event = new FolderEvent(watchedFolder, content, eventType);
-        for (FolderListener listener : getListeners()) {
-            listener.folderChanged(event);
+        // Offering can block on a full queue, so it is done outside of the lock, which is needed by close()
+        List<Delivery> targets = new ArrayList<Delivery>();
+        synchronized (deliveries) {
+            List<FolderListener> listeners = getListeners();
+            // Stop delivery to removed listeners
+            for (Iterator<Map.Entry<FolderListener, Delivery>> it =
+                    deliveries.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<FolderListener, Delivery> entry = it.next();
+                if (!listeners.contains(entry.getKey())) {
+                    entry.getValue().close();
+                    it.remove();
+                }
+            }
+            for (FolderListener listener : listeners) {
+                Delivery delivery = deliveries.get(listener);
+                if (delivery == null) {
+                    delivery = new Delivery(listener, LISTENER_QUEUE_SIZE);
+                    deliveries.put(listener, delivery);
+                    Thread thread = new Thread(
+                            delivery, "FolderWatcher delivery for '"
+                                      + watchedFolder + "'");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                targets.add(delivery);
+            }
+        }
+        for (Delivery delivery : targets) {
+            try {
+                delivery.offer(event);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while queueing " + event
+                         + " for " + delivery.listener + ". The event is lost", e);
+            }
         }
     }
 
@@ -223,6 +651,20 @@ public class FolderWatcher extends Observable<FolderListener> implements
     public void close() {
         log.trace("close called for folder '" + watchedFolder + "'");
         watch = false;
+        synchronized (deliveries) {
+            for (Delivery delivery : deliveries.values()) {
+                delivery.close();
+            }
+            deliveries.clear();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Exception closing the WatchService for folder '"
+                         + watchedFolder + "'", e);
+            }
+        }
     }
 
     /* Getters */
@@ -234,6 +676,17 @@ public class FolderWatcher extends Observable<FolderListener> implements
         return pollInterval;
     }
 
+    public int getGrace() {
+        return grace;
+    }
+
+    /**
+     * @return true until {@link #close()} has been called.
+     */
+    protected boolean isWatching() {
+        return watch;
+    }
+
 
     public void addFolderListener(FolderListener listener) {
         addListener(listener);
@@ -243,4 +696,107 @@ public class FolderWatcher extends Observable<FolderListener> implements
         removeListener(listener);
     }
 
+    /**
+     * Bounded queue of events for a single listener, delivered by a
+     * dedicated thread. If the last queued event has the same type as a new
+     * event, the new event is merged into the queued one.
+     */
+    private static final class Delivery implements Runnable {
+        private final FolderListener listener;
+        private final int capacity;
+        private final Deque<FolderEvent> queue = new ArrayDeque<FolderEvent>();
+        private boolean closed = false;
+
+        private Delivery(FolderListener listener, int capacity) {
+            this.listener = listener;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Queues the event, waiting for space if the queue is full. Events
+         * offered after {@link #close()} are dropped, as the delivery thread
+         * might have stopped.
+         */
+        public synchronized void offer(FolderEvent event)
+                throws InterruptedException {
+            if (closed) {
+                dropClosed(event);
+                return;
+            }
+            FolderEvent last = queue.peekLast();
+            if (last != null && isMergeable(last, event)) {
+                Set<File> merged = new TreeSet<File>(last.getChangeList());
+                merged.addAll(event.getChangeList());
+                queue.pollLast();
+                queue.addLast(new FolderEvent(
+                        event.getWatchedFolder(), new ArrayList<File>(merged),
+                        event.getEventType()));
+                return;
+            }
+            while (queue.size() >= capacity && !closed) {
+                wait();
+            }
+            if (closed) {
+                dropClosed(event);
+                return;
+            }
+            queue.addLast(event);
+            notifyAll();
+        }
+
+        private void dropClosed(FolderEvent event) {
+            log.debug("Dropping " + event + " for " + listener
+                      + " as delivery has been closed");
+        }
+
+        private boolean isMergeable(FolderEvent last, FolderEvent event) {
+            if (last.getEventType() != event.getEventType()) {
+                return false;
+            }
+            switch (event.getEventType()) {
+                case added:
+                case removed:
+                case modified:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Stops the delivery when the queued events have been delivered.
+         */
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                FolderEvent event;
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            log.warn("Interrupted while waiting for events "
+                                     + "for " + listener, e);
+                        }
+                    }
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    event = queue.pollFirst();
+                    notifyAll();
+                }
+                try {
+                    listener.folderChanged(event);
+                } catch (Exception e) {
+                    log.error("Exception delivering " + event + " to "
+                              + listener + ". Delivery continues", e);
+                }
+            }
+        }
+    }
 }
@@ -4,19 +4,64 @@ import dk.statsbiblioteket.util.Strings;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An extension of {@link FolderWatcher} that will monitor all files in
  * directory, recursively, to a configurable depth.
+ *
+ * The watcher keeps a snapshot of every directory in the tree. If possible,
+ * each directory is registered with a {@link WatchService} and only the
+ * directories that the WatchService reports changes for are listed again.
+ * If not, the modification times of the directories are polled every
+ * pollInterval seconds and only the directories with changed modification
+ * times are listed again.
+ *
+ * Added files are reported when their size and modification time have been
+ * unchanged for the grace period. Stability is tracked for each file, so a
+ * large file being copied does not delay the reporting of other files.
  */
 public class RecursiveFolderWatcher extends FolderWatcher {
+    /**
+     * Directories modified less than this number of ms before they were
+     * listed are checked again on next poll, as file systems with coarse
+     * modification times might not reflect later changes.
+     */
+    private static final long MODIFICATION_TIME_SLACK = 2000;
 
     protected int depth;
 
+    /** Snapshots of the directories in the watched tree. */
+    private final Map<File, Directory> directories =
+            new HashMap<File, Directory>();
+    /**
+     * Added files that have not been reported yet, with their size,
+     * modification time and the time of the check.
+     */
+    private final Map<File, long[]> unstable =
+            new LinkedHashMap<File, long[]>();
+    /** Null if changes are detected by polling. */
+    private WatchService watchService = null;
+    private final Map<WatchKey, Directory> keys =
+            new HashMap<WatchKey, Directory>();
+
     /**
      * Create a new recursive folder watcher recursing {@code depth} levels
      * into the directory tree of {@code watchedFolder}.
@@ -35,12 +80,47 @@ public class RecursiveFolderWatcher extends FolderWatcher {
     public RecursiveFolderWatcher(File watchedFolder, int depth,
                                   int pollInterval, int grace)
             throws IOException {
-        super(watchedFolder, pollInterval, grace);
-        this.depth = depth;
+        this(watchedFolder, depth, pollInterval, grace, true);
+    }
 
+    /**
+     * Create a new recursive folder watcher, as described in
+     * {@link #RecursiveFolderWatcher(File, int, int, int)}.
+     *
+     * @param watchedFolder   the folder to watch for changes
+     * @param pollInterval    how often, in seconds, to check for changes
+     * @param grace           the grace period for addition notifications
+     * @param depth           the depth in the directory structure to recurse to
+     * @param useWatchService if true, a WatchService is used if possible.
+     *                        If false, changes are always detected by polling.
+     * @throws IOException on errors reading the filesystem
+     */
+    protected RecursiveFolderWatcher(File watchedFolder, int depth,
+                                     int pollInterval, int grace,
+                                     boolean useWatchService)
+            throws IOException {
+        // Directories are registered individually below
+        super(watchedFolder, pollInterval, grace, false);
+        this.depth = depth;
+        if (useWatchService) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                log.warn("Unable to create WatchService for folder '"
+                         + watchedFolder + "'. Falling back to polling", e);
+            } catch (UnsupportedOperationException e) {
+                log.warn("WatchService not supported for folder '"
+                         + watchedFolder + "'. Falling back to polling", e);
+            }
+        }
+        if (watchedFolder.isDirectory()) {
+            add(new Directory(watchedFolder, depth, true),
+                new HashSet<File>(), new HashSet<File>());
+        }
         /* We need to update the oldcontent because it will be calculated
          * with depth=0 in the suprt constructor. Damn Java constructors. */
-        oldContent = getContent();
+        oldContent = getSnapshotContent();
+        start();
     }
 
     /**
@@ -59,12 +139,336 @@ public class RecursiveFolderWatcher extends FolderWatcher {
      */
     public RecursiveFolderWatcher(File watchedFolder, int depth,
                                   int pollInterval) throws IOException {
-        super(watchedFolder, pollInterval);
-        this.depth = depth;
+        this(watchedFolder, depth, pollInterval, DEFAULT_GRACE);
+    }
 
-        /* We need to update the oldcontent because it will be calculated
-         * with depth=0 in the suprt constructor. Damn Java constructors. */
-        oldContent = getContent();
+    @Override
+    public boolean isEventBased() {
+        return watchService != null;
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            while (isWatching()) {
+                try {
+                    Set<File> added = new LinkedHashSet<File>();
+                    Set<File> removed = new LinkedHashSet<File>();
+                    if (!watchedFolder.isDirectory()) {
+                        if (!directories.isEmpty()) {
+                            clearSnapshot();
+                            alert(null, FolderEvent.EventType.watchedRemoved);
+                        }
+                        wait(getPollInterval() * 1000);
+                        continue;
+                    }
+                    if (directories.isEmpty()) {
+                        add(new Directory(watchedFolder, depth, true),
+                            added, removed);
+                        oldContent = getSnapshotContent();
+                        alert(oldContent,
+                              FolderEvent.EventType.watchedCreated);
+                        continue;
+                    }
+                    long timeout = unstable.isEmpty() ?
+                                   getPollInterval() * 1000L :
+                                   Math.min(getGrace(),
+                                            getPollInterval() * 1000L);
+                    if (watchService != null) {
+                        waitForEvents(timeout, added, removed);
+                    } else {
+                        wait(timeout);
+                        pollDirectories(added, removed);
+                    }
+                    if (!watchedFolder.isDirectory()) {
+                        continue; // Handled at the start of the loop
+                    }
+                    List<File> stable = updateStability(added, removed);
+                    if (!stable.isEmpty()) {
+                        alert(stable, FolderEvent.EventType.added);
+                    }
+                    if (!removed.isEmpty()) {
+                        alert(sorted(removed), FolderEvent.EventType.removed);
+                    }
+                } catch (IOException e) {
+                    log.error("An I/O exception occured when checking for "
+                              + "changes for folder '" + watchedFolder
+                              + "'. Watching continues", e);
+                } catch (InterruptedException e) {
+                    log.warn("Waiting for changes to folder '" + watchedFolder
+                             + "' was interrupted", e);
+                }
+            }
+            log.debug("Stopping watching '" + watchedFolder + "'");
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Stopping watching '" + watchedFolder
+                      + "' as the WatchService was closed");
+        } catch (Exception e) {
+            log.error("an unexpected exception occured while watching folder '"
+                      + watchedFolder + "'. Watcher is closing down", e);
+        }
+    }
+
+    /**
+     * Waits for events from the WatchService and lists the directories with
+     * changes.
+     */
+    private void waitForEvents(long timeout, Set<File> added,
+                               Set<File> removed)
+            throws InterruptedException, IOException {
+        WatchKey key = watchService.poll(timeout,
+                                         TimeUnit.MILLISECONDS);
+        while (key != null) {
+            Directory directory = keys.get(key);
+            // The events are only used as a trigger for listing the directory
+            key.pollEvents();
+            if (!key.reset()) {
+                keys.remove(key);
+                if (directory != null) {
+                    directory.key = null;
+                }
+            }
+            if (directory != null
+                && directories.get(directory.folder) == directory) {
+                list(directory, added, removed);
+            }
+            key = watchService == null ? null : watchService.poll();
+        }
+    }
+
+    /**
+     * Lists the directories with changed modification times.
+     */
+    private void pollDirectories(Set<File> added, Set<File> removed)
+            throws IOException {
+        for (Directory directory :
+                new ArrayList<Directory>(directories.values())) {
+            if (directories.get(directory.folder) != directory) {
+                continue; // Removed as part of another directory
+            }
+            if (directory.recheck || directory.folder.lastModified()
+                                     != directory.lastModified) {
+                list(directory, added, removed);
+            }
+        }
+    }
+
+    /**
+     * Adds the directory and its sub directories to the snapshot.
+     * All their content is collected in added.
+     */
+    private void add(Directory directory, Set<File> added, Set<File> removed)
+            throws IOException {
+        directories.put(directory.folder, directory);
+        if (watchService != null) {
+            try {
+                directory.key = directory.folder.toPath().register(
+                        watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                keys.put(directory.key, directory);
+            } catch (IOException e) {
+                log.warn("Unable to register folder '" + directory.folder
+                         + "' with the WatchService. Falling back to polling "
+                         + "for '" + watchedFolder + "'", e);
+                stopWatchService();
+            }
+        }
+        list(directory, added, removed);
+    }
+
+    /**
+     * Removes the directory and its sub directories from the snapshot.
+     * All their content is collected in removed.
+     */
+    private void remove(File folder, Set<File> removed) {
+        Directory directory = directories.remove(folder);
+        if (directory == null) {
+            return;
+        }
+        if (directory.key != null) {
+            keys.remove(directory.key);
+            directory.key.cancel();
+        }
+        removed.addAll(directory.files);
+        for (File sub : directory.subdirectories) {
+            remove(sub, removed);
+        }
+    }
+
+    /**
+     * Lists the content of the directory and updates the snapshot with the
+     * differences. New sub directories are added and gone sub directories
+     * are removed.
+     */
+    private void list(Directory directory, Set<File> added, Set<File> removed)
+            throws IOException {
+        directory.lastModified = directory.folder.lastModified();
+        directory.recheck = System.currentTimeMillis()
+                            - directory.lastModified < MODIFICATION_TIME_SLACK;
+        File[] content = directory.folder.listFiles();
+        if (content == null) {
+            log.trace("Unable to list '" + directory.folder + "'");
+            return; // Removed or unreadable. The parent handles removal
+        }
+        Set<File> files = new HashSet<File>(content.length);
+        Set<File> subdirectories = new HashSet<File>();
+        for (File file : content) {
+            boolean isDirectory = file.isDirectory();
+            if (isDirectory && directory.depth != 0) {
+                subdirectories.add(file);
+            }
+            if (!isDirectory || directory.root) {
+                files.add(file);
+            }
+        }
+        for (File file : files) {
+            if (!directory.files.contains(file)) {
+                added.add(file);
+            }
+        }
+        for (File file : directory.files) {
+            if (!files.contains(file)) {
+                removed.add(file);
+            }
+        }
+        Set<File> oldSubdirectories = directory.subdirectories;
+        directory.files = files;
+        directory.subdirectories = subdirectories;
+        for (File sub : oldSubdirectories) {
+            if (!subdirectories.contains(sub)) {
+                remove(sub, removed);
+            }
+        }
+        for (File sub : subdirectories) {
+            if (!oldSubdirectories.contains(sub)) {
+                add(new Directory(sub, directory.depth < 0 ?
+                                       -1 : directory.depth - 1, false),
+                    added, removed);
+            }
+        }
+    }
+
+    /**
+     * Moves the added files to the unstable files and returns the unstable
+     * files that have had the same size and modification time for at least
+     * the grace period. Files that are removed before they are reported are
+     * silently discarded.
+     *
+     * @return the files that should be reported as added, sorted.
+     */
+    private List<File> updateStability(Set<File> added, Set<File> removed) {
+        if (getGrace() == 0) {
+            return sorted(added);
+        }
+        for (Iterator<File> it = removed.iterator(); it.hasNext();) {
+            File file = it.next();
+            if (unstable.remove(file) != null || added.remove(file)) {
+                it.remove(); // Never reported as added
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (File file : added) {
+            unstable.put(file, new long[]{file.length(), file.lastModified(),
+                                          now});
+        }
+        List<File> stable = new ArrayList<File>();
+        for (Iterator<Map.Entry<File, long[]>> it =
+                unstable.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<File, long[]> entry = it.next();
+            long[] state = entry.getValue();
+            long length = entry.getKey().length();
+            long lastModified = entry.getKey().lastModified();
+            if (length != state[0] || lastModified != state[1]) {
+                state[0] = length;
+                state[1] = lastModified;
+                state[2] = now;
+            } else if (now - state[2] >= getGrace()) {
+                stable.add(entry.getKey());
+                it.remove();
+            }
+        }
+        Collections.sort(stable);
+        return stable;
+    }
+
+    private void clearSnapshot() {
+        for (WatchKey key : keys.keySet()) {
+            key.cancel();
+        }
+        keys.clear();
+        directories.clear();
+        unstable.clear();
+        oldContent = null;
+    }
+
+    private void stopWatchService() {
+        keys.clear();
+        for (Directory directory : directories.values()) {
+            directory.key = null;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Exception closing the WatchService for folder '"
+                     + watchedFolder + "'", e);
+        }
+        watchService = null;
+    }
+
+    /**
+     * @return the content of the snapshot, sorted.
+     */
+    private List<File> getSnapshotContent() {
+        List<File> content = new ArrayList<File>();
+        for (Directory directory : directories.values()) {
+            content.addAll(directory.files);
+        }
+        Collections.sort(content);
+        return content;
+    }
+
+    private static List<File> sorted(Collection<File> files) {
+        List<File> list = new ArrayList<File>(files);
+        Collections.sort(list);
+        return list;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Exception closing the WatchService for folder '"
+                         + watchedFolder + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of a single directory in the watched tree.
+     */
+    private static final class Directory {
+        private final File folder;
+        /** The remaining depth. 0 means no recursion, negative means any. */
+        private final int depth;
+        /** Sub directories are only reported as content for the root. */
+        private final boolean root;
+        private long lastModified = -1;
+        /** If true, the directory is listed on next poll. */
+        private boolean recheck = false;
+        /** The reported content of the directory. */
+        private Set<File> files = new HashSet<File>();
+        /** The sub directories that are part of the watched tree. */
+        private Set<File> subdirectories = new HashSet<File>();
+        private WatchKey key = null;
+
+        private Directory(File folder, int depth, boolean root) {
+            this.folder = folder;
+            this.depth = depth;
+            this.root = root;
+        }
     }
 
     @Override
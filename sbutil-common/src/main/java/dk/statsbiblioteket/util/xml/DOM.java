@@ -28,6 +28,7 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
@@ -36,10 +37,12 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 
 /**
  * Helpers for doing DOM parsing and manipulations. The methods are thread-safe
@@ -57,6 +60,98 @@ public class DOM {
     private static final SynchronousXPathSelector selector =
             new SynchronousXPathSelector(null, 50);
 
+    /*
+     * Factory lookup is expensive (it scans the class path for providers), so
+     * the factories are created once. The factories themselves are not
+     * guaranteed to be thread-safe, so all access is synchronized on them.
+     * The builders and transformers are not thread-safe either and are kept
+     * in thread locals.
+     */
+    private static final DocumentBuilderFactory builderFactory =
+            DocumentBuilderFactory.newInstance();
+    private static final DocumentBuilderFactory nsBuilderFactory =
+            DocumentBuilderFactory.newInstance();
+    static {
+        builderFactory.setNamespaceAware(false);
+        nsBuilderFactory.setNamespaceAware(true);
+    }
+    private static final TransformerFactory transformerFactory =
+            TransformerFactory.newInstance();
+
+    private static final ThreadLocal<DocumentBuilder> localBuilder =
+            createLocalBuilder(builderFactory);
+    private static final ThreadLocal<DocumentBuilder> localNSBuilder =
+            createLocalBuilder(nsBuilderFactory);
+    private static final ThreadLocal<Transformer> localTransformer =
+            createLocalTransformer(false);
+    private static final ThreadLocal<Transformer> localDeclTransformer =
+            createLocalTransformer(true);
+
+    private static ThreadLocal<DocumentBuilder> createLocalBuilder(
+            final DocumentBuilderFactory factory) {
+        return new ThreadLocal<DocumentBuilder>() {
+            @Override
+            protected DocumentBuilder initialValue() {
+                try {
+                    synchronized (factory) {
+                        return factory.newDocumentBuilder();
+                    }
+                } catch (ParserConfigurationException e) {
+                    throw new RuntimeException(
+                            "Unable to create DocumentBuilder", e);
+                }
+            }
+        };
+    }
+
+    private static ThreadLocal<Transformer> createLocalTransformer(
+            final boolean withXmlDeclaration) {
+        return new ThreadLocal<Transformer>() {
+            @Override
+            protected Transformer initialValue() {
+                Transformer t;
+                try {
+                    synchronized (transformerFactory) {
+                        t = transformerFactory.newTransformer();
+                    }
+                } catch (TransformerException e) {
+                    throw new RuntimeException(
+                            "Unable to create Transformer", e);
+                }
+                t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+                t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
+                                    withXmlDeclaration ? "no" : "yes");
+                t.setOutputProperty(OutputKeys.METHOD, "xml");
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Get the DocumentBuilder for the current thread, reset to its initial
+     * state. The builder must not be passed on to other threads.
+     *
+     * @param namespaceAware if {@code true} the builder will be namespace
+     *                       aware.
+     * @return a DocumentBuilder ready for use.
+     * @throws ParserConfigurationException if a builder could not be created.
+     */
+    private static DocumentBuilder getBuilder(boolean namespaceAware)
+            throws ParserConfigurationException {
+        DocumentBuilder builder;
+        try {
+            builder = namespaceAware ?
+                      localNSBuilder.get() : localBuilder.get();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) e.getCause();
+            }
+            throw e;
+        }
+        builder.reset();
+        return builder;
+    }
+
     /**
      * Extracts all textual and CDATA content from the given node and its
      * children.
@@ -95,10 +190,7 @@ public class DOM {
             InputSource in = new InputSource();
             in.setCharacterStream(new StringReader(xmlString));
 
-            DocumentBuilderFactory dbFact = DocumentBuilderFactory.newInstance();
-            dbFact.setNamespaceAware(namespaceAware);
-
-            return dbFact.newDocumentBuilder().parse(in);
+            return getBuilder(namespaceAware).parse(in);
         } catch (IOException e) {
             log.warn("I/O error when parsing XML :" + e.getMessage() + "\n"
                      + xmlString, e);
@@ -135,10 +227,7 @@ public class DOM {
     public static Document streamToDOM(InputStream xmlStream,
                                        boolean namespaceAware) {
         try {
-            DocumentBuilderFactory dbFact = DocumentBuilderFactory.newInstance();
-            dbFact.setNamespaceAware(namespaceAware);
-
-            return dbFact.newDocumentBuilder().parse(xmlStream);
+            return getBuilder(namespaceAware).parse(xmlStream);
         } catch (IOException e) {
             log.warn("I/O error when parsing stream :" + e.getMessage(), e);
         } catch (SAXException e) {
@@ -161,6 +250,67 @@ public class DOM {
         return streamToDOM(xmlStream, false);
     }
 
+    /**
+     * Parses a XML document from raw bytes to a DOM or return {@code null} on
+     * error. The character encoding is determined by the XML parser from the
+     * XML declaration or the byte order mark, so no intermediate String is
+     * constructed.
+     *
+     * @param xmlBytes       the bytes of an XML document.
+     * @param namespaceAware if {@code true} the constructed DOM will reflect
+     *                       the namespaces declared in the XML document
+     * @return The document in a DOM or {@code null} in case of errors
+     */
+    public static Document bytesToDOM(byte[] xmlBytes,
+                                      boolean namespaceAware) {
+        return streamToDOM(new ByteArrayInputStream(xmlBytes), namespaceAware);
+    }
+
+    /**
+     * Parses a XML document from raw bytes to a DOM disregarding namespaces.
+     * Returns {@code null} on error.
+     *
+     * @param xmlBytes the bytes of an XML document.
+     * @return The document in a DOM or {@code null} in case of errors
+     */
+    public static Document bytesToDOM(byte[] xmlBytes) {
+        return bytesToDOM(xmlBytes, false);
+    }
+
+    /**
+     * Parses a XML document from the remaining bytes in the given buffer to a
+     * DOM or return {@code null} on error. The position of the buffer is not
+     * changed. Heap buffers are parsed directly from their backing array.
+     *
+     * @param xmlBytes       a buffer with the bytes of an XML document
+     *                       between its position and its limit.
+     * @param namespaceAware if {@code true} the constructed DOM will reflect
+     *                       the namespaces declared in the XML document
+     * @return The document in a DOM or {@code null} in case of errors
+     */
+    public static Document bytesToDOM(ByteBuffer xmlBytes,
+                                      boolean namespaceAware) {
+        InputStream in = xmlBytes.hasArray() ?
+                new ByteArrayInputStream(
+                        xmlBytes.array(),
+                        xmlBytes.arrayOffset() + xmlBytes.position(),
+                        xmlBytes.remaining()) :
+                new ByteBufferInputStream(xmlBytes.duplicate());
+        return streamToDOM(in, namespaceAware);
+    }
+
+    /**
+     * Parses a XML document from the remaining bytes in the given buffer to a
+     * DOM disregarding namespaces. Returns {@code null} on error.
+     *
+     * @param xmlBytes a buffer with the bytes of an XML document between its
+     *                 position and its limit.
+     * @return The document in a DOM or {@code null} in case of errors
+     */
+    public static Document bytesToDOM(ByteBuffer xmlBytes) {
+        return bytesToDOM(xmlBytes, false);
+    }
+
     /**
      * Convert the given DOM to an UTF-8 XML String.
      *
@@ -180,17 +330,18 @@ public class DOM {
      * @return the dom as an XML String.
      * @throws TransformerException if the dom could not be converted.
      */
-    // TODO: Consider optimizing this with ThreadLocal Transformers
     public static String domToString(Node dom, boolean withXmlDeclaration)
             throws TransformerException {
-        Transformer t = TransformerFactory.newInstance().newTransformer();
-        t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-        if (withXmlDeclaration) {
-            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-        } else {
-            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        Transformer t;
+        try {
+            t = withXmlDeclaration ?
+                localDeclTransformer.get() : localTransformer.get();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof TransformerException) {
+                throw (TransformerException) e.getCause();
+            }
+            throw e;
         }
-        t.setOutputProperty(OutputKeys.METHOD, "xml");
 
         /* Transformer */
         StringWriter sw = new StringWriter();
@@ -369,6 +520,21 @@ public class DOM {
         return selector.selectNode(dom, xpath);
     }
 
+    /**
+     * Evaluate all entries in the batch against the given node.
+     *
+     * Note: This is a convenience method that logs exceptions instead of
+     * throwing them.
+     *
+     * @param node  the node to evaluate the batch against.
+     * @param batch the named and typed expressions to evaluate.
+     * @return the values for the entries in the batch.
+     * @see XPathSelectorImpl#selectMany(Node, XPathBatch)
+     */
+    public static XPathBatch.Result selectMany(Node node, XPathBatch batch) {
+        return selector.selectMany(node, batch);
+    }
+
     /**
      * Package private method to clear the expression cache
      * - used for unit testing
@@ -376,4 +542,39 @@ public class DOM {
     static void clearXPathCache() {
         selector.clearCache();
     }
+
+    /**
+     * Minimal stream over a direct ByteBuffer. Reading advances the position
+     * of the given buffer, so callers should pass a duplicate.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
 }
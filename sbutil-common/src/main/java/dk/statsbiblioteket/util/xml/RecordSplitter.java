@@ -0,0 +1,591 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a stream of XML into records, such as the records in an OAI-PMH or MARC dump, in a single pass and with
+ * memory usage independent of the size of the input. Records are specified with FakeXPaths, e.g.
+ * {@code /OAI-PMH/ListRecords/record} or {@code //record}, and must designate elements, not attributes.
+ * When a record has been matched, the sub tree of the record is skipped, so records inside records are not matched.
+ * <p/>
+ * Records are delivered either as an {@link XMLStreamReader} scoped to the sub tree of the record or, when the
+ * input is a file, as the raw byte range of the record in the file. Byte ranges can be handed to parallel workers,
+ * which reads them with {@link #readRange(File, long, long)}. Note that namespaces declared outside of the record
+ * are not part of the byte range.
+ * <p/>
+ * The splitter is immutable and can be shared between threads.
+ * @see XMLStepper#createFakeXPathMatcher(List)
+ */
+public class RecordSplitter {
+    /** The maximum length in bytes of a range that can be read with {@link #readRange(File, long, long)}. */
+    public static final int MAX_RANGE_LENGTH = Integer.MAX_VALUE - 8;
+    private static final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+    static {
+        // No coalescing as the content of the records is not inspected by the splitter
+        xmlFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        // No resolving of external DTDs
+        xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private final XMLStepper.FakeXPathMatcher matcher;
+
+    /**
+     * @param recordPaths FakeXPaths for the elements that should be delivered as records.
+     * @throws IllegalArgumentException if a path designates an attribute.
+     */
+    public RecordSplitter(String... recordPaths) {
+        this(Arrays.asList(recordPaths));
+    }
+
+    /**
+     * @param recordPaths FakeXPaths for the elements that should be delivered as records.
+     * @throws IllegalArgumentException if a path designates an attribute.
+     */
+    public RecordSplitter(List<String> recordPaths) {
+        matcher = XMLStepper.createFakeXPathMatcher(recordPaths);
+        for (int i = 0 ; i < matcher.size() ; i++) {
+            if (!matcher.extractsElementText(i)) {
+                throw new IllegalArgumentException(
+                        "The record path '" + recordPaths.get(i) + "' must designate an element, not an attribute");
+            }
+        }
+    }
+
+    /**
+     * Delivers the records in the given XML to the callback as sub tree scoped streams.
+     * @param xml      the XML to split.
+     * @param callback receives the records.
+     * @return the number of delivered records.
+     * @throws XMLStreamException if the XML could not be parsed or the callback failed.
+     */
+    public long split(InputStream xml, ReaderCallback callback) throws XMLStreamException {
+        XMLStreamReader in = xmlFactory.createXMLStreamReader(xml);
+        try {
+            return split(in, callback);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delivers the records in the given XML to the callback as sub tree scoped streams.
+     * The records are delivered sequentially on the calling thread.
+     * @param xml      the XML to split, positioned at START_DOCUMENT or before the root element.
+     * @param callback receives the records.
+     * @return the number of delivered records.
+     * @throws XMLStreamException if the XML could not be parsed or the callback failed.
+     */
+    public long split(XMLStreamReader xml, ReaderCallback callback) throws XMLStreamException {
+        XMLStepper.FakeXPathMatcher.Cursor cursor = matcher.createCursor();
+        long records = 0;
+        int depth = 0;
+        while (true) {
+            switch (xml.getEventType()) {
+                case XMLStreamReader.START_ELEMENT: {
+                    if (cursor.step(xml, depth+1, xml.getLocalName()) > 0) {
+                        SubtreeReader record = new SubtreeReader(xml);
+                        records++;
+                        callback.record(record);
+                        record.skipRemaining();
+                    } else {
+                        depth++;
+                    }
+                    break;
+                }
+                case XMLStreamReader.END_ELEMENT: {
+                    depth--;
+                    break;
+                }
+                case XMLStreamReader.END_DOCUMENT: {
+                    callback.end();
+                    return records;
+                }
+                default: // Ignore everything else
+            }
+            xml.next();
+        }
+    }
+
+    /**
+     * Delivers the byte ranges of the records in the given file to the callback. The file must use an encoding where
+     * the markup characters are single bytes, such as UTF-8 or ISO-8859-1. UTF-16 is not supported.
+     * @param xml      the XML to split.
+     * @param callback receives the ranges for the records.
+     * @return the number of delivered records.
+     * @throws IOException        if the file could not be read or uses an unsupported encoding.
+     * @throws XMLStreamException if the XML could not be parsed or the callback failed.
+     */
+    public long split(File xml, RangeCallback callback) throws IOException, XMLStreamException {
+        InputStream is = new BufferedInputStream(new FileInputStream(xml), 8192);
+        try {
+            checkEncoding(is, xml);
+            TagScanner scanner = new TagScanner(is);
+            XMLStreamReader in = xmlFactory.createXMLStreamReader(scanner);
+            try {
+                return split(xml, in, scanner, callback);
+            } finally {
+                in.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private long split(File file, XMLStreamReader xml, TagScanner scanner, RangeCallback callback)
+            throws XMLStreamException {
+        XMLStepper.FakeXPathMatcher.Cursor cursor = matcher.createCursor();
+        long records = 0;
+        int depth = 0;
+        while (true) {
+            switch (xml.getEventType()) {
+                case XMLStreamReader.START_ELEMENT: {
+                    long start = scanner.nextStart();
+                    if (cursor.step(xml, depth+1, xml.getLocalName()) > 0) {
+                        int recordDepth = 1;
+                        while (recordDepth > 0) {
+                            int event = xml.next();
+                            if (event == XMLStreamReader.START_ELEMENT) {
+                                scanner.nextStart();
+                                recordDepth++;
+                            } else if (event == XMLStreamReader.END_ELEMENT) {
+                                recordDepth--;
+                                if (recordDepth > 0) {
+                                    scanner.nextEnd();
+                                }
+                            }
+                        }
+                        records++;
+                        callback.record(file, start, scanner.nextEnd()-start);
+                    } else {
+                        depth++;
+                    }
+                    break;
+                }
+                case XMLStreamReader.END_ELEMENT: {
+                    scanner.nextEnd();
+                    depth--;
+                    break;
+                }
+                case XMLStreamReader.END_DOCUMENT: {
+                    callback.end();
+                    return records;
+                }
+                default: // Ignore everything else
+            }
+            xml.next();
+        }
+    }
+
+    /**
+     * Fails if the stream is UTF-16 or UTF-32 encoded, as markup cannot be located by single bytes.
+     */
+    private void checkEncoding(InputStream is, File xml) throws IOException {
+        is.mark(2);
+        int b0 = is.read();
+        int b1 = is.read();
+        is.reset();
+        if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE) || b0 == 0 || b1 == 0) {
+            throw new IOException("The file '" + xml + "' seems to be UTF-16 or UTF-32 encoded, which is not "
+                                  + "supported for byte ranges");
+        }
+    }
+
+    /**
+     * Reads the given byte range from a file, typically a record delivered to a {@link RangeCallback}.
+     * This method is thread safe and can be called by parallel workers.
+     * @param file   the file to read from.
+     * @param offset the offset in bytes.
+     * @param length the number of bytes to read. At most {@link #MAX_RANGE_LENGTH}.
+     * @return the bytes in the range, which can be parsed with {@link DOM#bytesToDOM(byte[])}.
+     * @throws IOException if the range could not be read.
+     * @throws IllegalArgumentException if the length is negative or larger than {@link #MAX_RANGE_LENGTH}.
+     */
+    public static byte[] readRange(File file, long offset, long length) throws IOException {
+        if (length < 0 || length > MAX_RANGE_LENGTH) {
+            throw new IllegalArgumentException("The length must be 0-" + MAX_RANGE_LENGTH + " but was " + length
+                                               + " for the range at offset " + offset + " in '" + file + "'");
+        }
+        byte[] buffer = new byte[(int) length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(buffer);
+        } finally {
+            raf.close();
+        }
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSplitter(" + matcher + ")";
+    }
+
+    /**
+     * Receives records as XML streams.
+     */
+    public abstract static class ReaderCallback {
+        /**
+         * Called for each record. The stream is positioned at the START_ELEMENT of the record and returns
+         * END_DOCUMENT after the END_ELEMENT of the record. It is only valid during the call. The implementation is
+         * free to read as much or as little of the record as it wants.
+         * @param record the record.
+         * @throws XMLStreamException if processing of the record failed. This stops the splitting.
+         */
+        public abstract void record(XMLStreamReader record) throws XMLStreamException;
+
+        /**
+         * Called when all records has been delivered.
+         */
+        public void end() { }
+    }
+
+    /**
+     * Receives records as byte ranges in a file.
+     */
+    public abstract static class RangeCallback {
+        /**
+         * Called for each record, in the order of the records in the file.
+         * @param file   the file with the record.
+         * @param offset the offset in bytes of the record start tag.
+         * @param length the length in bytes of the record, including start and end tag. Records longer than
+         *               {@link #MAX_RANGE_LENGTH} cannot be read with {@link #readRange(File, long, long)} and
+         *               must be read as streams by the callback.
+         * @throws XMLStreamException if processing of the record failed. This stops the splitting.
+         */
+        public abstract void record(File file, long offset, long length) throws XMLStreamException;
+
+        /**
+         * Called when all records has been delivered.
+         */
+        public void end() { }
+    }
+
+    /**
+     * A view of a sub tree of a stream. It reports END_DOCUMENT after the END_ELEMENT corresponding to the
+     * START_ELEMENT the stream was positioned at when the view was created.
+     */
+    static class SubtreeReader extends StreamReaderDelegate {
+        private int depth = 1;
+        private boolean ended = false;
+
+        public SubtreeReader(XMLStreamReader reader) {
+            super(reader);
+            if (reader.getEventType() != START_ELEMENT) {
+                throw new IllegalStateException(
+                        "The reader must be positioned at START_ELEMENT but was positioned at "
+                        + XMLUtil.eventID2String(reader.getEventType()));
+            }
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            if (ended) {
+                throw new IllegalStateException("The sub tree has been depleted");
+            }
+            if (depth == 0) {
+                ended = true;
+                return END_DOCUMENT;
+            }
+            int event = super.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+            return event;
+        }
+
+        @Override
+        public boolean hasNext() throws XMLStreamException {
+            return !ended;
+        }
+
+        @Override
+        public int getEventType() {
+            return ended ? END_DOCUMENT : super.getEventType();
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while ((event == CHARACTERS && isWhiteSpace()) || (event == CDATA && isWhiteSpace())
+                   || event == SPACE || event == PROCESSING_INSTRUCTION || event == COMMENT) {
+                event = next();
+            }
+            if (event != START_ELEMENT && event != END_ELEMENT) {
+                throw new XMLStreamException("Expected start or end tag but got " + XMLUtil.eventID2String(event),
+                                             getLocation());
+            }
+            return event;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            if (ended) {
+                throw new IllegalStateException("The sub tree has been depleted");
+            }
+            String text = super.getElementText(); // Moves to END_ELEMENT
+            depth--;
+            return text;
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            // The underlying stream is owned by the splitter
+        }
+
+        /**
+         * Moves the underlying stream to the END_ELEMENT of the sub tree.
+         */
+        void skipRemaining() throws XMLStreamException {
+            while (!ended && depth > 0) {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Passes bytes through unchanged while locating the tags in the bytes. The XML parser reads through the scanner,
+     * so the tags for the events delivered by the parser has always been located by the scanner. The scanner only
+     * keeps the tags that has been read by the parser but not yet consumed with {@link #nextStart()} and
+     * {@link #nextEnd()}.
+     * <p/>
+     * The scanner does not validate the XML and relies on the parser for that. It works for any encoding where
+     * the markup characters are single bytes with their ASCII values, such as UTF-8 and ISO-8859-1.
+     */
+    static class TagScanner extends FilterInputStream {
+        private enum STATE {text, tagOpen, startTag, endTag, bang, comment, cdata, doctype, pi}
+        private static final byte START = 0;
+        private static final byte END = 1;
+        private static final byte EMPTY = 2;
+
+        private STATE state = STATE.text;
+        /** The absolute offset of the next byte to scan. */
+        private long position = 0;
+        private long tagStart = 0;
+        /** Quote character inside of a tag or 0 if not inside quotes. */
+        private int quote = 0;
+        private int previous = 0;
+        private int previous2 = 0;
+        private int bangCount = 0;
+        private int doctypeDepth = 0;
+
+        /** Located tags as a ring buffer. */
+        private byte[] types = new byte[64];
+        private long[] starts = new long[64];
+        private long[] ends = new long[64];
+        private int head = 0;
+        private int size = 0;
+        /** The end offset of the last empty element returned by {@link #nextStart()}, -1 if none. */
+        private long pendingEnd = -1;
+
+        public TagScanner(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * @return the byte offset of the start of the next start tag.
+         */
+        public long nextStart() {
+            if (pendingEnd != -1 || size == 0 || types[head] == END) {
+                throw new IllegalStateException("The tag scanner is out of sync with the XML parser at byte offset "
+                                                + position + ". Expected a start tag");
+            }
+            long start = starts[head];
+            if (types[head] == EMPTY) {
+                pendingEnd = ends[head];
+            }
+            head = (head + 1) % types.length;
+            size--;
+            return start;
+        }
+
+        /**
+         * @return the byte offset right after the end of the next end tag.
+         */
+        public long nextEnd() {
+            if (pendingEnd != -1) {
+                long end = pendingEnd;
+                pendingEnd = -1;
+                return end;
+            }
+            if (size == 0 || types[head] != END) {
+                throw new IllegalStateException("The tag scanner is out of sync with the XML parser at byte offset "
+                                                + position + ". Expected an end tag");
+            }
+            long end = ends[head];
+            head = (head + 1) % types.length;
+            size--;
+            return end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                scan(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            for (int i = 0 ; i < read ; i++) {
+                scan(b[off+i] & 0xFF);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be scanned too, so they are read through the scanner
+            if (n <= 0) {
+                return 0;
+            }
+            byte[] scratch = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(scratch, 0, (int) Math.min(n - skipped, scratch.length));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void scan(int b) {
+            switch (state) {
+                case text:
+                    if (b == '<') {
+                        tagStart = position;
+                        state = STATE.tagOpen;
+                    }
+                    break;
+                case tagOpen:
+                    state = b == '/' ? STATE.endTag : b == '?' ? STATE.pi : b == '!' ? STATE.bang : STATE.startTag;
+                    bangCount = 0;
+                    break;
+                case startTag:
+                    if (quote != 0) {
+                        if (b == quote) {
+                            quote = 0;
+                        }
+                    } else if (b == '"' || b == '\'') {
+                        quote = b;
+                    } else if (b == '>') {
+                        add(previous == '/' ? EMPTY : START, tagStart, position+1);
+                        state = STATE.text;
+                    }
+                    break;
+                case endTag:
+                    if (b == '>') {
+                        add(END, tagStart, position+1);
+                        state = STATE.text;
+                    }
+                    break;
+                case bang:
+                    // Either <!--, <![CDATA[ or <!DOCTYPE
+                    if (bangCount++ == 0) {
+                        if (b == '-') {
+                            state = STATE.comment;
+                            previous = 0; // The dashes in <!-- must not count towards -->
+                            previous2 = 0;
+                            position++;
+                            return;
+                        } else if (b == '[') {
+                            state = STATE.cdata;
+                        } else {
+                            state = STATE.doctype;
+                            doctypeDepth = 0;
+                        }
+                    }
+                    break;
+                case comment:
+                    if (b == '>' && previous == '-' && previous2 == '-' && position - tagStart > 5) {
+                        state = STATE.text;
+                    }
+                    break;
+                case cdata:
+                    if (b == '>' && previous == ']' && previous2 == ']' && position - tagStart > 10) {
+                        state = STATE.text;
+                    }
+                    break;
+                case doctype:
+                    if (quote != 0) {
+                        if (b == quote) {
+                            quote = 0;
+                        }
+                    } else if (b == '"' || b == '\'') {
+                        quote = b;
+                    } else if (b == '[') {
+                        doctypeDepth++;
+                    } else if (b == ']') {
+                        doctypeDepth--;
+                    } else if (b == '>' && doctypeDepth == 0) {
+                        state = STATE.text;
+                    }
+                    break;
+                case pi:
+                    if (b == '>' && previous == '?') {
+                        state = STATE.text;
+                    }
+                    break;
+                default: throw new IllegalStateException("Unknown state " + state);
+            }
+            previous2 = previous;
+            previous = b;
+            position++;
+        }
+
+        private void add(byte type, long start, long end) {
+            if (size == types.length) {
+                byte[] newTypes = new byte[types.length*2];
+                long[] newStarts = new long[types.length*2];
+                long[] newEnds = new long[types.length*2];
+                for (int i = 0 ; i < size ; i++) {
+                    int index = (head + i) % types.length;
+                    newTypes[i] = types[index];
+                    newStarts[i] = starts[index];
+                    newEnds[i] = ends[index];
+                }
+                types = newTypes;
+                starts = newStarts;
+                ends = newEnds;
+                head = 0;
+            }
+            int index = (head + size) % types.length;
+            types[index] = type;
+            starts[index] = start;
+            ends[index] = end;
+            size++;
+        }
+    }
+}
@@ -1,100 +1,44 @@
 package dk.statsbiblioteket.util.xml;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
- * Thread safe implementation of XPathSelector. This implementation allows for
- * parallel execution of the same xpath by making multiple instances of the
- * underlying XPathExpression.
+ * Thread safe implementation of XPathSelector that also guards the DOM. This
+ * implementation allows for parallel execution of the same xpath on different
+ * DOMs, as the compiled expressions are kept per thread by
+ * {@link XPathSelectorImpl}. Evaluations on the same DOM are serialized by
+ * synchronizing on the owner document, as DOM implementations are not
+ * guaranteed to be thread safe for reading.
  */
 public class SynchronousXPathSelector extends XPathSelectorImpl {
 
-    private static final Log log =
-            LogFactory.getLog(SynchronousXPathSelector.class);
-
-    /**
-     * Important: All access to the xpathCompiler should be synchronized on it
-     * since it is not thread safe!
-     */
-    private static final XPath xpathCompiler =
-            XPathFactory.newInstance().newXPath();
-
-    private LRUCache<String, List<XPathExpression>> cache;
-    private NamespaceContext nsContext;
-
     public SynchronousXPathSelector(NamespaceContext nsContext, int cacheSize) {
-        super(nsContext, 1);
-        cache = new LRUCache<String, List<XPathExpression>>(cacheSize);
+        super(nsContext, cacheSize);
     }
 
     @Override
     protected Object selectObject(Node dom, String xpath, QName returnType) {
-        Object retval = null;
-
-        try {
-            XPathExpression exp;
-            // Get the compiled xpath from the cache or compile if not present
-            synchronized (xpathCompiler) {
-                List<XPathExpression> expl = cache.get(xpath);
-                if (expl == null || expl.size() == 0) {
-                    if (nsContext != null) {
-                        xpathCompiler.setNamespaceContext(nsContext);
-                    }
-                    exp = xpathCompiler.compile(xpath);
-                } else {
-                    exp = expl.remove(expl.size() - 1);
-                }
-            }
-            try {
-                Document doc = dom.getOwnerDocument();
-                if (doc != null){
-                    synchronized (doc){
-                        retval = exp.evaluate(dom, returnType);
-                    }
-                } else {
-                    synchronized (dom){
-                        retval = exp.evaluate(dom, returnType);
-                    }
-                }
-            } finally {
-                // Put back the compiled xpath in the cache
-                synchronized (xpathCompiler) {
-                    List<XPathExpression> expl = cache.get(xpath);
-                    if (expl == null) {
-                        expl = new ArrayList<XPathExpression>(2);
-                    }
-                    expl.add(exp);
-                    cache.put(xpath, expl); // Always touch the LRU
-                }
-            }
-        } catch (NullPointerException e) {
-            log.debug(String.format(
-                    "NullPointerException when extracting XPath '%s' on " +
-                    "element type %s. Returning null",
-                    xpath, returnType.getLocalPart()), e);
-        } catch (XPathExpressionException e) {
-            log.warn(String.format(
-                    "Error in XPath expression '%s' when selecting %s: %s",
-                    xpath, returnType.getLocalPart(), e.getMessage()), e);
+        if (dom == null) {
+            return super.selectObject(null, xpath, returnType);
+        }
+        Document doc = dom.getOwnerDocument();
+        synchronized (doc == null ? dom : doc) {
+            return super.selectObject(dom, xpath, returnType);
         }
-
-        return retval;
     }
 
     @Override
-    void clearCache() {
-        cache.clear();
+    public XPathBatch.Result selectMany(Node node, XPathBatch batch) {
+        if (node == null) {
+            return super.selectMany(null, batch);
+        }
+        Document doc = node.getOwnerDocument();
+        synchronized (doc == null ? node : doc) {
+            return super.selectMany(node, batch);
+        }
     }
-}
\ No newline at end of file
+}
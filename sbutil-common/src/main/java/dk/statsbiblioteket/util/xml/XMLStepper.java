@@ -616,36 +616,17 @@ public class XMLStepper {
     public static List<List<String>> evaluateFakeXPaths(
             XMLStreamReader xml, final List<FakeXPath> fakeXPaths, final int maxResultsPerFakeXPath)
             throws XMLStreamException {
-        final List<List<String>> matches = new ArrayList<List<String>>(fakeXPaths.size());
-        for (int i = 0 ; i < fakeXPaths.size() ; i++) {
-            matches.add(new ArrayList<String>());
-        }
-        final AtomicInteger totalCollects = new AtomicInteger(0);
-
-        iterateTags(xml, new Callback() {
-            @Override
-            public PROCESS_ACTION elementStart2(XMLStreamReader xml, List<String> tags, String current)
-                    throws XMLStreamException {
-                PROCESS_ACTION action = PROCESS_ACTION.no_action; // Default
-                for (int i = 0 ; i < fakeXPaths.size() ; i++) {
-                    List<String> localMatches = matches.get(i);
-                    if (maxResultsPerFakeXPath != -1 && localMatches.size() >= maxResultsPerFakeXPath) {
-                        continue;
-                    }
-                    FakeXPath fakeXPath = fakeXPaths.get(i);
-                    if (fakeXPath.matches(xml, tags)) { // We have a match
-                        localMatches.add(fakeXPath.getValue(xml));
-                        if (totalCollects.incrementAndGet() == fakeXPaths.size()*maxResultsPerFakeXPath) {
-                            return PROCESS_ACTION.requests_stop_success; // All full, so we stop at once
-                        }
-                        action = PROCESS_ACTION.called_next; // No early break as we might have more matches
-                    }
-                }
-                return action;
-            }
-        });
+        return new FakeXPathMatcher(fakeXPaths).evaluate(xml, maxResultsPerFakeXPath);
+    }
 
-        return matches;
+    /**
+     * Compile the given fakeXPaths for repeated evaluation.
+     * @param fakeXPaths list of fakeXPaths to compile.
+     * @return a matcher for the fakeXPaths, which can be shared between threads.
+     * @see FakeXPath
+     */
+    public static FakeXPathMatcher createFakeXPathMatcher(List<String> fakeXPaths) {
+        return new FakeXPathMatcher(parsePaths(fakeXPaths));
     }
 
     /**
@@ -739,7 +720,12 @@ public class XMLStepper {
             return xpathString;
         }
 
+        public boolean extractsElementText() {
+            return extraction == PathElement.ELEMENT_TEXT;
+        }
+
         public static class PathElement {
+            private final String source;
             private final boolean isAttribute;
             private final String key;
             private final boolean wildcard;
@@ -751,6 +737,7 @@ public class XMLStepper {
             public static final PathElement ELEMENT_TEXT = new PathElement("*");
 
             public PathElement(String element) {
+                source = element;
                 if (element.startsWith("@")) { // Is an attribute
                     // @bar
                     isAttribute = true;
@@ -818,6 +805,30 @@ public class XMLStepper {
                 }
                 return true;
             }
+            /**
+             * @return true if the element is matched on element name alone, i.e. {@link #matches} only needs to be
+             *         called if the name is equal to {@link #getKey()}.
+             */
+            public boolean isNameOnly() {
+                return !isAttribute && !wildcard && !hasPredicate;
+            }
+
+            /**
+             * @return true if the element can only match elements with the name {@link #getKey()}.
+             */
+            public boolean isNamed() {
+                return !isAttribute && !wildcard;
+            }
+
+            public String getKey() {
+                return key;
+            }
+
+            @Override
+            public String toString() {
+                return source;
+            }
+
             // Always advances, expects match
             public String value(XMLStreamReader xml) throws XMLStreamException {
                 if (!isAttribute) {
@@ -835,6 +846,316 @@ public class XMLStepper {
         }
     }
 
+    /**
+     * A list of {@link FakeXPath}s compiled to an automaton keyed on element names. The paths are arranged in a trie
+     * on their path elements, so that paths sharing a prefix shares states. While stepping through the XML, the set
+     * of active states is kept for each depth. At each START_ELEMENT only the transitions for the element name and
+     * the transitions for wildcards and attributes are considered and predicates are only checked for those.
+     * The work per element is thus independent of the number of paths.
+     *
+     * Location independent paths ({@code //foo/bar}) have their own trie, the root of which is active at all depths.
+     *
+     * The matcher is immutable and can be shared between threads.
+     */
+    public static class FakeXPathMatcher {
+        private final List<FakeXPath> fakeXPaths;
+        private final State absoluteRoot = new State();
+        private final State independentRoot = new State();
+        /** Location independent paths without path elements (e.g. {@code //@foo}), which matches all elements. */
+        private final int[] matchAll;
+
+        private FakeXPathMatcher(List<FakeXPath> fakeXPaths) {
+            this.fakeXPaths = new ArrayList<FakeXPath>(fakeXPaths);
+            List<Integer> all = new ArrayList<Integer>();
+            for (int i = 0 ; i < fakeXPaths.size() ; i++) {
+                FakeXPath fakeXPath = fakeXPaths.get(i);
+                if (fakeXPath.locationIndependent && fakeXPath.path.length == 0) {
+                    all.add(i);
+                    continue;
+                }
+                // Absolute paths without path elements never matches
+                if (fakeXPath.path.length > 0) {
+                    (fakeXPath.locationIndependent ? independentRoot : absoluteRoot).add(fakeXPath.path, 0, i);
+                }
+            }
+            matchAll = toArray(all);
+            absoluteRoot.freeze();
+            independentRoot.freeze();
+        }
+
+        /**
+         * @return the number of fakeXPaths in the matcher.
+         */
+        public int size() {
+            return fakeXPaths.size();
+        }
+
+        /**
+         * Extraction of values from the XML.
+         * @param xml the XML to extract text from.
+         * @param maxResultsPerFakeXPath maximum numbers of results per XPath, -1 means no limit.
+         * @return a list with the same number of elements as the fakeXPaths given when constructing the matcher,
+         *         with the results of the XPaths matching the order.
+         * @throws XMLStreamException if the xml was not valid or XML processing failed for other reasons.
+         */
+        public List<List<String>> evaluate(CharSequence xml, int maxResultsPerFakeXPath) throws XMLStreamException {
+            return evaluate(xmlFactory.createXMLStreamReader(new CharSequenceReader(xml)), maxResultsPerFakeXPath);
+        }
+
+        /**
+         * Extraction of values from the XML.
+         * @param xml the XML to extract text from.
+         * @param maxResultsPerFakeXPath maximum numbers of results per XPath, -1 means no limit.
+         * @return a list with the same number of elements as the fakeXPaths given when constructing the matcher,
+         *         with the results of the XPaths matching the order.
+         * @throws XMLStreamException if the xml was not valid or XML processing failed for other reasons.
+         */
+        public List<List<String>> evaluate(XMLStreamReader xml, final int maxResultsPerFakeXPath)
+                throws XMLStreamException {
+            final List<List<String>> matches = new ArrayList<List<String>>(fakeXPaths.size());
+            for (int i = 0 ; i < fakeXPaths.size() ; i++) {
+                matches.add(new ArrayList<String>());
+            }
+            final AtomicInteger totalCollects = new AtomicInteger(0);
+            final Cursor cursor = new Cursor();
+            final String[] attributeValues = new String[fakeXPaths.size()];
+
+            iterateTags(xml, new Callback() {
+                @Override
+                public PROCESS_ACTION elementStart2(XMLStreamReader xml, List<String> tags, String current)
+                        throws XMLStreamException {
+                    int matchCount = cursor.step(xml, tags.size(), current);
+                    if (matchCount == 0) {
+                        return PROCESS_ACTION.no_action;
+                    }
+                    // Attribute values must be extracted before the stream is advanced
+                    boolean needsText = false;
+                    int collected = 0;
+                    int[] matched = cursor.getMatches();
+                    for (int m = 0 ; m < matchCount ; m++) {
+                        int i = matched[m];
+                        if (maxResultsPerFakeXPath != -1 && matches.get(i).size() >= maxResultsPerFakeXPath) {
+                            matched[m] = -1;
+                            continue;
+                        }
+                        FakeXPath fakeXPath = fakeXPaths.get(i);
+                        if (fakeXPath.extractsElementText()) {
+                            needsText = true;
+                        } else {
+                            attributeValues[i] = getAttribute(xml, fakeXPath.extraction.key, null);
+                            if (attributeValues[i] == null) { // No match if the attribute is not present
+                                matched[m] = -1;
+                                continue;
+                            }
+                        }
+                        collected++;
+                    }
+                    if (collected == 0) {
+                        return PROCESS_ACTION.no_action;
+                    }
+                    String text = needsText ? xml.getElementText() : null;
+                    if (!needsText) {
+                        xml.next();
+                    }
+                    for (int m = 0 ; m < matchCount ; m++) {
+                        int i = matched[m];
+                        if (i == -1) {
+                            continue;
+                        }
+                        matches.get(i).add(fakeXPaths.get(i).extractsElementText() ? text : attributeValues[i]);
+                        if (totalCollects.incrementAndGet() == fakeXPaths.size()*maxResultsPerFakeXPath) {
+                            return PROCESS_ACTION.requests_stop_success; // All full, so we stop at once
+                        }
+                    }
+                    return PROCESS_ACTION.called_next;
+                }
+            });
+
+            return matches;
+        }
+
+        @Override
+        public String toString() {
+            return "XMLStepper.FakeXPathMatcher(#fakeXPaths=" + fakeXPaths.size() + ")";
+        }
+
+        /**
+         * @param index the index of a fakeXPath.
+         * @return the fakeXPath at the given index, as given when constructing the matcher.
+         */
+        public String getFakeXPathString(int index) {
+            return fakeXPaths.get(index).getFakeXPathString();
+        }
+
+        /**
+         * @param index the index of a fakeXPath.
+         * @return true if the fakeXPath at the given index extracts element text, false if it extracts an attribute.
+         */
+        boolean extractsElementText(int index) {
+            return fakeXPaths.get(index).extractsElementText();
+        }
+
+        /**
+         * @return a new cursor for keeping track of matches in a single stream.
+         */
+        Cursor createCursor() {
+            return new Cursor();
+        }
+
+        /**
+         * Keeps track of the active states for a single stream. Not thread safe.
+         */
+        class Cursor {
+            /** Active states, indexed by depth. Depth 0 is before the root element. */
+            private final List<List<State>> levels = new ArrayList<List<State>>();
+            private int[] matches = new int[Math.max(1, fakeXPaths.size())];
+
+            public Cursor() {
+                List<State> top = new ArrayList<State>(2);
+                top.add(absoluteRoot);
+                top.add(independentRoot);
+                levels.add(top);
+            }
+
+            /**
+             * Update the active states with the element at the current position in the stream and collect the indexes
+             * of the fakeXPaths that matches the element.
+             * @param xml     the stream, positioned at START_ELEMENT. This will not be advanced.
+             * @param depth   the depth of the element, where the root element has depth 1.
+             * @param current the local name of the element.
+             * @return the number of matches, available from {@link #getMatches()}.
+             */
+            public int step(XMLStreamReader xml, int depth, String current) {
+                while (levels.size() <= depth) {
+                    levels.add(new ArrayList<State>());
+                }
+                List<State> parents = levels.get(depth-1);
+                List<State> states = levels.get(depth);
+                states.clear();
+                states.add(independentRoot);
+                int matchCount = 0;
+                for (int m: matchAll) {
+                    matches[matchCount++] = m;
+                }
+                for (int p = 0 ; p < parents.size() ; p++) {
+                    State parent = parents.get(p);
+                    matchCount = step(parent.get(current), xml, current, states, matchCount);
+                    matchCount = step(parent.anyName, xml, current, states, matchCount);
+                }
+                return matchCount;
+            }
+
+            private int step(Transition[] transitions, XMLStreamReader xml, String current, List<State> states,
+                             int matchCount) {
+                if (transitions == null) {
+                    return matchCount;
+                }
+                for (Transition transition: transitions) {
+                    if (transition.check && !transition.element.matches(xml, current)) {
+                        continue;
+                    }
+                    states.add(transition.target);
+                    for (int accept: transition.target.accepting) {
+                        matches[matchCount++] = accept;
+                    }
+                }
+                return matchCount;
+            }
+
+            /**
+             * @return the indexes of the fakeXPaths matched by the last {@link #step}.
+             */
+            public int[] getMatches() {
+                return matches;
+            }
+        }
+
+        /**
+         * A state in the automaton, reached by matching a specific sequence of path elements.
+         */
+        private static class State {
+            private static final Transition[] EMPTY = new Transition[0];
+
+            /** Only used during construction. */
+            private Map<String, State> children = new LinkedHashMap<String, State>();
+            private Map<String, FakeXPath.PathElement> elements = new HashMap<String, FakeXPath.PathElement>();
+            private List<Integer> accepts = new ArrayList<Integer>();
+
+            private Map<String, Transition[]> named;
+            private Transition[] anyName;
+            private int[] accepting;
+
+            public void add(FakeXPath.PathElement[] path, int depth, int fakeXPathIndex) {
+                if (depth == path.length) {
+                    accepts.add(fakeXPathIndex);
+                    return;
+                }
+                String token = path[depth].toString();
+                State child = children.get(token);
+                if (child == null) {
+                    child = new State();
+                    children.put(token, child);
+                    elements.put(token, path[depth]);
+                }
+                child.add(path, depth+1, fakeXPathIndex);
+            }
+
+            public Transition[] get(String elementName) {
+                return named.get(elementName);
+            }
+
+            public void freeze() {
+                Map<String, List<Transition>> byName = new HashMap<String, List<Transition>>();
+                List<Transition> any = new ArrayList<Transition>();
+                for (Map.Entry<String, State> entry: children.entrySet()) {
+                    FakeXPath.PathElement element = elements.get(entry.getKey());
+                    Transition transition = new Transition(element, entry.getValue());
+                    if (element.isNamed()) {
+                        List<Transition> transitions = byName.get(element.getKey());
+                        if (transitions == null) {
+                            transitions = new ArrayList<Transition>(1);
+                            byName.put(element.getKey(), transitions);
+                        }
+                        transitions.add(transition);
+                    } else {
+                        any.add(transition);
+                    }
+                    entry.getValue().freeze();
+                }
+                named = new HashMap<String, Transition[]>(byName.size());
+                for (Map.Entry<String, List<Transition>> entry: byName.entrySet()) {
+                    named.put(entry.getKey(), entry.getValue().toArray(new Transition[entry.getValue().size()]));
+                }
+                anyName = any.isEmpty() ? EMPTY : any.toArray(new Transition[any.size()]);
+                accepting = toArray(accepts);
+                children = null;
+                elements = null;
+                accepts = null;
+            }
+        }
+
+        private static class Transition {
+            private final FakeXPath.PathElement element;
+            /** If true, the element must be checked with {@link FakeXPath.PathElement#matches}. */
+            private final boolean check;
+            private final State target;
+
+            public Transition(FakeXPath.PathElement element, State target) {
+                this.element = element;
+                this.check = !element.isNameOnly();
+                this.target = target;
+            }
+        }
+
+        private static int[] toArray(List<Integer> integers) {
+            int[] result = new int[integers.size()];
+            for (int i = 0 ; i < result.length ; i++) {
+                result[i] = integers.get(i);
+            }
+            return result;
+        }
+    }
+
     /**
      * Skips everything until a start tag is reacted or the readers is depleted.
      * @param xml the stream to iterate over.
@@ -29,6 +29,13 @@ import java.io.Writer;
  * XMLStreamWriter with proper entity escaping of extended Unicode characters.
  * Characters in plane 1 and above are represented internally in Java as multiple 16 bit {@code char}s.
  * To avoid problems downstream, these are best represented as entities: {@code &#xHHHHHH}.
+ *
+ * Text and attribute values without extended Unicode characters are passed directly to the underlying
+ * XMLStreamWriter. Values with extended characters are escaped directly from the given char[] ranges to the
+ * underlying Writer, copying runs of chars that need no escaping in bulk. The underlying XMLStreamWriter is only
+ * flushed before such direct writes and only if it has been used since the last direct write.
+ *
+ * This implementation is not thread safe.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
@@ -37,9 +44,33 @@ public class XMLUnicodeStreamWriter implements XMLStreamWriter {
     private static final Log log = LogFactory.getLog(XMLUnicodeStreamWriter.class);
     private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
 
+    /** Escapes for ASCII chars in text, null if the char should not be escaped. */
+    private static final char[][] TEXT_ESCAPES = new char[128][];
+    /** Escapes for ASCII chars in attribute values, null if the char should not be escaped. */
+    private static final char[][] ATTRIBUTE_ESCAPES = new char[128][];
+    static {
+        TEXT_ESCAPES['<'] = "&lt;".toCharArray();
+        TEXT_ESCAPES['>'] = "&gt;".toCharArray();
+        TEXT_ESCAPES['&'] = "&amp;".toCharArray();
+        System.arraycopy(TEXT_ESCAPES, 0, ATTRIBUTE_ESCAPES, 0, TEXT_ESCAPES.length);
+        ATTRIBUTE_ESCAPES['"'] = "&quot;".toCharArray();
+        // Whitespace in attributes is normalized by parsers unless escaped
+        ATTRIBUTE_ESCAPES['\t'] = "&#9;".toCharArray();
+        ATTRIBUTE_ESCAPES['\n'] = "&#10;".toCharArray();
+        ATTRIBUTE_ESCAPES['\r'] = "&#13;".toCharArray();
+    }
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     private final Writer out;
     private final XMLStreamWriter outXML;
 
+    /** True if outXML has been used since the last direct write to out. */
+    private boolean pending = false;
+    /** True if outXML has an unfinished start tag, which accepts attributes. */
+    private boolean startTagOpen = false;
+    /** Reusable buffer for numeric entities: {@code &#x10ffff;} */
+    private final char[] entity = new char[10];
+
     public XMLUnicodeStreamWriter(Writer writer) throws XMLStreamException {
         this(xmlOutputFactory.createXMLStreamWriter(writer), writer);
     }
@@ -51,105 +82,224 @@ public class XMLUnicodeStreamWriter implements XMLStreamWriter {
 
     @Override
     public void writeCharacters(String text) throws XMLStreamException {
-        outXML.flush();
+        if (!hasSurrogate(text)) {
+            delegated(false);
+            outXML.writeCharacters(text);
+            return;
+        }
+        char[] chars = text.toCharArray();
+        writeDirect(chars, 0, chars.length);
+    }
+
+    @Override
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+        if (!hasSurrogate(text, start, len)) {
+            delegated(false);
+            outXML.writeCharacters(text, start, len);
+            return;
+        }
+        writeDirect(text, start, len);
+    }
+
+    @Override
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+        if (!hasSurrogate(value)) {
+            delegated(startTagOpen);
+            outXML.writeAttribute(localName, value);
+            return;
+        }
+        writeAttributeDirect(null, localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value)
+            throws XMLStreamException {
+        if (!hasSurrogate(value)) {
+            delegated(startTagOpen);
+            outXML.writeAttribute(prefix, namespaceURI, localName, value);
+            return;
+        }
+        writeAttributeDirect(prefix, localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+        String prefix;
+        if (!hasSurrogate(value) || (prefix = outXML.getPrefix(namespaceURI)) == null) {
+            delegated(startTagOpen);
+            outXML.writeAttribute(namespaceURI, localName, value);
+            return;
+        }
+        writeAttributeDirect(prefix, localName, value);
+    }
+
+    private void writeAttributeDirect(String prefix, String localName, String value) throws XMLStreamException {
+        if (!startTagOpen) {
+            throw new XMLStreamException("Attribute " + localName + " not associated with any element");
+        }
+        prepareDirect(true);
+        char[] chars = value.toCharArray();
         try {
-            out.write(extendedUnicodeEscape(text, false));
+            out.write(' ');
+            if (prefix != null && !prefix.isEmpty()) {
+                out.write(prefix);
+                out.write(':');
+            }
+            out.write(localName);
+            out.write("=\"");
+            escape(chars, 0, chars.length, ATTRIBUTE_ESCAPES);
+            out.write('"');
         } catch (IOException e) {
             throw new XMLStreamException("Unable to write to underlying Writer " + out, e);
         }
     }
 
-    @Override
-    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
-        writeCharacters(new String(text, start, len)); // No shortcuts as we need the codePoint-code from String
+    private void writeDirect(char[] text, int start, int len) throws XMLStreamException {
+        prepareDirect(false);
+        try {
+            escape(text, start, len, TEXT_ESCAPES);
+        } catch (IOException e) {
+            throw new XMLStreamException("Unable to write to underlying Writer " + out, e);
+        }
+    }
+
+    /**
+     * Ensures that everything written to outXML has reached out, so that out can be written to directly.
+     * @param attribute if false, an open start tag is closed.
+     */
+    private void prepareDirect(boolean attribute) throws XMLStreamException {
+        if (!attribute && startTagOpen) {
+            outXML.writeCharacters(""); // Closes the start tag
+            startTagOpen = false;
+            pending = true;
+        }
+        if (pending) {
+            outXML.flush();
+            pending = false;
+        }
     }
 
-    // TODO: Implement attribute escaping
+    /**
+     * Must be called before all calls to outXML that might write something.
+     * @param startTagOpen true if outXML will have an open start tag after the call.
+     */
+    private void delegated(boolean startTagOpen) {
+        pending = true;
+        this.startTagOpen = startTagOpen;
+    }
 
-    private final StringBuilder sb = new StringBuilder();
     /**
      * Escapes all code points > 65535 (multi-char) to &#xHHHHH;-representation, intended for XML.
-     * The usual problematic characters {@code <>&"} are also escaped.
-     * @return a representation directly usable for XML.
+     * The usual problematic characters {@code <>&} are also escaped, as well as {@code "\t\n\r} in attributes.
+     * Runs of chars that need no escaping are written directly from text.
      */
-    private String extendedUnicodeEscape(String in, final boolean isAttribute) {
-        // TODO: When upgrading to Java 1.8, use the codePointStream
-        sb.setLength(0);
-        int index = 0;
-        while (index < in.length()) {
-            int codePoint = in.codePointAt(index);
-            if (isAttribute && codePoint == '"') {
-                sb.append("&quot;");
-            } else if (codePoint == '<') {
-                sb.append("&lt;");
-            } else if (codePoint == '>') {
-                sb.append("&gt;");
-            } else if (codePoint == '&') {
-                sb.append("&amp;");
-            } else if (codePoint > 65535) {
-                sb.append("&#x").append(Integer.toHexString(codePoint)).append(";");
-            } else {
-                sb.append((char)codePoint);
+    private void escape(char[] text, int start, int len, char[][] escapes) throws IOException {
+        final int end = start + len;
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = text[i];
+            if (c < escapes.length) {
+                if (escapes[c] == null) {
+                    continue;
+                }
+                out.write(text, runStart, i - runStart);
+                out.write(escapes[c]);
+                runStart = i + 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text[i + 1])) {
+                out.write(text, runStart, i - runStart);
+                out.write(entity, 0, toEntity(Character.toCodePoint(c, text[i + 1])));
+                i++;
+                runStart = i + 1;
             }
-            index += codePoint < 65536 ? 1 : 2; // What about 3-character representations?
         }
-        return sb.toString();
+        out.write(text, runStart, end - runStart);
     }
 
-    // Direct delegates below
-
-    @Override
-    public void writeAttribute(String localName, String value) throws XMLStreamException {
-        outXML.writeAttribute(localName, value);
+    /**
+     * Writes {@code &#xHHHHH;} to {@link #entity}.
+     * @return the number of chars in the entity.
+     */
+    private int toEntity(int codePoint) {
+        int digits = Math.max(1, (32 - Integer.numberOfLeadingZeros(codePoint) + 3) / 4);
+        entity[0] = '&';
+        entity[1] = '#';
+        entity[2] = 'x';
+        for (int i = 0; i < digits; i++) {
+            entity[2 + digits - i] = HEX[(codePoint >>> (4 * i)) & 0xF];
+        }
+        entity[3 + digits] = ';';
+        return 4 + digits;
     }
 
-    @Override
-    public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
-        outXML.writeAttribute(prefix, namespaceURI, localName, value);
+    private static boolean hasSurrogate(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (isSurrogate(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    @Override
-    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
-        outXML.writeAttribute(namespaceURI, localName, value);
+    private static boolean hasSurrogate(char[] text, int start, int len) {
+        for (int i = start; i < start + len; i++) {
+            if (isSurrogate(text[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
     }
 
+
+    // Direct delegates below
+
     @Override
     public void writeStartElement(String localName) throws XMLStreamException {
+        delegated(true);
         outXML.writeStartElement(localName);
     }
 
     @Override
     public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+        delegated(true);
         outXML.writeStartElement(namespaceURI, localName);
     }
 
     @Override
     public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        delegated(true);
         outXML.writeStartElement(prefix, localName, namespaceURI);
     }
 
     @Override
     public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+        delegated(true);
         outXML.writeEmptyElement(namespaceURI, localName);
     }
 
     @Override
     public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        delegated(true);
         outXML.writeEmptyElement(prefix, localName, namespaceURI);
     }
 
     @Override
     public void writeEmptyElement(String localName) throws XMLStreamException {
+        delegated(true);
         outXML.writeEmptyElement(localName);
     }
 
     @Override
     public void writeEndElement() throws XMLStreamException {
+        delegated(false);
         outXML.writeEndElement();
     }
 
     @Override
     public void writeEndDocument() throws XMLStreamException {
+        delegated(false);
         outXML.writeEndDocument();
     }
 
@@ -161,60 +311,72 @@ public class XMLUnicodeStreamWriter implements XMLStreamWriter {
     @Override
     public void flush() throws XMLStreamException {
         outXML.flush();
+        pending = false;
     }
 
     @Override
     public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+        delegated(startTagOpen);
         outXML.writeNamespace(prefix, namespaceURI);
     }
 
     @Override
     public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+        delegated(startTagOpen);
         outXML.writeDefaultNamespace(namespaceURI);
     }
 
     @Override
     public void writeComment(String data) throws XMLStreamException {
+        delegated(false);
         outXML.writeComment(data);
     }
 
     @Override
     public void writeProcessingInstruction(String target) throws XMLStreamException {
+        delegated(false);
         outXML.writeProcessingInstruction(target);
     }
 
     @Override
     public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+        delegated(false);
         outXML.writeProcessingInstruction(target, data);
     }
 
     @Override
     public void writeCData(String data) throws XMLStreamException {
+        delegated(false);
         outXML.writeCData(data);
     }
 
     @Override
     public void writeDTD(String dtd) throws XMLStreamException {
+        delegated(false);
         outXML.writeDTD(dtd);
     }
 
     @Override
     public void writeEntityRef(String name) throws XMLStreamException {
+        delegated(false);
         outXML.writeEntityRef(name);
     }
 
     @Override
     public void writeStartDocument() throws XMLStreamException {
+        delegated(false);
         outXML.writeStartDocument();
     }
 
     @Override
     public void writeStartDocument(String version) throws XMLStreamException {
+        delegated(false);
         outXML.writeStartDocument(version);
     }
 
     @Override
     public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+        delegated(false);
         outXML.writeStartDocument(encoding, version);
     }
 
@@ -19,13 +19,12 @@
  */
 package dk.statsbiblioteket.util.xml;
 
-import dk.statsbiblioteket.util.Strings;
 import dk.statsbiblioteket.util.qa.QAInfo;
-import dk.statsbiblioteket.util.reader.ReplaceFactory;
-import dk.statsbiblioteket.util.reader.ReplaceReader;
 
 import javax.xml.stream.events.XMLEvent;
-import java.io.StringReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
 
 /**
  * Misc. helpers for XML handling.
@@ -34,29 +33,330 @@ import java.io.StringReader;
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class XMLUtil {
-
-    private static final ThreadLocal<ReplaceReader> localEncoder =
-            new ThreadLocal<ReplaceReader>() {
-                @Override
-                protected ReplaceReader initialValue() {
-                    return ReplaceFactory.getReplacer("&", "&amp;",
-                                                      "\"", "&quot;",
-                                                      "<", "&lt;",
-                                                      ">", "&gt;",
-                                                      "'", "&apos;");
-                }
-            };
+    /** The entities for the chars that are encoded, indexed by char. Null for chars that are not encoded. */
+    private static final char[][] ENCODINGS = new char['>' + 1][];
+    static {
+        ENCODINGS['&'] = "&amp;".toCharArray();
+        ENCODINGS['"'] = "&quot;".toCharArray();
+        ENCODINGS['<'] = "&lt;".toCharArray();
+        ENCODINGS['>'] = "&gt;".toCharArray();
+        ENCODINGS['\''] = "&apos;".toCharArray();
+    }
+    /** The maximum number of chars that a single char is encoded to. */
+    public static final int MAX_ENCODED_LENGTH = 6;
+    /** The maximum length of a decodable entity, excluding {@code &} and {@code ;}: {@code #x10FFFF} or
+     * {@code #1114111}. */
+    private static final int MAX_ENTITY_LENGTH = 8;
 
     /**
      * Performs a simple entity-encoding of input, making it safe to include in XML.
      *
      * @param input the text to encode.
-     * @return the text with &amp;, ", &lt; and &gt; encoded.
+     * @return the text with &amp;, ", ', &lt; and &gt; encoded. If nothing needs encoding, input is returned.
      */
     public static String encode(String input) {
-        ReplaceReader r = localEncoder.get();
-        r.setSource(new StringReader(input));
-        return Strings.flushLocal(r);
+        int first = firstEncodable(input, 0, input.length());
+        if (first == -1) {
+            return input;
+        }
+        StringBuilder sb = new StringBuilder(input.length() + 16);
+        sb.append(input, 0, first);
+        try {
+            encode(input, first, input.length(), sb);
+        } catch (IOException e) {
+            throw new IllegalStateException("Logic error: StringBuilder threw an IOException", e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Entity-encodes input and appends the result to out. Runs of chars that need no encoding are appended in bulk.
+     *
+     * @param input the text to encode.
+     * @param out   the destination for the encoded text.
+     * @throws IOException if out could not be appended to.
+     */
+    public static void encode(CharSequence input, Appendable out) throws IOException {
+        encode(input, 0, input.length(), out);
+    }
+
+    private static void encode(CharSequence input, int start, int end, Appendable out) throws IOException {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c < ENCODINGS.length && ENCODINGS[c] != null) {
+                if (runStart < i) {
+                    if (out instanceof Writer && input instanceof String) {
+                        ((Writer) out).write((String) input, runStart, i - runStart);
+                    } else {
+                        out.append(input, runStart, i);
+                    }
+                }
+                append(out, ENCODINGS[c]);
+                runStart = i + 1;
+            }
+        }
+        if (runStart < end) {
+            if (out instanceof Writer && input instanceof String) {
+                ((Writer) out).write((String) input, runStart, end - runStart);
+            } else {
+                out.append(input, runStart, end);
+            }
+        }
+    }
+
+    /**
+     * Entity-encodes input and appends the result to out. Runs of chars that need no encoding are appended in bulk.
+     *
+     * @param input  the text to encode.
+     * @param offset the start of the text in input.
+     * @param length the number of chars to encode.
+     * @param out    the destination for the encoded text.
+     * @throws IOException if out could not be appended to.
+     */
+    public static void encode(char[] input, int offset, int length, Appendable out) throws IOException {
+        final int end = offset + length;
+        CharBuffer view = null; // Only used for sinks that are neither StringBuilders nor Writers
+        int runStart = offset;
+        for (int i = offset; i <= end; i++) {
+            char[] encoding = null;
+            if (i < end) {
+                char c = input[i];
+                if (c >= ENCODINGS.length || (encoding = ENCODINGS[c]) == null) {
+                    continue;
+                }
+            }
+            if (runStart < i) {
+                if (out instanceof StringBuilder) {
+                    ((StringBuilder) out).append(input, runStart, i - runStart);
+                } else if (out instanceof Writer) {
+                    ((Writer) out).write(input, runStart, i - runStart);
+                } else {
+                    if (view == null) {
+                        view = CharBuffer.wrap(input);
+                    }
+                    out.append(view, runStart, i);
+                }
+            }
+            if (encoding != null) {
+                append(out, encoding);
+            }
+            runStart = i + 1;
+        }
+    }
+
+    /**
+     * Entity-encodes input directly into out.
+     *
+     * @param input     the text to encode.
+     * @param offset    the start of the text in input.
+     * @param length    the number of chars to encode.
+     * @param out       the destination for the encoded text. This must have room for the encoded text, which is at
+     *                  most {@link #MAX_ENCODED_LENGTH}{@code * length} chars. It must not be the same array as input.
+     * @param outOffset the position in out to write to.
+     * @return the number of chars written to out.
+     * @throws ArrayIndexOutOfBoundsException if out is too small for the encoded text.
+     */
+    public static int encode(char[] input, int offset, int length, char[] out, int outOffset) {
+        final int end = offset + length;
+        int pos = outOffset;
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            char c = input[i];
+            char[] encoding;
+            if (c >= ENCODINGS.length || (encoding = ENCODINGS[c]) == null) {
+                continue;
+            }
+            System.arraycopy(input, runStart, out, pos, i - runStart);
+            pos += i - runStart;
+            System.arraycopy(encoding, 0, out, pos, encoding.length);
+            pos += encoding.length;
+            runStart = i + 1;
+        }
+        System.arraycopy(input, runStart, out, pos, end - runStart);
+        return pos + end - runStart - outOffset;
+    }
+
+    private static void append(Appendable out, char[] chars) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(chars);
+        } else if (out instanceof Writer) {
+            ((Writer) out).write(chars);
+        } else {
+            for (char c: chars) {
+                out.append(c);
+            }
+        }
+    }
+
+    private static int firstEncodable(CharSequence input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c < ENCODINGS.length && ENCODINGS[c] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the named entities {@code &amp; &quot; &apos; &lt; &gt;} and the numeric entities {@code &#DDDD;}
+     * and {@code &#xHHHH;}. Malformed and unknown entities are left as they are.
+     *
+     * @param input entity-encoded text.
+     * @return the decoded text. If there are no entities, input is returned.
+     */
+    public static String decode(String input) {
+        int first = input.indexOf('&');
+        if (first == -1) {
+            return input;
+        }
+        StringBuilder sb = new StringBuilder(input.length());
+        sb.append(input, 0, first);
+        try {
+            decode(input, first, input.length(), sb);
+        } catch (IOException e) {
+            throw new IllegalStateException("Logic error: StringBuilder threw an IOException", e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes entities as described in {@link #decode(String)} and appends the result to out.
+     *
+     * @param input entity-encoded text.
+     * @param out   the destination for the decoded text.
+     * @throws IOException if out could not be appended to.
+     */
+    public static void decode(CharSequence input, Appendable out) throws IOException {
+        decode(input, 0, input.length(), out);
+    }
+
+    private static void decode(CharSequence input, int start, int end, Appendable out) throws IOException {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) != '&') {
+                continue;
+            }
+            long entity = parseEntity(input, i, end);
+            if (entity == -1) {
+                continue;
+            }
+            if (runStart < i) {
+                out.append(input, runStart, i);
+            }
+            int codePoint = (int) entity;
+            if (Character.isSupplementaryCodePoint(codePoint)) {
+                char[] pair = Character.toChars(codePoint);
+                out.append(pair[0]).append(pair[1]);
+            } else {
+                out.append((char) codePoint);
+            }
+            i += (int) (entity >>> 32) - 1;
+            runStart = i + 1;
+        }
+        if (runStart < end) {
+            out.append(input, runStart, end);
+        }
+    }
+
+    /**
+     * Decodes entities as described in {@link #decode(String)} directly into out. As decoded text is never longer
+     * than the encoded text, decoding in place is supported: out can be the same array as input, as long as
+     * {@code outOffset <= offset}.
+     *
+     * @param input     entity-encoded text.
+     * @param offset    the start of the text in input.
+     * @param length    the number of chars to decode.
+     * @param out       the destination for the decoded text. This must have room for length chars.
+     * @param outOffset the position in out to write to.
+     * @return the number of chars written to out.
+     */
+    public static int decode(char[] input, int offset, int length, char[] out, int outOffset) {
+        final int end = offset + length;
+        CharBuffer view = CharBuffer.wrap(input);
+        int pos = outOffset;
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (input[i] != '&') {
+                continue;
+            }
+            long entity = parseEntity(view, i, end);
+            if (entity == -1) {
+                continue;
+            }
+            System.arraycopy(input, runStart, out, pos, i - runStart);
+            pos += i - runStart;
+            pos += Character.toChars((int) entity, out, pos);
+            i += (int) (entity >>> 32) - 1;
+            runStart = i + 1;
+        }
+        System.arraycopy(input, runStart, out, pos, end - runStart);
+        return pos + end - runStart - outOffset;
+    }
+
+    /**
+     * @param input entity-encoded text.
+     * @param pos   the position of an {@code &} in input.
+     * @param end   the entity must end before this position.
+     * @return the length of the entity in the upper 32 bits and the code point in the lower 32 bits or -1 if there
+     *         is no valid entity at pos.
+     */
+    private static long parseEntity(CharSequence input, int pos, int end) {
+        int semicolon = -1;
+        for (int i = pos + 1; i < end && i <= pos + MAX_ENTITY_LENGTH + 1; i++) {
+            if (input.charAt(i) == ';') {
+                semicolon = i;
+                break;
+            }
+        }
+        if (semicolon == -1) {
+            return -1;
+        }
+        int nameStart = pos + 1;
+        int nameLength = semicolon - nameStart;
+        int codePoint = -1;
+        if (nameLength >= 2 && input.charAt(nameStart) == '#') {
+            boolean hex = input.charAt(nameStart + 1) == 'x';
+            int digitStart = nameStart + (hex ? 2 : 1);
+            if (digitStart == semicolon) {
+                return -1;
+            }
+            codePoint = 0;
+            for (int i = digitStart; i < semicolon; i++) {
+                int digit = Character.digit(input.charAt(i), hex ? 16 : 10);
+                if (digit == -1) {
+                    return -1;
+                }
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+            }
+            if (!Character.isValidCodePoint(codePoint)) {
+                return -1;
+            }
+        } else if (matches(input, nameStart, semicolon, "amp")) {
+            codePoint = '&';
+        } else if (matches(input, nameStart, semicolon, "lt")) {
+            codePoint = '<';
+        } else if (matches(input, nameStart, semicolon, "gt")) {
+            codePoint = '>';
+        } else if (matches(input, nameStart, semicolon, "quot")) {
+            codePoint = '"';
+        } else if (matches(input, nameStart, semicolon, "apos")) {
+            codePoint = '\'';
+        }
+        return codePoint == -1 ? -1 : ((long) (semicolon - pos + 1)) << 32 | codePoint;
+    }
+
+    private static boolean matches(CharSequence input, int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (input.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
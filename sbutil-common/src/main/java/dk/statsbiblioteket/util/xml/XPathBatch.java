@@ -0,0 +1,739 @@
+package dk.statsbiblioteket.util.xml;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A named set of typed XPath expressions that are evaluated together against
+ * the same node with {@link XPathSelectorImpl#selectMany(Node, XPathBatch)}
+ * or {@link DOM#selectMany(Node, XPathBatch)}.
+ * <p/>
+ * The semantics of each entry matches the corresponding {@code select*}
+ * method on {@link XPathSelector}, including default values.
+ * <p/>
+ * When the batch is evaluated for the first time, the location paths of the
+ * expressions are analysed and paths sharing a prefix, such as
+ * {@code /record/title} and {@code /record/author}, are grouped. The prefix
+ * is evaluated once and the remainders are evaluated relative to the result.
+ * This is only done when the prefix selects exactly one node, so the result is
+ * always the same as evaluating the expressions individually.
+ * <p/>
+ * The compiled expressions are kept per thread, so a batch can be shared
+ * between threads once all entries have been added. Adding entries while the
+ * batch is being evaluated is not supported.
+ */
+public class XPathBatch {
+    private static final Log log = LogFactory.getLog(XPathBatch.class);
+
+    /**
+     * The value types of the entries.
+     */
+    public enum Type {STRING, INTEGER, DOUBLE, BOOLEAN, NODE, NODELIST}
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private volatile Plan plan = null;
+
+    private final ThreadLocal<Compiled> localCompiled =
+            new ThreadLocal<Compiled>();
+
+    /**
+     * Add an entry that is extracted as a String. If the path does not match,
+     * the empty String is used.
+     *
+     * @param name  the name of the entry in the {@link Result}.
+     * @param xpath the XPath to extract.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectString(Node, String)
+     */
+    public XPathBatch addString(String name, String xpath) {
+        return addString(name, xpath, "");
+    }
+
+    /**
+     * Add an entry that is extracted as a String.
+     *
+     * @param name         the name of the entry in the {@link Result}.
+     * @param xpath        the XPath to extract.
+     * @param defaultValue used if the path does not match.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectString(Node, String, String)
+     */
+    public XPathBatch addString(String name, String xpath,
+                                String defaultValue) {
+        return add(name, xpath, Type.STRING, defaultValue);
+    }
+
+    /**
+     * Add an entry that is extracted as an Integer. If the path does not
+     * match, {@code null} is used.
+     *
+     * @param name  the name of the entry in the {@link Result}.
+     * @param xpath the XPath to extract.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectInteger(Node, String)
+     */
+    public XPathBatch addInteger(String name, String xpath) {
+        return addInteger(name, xpath, null);
+    }
+
+    /**
+     * Add an entry that is extracted as an Integer.
+     *
+     * @param name         the name of the entry in the {@link Result}.
+     * @param xpath        the XPath to extract.
+     * @param defaultValue used if the path does not match.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectInteger(Node, String, Integer)
+     */
+    public XPathBatch addInteger(String name, String xpath,
+                                 Integer defaultValue) {
+        return add(name, xpath, Type.INTEGER, defaultValue);
+    }
+
+    /**
+     * Add an entry that is extracted as a Double. If the path does not
+     * match, {@code null} is used.
+     *
+     * @param name  the name of the entry in the {@link Result}.
+     * @param xpath the XPath to extract.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectDouble(Node, String)
+     */
+    public XPathBatch addDouble(String name, String xpath) {
+        return addDouble(name, xpath, null);
+    }
+
+    /**
+     * Add an entry that is extracted as a Double.
+     *
+     * @param name         the name of the entry in the {@link Result}.
+     * @param xpath        the XPath to extract.
+     * @param defaultValue used if the path does not match.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectDouble(Node, String, Double)
+     */
+    public XPathBatch addDouble(String name, String xpath,
+                                Double defaultValue) {
+        return add(name, xpath, Type.DOUBLE, defaultValue);
+    }
+
+    /**
+     * Add an entry that is extracted as a Boolean. If the path does not
+     * match, {@code false} is used.
+     *
+     * @param name  the name of the entry in the {@link Result}.
+     * @param xpath the XPath to extract.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectBoolean(Node, String)
+     */
+    public XPathBatch addBoolean(String name, String xpath) {
+        return addBoolean(name, xpath, false);
+    }
+
+    /**
+     * Add an entry that is extracted as a Boolean.
+     *
+     * @param name         the name of the entry in the {@link Result}.
+     * @param xpath        the XPath to extract.
+     * @param defaultValue used if the path does not match.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectBoolean(Node, String, Boolean)
+     */
+    public XPathBatch addBoolean(String name, String xpath,
+                                 Boolean defaultValue) {
+        return add(name, xpath, Type.BOOLEAN, defaultValue);
+    }
+
+    /**
+     * Add an entry that is extracted as a Node.
+     *
+     * @param name  the name of the entry in the {@link Result}.
+     * @param xpath the XPath to extract.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectNode(Node, String)
+     */
+    public XPathBatch addNode(String name, String xpath) {
+        return add(name, xpath, Type.NODE, null);
+    }
+
+    /**
+     * Add an entry that is extracted as a NodeList.
+     *
+     * @param name  the name of the entry in the {@link Result}.
+     * @param xpath the XPath to extract.
+     * @return the batch, for chaining.
+     * @see XPathSelector#selectNodeList(Node, String)
+     */
+    public XPathBatch addNodeList(String name, String xpath) {
+        return add(name, xpath, Type.NODELIST, null);
+    }
+
+    private synchronized XPathBatch add(String name, String xpath, Type type,
+                                        Object defaultValue) {
+        if (names.containsKey(name)) {
+            throw new IllegalArgumentException(
+                    "An entry named '" + name + "' is already present");
+        }
+        names.put(name, entries.size());
+        entries.add(new Entry(name, xpath, type, defaultValue));
+        plan = null;
+        return this;
+    }
+
+    /**
+     * @return the number of entries in the batch.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Evaluate all entries against the given node. Errors are logged and
+     * results in the default value for the entry.
+     *
+     * @param node      the node to evaluate against.
+     * @param nsContext the namespace context for compiling the expressions.
+     * @return the values of all entries.
+     */
+    Result evaluate(Node node, NamespaceContext nsContext) {
+        Plan plan = getPlan();
+        Compiled compiled = localCompiled.get();
+        if (compiled == null || compiled.plan != plan
+            || compiled.nsContext != nsContext) {
+            compiled = new Compiled(plan, nsContext);
+            localCompiled.set(compiled);
+        }
+        Object[] values = new Object[plan.entries.length];
+        evaluate(plan.root, node, node, compiled, values);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = plan.entries[i].convert(values[i]);
+        }
+        return new Result(this, values);
+    }
+
+    private void evaluate(Group group, Node context, Node origin,
+                          Compiled compiled, Object[] values) {
+        for (Member member : group.members) {
+            values[member.entry] = evaluate(
+                    compiled, member.expression, context,
+                    compiled.plan.entries[member.entry].primary);
+        }
+        for (Group child : group.children) {
+            NodeList prefix = (NodeList) evaluate(
+                    compiled, child.prefix, context, XPathConstants.NODESET);
+            if (prefix == null || prefix.getLength() > 1) {
+                evaluateFull(child, origin, compiled, values);
+            } else if (prefix.getLength() == 0) {
+                evaluateEmpty(child, prefix, compiled.plan, values);
+            } else {
+                evaluate(child, prefix.item(0), origin, compiled, values);
+            }
+        }
+    }
+
+    private void evaluateFull(Group group, Node origin, Compiled compiled,
+                              Object[] values) {
+        for (Member member : group.members) {
+            values[member.entry] = evaluate(
+                    compiled, compiled.plan.full[member.entry], origin,
+                    compiled.plan.entries[member.entry].primary);
+        }
+        for (Group child : group.children) {
+            evaluateFull(child, origin, compiled, values);
+        }
+    }
+
+    private void evaluateEmpty(Group group, NodeList empty, Plan plan,
+                               Object[] values) {
+        for (Member member : group.members) {
+            QName primary = plan.entries[member.entry].primary;
+            values[member.entry] =
+                    primary == XPathConstants.STRING ? "" :
+                    primary == XPathConstants.NUMBER ? Double.NaN :
+                    primary == XPathConstants.NODESET ? empty : null;
+        }
+        for (Group child : group.children) {
+            evaluateEmpty(child, empty, plan, values);
+        }
+    }
+
+    private Object evaluate(Compiled compiled, int expression, Node context,
+                            QName returnType) {
+        XPathExpression exp = compiled.expressions[expression];
+        if (exp == null) {
+            return null;
+        }
+        try {
+            return exp.evaluate(context, returnType);
+        } catch (XPathExpressionException e) {
+            log.warn(String.format(
+                    "Error in XPath expression '%s' when selecting %s: %s",
+                    compiled.plan.expressions[expression],
+                    returnType.getLocalPart(), e.getMessage()), e);
+            return null;
+        }
+    }
+
+    private Plan getPlan() {
+        Plan current = plan;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (plan == null) {
+                plan = new Plan(entries);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * @return a human readable representation of the evaluation plan, showing
+     *         the shared prefixes.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("XPathBatch(").append(entries.size()).append(" entries)");
+        Plan plan = getPlan();
+        plan.root.toString(sb, plan, 1);
+        return sb.toString();
+    }
+
+    /**
+     * The values for a single evaluation of an {@link XPathBatch}.
+     */
+    public static class Result {
+        private final XPathBatch batch;
+        private final Object[] values;
+
+        Result(XPathBatch batch, Object[] values) {
+            this.batch = batch;
+            this.values = values;
+        }
+
+        /**
+         * @param name the name of an entry.
+         * @return the value for the entry.
+         * @throws IllegalArgumentException if there is no entry with the name.
+         */
+        public Object get(String name) {
+            Integer index = batch.names.get(name);
+            if (index == null) {
+                throw new IllegalArgumentException(
+                        "No entry named '" + name + "'");
+            }
+            return values[index];
+        }
+
+        public String getString(String name) {
+            return (String) get(name);
+        }
+
+        public Integer getInteger(String name) {
+            return (Integer) get(name);
+        }
+
+        public Double getDouble(String name) {
+            return (Double) get(name);
+        }
+
+        public Boolean getBoolean(String name) {
+            return (Boolean) get(name);
+        }
+
+        public Node getNode(String name) {
+            return (Node) get(name);
+        }
+
+        public NodeList getNodeList(String name) {
+            return (NodeList) get(name);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Result(");
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(batch.entries.get(i).name).append("=")
+                        .append(values[i]);
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    private static class Entry {
+        private final String name;
+        private final String full;
+        private final Type type;
+        private final Object defaultValue;
+        /** The type used when evaluating the expression. */
+        private final QName primary;
+
+        public Entry(String name, String xpath, Type type,
+                     Object defaultValue) {
+            this.name = name;
+            this.full = xpath;
+            this.type = type;
+            this.defaultValue = defaultValue;
+            switch (type) {
+                case STRING:
+                    primary = "".equals(defaultValue) ?
+                              XPathConstants.STRING : XPathConstants.NODE;
+                    break;
+                case INTEGER:
+                    primary = XPathConstants.STRING;
+                    break;
+                case DOUBLE:
+                    primary = XPathConstants.NUMBER;
+                    break;
+                case BOOLEAN:
+                    primary = XPathConstants.NODE;
+                    break;
+                case NODE:
+                    primary = XPathConstants.NODE;
+                    break;
+                case NODELIST:
+                    primary = XPathConstants.NODESET;
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown type " + type);
+            }
+        }
+
+        /**
+         * Convert the result of evaluating {@link #primary} to the value
+         * returned by the corresponding {@code select*} method.
+         */
+        public Object convert(Object value) {
+            switch (type) {
+                case STRING:
+                    if (primary == XPathConstants.STRING) {
+                        return value;
+                    }
+                    return value == null ? defaultValue :
+                           stringValue((Node) value);
+                case INTEGER:
+                    String s = (String) value;
+                    return s == null || "".equals(s) ?
+                           defaultValue : Integer.valueOf(s);
+                case DOUBLE:
+                    Double d = (Double) value;
+                    return d == null || d.isNaN() ? defaultValue : d;
+                case BOOLEAN:
+                    return value == null ? defaultValue : Boolean.parseBoolean(
+                            stringValue((Node) value));
+                default:
+                    return value;
+            }
+        }
+
+        /**
+         * The XPath string-value of the node, as returned by the
+         * {@code string()} function.
+         */
+        private String stringValue(Node node) {
+            if (node.getNodeType() == Node.DOCUMENT_NODE) {
+                // Documents have no text content, but only the root element
+                // can contain text
+                Node root = ((Document) node).getDocumentElement();
+                return root == null ? "" : root.getTextContent();
+            }
+            return node.getTextContent();
+        }
+    }
+
+    /**
+     * The shared evaluation plan for the current entries.
+     */
+    private static class Plan {
+        private final Entry[] entries;
+        /** All distinct expressions that needs to be compiled. */
+        private final String[] expressions;
+        /** The index of the full expression for each entry. */
+        private final int[] full;
+        private final Group root = new Group(-1);
+
+        public Plan(List<Entry> entryList) {
+            entries = entryList.toArray(new Entry[entryList.size()]);
+            Map<String, Integer> expressionIndex =
+                    new LinkedHashMap<String, Integer>();
+
+            full = new int[entries.length];
+            Step steps = new Step();
+            for (int i = 0; i < entries.length; i++) {
+                full[i] = index(expressionIndex, entries[i].full);
+                List<String> path = splitPath(entries[i].full);
+                if (path == null) {
+                    root.members.add(new Member(
+                            i, index(expressionIndex, entries[i].full)));
+                } else {
+                    steps.add(path, 0, i);
+                }
+            }
+            steps.build(root, new ArrayList<String>(), expressionIndex);
+            expressions = expressionIndex.keySet().toArray(
+                    new String[expressionIndex.size()]);
+        }
+    }
+
+    private static int index(Map<String, Integer> expressionIndex,
+                             String expression) {
+        Integer index = expressionIndex.get(expression);
+        if (index == null) {
+            index = expressionIndex.size();
+            expressionIndex.put(expression, index);
+        }
+        return index;
+    }
+
+    /**
+     * Trie over location steps, used for finding shared prefixes.
+     */
+    private static class Step {
+        private final Map<String, Step> children =
+                new LinkedHashMap<String, Step>();
+        private final List<Integer> ending = new ArrayList<Integer>();
+        /** The number of entries with paths longer than this step. */
+        private int passing = 0;
+
+        public void add(List<String> path, int depth, int entry) {
+            if (depth == path.size()) {
+                ending.add(entry);
+                return;
+            }
+            passing++;
+            Step child = children.get(path.get(depth));
+            if (child == null) {
+                child = new Step();
+                children.put(path.get(depth), child);
+            }
+            child.add(path, depth + 1, entry);
+        }
+
+        /**
+         * Build evaluation groups from the trie. A step that is passed by at
+         * least two entries becomes a group of its own.
+         *
+         * @param group   the group for the nearest shared prefix.
+         * @param pending the steps after the prefix for the group.
+         */
+        public void build(Group group, List<String> pending,
+                          Map<String, Integer> expressionIndex) {
+            for (Integer entry : ending) {
+                group.members.add(new Member(
+                        entry, index(expressionIndex, join(pending))));
+            }
+            for (Map.Entry<String, Step> child : children.entrySet()) {
+                List<String> childPending = new ArrayList<String>(pending);
+                childPending.add(child.getKey());
+                Step step = child.getValue();
+                if (step.passing >= 2) {
+                    for (Integer entry : step.ending) {
+                        group.members.add(new Member(entry, index(
+                                expressionIndex, join(childPending))));
+                    }
+                    Group sub = new Group(
+                            index(expressionIndex, join(childPending)));
+                    group.children.add(sub);
+                    step.ending.clear();
+                    step.build(sub, new ArrayList<String>(), expressionIndex);
+                } else {
+                    step.build(group, childPending, expressionIndex);
+                }
+            }
+        }
+
+        private String join(List<String> steps) {
+            StringBuilder sb = new StringBuilder();
+            for (String step : steps) {
+                if (sb.length() > 0) {
+                    sb.append("/");
+                }
+                sb.append(step);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Split a location path into steps. The first step of an absolute path
+     * starts with {@code /}. Only simple paths with at least two steps, where
+     * node tests with parentheses and attributes are only used in the last
+     * step, are split.
+     *
+     * @param xpath an XPath expression.
+     * @return the steps in the path or null if the path could not be split.
+     */
+    static List<String> splitPath(String xpath) {
+        if (xpath.startsWith("//")) {
+            return null;
+        }
+        List<String> steps = new ArrayList<String>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = xpath.startsWith("/") ? 1 : 0; i < xpath.length(); i++) {
+            char c = xpath.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            switch (c) {
+                case '\'':
+                case '"':
+                    quote = c;
+                    break;
+                case '[':
+                case '(':
+                    if (c == '(' && depth == 0 && i == start) {
+                        return null; // Grouping or function call
+                    }
+                    depth++;
+                    break;
+                case ']':
+                case ')':
+                    depth--;
+                    break;
+                case '/':
+                    if (depth == 0) {
+                        if (i == start) {
+                            return null; // Empty step, i.e. '//'
+                        }
+                        steps.add(xpath.substring(start, i));
+                        start = i + 1;
+                    }
+                    break;
+                case '*':
+                    if (depth == 0 && i != start
+                        && ":@".indexOf(xpath.charAt(i - 1)) == -1) {
+                        return null; // Multiplication
+                    }
+                    break;
+                case '|': case '=': case '<': case '>': case '!': case ',':
+                case '+': case ' ': case '\t': case '\n': case '\r':
+                case '$':
+                    if (depth == 0) {
+                        return null; // Operators or variables
+                    }
+                    break;
+                default:
+            }
+        }
+        if (quote != 0 || depth != 0 || start == xpath.length()) {
+            return null;
+        }
+        steps.add(xpath.substring(start));
+        if (steps.size() < 2) {
+            return null;
+        }
+        for (int i = 0; i < steps.size(); i++) {
+            String step = steps.get(i);
+            char first = step.charAt(step.startsWith("/") ? 1 : 0);
+            if (Character.isDigit(first) || first == '-' || first == '.'
+                && step.length() > 1 && step.charAt(1) != '.') {
+                return null; // Numbers
+            }
+            if (i < steps.size() - 1 && (first == '@'
+                                         || step.startsWith("attribute::")
+                                         || topLevelParenthesis(step))) {
+                return null;
+            }
+        }
+        return steps;
+    }
+
+    private static boolean topLevelParenthesis(String step) {
+        int predicate = step.indexOf('[');
+        int parenthesis = step.indexOf('(');
+        return parenthesis != -1 && (predicate == -1 || parenthesis < predicate);
+    }
+
+    private static class Group {
+        /** The prefix expression relative to the parent group. */
+        private final int prefix;
+        private final List<Member> members = new ArrayList<Member>();
+        private final List<Group> children = new ArrayList<Group>();
+
+        public Group(int prefix) {
+            this.prefix = prefix;
+        }
+
+        public void toString(StringBuilder sb, Plan plan, int indent) {
+            for (Member member : members) {
+                sb.append("\n");
+                indent(sb, indent);
+                sb.append(plan.entries[member.entry].name).append(": ")
+                        .append(plan.expressions[member.expression]);
+            }
+            for (Group child : children) {
+                sb.append("\n");
+                indent(sb, indent);
+                sb.append(plan.expressions[child.prefix]).append(" ->");
+                child.toString(sb, plan, indent + 1);
+            }
+        }
+
+        private void indent(StringBuilder sb, int indent) {
+            for (int i = 0; i < indent; i++) {
+                sb.append("  ");
+            }
+        }
+    }
+
+    private static class Member {
+        private final int entry;
+        /** The expression relative to the group. */
+        private final int expression;
+
+        public Member(int entry, int expression) {
+            this.entry = entry;
+            this.expression = expression;
+        }
+    }
+
+    /**
+     * The compiled expressions for a plan, for use by a single thread.
+     */
+    private static class Compiled {
+        private final Plan plan;
+        private final NamespaceContext nsContext;
+        private final XPathExpression[] expressions;
+
+        public Compiled(Plan plan, NamespaceContext nsContext) {
+            this.plan = plan;
+            this.nsContext = nsContext;
+            expressions = new XPathExpression[plan.expressions.length];
+            for (int i = 0; i < expressions.length; i++) {
+                try {
+                    expressions[i] = XPathSelectorImpl.compile(
+                            nsContext, plan.expressions[i]);
+                } catch (XPathExpressionException e) {
+                    log.warn(String.format(
+                            "Error compiling XPath expression '%s': %s",
+                            plan.expressions[i], e.getMessage()), e);
+                }
+            }
+        }
+    }
+}
@@ -8,27 +8,75 @@ import org.w3c.dom.NodeList;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
 import javax.xml.xpath.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- *
+ * Thread safe implementation of XPathSelector without global locks.
+ * <p/>
+ * Neither {@link XPath} nor {@link XPathExpression} are thread safe, so each
+ * thread has its own compiler and its own cache of compiled expressions.
+ * Expressions that cannot be compiled are registered in a map shared between
+ * all threads using the selector, so that invalid expressions are only
+ * compiled and reported once.
+ * <p/>
+ * Note that evaluation is performed directly on the given DOM. Most DOM
+ * implementations are not thread safe, even for reading, so concurrent
+ * selections on the same DOM should use {@link SynchronousXPathSelector}.
  */
 public class XPathSelectorImpl implements XPathSelector {
 
     private static final Log log = LogFactory.getLog(XPathSelector.class);
 
     /**
-     * Importatnt: All access to the xpathCompiler should be synchronized on it
-     * since it is not thread safe!
+     * The factory is only used for creating thread local compilers.
+     * Access must be synchronized on it as it is not thread safe.
      */
-    private static final XPath xpathCompiler =
-            XPathFactory.newInstance().newXPath();
+    private static final XPathFactory xpathFactory = XPathFactory.newInstance();
 
-    private LRUCache<String, XPathExpression> cache;
-    private NamespaceContext nsContext;
+    private static final ThreadLocal<XPath> localCompiler =
+            new ThreadLocal<XPath>() {
+                @Override
+                protected XPath initialValue() {
+                    synchronized (xpathFactory) {
+                        return xpathFactory.newXPath();
+                    }
+                }
+            };
+
+    private final NamespaceContext nsContext;
+    private final int cacheSize;
+    private final ThreadLocal<ExpressionCache> localCache;
+    /**
+     * Incremented on {@link #clearCache()}. Thread local caches compare this
+     * with their own generation and clear themselves on mismatch.
+     */
+    private final AtomicInteger generation = new AtomicInteger(0);
+    /**
+     * Shared registry of expressions that failed compilation, mapped to the
+     * error message from the compiler.
+     */
+    private final ConcurrentMap<String, String> invalid =
+            new ConcurrentHashMap<String, String>();
 
     public XPathSelectorImpl(NamespaceContext nsContext, int cacheSize) {
         this.nsContext = nsContext;
-        this.cache = new LRUCache<String, XPathExpression>(cacheSize);
+        this.cacheSize = cacheSize;
+        localCache = new ThreadLocal<ExpressionCache>() {
+            @Override
+            protected ExpressionCache initialValue() {
+                return new ExpressionCache(XPathSelectorImpl.this.cacheSize);
+            }
+        };
+    }
+
+    /**
+     * @return the namespace context used for compiling expressions. Might be
+     *         null.
+     */
+    public NamespaceContext getNamespaceContext() {
+        return nsContext;
     }
 
     @Override
@@ -108,25 +156,31 @@ public class XPathSelectorImpl implements XPathSelector {
         return (Node) selectObject(dom, xpath, XPathConstants.NODE);
     }
 
+    /**
+     * Evaluate all entries in the batch against the given node. This is
+     * faster than calling the {@code select*} methods for each entry, as
+     * the expressions are looked up once and shared path prefixes are only
+     * evaluated once.
+     *
+     * Note: This is a convenience method that logs exceptions instead of
+     * throwing them.
+     *
+     * Note: This is not part of {@link XPathSelector}, as adding methods to
+     * the interface would break external implementations.
+     *
+     * @param node  the node to evaluate the batch against.
+     * @param batch the named and typed expressions to evaluate.
+     * @return the values for the entries in the batch.
+     */
+    public XPathBatch.Result selectMany(Node node, XPathBatch batch) {
+        return batch.evaluate(node, nsContext);
+    }
+
     protected Object selectObject(Node dom, String xpath, QName returnType) {
         Object retval = null;
 
         try {
-            // Get the compiled xpath from the cache or compile and
-            // cache it if we don't have it
-            XPathExpression exp = cache.get(xpath);
-            if (exp == null) {
-                synchronized (xpathCompiler) {
-                    if (nsContext != null) {
-                        xpathCompiler.setNamespaceContext(nsContext);
-                    }
-                    exp = xpathCompiler.compile(xpath);
-                    cache.put(xpath, exp);
-                }
-
-            }
-
-            retval = exp.evaluate(dom, returnType);
+            retval = getExpression(xpath).evaluate(dom, returnType);
         } catch (NullPointerException e) {
             log.debug(String.format(
                     "NullPointerException when extracting XPath '%s' on " +
@@ -136,12 +190,109 @@ public class XPathSelectorImpl implements XPathSelector {
             log.warn(String.format(
                     "Error in XPath expression '%s' when selecting %s: %s",
                     xpath, returnType.getLocalPart(), e.getMessage()), e);
+        } catch (InvalidExpressionException e) {
+            log.debug(String.format(
+                    "Skipping previously failed XPath expression '%s' when " +
+                    "selecting %s: %s",
+                    xpath, returnType.getLocalPart(), e.getMessage()));
         }
 
         return retval;
     }
 
+    /**
+     * Get the compiled expression from the cache for the current thread or
+     * compile and cache it if it is not present. The returned expression must
+     * not be shared with other threads.
+     *
+     * @param xpath the expression to compile.
+     * @return the compiled expression.
+     * @throws XPathExpressionException    if the expression could not be
+     *                                     compiled for the first time.
+     * @throws InvalidExpressionException if the expression has previously
+     *                                     failed compilation.
+     */
+    XPathExpression getExpression(String xpath)
+            throws XPathExpressionException, InvalidExpressionException {
+        ExpressionCache cache = localCache.get();
+        int gen = generation.get();
+        if (cache.generation != gen) {
+            cache.clear();
+            cache.generation = gen;
+        }
+        XPathExpression exp = cache.get(xpath);
+        if (exp != null) {
+            return exp;
+        }
+
+        String error = invalid.get(xpath);
+        if (error != null) {
+            throw new InvalidExpressionException(error);
+        }
+
+        try {
+            exp = compile(nsContext, xpath);
+        } catch (XPathExpressionException e) {
+            if (invalid.size() >= cacheSize) {
+                invalid.clear();
+            }
+            invalid.put(xpath, String.valueOf(e.getMessage()));
+            throw e;
+        }
+        cache.put(xpath, exp);
+        return exp;
+    }
+
+    /**
+     * Compile the given expression with the compiler for the current thread.
+     * The returned expression must not be shared with other threads.
+     *
+     * @param nsContext the namespace context to use. Might be null.
+     * @param xpath     the expression to compile.
+     * @return the compiled expression.
+     * @throws XPathExpressionException if the expression could not be
+     *                                  compiled.
+     */
+    static XPathExpression compile(NamespaceContext nsContext, String xpath)
+            throws XPathExpressionException {
+        XPath compiler = localCompiler.get();
+        compiler.reset();
+        if (nsContext != null) {
+            compiler.setNamespaceContext(nsContext);
+        }
+        return compiler.compile(xpath);
+    }
+
+    /**
+     * Clears the cached expressions for all threads. The caches for other
+     * threads are cleared lazily on their next selection.
+     */
     void clearCache() {
-        cache.clear();
+        generation.incrementAndGet();
+        invalid.clear();
+    }
+
+    /**
+     * Compiled expressions for a single thread.
+     */
+    private static class ExpressionCache
+            extends LRUCache<String, XPathExpression> {
+        private static final long serialVersionUID = 1L;
+        private int generation = 0;
+
+        public ExpressionCache(int sizeLimit) {
+            super(sizeLimit);
+        }
+    }
+
+    /**
+     * Signals that an expression has previously failed compilation.
+     */
+    static class InvalidExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidExpressionException(String message) {
+            super(message);
+        }
     }
 }
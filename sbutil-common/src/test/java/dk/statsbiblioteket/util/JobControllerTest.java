@@ -19,9 +19,12 @@ import junit.framework.TestCase;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -182,6 +185,146 @@ public class JobControllerTest extends TestCase {
                    popped >0 && popped < JOBS);
     }
 
+    public void testBoundedBlocking() throws Exception {
+        final int JOBS = 20;
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        JobController<Long> controller = JobController.threadPerJob(3, true);
+        for (int i = 0 ; i < JOBS ; i++) {
+            controller.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    int current = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                    }
+                    Thread.sleep(10);
+                    running.decrementAndGet();
+                    return 1L;
+                }
+            });
+            assertTrue("There should be at most 3 pending jobs but there were " + controller.getPendingCount(),
+                       controller.getPendingCount() <= 3);
+        }
+        assertEquals("All jobs should be finished", JOBS, controller.popAll().size());
+        assertTrue("At most 3 jobs should run concurrently but there were " + maxRunning.get(),
+                   maxRunning.get() <= 3);
+        log.info("Virtual threads supported: " + JobController.isVirtualThreadsSupported() + ", " + controller);
+    }
+
+    public void testBoundedReject() throws Exception {
+        JobController<Long> controller = new JobController<Long>(
+                JobController.createVirtualThreadExecutor(), 1, false, false);
+        controller.submit(new Shout(100));
+        try {
+            controller.submit(new Shout(100));
+            fail("Submitting beyond the limit should be rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertEquals("Only the accepted job should be counted", 1, controller.getTaskCount());
+        assertEquals("The accepted job should finish", 1, controller.popAll().size());
+        controller.submit(new Shout(1));
+        assertEquals("A new job should be accepted after the first finished", 1, controller.popAll().size());
+        // The permit must be released before the Future is available, so there is no window for rejection
+        for (int i = 0 ; i < 1000 ; i++) {
+            controller.submit(new Shout(1));
+            controller.take();
+        }
+        assertEquals("The controller should be empty after take", 0, controller.getTaskCount());
+    }
+
+    public void testForkJoin() throws Exception {
+        final int JOBS = 100;
+        final AtomicInteger counter = new AtomicInteger(0);
+        JobController<Long> controller = new JobController<Long>(
+                JobController.createForkJoinExecutor(4), 10, true, false) {
+            @Override
+            protected void afterExecute(Future<Long> finished) {
+                counter.incrementAndGet();
+            }
+        };
+        for (int i = 0 ; i < JOBS ; i++) {
+            controller.submit(new Shout(1));
+        }
+        assertEquals("All jobs should be finished", JOBS, controller.popAll().size());
+        assertEquals("The callback count should be correct", JOBS, counter.get());
+        assertTrue("toString should work for a ForkJoinPool", controller.toString().contains("issued=" + JOBS));
+    }
+
+    public void testBoundedAutoEmpty() throws Exception {
+        final int JOBS = 10;
+        final AtomicInteger counter = new AtomicInteger(0);
+        JobController<Long> controller = new JobController<Long>(
+                JobController.createForkJoinExecutor(2), 5, true, true) {
+            @Override
+            protected void afterExecute(Future<Long> finished) {
+                counter.incrementAndGet();
+            }
+        };
+        for (int i = 0 ; i < JOBS ; i++) {
+            controller.submit(new Shout(1));
+        }
+        long end = System.currentTimeMillis() + 1000;
+        while (counter.get() < JOBS && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals("The auto removed count should be all the jobs", JOBS, counter.get());
+        assertEquals("The JobController should be empty", 0, controller.getTaskCount());
+    }
+
+    public void testIterateOrdered() throws Exception {
+        final int JOBS = 50;
+        final int WINDOW = 8;
+        List<Callable<Long>> jobs = new ArrayList<Callable<Long>>(JOBS);
+        for (int i = 0 ; i < JOBS ; i++) {
+            final long id = i;
+            jobs.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    Thread.sleep((id * 7) % 5); // Jobs finish out of order
+                    return id;
+                }
+            });
+        }
+        JobController<Long> controller = new JobController<Long>(4);
+        Iterator<Future<Long>> results = controller.iterateOrdered(jobs.iterator(), WINDOW);
+        long expected = 0;
+        while (results.hasNext()) {
+            Future<Long> result = results.next();
+            assertTrue("The returned Future should be done", result.isDone());
+            assertEquals("The results should be in submit order", Long.valueOf(expected++), result.get());
+            assertTrue("At most " + WINDOW + " jobs should be pending, but there were " + controller.getTaskCount(),
+                       controller.getTaskCount() <= WINDOW);
+        }
+        assertEquals("All results should be returned", JOBS, expected);
+        assertEquals("The controller should be empty", 0, controller.getTaskCount());
+    }
+
+    public void testSnapshot() throws Exception {
+        final int JOBS = 20;
+        JobController<Long> controller = new JobController<Long>(2);
+        for (int i = 0 ; i < JOBS ; i++) {
+            controller.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    Thread.sleep(10);
+                    return 1L;
+                }
+            });
+        }
+        controller.popAll();
+        JobController.Snapshot snapshot = controller.getSnapshot();
+        assertEquals("All jobs should be issued", JOBS, snapshot.getIssued());
+        assertEquals("All run times should be recorded", JOBS, snapshot.getRunTime().getCount());
+        assertTrue("The median run time should be at least 10ms but was " + snapshot.getRunTime().getMedian() + "us",
+                   snapshot.getRunTime().getMedian() >= 9000);
+        assertTrue("Some jobs should wait in the queue as there are only 2 threads",
+                   snapshot.getQueueWait().getMax() >= 10000);
+        assertTrue("toString should include the timings", controller.toString().contains("runTime(median="));
+        log.info(snapshot);
+    }
+
     private class Shout implements Callable<Long> {
         private final long wait;
 
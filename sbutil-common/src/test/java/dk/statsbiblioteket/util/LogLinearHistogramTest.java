@@ -0,0 +1,93 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util;
+
+import junit.framework.TestCase;
+
+public class LogLinearHistogramTest extends TestCase {
+
+    public void testBucketBoundaries() {
+        for (int bits: new int[]{1, 3, 7, 12}) {
+            LogLinearHistogram histogram = new LogLinearHistogram(bits);
+            int lastIndex = -1;
+            for (long value: new long[]{0, 1, 2, 3, 127, 128, 129, 1000, 65535, 65536, 1L << 40, Long.MAX_VALUE}) {
+                int index = histogram.index(value);
+                assertTrue("Value " + value + " with bits " + bits + " should be >= the lowest value for its bucket",
+                           histogram.lowest(index) <= value);
+                assertTrue("Value " + value + " with bits " + bits + " should be <= the highest value for its bucket",
+                           histogram.highest(index) >= value);
+                assertTrue("Indexes should be increasing for bits " + bits, index >= lastIndex);
+                lastIndex = index;
+            }
+            for (int index = 0; index < histogram.index(1L << 20); index++) {
+                assertEquals("The highest value for bucket " + index + " with bits " + bits
+                             + " should be just below the next bucket",
+                             histogram.lowest(index + 1) - 1, histogram.highest(index));
+            }
+        }
+    }
+
+    public void testNegative() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.add(-5);
+        histogram.add(-1);
+        histogram.add(3);
+        assertEquals("The min should be exact for small values", -5.0, histogram.getMin());
+        assertEquals("The median should be interpolated as for SlidingPercentiles", -3.0, histogram.getMedian());
+        assertEquals("The max should be exact for small values", 3.0, histogram.getMax());
+        histogram.remove(-5);
+        assertEquals("The min should be updated after removal", -1.0, histogram.getMin());
+        assertEquals("The sum should be updated after removal", 2, histogram.getSum());
+    }
+
+    public void testRemoveUnknown() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.add(10);
+        try {
+            histogram.remove(11);
+            fail("Removing a value that was not added should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testMaxPrecisionExtremes() {
+        LogLinearHistogram histogram = new LogLinearHistogram(LogLinearHistogram.MAX_PRECISION_BITS);
+        histogram.add(Long.MAX_VALUE);
+        histogram.add(Long.MIN_VALUE);
+        int index = histogram.index(Long.MAX_VALUE);
+        assertTrue("The index for Long.MAX_VALUE should be positive but was " + index, index > 0);
+        assertTrue("Long.MAX_VALUE should be in the last bucket", histogram.highest(index) == Long.MAX_VALUE);
+        assertEquals("The max should be within the bucket precision", 1.0,
+                     histogram.getMax() / Long.MAX_VALUE, 1.0 / (1 << LogLinearHistogram.MAX_PRECISION_BITS));
+        assertEquals("The min should be within the bucket precision", 1.0,
+                     histogram.getMin() / Long.MIN_VALUE, 1.0 / (1 << LogLinearHistogram.MAX_PRECISION_BITS));
+        try {
+            new LogLinearHistogram(LogLinearHistogram.MAX_PRECISION_BITS + 1);
+            fail("Precision above the maximum should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testMergePrecision() {
+        try {
+            new LogLinearHistogram(7).add(new LogLinearHistogram(8));
+            fail("Merging histograms with different precision should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
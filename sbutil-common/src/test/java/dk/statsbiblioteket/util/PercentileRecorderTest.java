@@ -0,0 +1,98 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util;
+
+import junit.framework.TestCase;
+
+public class PercentileRecorderTest extends TestCase {
+    public static final double FUZZY = 0.001;
+
+    public void testSingleThread() {
+        PercentileRecorder recorder = PercentileRecorder.lastValues(new SlidingPercentiles(5, false));
+        for (int i = 0; i < 10; i++) {
+            recorder.record(i);
+        }
+        assertEquals("Only the last values should be counted", 5, recorder.getCount());
+        assertEquals("The median should be for the last values", 6.5, recorder.getMedian(), FUZZY);
+        assertEquals("The average should be for the last values", 7.0, recorder.getAverage(), FUZZY);
+    }
+
+    public void testMultipleThreads() throws InterruptedException {
+        final PercentileRecorder recorder = PercentileRecorder.lastValues(1000000);
+        final int THREADS = 4;
+        final int VALUES = 100000; // More than the buffer size to force drains from the recorders
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < VALUES; i++) {
+                        recorder.record(i % 100);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        // Concurrent reads
+        for (int i = 0; i < 10; i++) {
+            recorder.getMedian();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals("All values should be recorded", THREADS * VALUES, recorder.getCount());
+        assertEquals("The average should be exact", 49.5, recorder.getAverage(), FUZZY);
+        assertEquals("The median should be exact for small values", 49.0, recorder.getMedian(), FUZZY);
+    }
+
+    public void testTimeWindow() {
+        final long[] now = new long[]{100000};
+        PercentileRecorder recorder = new PercentileRecorder(null, LogLinearHistogram.DEFAULT_PRECISION_BITS, 1000,
+                                                             PercentileRecorder.DEFAULT_BUFFER_SIZE) {
+            @Override
+            long getTimeMS() {
+                return now[0];
+            }
+        };
+        recorder.record(10);
+        recorder.record(20);
+        assertEquals("Both values should be in the window", 2, recorder.getCount());
+        now[0] += 500;
+        recorder.record(30);
+        assertEquals("All values should be in the window", 3, recorder.getCount());
+        assertEquals("The median should be exact", 15.0, recorder.getMedian(), FUZZY);
+        now[0] += 1000;
+        recorder.record(40);
+        assertEquals("Only the newest values should be in the window", 1, recorder.getCount());
+        assertEquals("The average should be for the newest value", 40.0, recorder.getAverage(), FUZZY);
+        now[0] += 2000;
+        assertEquals("No values should be in the window", 0, recorder.getCount());
+    }
+
+    public void testDeadThreadCleanup() throws InterruptedException {
+        final PercentileRecorder recorder = PercentileRecorder.lastValues(100);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                recorder.record(1);
+            }
+        };
+        thread.start();
+        thread.join();
+        thread = null;
+        System.gc();
+        assertEquals("The value from the dead thread should be drained", 1, recorder.getCount());
+    }
+}
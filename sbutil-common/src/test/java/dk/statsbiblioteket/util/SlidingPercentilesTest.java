@@ -112,6 +112,80 @@ public class SlidingPercentilesTest extends TestCase {
         }
     }
 
+    public void testMonkeyEviction() {
+        final Random random = new Random(87);
+        SlidingPercentiles slider = new SlidingPercentiles(100, true);
+        SlidingPercentiles delayed = new SlidingPercentiles(100, false);
+        for (int i = 0 ; i < 1000 ; i++) {
+            int rNum = random.nextInt(10000);
+            slider.add(rNum);
+            delayed.add(rNum);
+            assertEquals("The median for delayed and non-delayed should be equal after " + i + " additions",
+                         delayed.getMedian(), slider.getMedian());
+        }
+        assertEquals("The window should be full", 100, slider.size());
+    }
+
+    public void testHistogramExactSmallValues() {
+        final Random random = new Random(87);
+        SlidingPercentiles exact = new SlidingPercentiles(100, false);
+        SlidingPercentiles histogram = SlidingPercentiles.createHistogram(100);
+        assertTrue("The slider should be histogram based", histogram.isHistogram());
+        for (int i = 0 ; i < 1000 ; i++) {
+            int rNum = random.nextInt(1 << LogLinearHistogram.DEFAULT_PRECISION_BITS) - 10;
+            exact.add(rNum);
+            histogram.add(rNum);
+        }
+        for (double percentile: new double[]{0.0, 0.1, 0.5, 0.9, 0.99, 1.0}) {
+            assertEquals("Percentile " + percentile + " should be exact for small values",
+                         exact.getPercentile(percentile), histogram.getPercentile(percentile), FUZZY);
+        }
+        assertEquals("The average should be exact", exact.getAverage(), histogram.getAverage(), FUZZY);
+        assertEquals("The sorted values should be exact",
+                     Strings.join(exact.getSortedValues(null)), Strings.join(histogram.getSortedValues(null)));
+    }
+
+    public void testHistogramBoundedError() {
+        final Random random = new Random(87);
+        final int bits = 7;
+        SlidingPercentiles exact = new SlidingPercentiles(1000, false);
+        SlidingPercentiles histogram = SlidingPercentiles.createHistogram(1000, bits);
+        for (int i = 0 ; i < 10000 ; i++) {
+            int rNum = random.nextInt(1000000);
+            exact.add(rNum);
+            histogram.add(rNum);
+        }
+        for (double percentile: new double[]{0.0, 0.1, 0.5, 0.9, 0.99, 1.0}) {
+            double expected = exact.getPercentile(percentile);
+            assertEquals("Percentile " + percentile + " should be within the bounded error",
+                         expected, histogram.getPercentile(percentile), expected / (1 << bits) + 1);
+        }
+        assertEquals("The average should be exact", exact.getAverage(), histogram.getAverage(), FUZZY);
+    }
+
+    public void testSnapshotMerge() {
+        final Random random = new Random(87);
+        SlidingPercentiles all = new SlidingPercentiles(2000, false);
+        SlidingPercentiles first = SlidingPercentiles.createHistogram(1000);
+        SlidingPercentiles second = new SlidingPercentiles(1000, false);
+        for (int i = 0 ; i < 1000 ; i++) {
+            int r1 = random.nextInt(100000);
+            int r2 = random.nextInt(100000);
+            all.add(r1);
+            all.add(r2);
+            first.add(r1);
+            second.add(r2);
+        }
+        LogLinearHistogram merged = first.getSnapshot();
+        merged.add(second.getSnapshot());
+        assertEquals("The merged count should be the sum", 2000, merged.getCount());
+        assertEquals("The merged average should be exact", all.getAverage(), merged.getAverage(), FUZZY);
+        double expected = all.getMedian();
+        assertEquals("The merged median should be within the bounded error",
+                     expected, merged.getMedian(),
+                     expected / (1 << LogLinearHistogram.DEFAULT_PRECISION_BITS) + 1);
+    }
+
     public void testPercentilesMisc() {
         assertPercentile(new int[]{0, 1, 2, 3, 4}, 0.8, 3.0, true);
     }
@@ -63,4 +63,91 @@ public class TimingTest extends TestCase {
         Thread.sleep(10);
         System.out.println("Final output: " + timing);
     }
+
+    public void testScope() throws InterruptedException {
+        Timing timing = new Timing("foo");
+        for (int i = 0 ; i < 3 ; i++) {
+            try (Timing.Scope ignored = timing.getChild("sleep").scope()) {
+                Thread.sleep(10);
+            }
+        }
+        try (Timing.Scope scope = timing.getChild("batch").scope()) {
+            scope.setUpdates(10);
+            Thread.sleep(10);
+        }
+        Timing sleep = timing.getChild("sleep");
+        assertEquals("The number of scopes should be counted", 3, sleep.getUpdates());
+        assertTrue("The time should be recorded but was " + sleep.getMS() + "ms", sleep.getMS() >= 30);
+        assertTrue("The minimum should be at least the sleep time but was " + sleep.getMinMS() + "ms",
+                   sleep.getMinMS() >= 10);
+        Timing batch = timing.getChild("batch");
+        assertEquals("The batch updates should be counted", 10, batch.getUpdates());
+        assertTrue("The average should be per update but was " + batch.getAverageNS() + "ns",
+                   batch.getAverageNS() >= 1000000 && batch.getAverageNS() < 10000000);
+    }
+
+    public void testPercentiles() {
+        Timing timing = new Timing("foo", null, null, Timing.NS_PERCENTILE_STATS);
+        for (int i = 1 ; i <= 100 ; i++) {
+            timing.record(i * 1000, 1);
+        }
+        assertEquals("The count should be correct", 100, timing.getUpdates());
+        assertEquals("The min should be exact", 1000, timing.getMinNS());
+        assertEquals("The max should be exact", 100000, timing.getMaxNS());
+        double median = timing.getPercentileNS(0.5);
+        assertTrue("The median should be about 50000ns but was " + median, Math.abs(median - 50500) < 1000);
+        double p99 = timing.getPercentileNS(0.99);
+        assertTrue("The 99 percentile should be about 99000ns but was " + p99, Math.abs(p99 - 99000) < 1500);
+        assertTrue("toString should contain percentiles: " + timing, timing.toString().contains("99%="));
+    }
+
+    public void testConcurrentRecording() throws InterruptedException {
+        final int THREADS = 4;
+        final int RECORDS = 100000;
+        final Timing timing = new Timing("foo");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0 ; t < THREADS ; t++) {
+            final int id = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Timing child = timing.getChild("child" + (id % 2));
+                    for (int i = 0 ; i < RECORDS ; i++) {
+                        try (Timing.Scope ignored = child.scope()) {
+                            child.record(id + 1, 1);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        String during = timing.toString(); // Merging while recording should be safe
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertNotNull(during);
+        assertEquals("All records should be counted", 2L * RECORDS * THREADS,
+                     timing.getChild("child0").getUpdates() + timing.getChild("child1").getUpdates());
+        assertEquals("The histogram should contain all records", 2L * RECORDS * 2,
+                     timing.getChild("child0").getHistogram().getCount());
+        assertTrue("The minimum should be the smallest recorded value",  timing.getChild("child0").getMinNS() <= 1);
+    }
+
+    public void testLegacyUpdates() {
+        Timing timing = new Timing("foo");
+        timing.stop(10);
+        assertEquals("stop(updates) should set the updates", 10, timing.getUpdates());
+        timing.stop();
+        assertEquals("stop() should increment the updates", 11, timing.getUpdates());
+        timing.update();
+        timing.addUpdates(4);
+        assertEquals("Explicit updates should be counted", 16, timing.getUpdates());
+        timing.setUpdates(3);
+        assertEquals("setUpdates should override", 3, timing.getUpdates());
+        timing.clear();
+        assertEquals("clear should reset", 0, timing.getUpdates());
+        assertEquals("clear should reset max", 0, timing.getMaxNS());
+    }
 }
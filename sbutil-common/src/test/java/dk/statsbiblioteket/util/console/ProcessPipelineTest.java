@@ -0,0 +1,86 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.console;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProcessPipelineTest extends TestCase {
+
+    public void testPipe() {
+        ProcessPipeline pipeline = new ProcessPipeline(
+                new ProcessRunner("printf", "b\\na\\nc\\n"),
+                new ProcessRunner("sort"));
+        pipeline.run();
+        assertEquals("The output should be sorted", "a\nb\nc\n", pipeline.getLast().getProcessOutputAsString());
+        for (ProcessRunner stage : pipeline.getStages()) {
+            assertEquals("All stages should succeed", 0, stage.getReturnCode());
+        }
+    }
+
+    public void testLargePipe() {
+        // Nothing is collected between the processes, so this runs in constant memory
+        ProcessPipeline pipeline = new ProcessPipeline(
+                new ProcessRunner("head", "-c", "100000000", "/dev/zero"),
+                new ProcessRunner("cat"),
+                new ProcessRunner("wc", "-c"));
+        pipeline.run();
+        assertEquals("All bytes should pass through the pipeline",
+                     "100000000", pipeline.getLast().getProcessOutputAsString().trim());
+    }
+
+    public void testEarlyExit() {
+        ProcessRunner yes = new ProcessRunner("yes");
+        yes.setTimeout(10000);
+        ProcessPipeline pipeline = new ProcessPipeline(yes, new ProcessRunner("head", "-n", "3"));
+        pipeline.run();
+        assertEquals("The output should be limited", "y\ny\ny\n", pipeline.getLast().getProcessOutputAsString());
+        assertFalse("The upstream process should be terminated by a broken pipe", yes.isTimedOut());
+        assertEquals("The downstream process should succeed", 0, pipeline.getLast().getReturnCode());
+    }
+
+    public void testConsumer() {
+        final AtomicInteger lines = new AtomicInteger(0);
+        new ProcessPipeline(new ProcessRunner("seq", "1", "100000"), new ProcessRunner("grep", "7")).run(
+                new ProcessPipeline.Consumer() {
+                    @Override
+                    public void consume(InputStream in) throws Exception {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "utf-8"));
+                        while (reader.readLine() != null) {
+                            lines.incrementAndGet();
+                        }
+                    }
+                });
+        assertEquals("The consumer should receive all matching lines", 40951, lines.get());
+    }
+
+    public void testConsumerStopsEarly() {
+        ProcessRunner yes = new ProcessRunner("yes");
+        yes.setTimeout(10000);
+        final StringBuilder first = new StringBuilder();
+        new ProcessPipeline(yes).run(new ProcessPipeline.Consumer() {
+            @Override
+            public void consume(InputStream in) throws Exception {
+                first.append((char) in.read());
+            }
+        });
+        assertEquals("The consumer should receive output", "y", first.toString());
+        assertFalse("The process should be terminated when the consumer stops", yes.isTimedOut());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.console;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProcessPoolTest extends TestCase {
+
+    public void testTemplate() throws Exception {
+        ProcessPool.Template template = new ProcessPool.Template("echo", "echo", "-n", "${a}-${b}", "x${a}");
+        assertEquals("[echo, -n, 1-2, x1]", template.expand(map("a", "1", "b", "2")).toString());
+        try {
+            template.expand(map("a", "1"));
+            fail("Missing values should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRunAndStatistics() throws Exception {
+        ProcessPool pool = new ProcessPool(4);
+        ProcessPool.Template template = new ProcessPool.Template("exit", "bash", "-c", "echo -n ${v} ; exit ${v}");
+        List<Future<ProcessRunner>> futures = new ArrayList<Future<ProcessRunner>>();
+        for (int i = 0 ; i < 10 ; i++) {
+            futures.add(pool.submit(template, map("v", Integer.toString(i % 2))));
+        }
+        for (int i = 0 ; i < 10 ; i++) {
+            ProcessRunner runner = futures.get(i).get();
+            assertEquals("The return code for run " + i + " should be as expected", i % 2, runner.getReturnCode());
+            assertEquals("The output for run " + i + " should be as expected",
+                         Integer.toString(i % 2), runner.getProcessOutputAsString());
+        }
+        ProcessPool.Statistics stats = pool.getStatistics("exit");
+        assertEquals("There should be 10 latency measurements", 10, stats.getLatency().getCount());
+        assertEquals("The exit codes should be counted", "{0=5, 1=5}", stats.getExitCodes().toString());
+        assertEquals("There should be no timeouts", 0, stats.getTimeouts());
+        pool.shutdown();
+        assertTrue("The pool should terminate", pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public void testTimeout() throws Exception {
+        ProcessPool pool = new ProcessPool(2);
+        ProcessPool.Template template = new ProcessPool.Template("sleep", "sleep", "10").setTimeout(100);
+        ProcessRunner runner = pool.submit(template, null).get();
+        assertTrue("The process should time out", runner.isTimedOut());
+        assertEquals("The timeout should be counted", 1, pool.getStatistics("sleep").getTimeouts());
+    }
+
+    public void testConcurrencyLimits() throws Exception {
+        assertMaxConcurrent("Process count", new ProcessPool(2),
+                            new ProcessPool.Template("count", "bash", "-c", "echo -n s ; sleep 0.2"), 2);
+        assertMaxConcurrent("Memory", new ProcessPool(10, 1000, -1),
+                            new ProcessPool.Template("memory", "bash", "-c", "echo -n s ; sleep 0.2")
+                                    .setMemoryEstimateMB(300), 3);
+    }
+
+    private void assertMaxConcurrent(String message, ProcessPool pool, ProcessPool.Template template, int expected)
+            throws Exception {
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger max = new AtomicInteger(0);
+        List<Future<ProcessRunner>> futures = new ArrayList<Future<ProcessRunner>>();
+        for (int i = 0 ; i < 8 ; i++) {
+            futures.add(pool.submit(template, null, new ProcessPool.Callback() {
+                private boolean started = false;
+
+                @Override
+                public void output(byte[] buffer, int offset, int length) {
+                    if (!started) {
+                        started = true;
+                        int current = running.incrementAndGet();
+                        synchronized (max) {
+                            max.set(Math.max(max.get(), current));
+                        }
+                    }
+                }
+
+                @Override
+                public void finished(ProcessRunner runner) {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for (Future<ProcessRunner> future : futures) {
+            assertEquals(message + ": The process should finish normally", 0, future.get().getReturnCode());
+        }
+        assertTrue(message + ": At most " + expected + " processes should run concurrently, but there were "
+                   + max.get(), max.get() <= expected);
+        assertTrue(message + ": Processes should run concurrently", max.get() > 1);
+        pool.shutdown();
+    }
+
+    public void testCallback() throws Exception {
+        ProcessPool pool = new ProcessPool(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        ProcessPool.Template template = new ProcessPool.Template("both", "bash", "-c", "echo -n out ; echo -n err >&2");
+        pool.submit(template, null, new ProcessPool.Callback() {
+            @Override
+            public void output(byte[] buffer, int offset, int length) {
+                out.write(buffer, offset, length);
+            }
+
+            @Override
+            public void error(byte[] buffer, int offset, int length) {
+                err.write(buffer, offset, length);
+            }
+        }).get();
+        assertEquals("The callback should receive stdout", "out", out.toString());
+        assertEquals("The callback should receive stderr", "err", err.toString());
+    }
+
+    private Map<String, String> map(String... keyValues) {
+        Map<String, String> map = new java.util.HashMap<String, String>();
+        for (int i = 0 ; i < keyValues.length ; i += 2) {
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+}
@@ -29,11 +29,14 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * NativeRunner Tester.
@@ -141,6 +144,41 @@ public class ProcessRunnerTest extends TestCase {
                      0, runner.getReturnCode());
     }
 
+    public void testRunAsync() throws Exception {
+        final int JOBS = 20;
+        List<Future<ProcessRunner>> futures = new ArrayList<Future<ProcessRunner>>(JOBS);
+        for (int i = 0 ; i < JOBS ; i++) {
+            futures.add(new ProcessRunner("bash", "-c", "echo job" + i).runAsync());
+        }
+        for (int i = 0 ; i < JOBS ; i++) {
+            ProcessRunner runner = futures.get(i).get();
+            assertEquals("Job " + i + " should succeed", 0, runner.getReturnCode());
+            assertEquals("Job " + i + " should have the right output", "job" + i + "\n",
+                         runner.getProcessOutputAsString());
+        }
+    }
+
+    public void testNoPollingLatency() throws Exception {
+        final int RUNS = 50;
+        long start = System.currentTimeMillis();
+        for (int i = 0 ; i < RUNS ; i++) {
+            ProcessRunner runner = new ProcessRunner("true");
+            runner.run();
+            assertEquals("The execution of true should work fine", 0, runner.getReturnCode());
+        }
+        long spend = System.currentTimeMillis() - start;
+        assertTrue("Running " + RUNS + " trivial processes should not take " + spend + "ms",
+                   spend < RUNS * 100);
+    }
+
+    public void testLargeOutput() throws Exception {
+        ProcessRunner runner = new ProcessRunner("bash", "-c", "head -c 10000000 /dev/zero");
+        runner.setOutputCollectionByteSize(-1);
+        runner.run();
+        assertEquals("The execution should work fine", 0, runner.getReturnCode());
+        assertEquals("All output should be collected", 10000000, runner.getProcessOutputAsString().length());
+    }
+
     public void testTimeout() throws Exception {
 
         ProcessRunner runner = new ProcessRunner(Arrays.asList("sleep", "2000"));
@@ -387,6 +425,27 @@ public class ProcessRunnerTest extends TestCase {
                    + "should fail", runner.getReturnCode() != 0);
     }
 
+    public void testRunOnce() throws Exception {
+        ProcessRunner runner = new ProcessRunner("true");
+        runner.run();
+        try {
+            runner.runAsync();
+            fail("Starting a runner a second time should fail");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+    }
+
+    public void testAsyncStartFailure() throws Exception {
+        ProcessRunner runner = new ProcessRunner("/nonexisting/command");
+        try {
+            runner.runAsync();
+            fail("A process that cannot be started should fail directly");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+    }
+
     public static Test suite() {
         return new TestSuite(ProcessRunnerTest.class);
     }
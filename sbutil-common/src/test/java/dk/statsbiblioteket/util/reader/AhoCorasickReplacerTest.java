@@ -0,0 +1,159 @@
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link AhoCorasickReplacer}.
+ */
+public class AhoCorasickReplacerTest extends TestCase {
+
+    public void testSimpleReplacement() {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("a", "foo");
+        rules.put("b", "bar");
+        assertEquals("mfoonyfooffool bar", new AhoCorasickReplacer(rules).transform("manyafal b"));
+    }
+
+    public void testLeftmostLongest() {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("bc", "X");
+        rules.put("abcd", "Y");
+        rules.put("he", "1");
+        rules.put("she", "2");
+        rules.put("hers", "3");
+        AhoCorasickReplacer replacer = new AhoCorasickReplacer(rules);
+        assertEquals("The longer target starting earlier should win", "Y", replacer.transform("abcd"));
+        assertEquals("The shorter target should be used when the longer fails", "aXe", replacer.transform("abce"));
+        assertEquals("The earliest target should win", "2rs", replacer.transform("shers"));
+        assertEquals("Suffix matches should be found after failure", "u3", replacer.transform("uhers"));
+        assertEquals("Unchanged input should be returned as-is", "nothing", replacer.transform("nothing"));
+    }
+
+    public void testEmptyReplacement() {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put(StringReplacerTest.JAVASCRIPT, "");
+        assertEquals("foo", new AhoCorasickReplacer(rules).transform(StringReplacerTest.JAVASCRIPT + "foo"));
+    }
+
+    public void testTransformToChars() {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("ab", "c");
+        rules.put("d", "ef");
+        AhoCorasickReplacer replacer = new AhoCorasickReplacer(rules);
+        assertEquals("ef", new String(replacer.transformToChars('d')));
+        assertEquals("cxef", new String(replacer.transformToChars("abxd".toCharArray())));
+    }
+
+    public void testMonkey() throws IOException {
+        Random random = new Random(87);
+        for (int r = 0; r < 10; r++) {
+            Map<String, String> rules = ReplacePerformanceTest.getRangeReplacements(
+                    random.nextInt(500) + 1, 1, 6, 0, 5);
+            AhoCorasickReplacer replacer = new AhoCorasickReplacer(rules);
+            for (int i = 0; i < 50; i++) {
+                String input = ReplacePerformanceTest.randomWord(random, 0, 500);
+                String expected = BaselineReplacerTest.getReplacedBaseline(rules, input);
+                assertEquals("Transform of '" + input + "' should match the baseline",
+                             expected, replacer.transform(input));
+                replacer.setSource(new StringReader(input));
+                assertEquals("Stream of '" + input + "' should match the baseline",
+                             expected, readAll(replacer));
+            }
+        }
+    }
+
+    public void testLargeAlphabet() {
+        // Enough distinct chars to disable the full transition table
+        Random random = new Random(88);
+        Map<String, String> rules = new HashMap<String, String>();
+        while (rules.size() < 2000) {
+            StringBuilder target = new StringBuilder();
+            for (int i = random.nextInt(3) + 1; i > 0; i--) {
+                target.append((char) ('\u4e00' + random.nextInt(3000)));
+            }
+            rules.put(target.toString(), Integer.toString(rules.size()));
+        }
+        AhoCorasickReplacer replacer = new AhoCorasickReplacer(rules);
+        StringReplacer reference = new StringReplacer(rules);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int c = random.nextInt(200); c > 0; c--) {
+                input.append((char) ('\u4e00' + random.nextInt(3000)));
+            }
+            assertEquals("Replacement with a large alphabet should match StringReplacer",
+                         reference.transform(input.toString()), replacer.transform(input.toString()));
+        }
+    }
+
+    public void testLargeStream() throws IOException {
+        Map<String, String> rules = new LinkedHashMap<String, String>();
+        rules.put("&amp;", "&");
+        rules.put("&lt;", "<");
+        rules.put("&gt;", ">");
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            input.append("a&lt;b&amp;&gt;").append(i);
+            expected.append("a<b&>").append(i);
+        }
+        AhoCorasickReplacer replacer = new AhoCorasickReplacer(new TrickleReader(input.toString()), rules);
+        assertEquals("Replacement over many blocks should work", expected.toString(), readAll(replacer));
+        assertEquals("The number of replacements should be correct", 30000, replacer.getReplacementCount());
+
+        StringWriter single = new StringWriter();
+        replacer.setSource(new StringReader(input.toString()));
+        int c;
+        while ((c = replacer.read()) != -1) {
+            single.write(c);
+        }
+        assertEquals("Single char reads should work", expected.toString(), single.toString());
+    }
+
+    public void testCloneAndBufferSource() throws IOException {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("foo", "bar");
+        AhoCorasickReplacer replacer = (AhoCorasickReplacer) new AhoCorasickReplacer(rules).clone();
+        replacer.setSource(new CircularCharBuffer("a foo b"));
+        CircularCharBuffer out = new CircularCharBuffer(10, Integer.MAX_VALUE);
+        replacer.read(out, Integer.MAX_VALUE);
+        assertEquals("a bar b", out.toString());
+    }
+
+    private String readAll(Reader reader) throws IOException {
+        StringWriter out = new StringWriter();
+        char[] buffer = new char[37];
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Delivers at most 7 chars on each read, to provoke partial blocks.
+     */
+    private static class TrickleReader extends StringReader {
+        private TrickleReader(String s) {
+            super(s);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(7, len));
+        }
+
+        @Override
+        public boolean ready() {
+            return false;
+        }
+    }
+}
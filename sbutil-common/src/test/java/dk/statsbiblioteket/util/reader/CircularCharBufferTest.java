@@ -7,6 +7,9 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 import javax.print.DocFlavor;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
 import java.util.NoSuchElementException;
 
 @QAInfo(level = QAInfo.Level.NORMAL,
@@ -169,6 +172,17 @@ public class CircularCharBufferTest extends TestCase {
                      -1, b.indexOf("helloz"));
     }
 
+    public void testIndexOfNegative() throws Exception {
+        CircularCharBuffer b = new CircularCharBuffer(5, 5);
+        b.put("zzhel");
+        b.take();
+        b.take();
+        b.put("lo");
+        assertEquals("A negative fromIndex should be treated as 0", "hello".indexOf("h", -3), b.indexOf("h", -3));
+        assertEquals("A negative fromIndex should not find stale chars", -1, b.indexOf("z", -2));
+        assertEquals("A negative fromIndex for the empty string should be treated as 0", 0, b.indexOf("", -1));
+    }
+
     public void testLength() {
         CircularCharBuffer cb = new CircularCharBuffer(2, 2);
         cb.add("1");
@@ -207,4 +221,87 @@ public class CircularCharBufferTest extends TestCase {
         }
         assertEquals("Input '" + input + "' with CB-size " + cbSize, expected, o);
     }
+
+    public void testBulkWrap() {
+        CircularCharBuffer b = new CircularCharBuffer(4, 6);
+        b.put("abc");
+        assertEquals('a', b.take());
+        assertEquals('b', b.take());
+        b.put("defg".toCharArray(), 1, 3); // Wraps around the internal array
+        b.put("hi");
+        assertEquals("cefghi", b.toString());
+        try {
+            b.put("j".toCharArray(), 0, 1);
+            fail("Putting beyond the maximum capacity should fail");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Expected
+        }
+        assertEquals("A failed bulk put should not change the content", "cefghi", b.toString());
+        assertEquals("subset should handle wrap", "efgh", b.subset(1, 4));
+
+        CircularCharBuffer other = new CircularCharBuffer(1, 100);
+        assertEquals("Transfer should move the requested chars", 5, b.read(other, 5));
+        assertEquals("cefgh", other.toString());
+        assertEquals("i", b.toString());
+    }
+
+    public void testGrowth() {
+        CircularCharBuffer b = new CircularCharBuffer(3, Integer.MAX_VALUE);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            b.put(Integer.toString(i));
+            expected.append(i);
+            if (i % 3 == 0) {
+                b.take();
+                expected.deleteCharAt(0);
+            }
+        }
+        assertEquals(expected.toString(), b.toString());
+        assertEquals(expected.length(), b.size());
+        assertEquals(expected.indexOf("999"), b.indexOf("999"));
+    }
+
+    public void testSelfPut() {
+        CircularCharBuffer b = new CircularCharBuffer(4, 20);
+        b.put("xyz");
+        b.put(b);
+        assertEquals("Appending the buffer to itself should double the content", "xyzxyz", b.toString());
+
+        CircularCharBuffer wrapped = new CircularCharBuffer(8, 8);
+        wrapped.put("abcdefgh");
+        for (int i = 0; i < 6; i++) {
+            wrapped.take();
+        }
+        wrapped.put("ij"); // Wraps around the internal array
+        wrapped.put(wrapped);
+        assertEquals("Self append should handle wrap", "ghijghij", wrapped.toString());
+    }
+
+    public void testCharBuffer() {
+        CircularCharBuffer b = new CircularCharBuffer(4, 20);
+        b.put("xy");
+        b.take();
+        b.put(CharBuffer.wrap("abcdef"));
+        assertEquals("yabcdef", b.toString());
+
+        CharBuffer target = CharBuffer.allocate(4);
+        assertEquals("read(CharBuffer) should respect the remaining space", 4, b.read(target));
+        target.flip();
+        assertEquals("yabc", target.toString());
+        assertEquals("def", b.toString());
+    }
+
+    public void testFill() throws Exception {
+        CircularCharBuffer b = new CircularCharBuffer(4, 10);
+        Reader reader = new StringReader("abcdefghijklmnop");
+        while (b.size() < 10) {
+            assertTrue("fill should read chars", b.fill(reader, 10) > 0);
+        }
+        assertEquals("fill on a full buffer should not read", 0, b.fill(reader, 10));
+        assertEquals("abcdefghij", b.takeString());
+        while (b.fill(reader, 10) != -1) {
+            // Read the rest
+        }
+        assertEquals("klmnop", b.toString());
+    }
 }
@@ -23,9 +23,14 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReplaceFactoryTest extends TestCase {
     public ReplaceFactoryTest(String name) {
@@ -75,9 +80,15 @@ public class ReplaceFactoryTest extends TestCase {
                    ReplaceFactory.getReplacer(rules) instanceof
                            CharArrayReplacer);
 
-        rules = ReplacePerformanceTest.getRangeReplacements(300, 1, 5, 0, 5);
-        assertTrue("1-5=>1-5 should yield a StringReplacer",
+        rules = ReplacePerformanceTest.getRangeReplacements(10, 1, 5, 0, 5);
+        assertTrue("Few 1-5=>1-5 should yield a StringReplacer",
                    ReplaceFactory.getReplacer(rules) instanceof StringReplacer);
+
+        rules = ReplacePerformanceTest.getRangeReplacements(300, 1, 5, 0, 5);
+        assertTrue("Many 1-5=>1-5 should yield an AhoCorasickReplacer",
+                   ReplaceFactory.getReplacer(rules) instanceof AhoCorasickReplacer);
+        assertTrue("Many 1-5=>1-5 should yield an AhoCorasickReplacer with get",
+                   new ReplaceFactory(rules).getReplacer() instanceof AhoCorasickReplacer);
     }
 
     public void testComplexFactory() throws Exception {
@@ -107,4 +118,83 @@ public class ReplaceFactoryTest extends TestCase {
         assertEquals("Complex factory & stream based replacement should work",
                      "foo", actual.toString());
     }
+
+    public void testSharedFactory() throws Exception {
+        final ReplaceFactory factory = new ReplaceFactory("foo", "bar", "b", "x");
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append("foob").append(i);
+            expected.append("barx").append(i);
+        }
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            ReplaceReader replacer = factory.getReplacer(new StringReader(input.toString()));
+                            CircularCharBuffer actual = new CircularCharBuffer(10, Integer.MAX_VALUE);
+                            replacer.read(actual, Integer.MAX_VALUE);
+                            if (!expected.toString().equals(actual.toString())) {
+                                failures.add("Mismatch in iteration " + i);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.add(e.toString());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("There should be no failures but got " + failures, failures.isEmpty());
+    }
+
+    public void testSynchronizedReplacer() throws Exception {
+        ReplaceFactory factory = new ReplaceFactory("a", "xy");
+        ReplaceReader replacer = factory.getSynchronizedReplacer();
+        assertTrue("The replacer should be synchronized",
+                   replacer instanceof SynchronizedReplaceReader);
+        assertTrue("The wrapped replacer should be a CharArrayReplacer",
+                   ((SynchronizedReplaceReader) replacer).getReplacer() instanceof CharArrayReplacer);
+        assertEquals("Transform should work", "bxyc", replacer.transform("bac"));
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            input.append("ab");
+        }
+        final ReplaceReader shared = replacer.setSource(new StringReader(input.toString()));
+        final AtomicInteger xCount = new AtomicInteger(0);
+        final AtomicInteger total = new AtomicInteger(0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int c;
+                        while ((c = shared.read()) != -1) {
+                            total.incrementAndGet();
+                            if (c == 'x') {
+                                xCount.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("Unexpected exception", e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("All chars should be read exactly once", 30000, total.get());
+        assertEquals("All replacements should be read exactly once", 10000, xCount.get());
+    }
 }
@@ -0,0 +1,88 @@
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.xml.NamespaceRemover;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ReplacePipeline}.
+ */
+public class ReplacePipelineTest extends TestCase {
+
+    public void testFuseCharReplacers() {
+        ReplacePipeline pipeline = new ReplacePipeline(
+                new StringReader(""),
+                ReplaceFactory.getReplacer("a", "b"),
+                ReplaceFactory.getReplacer("b", "c"),
+                ReplaceFactory.getReplacer("x", "y"));
+        assertEquals("The CharReplacers should be fused", 1, pipeline.getStages().size());
+        assertTrue("The fused stage should be a CharReplacer",
+                   pipeline.getStages().get(0) instanceof CharReplacer);
+        assertEquals("Fused rules should be applied in order", "cccy", pipeline.transform("abcx"));
+    }
+
+    public void testFuseMixed() throws IOException {
+        List<TextTransformer> stages = Arrays.<TextTransformer>asList(
+                ReplaceFactory.getReplacer("a", "bb"),
+                ReplaceFactory.getReplacer("b", "c"),
+                ReplaceFactory.getReplacer("cc", "d"),
+                ReplaceFactory.getReplacer("d", "ef"),
+                ReplaceFactory.getReplacer("e", "g"));
+        ReplacePipeline pipeline = new ReplacePipeline(new StringReader("xaby"), stages);
+        assertEquals("Single char stages around the StringReplacer should be fused",
+                     3, pipeline.getStages().size());
+        assertTrue(pipeline.getStages().get(0) instanceof CharArrayReplacer);
+        assertTrue(pipeline.getStages().get(1) instanceof StringReplacer);
+        assertTrue(pipeline.getStages().get(2) instanceof CharArrayReplacer);
+        assertEquals("Streaming through the fused stages should work", "xgfcy", readAll(pipeline));
+        assertEquals("xgfcy", pipeline.transform("xaby"));
+        assertEquals("xgfcy", new String(pipeline.transformToChars("xaby".toCharArray())));
+        assertEquals("The rule table of the input stage should be unchanged",
+                     "bb", ReplaceFactory.getReplacer("a", "bb").transform("a"));
+    }
+
+    public void testMatchesNestedReaders() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            input.append("<foo:bar xmlns:foo=\"http://example.com\">Æble &amp; pære ").append(i)
+                    .append("</foo:bar>\n");
+        }
+        Reader nested = new NamespaceRemover(
+                ReplaceFactory.getReplacer(
+                        ReplaceFactory.getReplacer(
+                                ReplaceFactory.getReplacer(new StringReader(input.toString()), "Æ", "AE"),
+                                "&amp;", "&"),
+                        "æ", "ae"));
+        ReplacePipeline pipeline = new ReplacePipeline(
+                new StringReader(input.toString()),
+                ReplaceFactory.getReplacer("Æ", "AE"),
+                ReplaceFactory.getReplacer("&amp;", "&"),
+                ReplaceFactory.getReplacer("æ", "ae"),
+                new NamespaceRemover(null));
+        String expected = readAll(nested);
+        assertEquals("The pipeline should match nested readers", expected, readAll(pipeline));
+
+        pipeline.setSource(new StringReader(input.toString()));
+        assertEquals("The pipeline should be reusable", expected, readAll(pipeline));
+
+        ReplacePipeline clone = (ReplacePipeline) pipeline.clone();
+        clone.setSource(new StringReader(input.toString()));
+        assertEquals("The clone should work as the original", expected, readAll(clone));
+    }
+
+    private String readAll(Reader reader) throws IOException {
+        StringWriter out = new StringWriter();
+        char[] buffer = new char[100];
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.TestCase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+public class RingBufferPipeTest extends TestCase {
+    private static Log log = LogFactory.getLog(RingBufferPipeTest.class);
+
+    public void testTransfer() throws Exception {
+        for (int bufferSize: new int[]{1, 7, 1024, 65536}) {
+            assertTransfer(bufferSize, bufferSize < 1024 ? 100000 : 1000000, true);
+        }
+    }
+
+    public void testLargeTransfer() throws Exception {
+        final int SIZE = 50 * 1024 * 1024;
+        long startTime = System.nanoTime();
+        assertTransfer(RingBufferPipe.DEFAULT_BUFFER_SIZE, SIZE, false);
+        log.info("Transferred " + SIZE / 1024 / 1024 + "MB in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+    }
+
+    private void assertTransfer(int bufferSize, final int total, final boolean singleBytes) throws Exception {
+        final RingBufferPipe pipe = new RingBufferPipe(bufferSize);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(87);
+                byte[] chunk = new byte[10000];
+                OutputStream out = pipe.getOutputStream();
+                try {
+                    int written = 0;
+                    while (written < total) {
+                        int length = Math.min(total - written, random.nextInt(chunk.length) + 1);
+                        if (singleBytes && length == 1) {
+                            out.write((byte) written);
+                        } else {
+                            for (int i = 0 ; i < length ; i++) {
+                                chunk[i] = (byte) (written + i);
+                            }
+                            out.write(chunk, 0, length);
+                        }
+                        written += length;
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    pipe.fail(e);
+                }
+            }
+        }, "RingBufferPipeTest_writer");
+        writer.start();
+
+        Random random = new Random(88);
+        InputStream in = pipe.getInputStream();
+        byte[] chunk = new byte[10000];
+        int read = 0;
+        while (true) {
+            if (singleBytes && random.nextBoolean()) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                assertEquals("The byte at position " + read + " should be as expected", (byte) read, (byte) b);
+                read++;
+            } else {
+                int length = in.read(chunk, 0, random.nextInt(chunk.length) + 1);
+                if (length == -1) {
+                    break;
+                }
+                for (int i = 0 ; i < length ; i++) {
+                    if (chunk[i] != (byte) (read + i)) {
+                        fail("The byte at position " + (read + i) + " should be as expected");
+                    }
+                }
+                read += length;
+            }
+        }
+        writer.join();
+        in.close();
+        assertEquals("All bytes should be transferred with buffer size " + bufferSize, total, read);
+    }
+
+    public void testContent() throws Exception {
+        final RingBufferPipe pipe = new RingBufferPipe(16);
+        final byte[] expected = new byte[100000];
+        new Random(87).nextBytes(expected);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0 ; i < expected.length ; i += 37) {
+                        pipe.getOutputStream().write(expected, i, Math.min(37, expected.length - i));
+                    }
+                    pipe.getOutputStream().close();
+                } catch (IOException e) {
+                    pipe.fail(e);
+                }
+            }
+        }).start();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buffer = new byte[23];
+        int read;
+        while ((read = pipe.getInputStream().read(buffer)) != -1) {
+            actual.write(buffer, 0, read);
+        }
+        assertTrue("The content should be passed unchanged", java.util.Arrays.equals(expected, actual.toByteArray()));
+    }
+
+    public void testFailure() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.getOutputStream().write(new byte[]{1, 2, 3});
+        pipe.fail(new IOException("Producer failed"));
+        InputStream in = pipe.getInputStream();
+        assertEquals("The buffered bytes should be available", 3, in.read(new byte[10]));
+        try {
+            in.read();
+            fail("The failure should be thrown after the buffered bytes");
+        } catch (IOException e) {
+            assertEquals("The cause should be the failure", "Producer failed", e.getCause().getMessage());
+        }
+    }
+
+    public void testSkip() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.getOutputStream().write(new byte[]{1, 2, 3, 4});
+        pipe.getOutputStream().close();
+        InputStream in = pipe.getInputStream();
+        assertEquals("Skipping a negative amount should skip nothing", 0, in.skip(-1));
+        assertEquals("Skipping should be limited by the content", 3, in.skip(3));
+        assertEquals("The byte after the skipped ones should be read", 4, in.read());
+        assertEquals("Skipping at end of stream should skip nothing", 0, in.skip(10));
+    }
+
+    public void testProducerError() throws Exception {
+        InputStream in = ThreadedPiper.getDeferredStream(new ThreadedPiper.Producer() {
+            @Override
+            public void process(OutputStream out) throws IOException {
+                out.write(1);
+                throw new Error("Simulated producer error");
+            }
+        });
+        assertEquals("The byte written before the error should be available", 1, in.read());
+        try {
+            in.read();
+            fail("The error from the producer should be passed to the reader");
+        } catch (IOException e) {
+            assertEquals("The cause should be the error",
+                         "Simulated producer error", e.getCause().getCause().getMessage());
+        }
+    }
+
+    public void testInterruptedReader() throws Exception {
+        final RingBufferPipe pipe = new RingBufferPipe(16);
+        final IOException[] readException = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipe.getInputStream().read();
+                } catch (IOException e) {
+                    readException[0] = e;
+                }
+            }
+        });
+        reader.start();
+        while (reader.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        reader.interrupt();
+        reader.join(1000);
+        assertFalse("The reader should be released", reader.isAlive());
+        assertTrue("The reader should fail with InterruptedIOException but got " + readException[0],
+                   readException[0] instanceof InterruptedIOException);
+    }
+
+    public void testReaderClose() throws Exception {
+        final RingBufferPipe pipe = new RingBufferPipe(16);
+        final IOException[] writeException = new IOException[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipe.getOutputStream().write(new byte[1000]);
+                } catch (IOException e) {
+                    writeException[0] = e;
+                }
+            }
+        });
+        writer.start();
+        while (pipe.getBuffered() < 16) {
+            Thread.sleep(1);
+        }
+        pipe.getInputStream().close();
+        writer.join(1000);
+        assertFalse("The writer should be released", writer.isAlive());
+        assertNotNull("The writer should fail", writeException[0]);
+    }
+}
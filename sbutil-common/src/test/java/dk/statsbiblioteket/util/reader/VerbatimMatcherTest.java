@@ -8,6 +8,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -230,6 +231,138 @@ public class VerbatimMatcherTest extends TestCase {
                       "Come", "fall");
     }
 
+    public void testStreamMatchesString() throws IOException {
+        String source = "Come visit East London in the fall. East-London is burning, London is not";
+        for (VerbatimMatcher.MATCH_MODE mode: VerbatimMatcher.MATCH_MODE.values()) {
+            for (boolean skip: new boolean[]{false, true}) {
+                for (char leading: new char[]{0, ' '}) {
+                    for (char following: new char[]{0, ' ', ','}) {
+                        String setup = "mode=" + mode + ", skip=" + skip + ", leading='" + leading
+                                       + "', following='" + following + "'";
+                        CollectingMatcher matcher = new CollectingMatcher();
+                        matcher.addRules("East", "London", "East London", "Come", "fall", "is", "i", "London is");
+                        int expectedCount = matcher.findMatches(source, mode, skip, leading, following);
+                        List<String> expected = new ArrayList<String>(matcher.matches);
+                        matcher.matches.clear();
+                        long actualCount = matcher.findMatches(
+                                new TrickleReader(source), mode, skip, leading, following);
+                        assertEquals("The number of matches should be the same for " + setup,
+                                     expectedCount, actualCount);
+                        assertEquals("The matches should be the same for " + setup, expected, matcher.matches);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testStreamOffsets() throws IOException {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            source.append("foo bar").append(i).append(" baz ");
+        }
+        final String input = source.toString();
+        final List<Long> offsets = new ArrayList<Long>();
+        VerbatimMatcher<String> matcher = new VerbatimMatcher<String>() {
+            @Override
+            public void callback(String match, String payload) {
+                fail("The String callback should not be called when the CharSequence callback is overridden");
+            }
+
+            @Override
+            public void callback(CharSequence match, long offset, String payload) {
+                assertEquals("The match at offset " + offset + " should be in the source",
+                             input.substring((int) offset, (int) offset + match.length()), match.toString());
+                offsets.add(offset);
+            }
+        };
+        matcher.addRules("bar1", "bar12", "baz");
+        assertEquals("The number of stream matches should be as expected",
+                     5000 + 1111 + 111, matcher.findMatches(new TrickleReader(input)));
+        assertEquals("The number of offsets should match", 5000 + 1111 + 111, offsets.size());
+        assertEquals("The first offset should be correct", input.indexOf("baz"), (long) offsets.get(0));
+        assertEquals("The number of String matches should be the same",
+                     5000 + 1111 + 111, matcher.findMatches(input));
+    }
+
+    public void testFreeze() {
+        CollectingMatcher matcher = new CollectingMatcher();
+        matcher.addRule("London", "old");
+        matcher.addRules("East London", "East");
+        VerbatimTrie<String> trie = matcher.freeze();
+        assertSame("Freezing twice without changes should give the same trie", trie, matcher.freeze());
+        assertEquals("The trie should hold the right number of verbatims", 3, trie.size());
+        assertTrue("The trie should contain 'East London'", trie.contains("East London"));
+        assertFalse("The trie should not contain the prefix 'Eas'", trie.contains("Eas"));
+        assertEquals("The payload for 'London' should be available",
+                     "old", trie.getPayload(trie.getNode("London")));
+
+        matcher.addRule("Paris");
+        assertFalse("The old trie should not be affected by new rules", trie.contains("Paris"));
+        assertTrue("A new freeze should contain the new rule", matcher.freeze().contains("Paris"));
+        matcher.getNode("London").setPayload("new");
+        assertEquals("A new freeze should reflect changed payloads",
+                     "new", matcher.freeze().getPayload(matcher.freeze().getNode("London")));
+
+        CollectingMatcher frozen = new CollectingMatcher(trie);
+        assertMatchesPayload(frozen, "East London in Paris",
+                             Arrays.asList("East", "East London", "London"), Arrays.asList(null, null, "old"));
+        try {
+            frozen.addRule("Berlin");
+            fail("Adding rules to a matcher based on a frozen trie should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testSharedTrie() throws Exception {
+        final CollectingMatcher builder = new CollectingMatcher();
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.addRule("term" + i + " ", Integer.toString(i));
+            if (i % 3 == 0) {
+                source.append("term").append(i).append(" and ");
+            }
+        }
+        final String input = source.toString();
+        final int expected = builder.findMatches(input);
+        assertEquals("The mutable matcher should find the right number of matches", 667, expected);
+        final List<String> expectedMatches = new ArrayList<String>(builder.matches);
+
+        final VerbatimTrie<String> trie = builder.freeze();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20; i++) {
+                        CollectingMatcher session = new CollectingMatcher(trie);
+                        if (session.findMatches(input) != expected || !expectedMatches.equals(session.matches)) {
+                            failures.add("Mismatch in iteration " + i + " with " + session.matches.size()
+                                         + " matches");
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("There should be no failures but got " + failures, failures.isEmpty());
+    }
+
+    private static class TrickleReader extends StringReader {
+        private TrickleReader(String s) {
+            super(s);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(3, len));
+        }
+    }
+
     private void assertMatchesPayload(
             CollectingMatcher matcher, String source, List<String> verbatims, List<String> payloads) {
         assertEquals("There should be the right number of matches",
@@ -260,6 +393,14 @@ public class VerbatimMatcherTest extends TestCase {
         public final List<String> matches = new ArrayList<String>();
         public final List<String> payloads = new ArrayList<String>();
 
+        private CollectingMatcher() {
+            super();
+        }
+
+        private CollectingMatcher(VerbatimTrie<String> trie) {
+            super(trie);
+        }
+
         @Override
         public void callback(String match, String payload) {
             matches.add(match);
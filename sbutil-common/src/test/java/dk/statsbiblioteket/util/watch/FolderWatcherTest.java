@@ -26,8 +26,15 @@ import dk.statsbiblioteket.util.Files;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * FolderWatcher Tester.
@@ -37,6 +44,8 @@ import java.io.File;
  * @since <pre>08/27/2007</pre>
  */
 public class FolderWatcherTest extends TestCase implements FolderListener {
+    private static Log log = LogFactory.getLog(FolderWatcherTest.class);
+
     File interestingFolder;
     FolderEvent lastEvent;
 
@@ -102,6 +111,168 @@ public class FolderWatcherTest extends TestCase implements FolderListener {
         // TODO: Test remove and add at the same time
     }
 
+    public void testEventLatency() throws Exception {
+        FolderWatcher watcher = new FolderWatcher(interestingFolder, 60, 0);
+        if (!watcher.isEventBased()) {
+            log.warn("WatchService not available. Skipping testEventLatency without asserting anything");
+            watcher.close();
+            return;
+        }
+        try {
+            watcher.addFolderListener(this);
+            File fileA = new File(interestingFolder, "A");
+            fileA.createNewFile();
+            long start = System.currentTimeMillis();
+            while (lastEvent == null && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            assertNotNull("An event should be received long before the poll interval", lastEvent);
+            assertEquals("The event should be an addition", FolderEvent.EventType.added, lastEvent.getEventType());
+            assertEquals("The added file should be as expected", fileA, lastEvent.getChangeList().get(0));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    public void testOverflow() throws Exception {
+        final int FILES = 2000; // More than the WatchService queues without overflowing
+        final Set<File> added = new HashSet<File>();
+        FolderWatcher watcher = new FolderWatcher(interestingFolder, 60, 0);
+        if (!watcher.isEventBased()) {
+            log.warn("WatchService not available. Skipping testOverflow without asserting anything");
+            watcher.close();
+            return;
+        }
+        try {
+            watcher.addFolderListener(new FolderListener() {
+                @Override
+                public void folderChanged(FolderEvent folderEvent) {
+                    synchronized (added) {
+                        assertEquals("Only additions should be received",
+                                     FolderEvent.EventType.added, folderEvent.getEventType());
+                        for (File file: folderEvent.getChangeList()) {
+                            assertTrue("The file " + file + " should only be added once", added.add(file));
+                        }
+                    }
+                }
+            });
+            for (int i = 0; i < FILES; i++) {
+                new File(interestingFolder, "file_" + i).createNewFile();
+            }
+            long start = System.currentTimeMillis();
+            while (System.currentTimeMillis() - start < 10000) {
+                synchronized (added) {
+                    if (added.size() == FILES) {
+                        break;
+                    }
+                }
+                Thread.sleep(50);
+            }
+            synchronized (added) {
+                assertEquals("All added files should be reported", FILES, added.size());
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
+    public void testModified() throws Exception {
+        File fileA = new File(interestingFolder, "A");
+        fileA.createNewFile();
+        FolderWatcher watcher = new FolderWatcher(interestingFolder, 1, 0);
+        try {
+            watcher.setReportModified(true);
+            watcher.addFolderListener(this);
+            Thread.sleep(1500); // Let the watcher pick up the setting
+            FileOutputStream out = new FileOutputStream(fileA);
+            out.write(new byte[10]);
+            out.close();
+            long start = System.currentTimeMillis();
+            while (lastEvent == null && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            assertNotNull("An event should be received", lastEvent);
+            assertEquals("The event should be a modification",
+                         FolderEvent.EventType.modified, lastEvent.getEventType());
+            assertEquals("The modified file should be as expected", fileA, lastEvent.getChangeList().get(0));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    public void testPollingModified() throws Exception {
+        File fileA = new File(interestingFolder, "A");
+        fileA.createNewFile();
+        final List<FolderEvent> events = new ArrayList<FolderEvent>();
+        FolderWatcher watcher = new FolderWatcher(interestingFolder, 1, 0, false);
+        watcher.setReportModified(true);
+        watcher.addFolderListener(new FolderListener() {
+            @Override
+            public void folderChanged(FolderEvent folderEvent) {
+                synchronized (events) {
+                    events.add(folderEvent);
+                }
+            }
+        });
+        watcher.start();
+        try {
+            assertFalse("The watcher should poll", watcher.isEventBased());
+            Thread.sleep(1500);
+            FileOutputStream out = new FileOutputStream(fileA);
+            out.write(new byte[10]);
+            out.close();
+            File fileB = new File(interestingFolder, "B");
+            fileB.createNewFile();
+            Thread.sleep(2500);
+            synchronized (events) {
+                assertEquals("There should be an added and a modified event, but got " + events, 2, events.size());
+                assertEquals(FolderEvent.EventType.added, events.get(0).getEventType());
+                assertEquals(fileB, events.get(0).getChangeList().get(0));
+                assertEquals(FolderEvent.EventType.modified, events.get(1).getEventType());
+                assertEquals(fileA, events.get(1).getChangeList().get(0));
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
+    public void testSlowListener() throws Exception {
+        final List<FolderEvent> slowEvents = new ArrayList<FolderEvent>();
+        FolderWatcher watcher = new FolderWatcher(interestingFolder, 1, 0);
+        try {
+            watcher.addFolderListener(new FolderListener() {
+                @Override
+                public void folderChanged(FolderEvent folderEvent) {
+                    synchronized (slowEvents) {
+                        slowEvents.add(folderEvent);
+                    }
+                    try {
+                        Thread.sleep(1500);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException("Interrupted", e);
+                    }
+                }
+            });
+            watcher.addFolderListener(this);
+            new File(interestingFolder, "A").createNewFile();
+            Thread.sleep(200);
+            new File(interestingFolder, "B").createNewFile();
+            Thread.sleep(200);
+            new File(interestingFolder, "C").createNewFile();
+            Thread.sleep(200);
+            assertNotNull("The fast listener should not be delayed by the slow one", lastEvent);
+            Thread.sleep(2500);
+            synchronized (slowEvents) {
+                assertEquals("The queued events for the slow listener should be merged",
+                             2, slowEvents.size());
+                assertEquals("The merged event should contain the queued files",
+                             2, slowEvents.get(1).getChangeList().size());
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
     public static Test suite() {
         return new TestSuite(FolderWatcherTest.class);
     }
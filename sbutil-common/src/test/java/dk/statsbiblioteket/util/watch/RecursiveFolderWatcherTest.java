@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -163,4 +164,57 @@ public class RecursiveFolderWatcherTest extends TestCase {
         Thread.sleep(pollInterval * 2000);
         assertEquals(3, listener.events.size());
     }
+
+    /* depth == -1, without WatchService */
+    public synchronized void testDeepWatchPolling() throws Exception {
+        watcher = new RecursiveFolderWatcher(testRoot, -1, pollInterval, 200, false);
+        watcher.addFolderListener(listener);
+        assertFalse("The watcher should poll", watcher.isEventBased());
+
+        Thread.sleep(pollInterval * 2000);
+        assertEquals(0, listener.events.size());
+
+        truncate(testDir3, "foo");
+        Thread.sleep(pollInterval * 3000);
+        assertEquals(1, listener.events.size());
+
+        Files.delete(testDir2);
+        Thread.sleep(pollInterval * 3000);
+        assertEquals(2, listener.events.size());
+        FolderEvent removal = listener.events.get(1);
+        assertEquals(FolderEvent.EventType.removed, removal.getEventType());
+        assertEquals("The sub directory and all files below it should be reported removed, but got "
+                     + removal.getChangeList(), 3, removal.getChangeList().size());
+        watcher.close();
+    }
+
+    public synchronized void testPerFileStability() throws Exception {
+        watcher = new RecursiveFolderWatcher(testRoot, -1, pollInterval, 500);
+        watcher.addFolderListener(listener);
+        Thread.sleep(500);
+
+        File growing = new File(testDir1, "growing");
+        FileOutputStream out = new FileOutputStream(growing);
+        try {
+            out.write(1);
+            out.flush();
+            File quick = truncate(testDir3, "quick");
+            long start = System.currentTimeMillis();
+            while (listener.events.isEmpty() && System.currentTimeMillis() - start < 5000) {
+                out.write(1);
+                out.flush();
+                Thread.sleep(100);
+            }
+            assertEquals("The stable file should be reported while the other file grows",
+                         1, listener.events.size());
+            assertEquals("Only the stable file should be reported",
+                         Arrays.asList(quick), listener.events.get(0).getChangeList());
+        } finally {
+            out.close();
+        }
+        Thread.sleep(pollInterval * 2000);
+        assertEquals("The growing file should be reported after it stopped growing",
+                     Arrays.asList(growing), listener.events.get(listener.events.size() - 1).getChangeList());
+        watcher.close();
+    }
 }
@@ -0,0 +1,105 @@
+package dk.statsbiblioteket.util.xml;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for the parsing and serialization methods in {@link DOM}.
+ */
+public class DOMTest extends TestCase {
+
+    static final String NS_XML =
+            DOM.XML_HEADER +
+            "<body xmlns=\"http://statsbiblioteket.dk/2010/Body\">" +
+            "<sub>hællo</sub>" +
+            "</body>";
+
+    public void testBuilderReuse() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Document plain = DOM.stringToDOM(NS_XML, false);
+            assertNull("Plain DOM #" + i + " should have no namespace",
+                       plain.getDocumentElement().getNamespaceURI());
+            Document ns = DOM.stringToDOM(NS_XML, true);
+            assertEquals("Namespaced DOM #" + i + " should have a namespace",
+                         "http://statsbiblioteket.dk/2010/Body",
+                         ns.getDocumentElement().getNamespaceURI());
+        }
+    }
+
+    public void testParseErrorRecovery() throws Exception {
+        assertNull("Invalid XML should give null",
+                   DOM.stringToDOM("<body><unclosed></body>"));
+        assertNotNull("Parsing should work after an error",
+                      DOM.stringToDOM(NS_XML));
+    }
+
+    public void testBytesToDOM() throws Exception {
+        byte[] bytes = NS_XML.getBytes("utf-8");
+        Document dom = DOM.bytesToDOM(bytes);
+        assertEquals("hællo", DOM.selectString(dom, "/body/sub"));
+    }
+
+    public void testByteBufferToDOM() throws Exception {
+        byte[] bytes = NS_XML.getBytes("utf-8");
+
+        ByteBuffer heap = ByteBuffer.allocate(bytes.length + 4);
+        heap.put(new byte[]{1, 2});
+        heap.put(bytes);
+        heap.flip();
+        heap.position(2);
+        Document dom = DOM.bytesToDOM(heap.slice(), true);
+        assertNotNull("The heap buffer should be parsed", dom);
+        assertEquals("The heap buffer position should be unchanged",
+                     2, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        dom = DOM.bytesToDOM(direct);
+        assertEquals("hællo", DOM.selectString(dom, "/body/sub"));
+        assertEquals("The direct buffer position should be unchanged",
+                     0, direct.position());
+    }
+
+    public void testDomToString() throws Exception {
+        Document dom = DOM.stringToDOM(NS_XML, true);
+        String plain = DOM.domToString(dom);
+        assertFalse("There should be no declaration in " + plain,
+                    plain.startsWith("<?xml"));
+        String declared = DOM.domToString(dom, true);
+        assertTrue("There should be a declaration in " + declared,
+                   declared.startsWith("<?xml"));
+        assertEquals("Repeated serialization should be stable",
+                     plain, DOM.domToString(dom));
+    }
+
+    public void testThreadedParsing() throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            Document dom = DOM.stringToDOM(NS_XML, i % 2 == 0);
+                            assertNotNull(dom);
+                            assertTrue(DOM.domToString(dom).contains("hællo"));
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            fail("Threaded parsing failed: " + failure[0]);
+        }
+    }
+}
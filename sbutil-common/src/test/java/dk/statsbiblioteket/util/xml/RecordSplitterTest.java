@@ -0,0 +1,214 @@
+package dk.statsbiblioteket.util.xml;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link RecordSplitter}.
+ */
+public class RecordSplitterTest extends TestCase {
+
+    static final String RECORDS =
+            DOM.XML_HEADER +
+            "<collection>\n" +
+            "  <!-- Comment with <record> -->\n" +
+            "  <record id=\"1\"><title>Første</title></record>\n" +
+            "  <meta><record id=\"ignored\"/></meta>\n" +
+            "  <record id=\"2\"><title>Second &amp; more</title><record id=\"inner\"/></record>\n" +
+            "  <record id=\"3\"/>\n" +
+            "  <record id=\"4\"><title><![CDATA[Fourth 𝄞]]></title></record>\n" +
+            "</collection>\n";
+
+    private File tmp;
+
+    @Override
+    public void tearDown() {
+        if (tmp != null) {
+            tmp.delete();
+        }
+    }
+
+    public void testReaderSplit() throws Exception {
+        final List<String> ids = new ArrayList<String>();
+        final List<String> titles = new ArrayList<String>();
+        long count = new RecordSplitter("/collection/record").split(
+                new ByteArrayInputStream(RECORDS.getBytes("utf-8")), new RecordSplitter.ReaderCallback() {
+            @Override
+            public void record(XMLStreamReader record) throws XMLStreamException {
+                ids.add(XMLStepper.getAttribute(record, "id", null));
+                if (ids.size() == 2) {
+                    return; // Skipping the remainder of the record should be handled by the splitter
+                }
+                while (record.next() != XMLStreamReader.END_DOCUMENT) {
+                    if (record.getEventType() == XMLStreamReader.START_ELEMENT
+                        && "title".equals(record.getLocalName())) {
+                        titles.add(record.getElementText());
+                    }
+                }
+            }
+        });
+        assertEquals("The number of records should be correct", 4, count);
+        assertEquals("[1, 2, 3, 4]", ids.toString());
+        assertEquals("[Første, Fourth 𝄞]", titles.toString());
+    }
+
+    public void testIndependentPath() throws Exception {
+        final List<String> ids = new ArrayList<String>();
+        new RecordSplitter("//record").split(
+                new ByteArrayInputStream(RECORDS.getBytes("utf-8")), new RecordSplitter.ReaderCallback() {
+            @Override
+            public void record(XMLStreamReader record) throws XMLStreamException {
+                ids.add(XMLStepper.getAttribute(record, "id", null));
+            }
+        });
+        assertEquals("Nested records should not be delivered", "[1, ignored, 2, 3, 4]", ids.toString());
+    }
+
+    public void testAttributePath() {
+        try {
+            new RecordSplitter("/collection/record/@id");
+            fail("Attribute paths should not be accepted as record paths");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRangeSplit() throws Exception {
+        assertRanges(RECORDS.getBytes("utf-8"));
+    }
+
+    public void testRangeSplitBOM() throws Exception {
+        byte[] content = RECORDS.getBytes("utf-8");
+        byte[] bom = new byte[content.length + 3];
+        bom[0] = (byte)0xEF;
+        bom[1] = (byte)0xBB;
+        bom[2] = (byte)0xBF;
+        System.arraycopy(content, 0, bom, 3, content.length);
+        assertRanges(bom);
+    }
+
+    private void assertRanges(byte[] content) throws Exception {
+        tmp = write(content);
+        final List<String> records = new ArrayList<String>();
+        long count = new RecordSplitter("/collection/record").split(tmp, new RecordSplitter.RangeCallback() {
+            @Override
+            public void record(File file, long offset, long length) throws XMLStreamException {
+                try {
+                    records.add(new String(RecordSplitter.readRange(file, offset, length), "utf-8"));
+                } catch (IOException e) {
+                    throw new XMLStreamException("Unable to read range", e);
+                }
+            }
+        });
+        assertEquals("The number of records should be correct", 4, count);
+        assertEquals("<record id=\"1\"><title>Første</title></record>", records.get(0));
+        assertEquals("<record id=\"2\"><title>Second &amp; more</title><record id=\"inner\"/></record>",
+                     records.get(1));
+        assertEquals("<record id=\"3\"/>", records.get(2));
+        assertEquals("<record id=\"4\"><title><![CDATA[Fourth 𝄞]]></title></record>", records.get(3));
+    }
+
+    public void testLargeRangeSplit() throws Exception {
+        final int RECORDS = 20000;
+        StringBuilder sb = new StringBuilder(DOM.XML_HEADER).append("<collection>\n");
+        for (int i = 0 ; i < RECORDS ; i++) {
+            sb.append("<record id=\"").append(i).append("\"><title>Tæst ").append(i).append(" ");
+            for (int p = 0 ; p < i % 20 ; p++) {
+                sb.append("ø𝄞 padding");
+            }
+            sb.append("</title></record>\n");
+        }
+        sb.append("</collection>");
+        tmp = write(sb.toString().getBytes("utf-8"));
+        assertTrue("The file should exceed the buffers", tmp.length() > 1024*1024);
+
+        final int[] next = new int[1];
+        long count = new RecordSplitter("/collection/record").split(tmp, new RecordSplitter.RangeCallback() {
+            @Override
+            public void record(File file, long offset, long length) throws XMLStreamException {
+                try {
+                    Document dom = DOM.bytesToDOM(RecordSplitter.readRange(file, offset, length));
+                    assertNotNull("Record #" + next[0] + " should be valid XML", dom);
+                    assertEquals(Integer.toString(next[0]++), DOM.selectString(dom, "/record/@id"));
+                } catch (IOException e) {
+                    throw new XMLStreamException("Unable to read range", e);
+                }
+            }
+        });
+        assertEquals("All records should be delivered", RECORDS, count);
+    }
+
+    public void testLatin1RangeSplit() throws Exception {
+        tmp = write(("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" standalone=\"yes\"?>"
+                     + "<c><r a='x>y'>blåbær</r><!-- <r> --><r><![CDATA[<r>]]></r></c>").getBytes("ISO-8859-1"));
+        final List<String> records = new ArrayList<String>();
+        new RecordSplitter("/c/r").split(tmp, new RecordSplitter.RangeCallback() {
+            @Override
+            public void record(File file, long offset, long length) throws XMLStreamException {
+                try {
+                    records.add(new String(RecordSplitter.readRange(file, offset, length), "ISO-8859-1"));
+                } catch (IOException e) {
+                    throw new XMLStreamException("Unable to read range", e);
+                }
+            }
+        });
+        assertEquals("[<r a='x>y'>blåbær</r>, <r><![CDATA[<r>]]></r>]", records.toString());
+    }
+
+    public void testUnsupportedEncoding() throws Exception {
+        tmp = write("<c><record/></c>".getBytes("UTF-16"));
+        try {
+            new RecordSplitter("/c/record").split(tmp, new RecordSplitter.RangeCallback() {
+                @Override
+                public void record(File file, long offset, long length) { }
+            });
+            fail("Splitting an UTF-16 file into byte ranges should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testReadRangeTooLong() throws Exception {
+        tmp = write("<c/>".getBytes("utf-8"));
+        try {
+            RecordSplitter.readRange(tmp, 0, RecordSplitter.MAX_RANGE_LENGTH + 1L);
+            fail("Reading a range longer than the maximum should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testScannerSkip() throws Exception {
+        RecordSplitter.TagScanner scanner = new RecordSplitter.TagScanner(
+                new ByteArrayInputStream("<a><b/></a>".getBytes("utf-8")));
+        assertEquals("All bytes but the last should be skipped", 10, scanner.skip(10));
+        assertEquals("The last byte should be read", '>', scanner.read());
+        assertEquals("Skipping at end of stream should skip nothing", 0, scanner.skip(5));
+        assertEquals("The skipped start tag should be scanned", 0, scanner.nextStart());
+        assertEquals("The skipped empty element should be scanned", 3, scanner.nextStart());
+        assertEquals("The skipped empty element should be ended", 7, scanner.nextEnd());
+        assertEquals("The end tag should be scanned", 11, scanner.nextEnd());
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = File.createTempFile("recordsplitter_", ".xml");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
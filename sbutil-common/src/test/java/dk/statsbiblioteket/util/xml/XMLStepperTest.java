@@ -152,6 +152,48 @@ public class XMLStepperTest extends TestCase {
         assertXPaths(BIG_XML, tests, 2);
     }
 
+    public void testFakeXPathSameElement() throws XMLStreamException {
+        final String BIG_XML = Strings.flushLocal(
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("data/big.xml"));
+        final String[][] tests = new String[][]{
+                {"/project/foo/bar", "zoo2", ""},
+                {"/project/foo/bar", "zoo2", ""},
+                {"/project/foo/bar/@somat", "zoo4"},
+                {"/project/monkey[@bar='fun']", "ape"},
+                {"/project/monkey/@bar", "fun"},
+                {"//monkey/@bar", "fun", "fun"},
+                {"//inner/monkey", "gorilla"}
+        };
+        assertXPaths(BIG_XML, tests, 2);
+    }
+
+    public void testFakeXPathMatcherReuse() throws XMLStreamException {
+        XMLStepper.FakeXPathMatcher matcher = XMLStepper.createFakeXPathMatcher(
+                Arrays.asList("/a/b", "//c/@d", "/a/*[@x='1']", "//c[@d='d2']"));
+        for (int i = 0 ; i < 3 ; i++) {
+            List<List<String>> results = matcher.evaluate(
+                    "<a><b>b" + i + "</b><e x=\"1\">e</e><c d=\"d1\"><c d=\"d2\">c2</c></c></a>", -1);
+            assertEquals("Run " + i + ": /a/b", Arrays.asList("b" + i), results.get(0));
+            assertEquals("Run " + i + ": //c/@d", Arrays.asList("d1", "d2"), results.get(1));
+            assertEquals("Run " + i + ": /a/*[@x='1']", Arrays.asList("e"), results.get(2));
+            assertEquals("Run " + i + ": //c[@d='d2']", Arrays.asList("c2"), results.get(3));
+        }
+    }
+
+    public void testFakeXPathManyPaths() throws XMLStreamException {
+        StringBuilder xml = new StringBuilder("<record>");
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0 ; i < 500 ; i++) {
+            xml.append("<field tag=\"").append(i).append("\"><sub>v").append(i).append("</sub></field>");
+            paths.add("/record/field[@tag='" + i + "']/sub");
+        }
+        xml.append("</record>");
+        List<String> results = XMLStepper.evaluateFakeXPathsSingleResults(xml, paths);
+        for (int i = 0 ; i < 500 ; i++) {
+            assertEquals("The result for path #" + i + " should be as expected", "v" + i, results.get(i));
+        }
+    }
+
     private void assertXPaths(String xml, String[][] tests, int maxMatchesPerXP) throws XMLStreamException {
         List<String> xPaths = new ArrayList<String>(tests.length);
         for (String[] test: tests) {
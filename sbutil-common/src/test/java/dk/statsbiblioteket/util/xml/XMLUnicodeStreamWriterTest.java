@@ -55,4 +55,54 @@ public class XMLUnicodeStreamWriterTest extends TestCase {
         assertEquals("The extended Unicode should be properly escaped", EXPECTED, output);
     }
 
-}
\ No newline at end of file
+    public void testCharRange() throws XMLStreamException {
+        Writer writer = new StringWriter();
+        XMLStreamWriter xmlWriter = new XMLUnicodeStreamWriter(writer);
+        char[] chars = ("XX" + INPUT + "YY").toCharArray();
+        xmlWriter.writeCharacters(chars, 2, chars.length - 4);
+        xmlWriter.flush();
+        assertEquals("The char range should be escaped", EXPECTED, writer.toString());
+    }
+
+    public void testElementsAndAttributes() throws XMLStreamException {
+        String ext = new StringBuilder().appendCodePoint(0x1d49c).toString();
+        Writer writer = new StringWriter();
+        XMLStreamWriter xmlWriter = new XMLUnicodeStreamWriter(writer);
+        xmlWriter.writeStartElement("a");
+        xmlWriter.writeAttribute("plain", "x");
+        xmlWriter.writeAttribute("ext", "\"" + ext + "\"&<\n");
+        xmlWriter.writeAttribute("after", "y");
+        xmlWriter.writeCharacters(ext);
+        xmlWriter.writeEmptyElement("b");
+        xmlWriter.writeAttribute("ext", ext);
+        xmlWriter.writeCharacters(ext + "<");
+        xmlWriter.writeCharacters("c");
+        xmlWriter.writeEndElement();
+        xmlWriter.flush();
+        assertEquals("Elements, attributes and text should be ordered and escaped",
+                     "<a plain=\"x\" ext=\"&quot;&#x1d49c;&quot;&amp;&lt;&#10;\" after=\"y\">&#x1d49c;"
+                     + "<b ext=\"&#x1d49c;\"/>&#x1d49c;&lt;c</a>",
+                     writer.toString());
+    }
+
+    public void testNoFlushWithoutExtended() throws XMLStreamException {
+        final int[] flushes = new int[1];
+        Writer writer = new StringWriter() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        XMLStreamWriter xmlWriter = new XMLUnicodeStreamWriter(writer);
+        for (int i = 0; i < 100; i++) {
+            xmlWriter.writeStartElement("e");
+            xmlWriter.writeCharacters("Plain & simple");
+            xmlWriter.writeEndElement();
+        }
+        assertEquals("The underlying Writer should not be flushed for text without extended Unicode",
+                     0, flushes[0]);
+        xmlWriter.writeCharacters(INPUT);
+        xmlWriter.writeCharacters(INPUT);
+        assertEquals("Consecutive direct writes should only flush once", 1, flushes[0]);
+    }
+}
@@ -2,6 +2,10 @@ package dk.statsbiblioteket.util.xml;
 
 import junit.framework.TestCase;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static dk.statsbiblioteket.util.xml.XMLUtil.decode;
 import static dk.statsbiblioteket.util.xml.XMLUtil.encode;
 
 /**
@@ -21,4 +25,53 @@ public class XMLUtilTest extends TestCase {
         assertEquals("&quot;+", encode("\"+"));
     }
 
+    public void testEncodeUnchanged() {
+        String plain = "No special chars \u00e6\u00f8\u00e5";
+        assertSame("Input without special chars should be returned as-is", plain, encode(plain));
+        assertSame("Input without entities should be returned as-is", plain, decode(plain));
+    }
+
+    public void testEncodeSinks() throws IOException {
+        String input = "a<b & \"c\"'>d";
+        String expected = "a&lt;b &amp; &quot;c&quot;&apos;&gt;d";
+        assertEquals(expected, encode(input));
+
+        StringWriter writer = new StringWriter();
+        encode(input, writer);
+        assertEquals("Writer sink", expected, writer.toString());
+
+        char[] chars = ("XX" + input + "YY").toCharArray();
+        StringBuilder sb = new StringBuilder();
+        encode(chars, 2, input.length(), sb);
+        assertEquals("char[] to StringBuilder", expected, sb.toString());
+
+        char[] out = new char[input.length() * XMLUtil.MAX_ENCODED_LENGTH + 1];
+        int written = encode(chars, 2, input.length(), out, 1);
+        assertEquals("char[] to char[]", expected, new String(out, 1, written));
+    }
+
+    public void testDecode() {
+        assertEquals("<>&\"'", decode("&lt;&gt;&amp;&quot;&apos;"));
+        assertEquals("&amp;", decode("&amp;amp;"));
+        assertEquals("Numeric entities", "AB\u00e6", decode("&#65;&#x42;&#xE6;"));
+        assertEquals("Supplementary code point",
+                     new StringBuilder("x").appendCodePoint(0x1d49c).append("y").toString(), decode("x&#x1d49c;y"));
+        assertEquals("Malformed and unknown entities should be kept",
+                     "& &; &foo; &#; &#x; &#X41; &#xZZ; &#x110000; &amp",
+                     decode("&amp; &; &foo; &#; &#x; &#X41; &#xZZ; &#x110000; &amp"));
+    }
+
+    public void testDecodeInPlace() {
+        String input = "a&lt;b&#x1d49c;&amp;";
+        String expected = decode(input);
+        char[] chars = input.toCharArray();
+        int written = XMLUtil.decode(chars, 0, chars.length, chars, 0);
+        assertEquals(expected, new String(chars, 0, written));
+    }
+
+    public void testRoundTrip() {
+        String input = "<tag attr=\"'v' & w\">text</tag>";
+        assertEquals(input, decode(encode(input)));
+    }
+
 }
@@ -0,0 +1,154 @@
+package dk.statsbiblioteket.util.xml;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+
+import java.util.Arrays;
+
+import static dk.statsbiblioteket.util.xml.DOM.stringToDOM;
+
+/**
+ * Test cases for {@link XPathBatch} and {@code XPathSelectorImpl.selectMany}.
+ */
+public class XPathBatchTest extends TestCase {
+
+    static final String RECORD_XML =
+            DOM.XML_HEADER +
+            "<record xmlns=\"http://example.com/default\">" +
+            "  <header id=\"h1\"><datestamp>2010</datestamp></header>" +
+            "  <metadata>" +
+            "    <title>Foo</title>" +
+            "    <year>1999</year>" +
+            "    <price>12.5</price>" +
+            "    <open>true</open>" +
+            "    <author>A</author>" +
+            "    <author>B</author>" +
+            "  </metadata>" +
+            "  <metadata>" +
+            "    <title>Bar</title>" +
+            "  </metadata>" +
+            "</record>";
+
+    Document dom;
+    XPathSelectorImpl selector;
+
+    @Override
+    public void setUp() {
+        selector = new XPathSelectorImpl(new DefaultNamespaceContext(null, "d", "http://example.com/default"), 50);
+        dom = stringToDOM(RECORD_XML, true);
+        assertNotNull(dom);
+    }
+
+    public void testSplitPath() {
+        assertEquals(Arrays.asList("/a", "b", "@c"),
+                     XPathBatch.splitPath("/a/b/@c"));
+        assertEquals(Arrays.asList("a[b/c='x/y']", "text()"),
+                     XPathBatch.splitPath("a[b/c='x/y']/text()"));
+        assertNull(XPathBatch.splitPath("/a"));
+        assertNull(XPathBatch.splitPath("//a/b"));
+        assertNull(XPathBatch.splitPath("/a//b"));
+        assertNull(XPathBatch.splitPath("count(/a/b)"));
+        assertNull(XPathBatch.splitPath("/a/b = 'c'"));
+        assertNull(XPathBatch.splitPath("/a/b | /a/c"));
+        assertNull(XPathBatch.splitPath("/a/@b/c"));
+        assertNull(XPathBatch.splitPath("/a/text()/c"));
+    }
+
+    public void testSelectMany() {
+        XPathBatch batch = new XPathBatch()
+                .addString("id", "/d:record/d:header/@id")
+                .addInteger("datestamp", "/d:record/d:header/d:datestamp")
+                .addString("title", "/d:record/d:metadata/d:title")
+                .addInteger("year", "/d:record/d:metadata/d:year")
+                .addDouble("price", "/d:record/d:metadata/d:price")
+                .addBoolean("open", "/d:record/d:metadata/d:open")
+                .addNodeList("authors", "/d:record/d:metadata/d:author")
+                .addNode("header", "/d:record/d:header")
+                .addString("missing", "/d:record/d:header/d:missing", "none")
+                .addInteger("missingInt", "/d:record/d:header/d:missing", 7)
+                .addDouble("missingDouble", "/d:record/d:nothing/d:missing")
+                .addBoolean("missingBool", "/d:record/d:nothing/d:missing")
+                .addString("count", "count(/d:record/d:metadata)");
+        XPathBatch.Result result = selector.selectMany(dom, batch);
+
+        assertEquals("h1", result.getString("id"));
+        assertEquals(Integer.valueOf(2010), result.getInteger("datestamp"));
+        assertEquals("Foo", result.getString("title"));
+        assertEquals(Integer.valueOf(1999), result.getInteger("year"));
+        assertEquals(12.5, result.getDouble("price"));
+        assertEquals(Boolean.TRUE, result.getBoolean("open"));
+        assertEquals(2, result.getNodeList("authors").getLength());
+        assertEquals("header", result.getNode("header").getLocalName());
+        assertEquals("none", result.getString("missing"));
+        assertEquals(Integer.valueOf(7), result.getInteger("missingInt"));
+        assertNull(result.getDouble("missingDouble"));
+        assertEquals(Boolean.FALSE, result.getBoolean("missingBool"));
+        assertEquals("2", result.getString("count"));
+    }
+
+    public void testMatchesIndividualSelects() {
+        String[] paths = {
+                "/d:record/d:metadata/d:title",
+                "/d:record/d:metadata/d:author",
+                "/d:record/d:metadata/d:year",
+                "/d:record/d:header/d:datestamp",
+                "/d:record/d:header/@id",
+                "d:record/d:metadata/d:title",
+                "/d:record/d:metadata[2]/d:title",
+                "/d:record/d:nothing/d:title"
+        };
+        XPathBatch batch = new XPathBatch();
+        for (int i = 0; i < paths.length; i++) {
+            batch.addString("s" + i, paths[i]);
+            batch.addString("d" + i, paths[i], "default");
+            batch.addNode("n" + i, paths[i]);
+        }
+        XPathBatch.Result result = selector.selectMany(dom, batch);
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals("String " + paths[i],
+                         selector.selectString(dom, paths[i]),
+                         result.getString("s" + i));
+            assertEquals("String with default " + paths[i],
+                         selector.selectString(dom, paths[i], "default"),
+                         result.getString("d" + i));
+            assertSame("Node " + paths[i],
+                       selector.selectNode(dom, paths[i]),
+                       result.getNode("n" + i));
+        }
+    }
+
+    public void testSharedPrefixPlan() {
+        XPathBatch batch = new XPathBatch()
+                .addString("a", "/r/m/a")
+                .addString("b", "/r/m/b")
+                .addString("c", "/r/h/c")
+                .addString("d", "/r/h/d");
+        String plan = batch.toString();
+        assertTrue("The plan should share /r\n" + plan,
+                   plan.contains("/r ->"));
+        assertTrue("The plan should share m\n" + plan,
+                   plan.contains("m ->"));
+        assertTrue("The plan should share h\n" + plan,
+                   plan.contains("h ->"));
+    }
+
+    public void testDOMSelectMany() {
+        Document plain = stringToDOM(RECORD_XML);
+        XPathBatch batch = new XPathBatch()
+                .addString("title", "/record/metadata/title")
+                .addString("id", "/record/header/@id");
+        XPathBatch.Result result = DOM.selectMany(plain, batch);
+        assertEquals("Foo", result.getString("title"));
+        assertEquals("h1", result.getString("id"));
+    }
+
+    public void testDuplicateName() {
+        XPathBatch batch = new XPathBatch().addString("a", "/a/b");
+        try {
+            batch.addString("a", "/a/c");
+            fail("Adding a duplicate name should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
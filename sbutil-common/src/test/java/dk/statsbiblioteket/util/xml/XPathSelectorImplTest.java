@@ -136,4 +136,47 @@ public class XPathSelectorImplTest extends TestCase {
         assertEquals(1.1234, d);
 
     }
+
+    public void testInvalidExpression() {
+        // Repeated failures are served from the shared registry
+        for (int i = 0; i < 3; i++) {
+            assertNull(selector.selectNode(dom, "/foo:body/["));
+        }
+        ((XPathSelectorImpl) selector).clearCache();
+        assertNull(selector.selectNode(dom, "/foo:body/["));
+        assertEquals("foobar", selector.selectString(dom, "/foo:body/foo:string"));
+    }
+
+    public void testParallelSelection() throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Document local = stringToDOM(SIMPLE_XML, true);
+                        for (int i = 0; i < 500; i++) {
+                            assertEquals(27, selector.selectInteger(
+                                    local, "/foo:body/foo:integer").intValue());
+                            assertEquals(1.1234, selector.selectDouble(
+                                    local, "/foo:body/ex:double"));
+                            if (i % 100 == 0) {
+                                ((XPathSelectorImpl) selector).clearCache();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            fail("Parallel selection failed: " + failure[0]);
+        }
+    }
 }